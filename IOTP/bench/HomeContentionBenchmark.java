@@ -0,0 +1,168 @@
+/*
+  CS544 - Computer Networks
+  Drexel University
+  Protocol Implementation: IoT Home Control Protocol
+  Abhilasha Jayaswal
+
+  File name: HomeContentionBenchmark.java
+
+  Purpose:
+  Contention benchmark for concurrent access to a Home. A number of threads
+  run a mix of device reads (consistent device state reads and INIT snapshot
+  builds) and device writes (parameter changes) against one home, for each of
+  the configured read/write ratios, and the throughput of every mix is
+  printed. Each mix is run against the striped (per device type and per
+  device) locking of Home and against a coarse variant that serializes every
+  operation on the home, as the server did before.
+  Run with: java bench.HomeContentionBenchmark [threads] [seconds per run]
+ */
+
+package bench;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import devices.*;
+
+public class HomeContentionBenchmark {
+
+	//Percentage of read operations of every benchmarked mix
+	private static final int[] READ_PERCENTAGES = new int[]{0, 50, 90, 99};
+	//Opcode of turning a device on (or putting a blind down)
+	private static final byte OP_ON = 0;
+	//Opcode of setting the first parameter of a Light, Blind, ThermoStat or TV
+	private static final byte OP_SET_PARAM = 2;
+	//Device types with a settable parameter
+	private static final byte[] PARAM_TYPES = new byte[]{0, 1, 2, 3};
+	//Warm up duration of every run
+	private static final long WARMUP_MS = 500;
+
+	public static void main(String[] args) throws Exception {
+		int threads = args.length > 0 ? Integer.parseInt(args[0])
+				: Runtime.getRuntime().availableProcessors();
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+
+		System.out.println(String.format("%d threads, %d s per run", threads,
+				seconds));
+		System.out.println(String.format("%-8s %-8s %14s", "reads", "locking",
+				"ops/s"));
+		for (int readPct : READ_PERCENTAGES) {
+			for (boolean coarse : new boolean[]{true, false}) {
+				double opsPerSec = run(threads, seconds, readPct, coarse);
+				System.out.println(String.format("%-8s %-8s %,14.0f",
+						readPct + "%", coarse ? "coarse" : "striped",
+						opsPerSec));
+			}
+		}
+	}
+
+	/*
+	  Runs one mix and returns its throughput in operations per second.
+	 */
+	private static double run(int threads, int seconds, final int readPct,
+			final boolean coarse) throws Exception {
+		final Home home = createHome();
+		final AtomicBoolean measuring = new AtomicBoolean(false);
+		final AtomicBoolean stop = new AtomicBoolean(false);
+		final AtomicLong ops = new AtomicLong();
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			workers[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					ThreadLocalRandom rand = ThreadLocalRandom.current();
+					byte[] buf = new byte[8];
+					long count = 0;
+					boolean counting = false;
+					while (!stop.get()) {
+						if (!counting && measuring.get()) {
+							counting = true;
+							count = 0;
+						}
+						try {
+							if (rand.nextInt(100) < readPct)
+								read(home, rand, buf, coarse);
+							else
+								write(home, rand, coarse);
+						} catch (Exception e) {
+							throw new RuntimeException(e);
+						}
+						count++;
+					}
+					ops.addAndGet(count);
+				}
+			});
+			workers[t].start();
+		}
+		Thread.sleep(WARMUP_MS);
+		measuring.set(true);
+		long start = System.nanoTime();
+		Thread.sleep(seconds * 1000L);
+		stop.set(true);
+		long elapsed = System.nanoTime() - start;
+		for (Thread w : workers)
+			w.join();
+		return ops.get() * 1e9 / elapsed;
+	}
+
+	//Reads one random device, or builds an INIT once every 64 reads
+	private static void read(Home home, ThreadLocalRandom rand, byte[] buf,
+			boolean coarse) {
+		if (coarse) {
+			synchronized (home) {
+				readUnlocked(home, rand, buf);
+			}
+		}
+		else {
+			readUnlocked(home, rand, buf);
+		}
+	}
+
+	private static void readUnlocked(Home home, ThreadLocalRandom rand,
+			byte[] buf) {
+		if (rand.nextInt(64) == 0) {
+			home.getInit();
+			return;
+		}
+		List<IOTDevice> l = home.devices().get(rand.nextInt(5));
+		l.get(rand.nextInt(l.size())).readState(buf, 0);
+	}
+
+	//Sets the first parameter of one random device to a random value
+	private static void write(Home home, ThreadLocalRandom rand,
+			boolean coarse) throws Exception {
+		byte type = PARAM_TYPES[rand.nextInt(PARAM_TYPES.length)];
+		int num = rand.nextInt(home.devices().get(type).size());
+		DeviceAction action = new DeviceAction((byte) 0, type, (byte) num,
+				OP_SET_PARAM, new byte[]{(byte) rand.nextInt()});
+		if (coarse) {
+			synchronized (home) {
+				home.doAction(action);
+			}
+		}
+		else {
+			home.doAction(action);
+		}
+	}
+
+	/*
+	  @return a random home with all devices turned on, so that parameter
+	  changes are legal.
+	 */
+	private static Home createHome() throws Exception {
+		Home home = new RandomHomeGenerator(4, 32).createHome();
+		for (byte type : PARAM_TYPES) {
+			for (IOTDevice d : home.devices().get(type)) {
+				try {
+					home.doAction(new DeviceAction((byte) 0, type,
+							d.deviceNumber(), OP_ON, new byte[0]));
+				} catch (Exception e) {
+					// already on
+				}
+			}
+		}
+		return home;
+	}
+}
@@ -17,14 +17,17 @@
 
 package client;
 
+import protocol.ProtocolFeatures;
+
 public class Client {
 	
     
 	// client configuration
 	//default timeout for client socket listener
 	public static final int CLIENT_SOCKET_LISTENER_TIMEOUT = 1000;
-	//default client protocol version
-	public static final String PROTOCOL_VERSION = "IOTP 0001";
+	//default client protocol version, selected when offered by the server
+	public static final String PROTOCOL_VERSION =
+			ProtocolFeatures.READABLE.version();
 	//default host 
 	private static final String MY_HOST = "127.0.0.1";
 	//default port 
@@ -34,6 +37,7 @@ public class Client {
 	 Main method to startup a client connection to the server. Arguments:
 	 specify the host to connect to.
 	 specify the port to connect to.
+	 optionally, a subscription filter to receive only some of the devices.
 	 run a client as default, which allows sending raw messages to the server. 
          If given, does not have to specify username and password.
 	 @param args client command line arguments.
@@ -77,6 +81,14 @@ public class Client {
 				break;
 			}
 		}
+		// subscription filter
+		String filter = null;
+		for (i = 0; i < args.length - 1; i++) {
+			if (args[i].equalsIgnoreCase("-subscribe")) {
+				filter = args[i + 1];
+				break;
+			}
+		}
 		// default client
 		boolean test = false;
 		for (i = 0; i < args.length; i++) {
@@ -101,7 +113,8 @@ public class Client {
 		}
 		// start in standard mode
 		else {
-			clientCommunication = new ClientInterface(host, port, userName, password);
+			clientCommunication = new ClientInterface(host, port, userName,
+					password, filter);
 		}
 		Thread thread = new Thread(clientCommunication);
 		thread.start();
@@ -120,6 +133,8 @@ public class Client {
 		System.out.println("E.g.: -host 122.0.1.2 -port 8080 -login myname:mypassword");
 		System.out.println("*  Default host: 127.0.0.1");
 		System.out.println("*  Default port: 9070");
+		System.out.println("Optionally, receive only some of the devices:");
+		System.out.println("-subscribe \"type=slock;device=light:0-2;name=kitchen\"");
 		System.out.println("In order to run in default mode use the argument:");
 		System.out.println("-default");
 		System.exit(-1);
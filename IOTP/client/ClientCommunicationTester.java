@@ -89,10 +89,11 @@ public class ClientCommunicationTester implements ClientCommunication {
 					m = Message.fromHexString(line);
 					m.customPrint("Server");
 					
-					// break connection if received a shudown or error message
-					// from the server
+					// break connection if received a shudown, error or
+					// redirect message from the server
 					if (m.keycode() == Message.KEY_TERMINATE ||
-							m.keycode() == Message.KEY_ERROR) {
+							m.keycode() == Message.KEY_ERROR ||
+							m.keycode() == Message.KEY_REDIRECT) {
 						break;
 					}
 					// generate valid challenge-response in case received a
@@ -18,6 +18,7 @@ import java.io.*;
 import java.util.*;
 
 import protocol.Message;
+import protocol.ReadRequest;
 
 import devices.*;
 
@@ -113,10 +114,11 @@ public class ClientIOThread extends Thread {
 					selectedType.type());
 			
 			// get device number
-			byte selectedDeviceIndex = -1;
+			int selectedDeviceIndex = -1;
                         
 			// set message for user
-			msg = "Select device or press T to terminate:";
+			msg = "Select device, press R to read the current state of these"
+					+ " devices or T to terminate:";
 			for (IOTDevice d: selectedDevices)
 				msg += "\n[" + d.deviceNumber()+ "] " + d.name().trim();
                         
@@ -130,8 +132,14 @@ public class ClientIOThread extends Thread {
 						clientComm.postAction(Message.TERMINATE);
 						return;
 					}
+					// read the devices of the selected type, one request
+					if (input.trim().equalsIgnoreCase("r")) {
+						clientComm.postAction(readAll(selectedType,
+								selectedDevices.size()));
+						return;
+					}
 					// check selected device number is in range
-					selectedDeviceIndex = Byte.parseByte(input);
+					selectedDeviceIndex = Integer.parseInt(input.trim());
 					if (selectedDeviceIndex < 0
 							|| selectedDeviceIndex >= selectedDevices.size()) {
 						throw new Exception("selected device number not in range");
@@ -255,6 +263,21 @@ public class ClientIOThread extends Thread {
 		
 	}
 	
+	/*
+	 @return the read request of the first devices of the given type, up to
+	 the largest number of devices of one read.
+	 */
+	private static Message readAll(DeviceType type, int count) {
+		count = Math.min(count, ReadRequest.MAX_READ_DEVICES);
+		byte[] types = new byte[count];
+		int[] numbers = new int[count];
+		for (int i = 0; i < count; i++) {
+			types[i] = type.type();
+			numbers[i] = i;
+		}
+		return new ReadRequest(types, numbers).toMessage();
+	}
+	
 	/*
 	 Mark to kill the user input thread. Called by the communication handler
 	 whenever a message is received by the server during user input collection. 
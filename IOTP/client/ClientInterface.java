@@ -8,7 +8,9 @@
  Purpose:
  Provides an implementation of ClientCommunication interface, which handles
  client communication to the server. This class collects userName input, handles
- message parsing and generation.
+ message parsing and generation. When the server redirects the client to the
+ cluster node hosting its home, the client reconnects there. A client given a
+ subscription filter subscribes to it once it receives its INIT.
 */
 
 package client;
@@ -26,6 +28,8 @@ public class ClientInterface implements ClientCommunication {
 
 	// indicator to flag the client to process userName input
 	private static final String POSTED_MESSAGE = "POSTED_MESSAGE";
+	// maximum number of redirects followed in a row
+	private static final int MAX_REDIRECTS = 5;
 	
 	//Host to connect to
 	private String host;
@@ -38,6 +42,9 @@ public class ClientInterface implements ClientCommunication {
         
 	//Password
 	private String password;
+	
+	//Subscription filter, null to receive every device
+	private String filter;
         
 	//DFA to be used to track protocol states and process messages
 	private DFA dfa;
@@ -49,17 +56,29 @@ public class ClientInterface implements ClientCommunication {
 	  received from the userName
 	 */
 	private volatile Message postedAction;
+	//Number of redirects followed since the last INIT
+	private int redirects = 0;
 	
 	/*
 	 Constructor for a client communication handler with a CLI for processing
 	 client input.
 	 */
 	public ClientInterface(String host, int port, String userName, String password) {
+		this(host, port, userName, password, null);
+	}
+	
+	/*
+	 Constructor for a client communication handler receiving only the devices
+	 selected by the given subscription filter, if not null.
+	 */
+	public ClientInterface(String host, int port, String userName,
+			String password, String filter) {
 		this.host = host;
 		this.port = port;
 		this.userName = userName;
 		this.password = password;
-		this.dfa = new ProtocolClientDFA(this, userName, password);
+		this.filter = filter;
+		this.dfa = new ProtocolClientDFA(this, userName, password, filter);
 	}
 	
 	//main thread to handle client connection to the server and userName input
@@ -67,6 +86,8 @@ public class ClientInterface implements ClientCommunication {
 	@Override
 	public void run() {
 		boolean userShutDown = false;
+		String redirect = null;
+		boolean legacyPing = false;
 		try {
 			// initialize socket
 			Socket socket = new Socket(host, port);
@@ -100,12 +121,27 @@ public class ClientInterface implements ClientCommunication {
 					inMsg = Message.fromHexString(line);
 					inMsg.customPrint("S");
 					
+					// an original server, which only takes the original ping
+					if (((ProtocolClientDFA) dfa).pingRefused(inMsg)) {
+						legacyPing = true;
+						break;
+					}
 					// handle shutdown
 					if (inMsg.keycode() == Message.KEY_TERMINATE ||
 							inMsg.keycode() == Message.KEY_ERROR) {
-						clientIOThread.killInput();
+						killInput();
+						break;
+					}
+					// the home is hosted by another cluster node
+					if (inMsg.keycode() == Message.KEY_REDIRECT) {
+						if (clientIOThread != null)
+							clientIOThread.killInput();
+						redirect = inMsg.content();
 						break;
 					}
+					if (inMsg.keycode() == Message.KEY_INITIAL
+							|| inMsg.keycode() == Message.KEY_INIT_CHUNK)
+						redirects = 0;
 				}
 				
 				// process output message
@@ -119,6 +155,10 @@ public class ClientInterface implements ClientCommunication {
 					//start a client input thread
 					createClientInputThread();
 				}
+				// nothing to send, keep reading
+				else if (outMsg == Message.NO_REPLY) {
+					continue;
+				}
 				// send message to server
 				else {
 					write(outMsg, bw);
@@ -127,11 +167,36 @@ public class ClientInterface implements ClientCommunication {
 						userShutDown = true;
 						break;
 					}
+					// credits granted in place of waiting for user input
+					if (outMsg.keycode() == Message.KEY_CREDIT)
+						createClientInputThread();
 				}					
 			}
 			
 			// terminate
 			socket.close();
+			if (legacyPing) {
+				System.out.println(Util.dateTime() + " -- Client " + userName
+						+ " reconnecting with the original protocol version");
+				ProtocolClientDFA legacy = new ProtocolClientDFA(this,
+						userName, password, filter);
+				legacy.useLegacyPing();
+				dfa = legacy;
+				run();
+				return;
+			}
+			if (redirect != null && redirects < MAX_REDIRECTS) {
+				redirects++;
+				System.out.println(Util.dateTime() + " -- Client " + userName
+						+ " redirected to " + redirect);
+				int sep = redirect.lastIndexOf(':');
+				host = redirect.substring(0, sep);
+				port = Integer.parseInt(redirect.substring(sep + 1));
+				dfa = new ProtocolClientDFA(this, userName, password, filter);
+				postedAction = null;
+				run();
+				return;
+			}
 			System.out.println(Util.dateTime() + " Client " + userName + " disconnected");
 			if (!userShutDown) System.out.println("Press any key to exit");
 			
@@ -216,6 +281,8 @@ public class ClientInterface implements ClientCommunication {
 	
 	@Override
 	public void killInput() {
-		this.clientIOThread.killInput();
+		// no input thread before the (subscribed) home is received
+		if (this.clientIOThread != null)
+			this.clientIOThread.killInput();
 	}
 }
\ No newline at end of file
@@ -48,12 +48,12 @@ public class Blind extends IOTDevice {
 	Blind() {}
 	
 	//Constructs Shade with the given name and device number
-	public Blind(String name, byte deviceNumber) {
+	public Blind(String name, int deviceNumber) {
 		super(name, deviceNumber);
 	}
 
 	//Constructs Shade with the given name, device number and initial state
-	public Blind(String name, byte deviceNumber, BlindState state) {
+	public Blind(String name, int deviceNumber, BlindState state) {
 		super(name, deviceNumber);
 		this.state = state;
 	}
@@ -62,7 +62,7 @@ public class Blind extends IOTDevice {
          Constructs Shade with the given name, device number, initial state and
 	 parameters (should contain only dim level).
 	 */
-	public Blind(String desc, byte deviceNum, BlindState state, byte[] parms) {
+	public Blind(String desc, int deviceNum, BlindState state, byte[] parms) {
 		this(desc, deviceNum, state);
 		this.dimLevel = parms[0];
 	}
@@ -75,25 +75,25 @@ public class Blind extends IOTDevice {
 	}
 
 	@Override
-	public void doAction(DeviceAction action) throws Exception {
+	public boolean doAction(DeviceAction action) throws Exception {
 		byte opcode = action.opcode();
 		// turn on
 		if (opcode == PUT_DOWN) {
 			if (action.numParams() != 0) throw new Exception("Put down Blinds " +
 					"expected 0 parameters, given: " + action.numParams());
-			putDown();
+			return putDown();
 		}
 		// turn off
 		else if (opcode == PULL_UP) {
 			if (action.numParams() != 0) throw new Exception("Pull up Blinds " +
 					"expected 0 parameters, given: " + action.numParams());
-			pullUp();
+			return pullUp();
 		}
 		// dim
 		else if (opcode == DIM) {
 			if (action.numParams() != 1) throw new Exception("Dim Blinds " +
 					"expected 1 parameters, given: " + action.numParams());
-			dim(action.getParam(0));
+			return dim(action.getParam(0));
 		}
 		// error
 		else {
@@ -103,21 +103,25 @@ public class Blind extends IOTDevice {
 	
 	@Override
 	public String toString() {
-		return Util.bufferLeft(' ', 16, name) + state.ordinal();
+		return Util.bufferLeft(' ', 16, name) + state().ordinal();
 	}
 	
 	@Override
-	public byte[] getBytes() {
-		return Util.cat(
-				Util.bufferLeft(' ', 16, name).getBytes(),	// name
-				(byte)state.ordinal(),				// state
-				new byte[]{dimLevel});				// params
+	public void encodeState(byte[] b, int offset) {
+		b[offset] = (byte)state().ordinal();		// state
+		b[offset + 1] = dimLevel();			// params
+	}
+	
+	@Override
+	public void decodeState(byte[] b, int offset) {
+		putState(BlindState.typeFromCode(b[offset]));
+		putDimLevel(b[offset + 1]);
 	}
 	
 	@Override
 	public String toCustomString() {
 		return String.format("#%03d %-16s %-10s dim-level: %d",
-				deviceNumber, name, state, dimLevel);
+				deviceNumber, name, state(), dimLevel());
 	}
 	
 	@Override
@@ -135,58 +139,57 @@ public class Blind extends IOTDevice {
 	/*
         Puts down the Blinds
 	 */
-	protected void putDown() throws Exception {
-		if (state == BlindState.DOWN)
+	protected boolean putDown() throws Exception {
+		if (state() == BlindState.DOWN)
 			throw new Exception("Cannot put down Shade " +
 					deviceNumber + " (" + name + ") when already down");
-		state = BlindState.DOWN;
+		putState(BlindState.DOWN);
+		return true;
 	}
 	
 	//Pulls the blinds up
-	protected void pullUp() throws Exception {
-		if (state == BlindState.UP)
+	protected boolean pullUp() throws Exception {
+		if (state() == BlindState.UP)
 			throw new Exception("Cannot pull up Shade " +
 					deviceNumber + " (" + name + ") when already up");
-		state = BlindState.UP;
+		putState(BlindState.UP);
+		return true;
 	}
 	
-	//Sets the dim level of the blinds
-	protected void dim(byte dimLevel) throws Exception {
-		if (state == BlindState.UP)
+	//Sets the dim level of the blinds, returns false if it is already at that level
+	protected boolean dim(byte dimLevel) throws Exception {
+		if (state() == BlindState.UP)
 			throw new Exception("Cannot dim Shade " +
 					deviceNumber + " (" + name + ") when up");
-		this.dimLevel = dimLevel;
+		if (dimLevel() == dimLevel)
+			return false;
+		putDimLevel(dimLevel);
+		return true;
 	}
 	
-	// getters
+	// state accessors
 	
-	public byte dimLevel() {
-		return dimLevel;
-	}	
-}
-
-//Enumeration of Blind states.
-enum BlindState {
-	UP((byte) 0),
-	DOWN((byte) 1);
+	private void putState(BlindState state) {
+		if (isView())
+			putStateByte(0, (byte) state.ordinal());
+		else
+			this.state = state;
+	}
 	
-	private BlindState(byte type) {
-		this.type = type;
+	private void putDimLevel(byte dimLevel) {
+		if (isView())
+			putStateByte(1, dimLevel);
+		else
+			this.dimLevel = dimLevel;
 	}
 	
-	private byte type;
+	// getters
 	
-	public byte type() {
-		return type;
+	public BlindState state() {
+		return isView() ? BlindState.typeFromCode(stateByte(0)) : state;
 	}
 	
-	public static BlindState typeFromCode(byte code) {
-		switch (code) {
-			case 0: return UP;
-			case 1: return DOWN;
-			default: {
-				throw new RuntimeException("Invalid BlindState given: " + code);
-			}
-		}
-	}		
+	public byte dimLevel() {
+		return isView() ? stateByte(1) : dimLevel;
+	}	
 }
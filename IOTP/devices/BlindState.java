@@ -0,0 +1,39 @@
+/*  
+  CS544 - Computer Networks
+  Drexel University
+  Protocol Implementation: IoT Home Control Protocol
+  Abhilasha Jayaswal
+ 
+  File name: BlindState.java
+  
+  Purpose:
+  Enumeration of the states of a blind device (see Blind).
+ */
+
+package devices;
+
+//Enumeration of Blind states.
+enum BlindState {
+	UP((byte) 0),
+	DOWN((byte) 1);
+	
+	private BlindState(byte type) {
+		this.type = type;
+	}
+	
+	private byte type;
+	
+	public byte type() {
+		return type;
+	}
+	
+	public static BlindState typeFromCode(byte code) {
+		switch (code) {
+			case 0: return UP;
+			case 1: return DOWN;
+			default: {
+				throw new RuntimeException("Invalid BlindState given: " + code);
+			}
+		}
+	}		
+}
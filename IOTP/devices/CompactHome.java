@@ -0,0 +1,144 @@
+/*
+  CS544 - Computer Networks
+  Drexel University
+  Protocol Implementation: IoT Home Control Protocol
+  Abhilasha Jayaswal
+
+  File name: CompactHome.java
+
+  Purpose:
+  Compact immutable form of a home that is not in use: its shared template
+  and one byte array with the state and parameters of all its devices, in
+  INIT order. A compact home costs a few tens of bytes on top of the shared
+  template, instead of the device objects of a live home, and converts back
+  to its INIT encoding or to a live home on demand.
+ */
+
+package devices;
+
+import protocol.Message;
+import protocol.Util;
+
+public final class CompactHome {
+
+	//The shared layout of the home
+	private final HomeTemplate template;
+	//States and parameters of all devices, by device type and number
+	private final byte[] states;
+
+	private CompactHome(HomeTemplate template, byte[] states) {
+		this.template = template;
+		this.states = states;
+	}
+
+	//@return the compact form of the home encoded by the given INIT bytes
+	public static CompactHome fromInit(byte[] init) {
+		HomeTemplate template = HomeTemplate.fromInit(init);
+		byte[] states = new byte[template.stateSize()];
+		int index = 1;
+		int s = 0;
+		for (int type = 0; type < template.numTypes(); type++) {
+			int len = HomeTemplate.stateLength(type);
+			index += Util.varintSize(template.numDevices(type));
+			for (int num = 0; num < template.numDevices(type); num++) {
+				index += IOTDevice.NAME_LENGTH;
+				System.arraycopy(init, index, states, s, len);
+				index += len;
+				s += len;
+			}
+		}
+		return new CompactHome(template, states);
+	}
+
+	//@return the compact form of the current state of the given home
+	public static CompactHome of(Home home) {
+		return fromInit(home.getInit());
+	}
+
+	//@return the INIT message bytes of the home
+	public byte[] toInit() {
+		int size = 2 + states.length;
+		for (int type = 0; type < template.numTypes(); type++)
+			size += Util.varintSize(template.numDevices(type))
+					+ template.nameSlots(type).length;
+		byte[] init = new byte[size];
+		int index = 0;
+		int s = 0;
+		init[index++] = Message.KEY_INITIAL;
+		for (int type = 0; type < template.numTypes(); type++) {
+			byte[] slots = template.nameSlots(type);
+			int len = HomeTemplate.stateLength(type);
+			index = Util.writeVarint(init, index, template.numDevices(type));
+			for (int num = 0; num < template.numDevices(type); num++) {
+				System.arraycopy(slots, num * IOTDevice.NAME_LENGTH, init,
+						index, IOTDevice.NAME_LENGTH);
+				index += IOTDevice.NAME_LENGTH;
+				System.arraycopy(states, s, init, index, len);
+				index += len;
+				s += len;
+			}
+		}
+		init[index] = (byte) '\n';
+		return init;
+	}
+
+	//@return a new live home with the devices and states of this home
+	public Home toHome() {
+		return Home.createHomeFromInit(new Message(toInit()));
+	}
+
+	//@return the shared layout of the home
+	public HomeTemplate template() {
+		return template;
+	}
+
+	/*
+	  Main method for testing: checks the conversions, compares the heap
+	  used by live and compact homes sharing one layout, and checks that the
+	  layout is forgotten once no home uses it.
+	  @param args [number of homes]
+	 */
+	public static void main(String[] args) {
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		Home home = new RandomHomeGenerator(4, 3).createHome();
+		byte[] init = home.getInit();
+		CompactHome compact = CompactHome.of(home);
+		System.out.println("INIT round trip: " + java.util.Arrays.equals(
+				init, compact.toInit()));
+		System.out.println("home round trip: " + java.util.Arrays.equals(
+				init, compact.toHome().getInit()));
+
+		Object[] live = new Object[n];
+		long before = usedMemory();
+		for (int i = 0; i < n; i++)
+			live[i] = Home.createHomeFromInit(new Message(init));
+		long liveBytes = usedMemory() - before;
+		System.out.println("live homes built: " + (live[n - 1] != null));
+		live = null;
+
+		Object[] compacts = new Object[n];
+		before = usedMemory();
+		for (int i = 0; i < n; i++)
+			compacts[i] = CompactHome.fromInit(init);
+		long compactBytes = usedMemory() - before;
+		System.out.println(n + " homes, live: " + liveBytes / n
+				+ " bytes/home, compact: " + compactBytes / n
+				+ " bytes/home, templates: " + HomeTemplate.internedCount());
+		System.out.println("compact homes built: " + (compacts[n - 1] != null));
+		compacts = null;
+		compact = null;
+		// cleared templates are dropped once their references are enqueued
+		for (int i = 0; i < 10 && HomeTemplate.internedCount() > 0; i++)
+			usedMemory();
+		System.out.println("templates once unused: "
+				+ HomeTemplate.internedCount());
+	}
+
+	//@return the heap in use after a garbage collection
+	private static long usedMemory() {
+		Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++)
+			System.gc();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+}
@@ -14,7 +14,11 @@
 
 package devices;
 
+import java.util.Arrays;
+
 import protocol.Message;
+import protocol.ProtocolFeatures;
+import protocol.Util;
 
 public class DeviceAction {
 	
@@ -24,58 +28,165 @@ public class DeviceAction {
 	
 	//The byte stream for both action (first byte) and parameters.
 	private byte[] stream;
+	//The sequence number, a single signed byte in narrow encoding
+	private final int sequenceNumber;
+	//The device type
+	private final byte deviceType;
+	//The device number
+	private final int deviceNumber;
+	//The opcode
+	private final byte opcode;
+	//Index of the first parameter in the stream
+	private final int paramsOffset;
+	/*
+	  The version of the device produced by applying this action on a home, or
+	  -1 if the action was not applied or did not change the device.
+	 */
+	private int version = -1;
 	
 	/*
 	  Constructs a new device action from the given sequence number, device type code,
-	  device number, operation code and operation parameters.
+	  device number, operation code and operation parameters, in wide
+	  encoding.
 	 */
-	public DeviceAction(byte sequenceNumber, byte deviceType, byte deviceNumber, byte opcode, byte params[]) {
-		this.stream = new byte[5 + params.length];
-		stream[0] = Message.KEY_ACTION;
-		stream[1] = sequenceNumber;
-		stream[2] = deviceType;
-		stream[3] = deviceNumber;
-		stream[4] = opcode;
-		for (int i = 0; i < params.length; i++) {
-			stream[5+i] = params[i];
-		}		
+	public DeviceAction(int sequenceNumber, byte deviceType, int deviceNumber, byte opcode, byte params[]) {
+		this(encode(sequenceNumber, deviceType, deviceNumber, opcode, params,
+				true), true);
 	}
 	
 	/*
-	  Constructs an action from the given action message, without making an
-	  input check.
+	  Constructs an action from the given action message in narrow encoding,
+	  without making an input check.
 	  @param inActionMsg the action message to construct an action from.
 	 */
 	public DeviceAction(Message inActionMsg) {
-		this.stream = inActionMsg.bytes();
+		this(inActionMsg.bytes(), false);
 	}
 	
 	/*
-	  Constructs an action from the given stream. Does not check validity.
+	  Constructs an action from the given stream in narrow encoding. Does not
+	  check validity.
 	  @param stream
 	 */
 	public DeviceAction(byte[] stream) {
+		this(stream, false);
+	}
+	
+	/*
+	  Constructs an action from the given stream, in wide (varint sequence
+	  number) or narrow encoding. Only checks that the stream holds the header
+	  fields.
+	  @throws IllegalArgumentException if the stream is too short or holds a
+	  malformed varint.
+	 */
+	public DeviceAction(byte[] stream, boolean wide) {
 		this.stream = stream;
+		if (stream.length < 5)
+			throw new IllegalArgumentException("Truncated action");
+		int i = 1;
+		if (wide) {
+			sequenceNumber = Util.readVarint(stream, i);
+			i += Util.varintSize(sequenceNumber);
+		}
+		else
+			sequenceNumber = stream[i++];
+		if (i >= stream.length)
+			throw new IllegalArgumentException("Truncated action");
+		deviceType = stream[i++];
+		deviceNumber = Util.readVarint(stream, i);
+		i += Util.varintSize(deviceNumber);
+		if (i >= stream.length)
+			throw new IllegalArgumentException("Truncated action");
+		opcode = stream[i++];
+		paramsOffset = i;
+	}
+	
+	/*
+	  @return this action applied to the device of the given number instead,
+	  with the same sequence number and encoding.
+	 */
+	public DeviceAction withDeviceNumber(int number) {
+		int at = paramsOffset - 1 - Util.varintSize(deviceNumber);
+		int tail = stream.length - at - Util.varintSize(deviceNumber);
+		byte[] b = new byte[at + Util.varintSize(number) + tail];
+		System.arraycopy(stream, 0, b, 0, at);
+		int i = Util.writeVarint(b, at, number);
+		System.arraycopy(stream, stream.length - tail, b, i, tail);
+		return new DeviceAction(b, sequenceNumber, deviceType, number, opcode,
+				i + 1);
+	}
+	
+	//Constructs an action from the given stream and its decoded fields
+	private DeviceAction(byte[] stream, int sequenceNumber, byte deviceType,
+			int deviceNumber, byte opcode, int paramsOffset) {
+		this.stream = stream;
+		this.sequenceNumber = sequenceNumber;
+		this.deviceType = deviceType;
+		this.deviceNumber = deviceNumber;
+		this.opcode = opcode;
+		this.paramsOffset = paramsOffset;
+	}
+	
+	/*
+	  @return the action applying the given update message: [keycode, device
+	  type, device number (varint), opcode, params*], with sequence number 0.
+	  @throws IllegalArgumentException if the update is truncated.
+	 */
+	public static DeviceAction fromUpdate(byte[] update) {
+		// disguise the update as an action
+		byte[] actionBytes = new byte[update.length + 1];
+		actionBytes[0] = Message.KEY_ACTION;
+		actionBytes[1] = 0x00;	// dummy sequence number
+		System.arraycopy(update, 1, actionBytes, 2, update.length - 1);
+		return new DeviceAction(actionBytes, true);
+	}
+	
+	/*
+	  @return the action message stream of the given fields. Device numbers
+	  are varints, sequence numbers a single byte in narrow encoding and a
+	  varint in wide encoding.
+	  @throws IllegalArgumentException if the device number does not fit the
+	  narrow encoding.
+	 */
+	static byte[] encode(int sequenceNumber, byte deviceType,
+			int deviceNumber, byte opcode, byte[] params, boolean wide) {
+		if (!wide && deviceNumber > ProtocolFeatures.MAX_NARROW_DEVICES)
+			throw new IllegalArgumentException("Device number "
+					+ deviceNumber + " requires wide addressing");
+		int seqSize = wide ? Util.varintSize(sequenceNumber) : 1;
+		byte[] b = new byte[3 + seqSize + Util.varintSize(deviceNumber)
+				+ params.length];
+		int i = 0;
+		b[i++] = Message.KEY_ACTION;
+		if (wide)
+			i = Util.writeVarint(b, i, sequenceNumber);
+		else
+			b[i++] = (byte) sequenceNumber;
+		b[i++] = deviceType;
+		i = Util.writeVarint(b, i, deviceNumber);
+		b[i++] = opcode;
+		System.arraycopy(params, 0, b, i, params.length);
+		return b;
 	}
 		
 	//Returns the device action sequence number
-	public byte sequenceNumber() {
-		return stream[1];
+	public int sequenceNumber() {
+		return sequenceNumber;
 	}
 	
 	//Returns the device type
 	public byte deviceType() {
-		return stream[2];
+		return deviceType;
 	}
 	
 	//Returns the device number
-	public byte deviceNumber() {
-		return stream[3];
+	public int deviceNumber() {
+		return deviceNumber;
 	}
 	
 	//Returns the opcode (byte) of this action
 	public byte opcode() {
-		return stream[4];
+		return opcode;
 	}
 	
 	/*
@@ -84,17 +195,88 @@ public class DeviceAction {
 	  parameter exists at that index.
 	 */
 	public byte getParam(int index) {
-		if (index < 0 || stream.length < index + 5)
+		if (index < 0 || stream.length <= index + paramsOffset)
 			return ILLEGAL_PARAM;
-		return stream[index + 5];
+		return stream[index + paramsOffset];
 	}
 	
 	//Returns number of parameters in the device action
 	public int numParams() {
-		return stream.length - 5;
+		return stream.length - paramsOffset;
+	}
+
+	//Returns the device version produced by applying the action, or -1
+	public int version() {
+		return version;
+	}
+	
+	//Sets the device version produced by applying the action
+	void setVersion(int version) {
+		this.version = version;
 	}
 
 	public Message toMessage() {
 		return new Message(this.stream);
 	}
+	
+	/*
+	  @return the update message broadcasting this action, the action without
+	  its sequence number. The encoding is the same for narrow and wide
+	  sessions.
+	 */
+	public Message toUpdate() {
+		int params = numParams();
+		byte[] b = new byte[3 + Util.varintSize(deviceNumber) + params];
+		int i = 0;
+		b[i++] = Message.KEY_UPDATE;
+		b[i++] = deviceType;
+		i = Util.writeVarint(b, i, deviceNumber);
+		b[i++] = opcode;
+		System.arraycopy(stream, paramsOffset, b, i, params);
+		return new Message(b);
+	}
+
+	/*
+	  Main method for testing: round trips a home with more devices of one
+	  type than a narrow session can address through INIT, compact form,
+	  wide actions and updates.
+	  @param args [number of lights]
+	 */
+	public static void main(String[] args) throws Exception {
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+		Home server = new Home();
+		for (int i = 0; i < n; i++)
+			server.addDevice(new Light("light " + i, i, LightState.ON));
+		server.addDevice(new SLock("front door", 0, SLockState.OFF));
+		byte[] init = server.getInit();
+		System.out.println("narrow addressable: "
+				+ server.snapshot().narrowAddressable());
+
+		Home client = Home.createHomeFromInit(new Message(init));
+		client.setWideAddressing(true);
+		System.out.println("INIT round trip: "
+				+ Arrays.equals(init, client.getInit()));
+		System.out.println("compact round trip: " + Arrays.equals(init,
+				CompactHome.fromInit(init).toInit()));
+
+		// dim the last light from the client, through the server
+		byte dim = 2;
+		Message m = client.createActionMessage(DeviceType.LIGHT.type(), n - 1,
+				dim, new byte[] { 42 });
+		DeviceAction action = new DeviceAction(m.bytes(), true);
+		server.doAction(action);
+		Message confirm = Message.createConfirm(action.sequenceNumber(), true,
+				true);
+		client.doUpdate(action.toUpdate());
+		System.out.println("action on light " + action.deviceNumber()
+				+ " confirmed: " + Message.confirmAccepted(confirm)
+				+ ", images equal: "
+				+ Arrays.equals(server.getInit(), client.getInit()));
+
+		client.setWideAddressing(false);
+		m = client.createActionMessage(DeviceType.LIGHT.type(), n - 1, dim,
+				new byte[] { 1 });
+		System.out.println("narrow action on light " + (n - 1) + " rejected: "
+				+ (m == Message.ERROR_GENERAL));
+	}
 }
@@ -0,0 +1,192 @@
+/*
+  CS544 - Computer Networks
+  Drexel University
+  Protocol Implementation: IoT Home Control Protocol
+  Abhilasha Jayaswal
+
+  File name: DeviceStateStore.java
+
+  Purpose:
+  Struct-of-arrays store of the states of all devices of one type in a home.
+  Every state byte (the state code, then every parameter) has its own
+  column, a contiguous run of one byte per device, in a heap or direct
+  (off-heap) buffer, and scans over one column (e.g. counting the devices
+  in a state) run over contiguous memory.
+  Only the state bytes move into the store. A device attached to a store
+  reads and writes its state through its slot, but remains a full object:
+  it keeps its name, number, version and lock, and its own (then unused)
+  state fields, so a home stored this way does not use less memory than
+  one holding the states in the device objects.
+  The store grows as devices are added. The device records of an encoded
+  INIT are held by RecordStates instead.
+ */
+
+package devices;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+public final class DeviceStateStore implements DeviceStates {
+
+	//Initial number of device slots
+	private static final int INITIAL_CAPACITY = 4;
+
+	//Number of columns: the state code and the parameters
+	private final int columns;
+	//Whether the buffer is allocated off-heap
+	private final boolean direct;
+	/*
+	  Column buffer, replaced when the store grows. Its size is always the
+	  number of columns times the slot capacity, so a reader never sees a
+	  buffer and a capacity that do not match.
+	 */
+	private volatile ByteBuffer buffer;
+	//Number of allocated device slots
+	private int size = 0;
+
+	//Constructs an empty store for devices of the given type
+	public DeviceStateStore(DeviceType type, boolean direct) {
+		this.columns = 1 + type.numParams();
+		this.direct = direct;
+		this.buffer = allocate(columns * INITIAL_CAPACITY);
+	}
+
+	/*
+	  Allocates a slot for a new device. Must be called under the exclusive
+	  lock of the device type in the home (see Home.addDevice).
+	  @return the slot.
+	 */
+	int allocate() {
+		if (size == capacity(buffer))
+			grow();
+		return size++;
+	}
+
+	@Override
+	public byte get(int slot, int column) {
+		ByteBuffer b = buffer;
+		return b.get(index(b, slot, column));
+	}
+
+	@Override
+	public void set(int slot, int column, byte value) {
+		ByteBuffer b = buffer;
+		b.put(index(b, slot, column), value);
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public int count(byte stateCode) {
+		ByteBuffer b = buffer;
+		int n = 0;
+		for (int slot = 0; slot < size; slot++) {
+			if (b.get(index(b, slot, 0)) == stateCode)
+				n++;
+		}
+		return n;
+	}
+
+	//@return the index of the given state byte of a device in the given buffer
+	private int index(ByteBuffer b, int slot, int column) {
+		return column * capacity(b) + slot;
+	}
+
+	//@return the number of device slots the given column buffer has room for
+	private int capacity(ByteBuffer b) {
+		return b.capacity() / columns;
+	}
+
+	//Doubles the capacity, moving every column to its new position
+	private void grow() {
+		ByteBuffer old = buffer;
+		int capacity = capacity(old);
+		ByteBuffer b = allocate(columns * capacity * 2);
+		for (int column = 0; column < columns; column++) {
+			for (int slot = 0; slot < size; slot++)
+				b.put(column * capacity * 2 + slot,
+						old.get(column * capacity + slot));
+		}
+		buffer = b;
+	}
+
+	private ByteBuffer allocate(int bytes) {
+		return direct ? ByteBuffer.allocateDirect(bytes)
+				: ByteBuffer.allocate(bytes);
+	}
+
+	/*
+	  Main method for testing: applies the same random sequence of valid and
+	  invalid actions on homes built from the same seed with every storage,
+	  and checks that the results, the failures, the INIT encodings and the
+	  state counts are identical after every step.
+	  @param args [number of actions] [seed]
+	 */
+	public static void main(String[] args) {
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : 7;
+		Home.Storage[] storages = Home.Storage.values();
+		Home[] homes = new Home[storages.length];
+		for (int h = 0; h < homes.length; h++) {
+			Home.setDefaultStorage(storages[h]);
+			homes[h] = new RandomHomeGenerator(seed, 3).createHome();
+		}
+		Home.setDefaultStorage(Home.Storage.OBJECTS);
+
+		Random rand = new Random(seed);
+		int failures = 0;
+		for (int step = 0; step < n; step++) {
+			byte type = (byte) rand.nextInt(5);
+			int num;
+			byte opcode;
+			byte[] params;
+			if (rand.nextInt(10) == 0) {
+				// invalid device, opcode or parameter count
+				num = rand.nextInt(5);
+				opcode = (byte) rand.nextInt(5);
+				params = new byte[rand.nextInt(3)];
+			} else {
+				IOTDevice d = homes[0].devices().get(type).get(
+						rand.nextInt(homes[0].devices().get(type).size()));
+				num = d.deviceNumber();
+				opcode = (byte) rand.nextInt(d.opKeysMap().size());
+				String[] names = d.opKeysParamMap().get(opcode);
+				params = new byte[names == null ? 0 : names.length];
+			}
+			rand.nextBytes(params);
+			String[] results = new String[homes.length];
+			for (int h = 0; h < homes.length; h++) {
+				DeviceAction action = new DeviceAction((byte) step, type,
+						num, opcode, params);
+				try {
+					results[h] = String.valueOf(homes[h].doAction(action));
+				} catch (Exception e) {
+					results[h] = e.getClass().getName() + ": " + e.getMessage();
+				}
+			}
+			if (results[0].indexOf(':') > 0)
+				failures++;
+			for (int h = 1; h < homes.length; h++) {
+				String diff = null;
+				if (!results[0].equals(results[h]))
+					diff = results[0] + " / " + results[h];
+				else if (!Arrays.equals(homes[0].getInit(), homes[h].getInit()))
+					diff = "INIT differs";
+				else if (homes[0].countInState(type, (byte) 1)
+						!= homes[h].countInState(type, (byte) 1))
+					diff = "state count differs";
+				if (diff != null) {
+					System.out.println("step " + step + ", " + storages[h]
+							+ ": " + diff);
+					return;
+				}
+			}
+		}
+		System.out.println(n + " actions (" + failures + " failed) identical in "
+				+ Arrays.toString(storages));
+	}
+}
@@ -0,0 +1,32 @@
+/*
+  CS544 - Computer Networks
+  Drexel University
+  Protocol Implementation: IoT Home Control Protocol
+  Abhilasha Jayaswal
+
+  File name: DeviceStates.java
+
+  Purpose:
+  Interface for the states of the devices of one type held outside the
+  device objects, one slot per device: the growable column store of a home
+  (DeviceStateStore), or the fixed device records of an encoded INIT
+  (RecordStates). A device attached to such states reads and writes its
+  state through its slot.
+ */
+
+package devices;
+
+interface DeviceStates {
+
+	//@return the given state byte of the device in the given slot
+	byte get(int slot, int column);
+
+	//Sets the given state byte of the device in the given slot
+	void set(int slot, int column, byte value);
+
+	//@return the number of device slots
+	int size();
+
+	//@return the number of devices whose state code is the given one
+	int count(byte stateCode);
+}
@@ -21,6 +21,9 @@ public enum DeviceType {
 	SLOCK	((byte) 4, 0);
 	//NO_SUCH_DEVICE((byte) -1, null);//NO_SUCH_DEVICE((byte) -1, null);
 	
+	//Number of device types, encoded in this order in every INIT
+	public static final int NUM_TYPES = values().length;
+	
 	private DeviceType(byte type, int numParams) {
 		this.type = type;
 		this.numParams = numParams;
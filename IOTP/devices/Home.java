@@ -17,13 +17,27 @@ package devices;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import protocol.Message;
-
 import protocol.Util;
 
 public class Home {
 	
+	/*
+	  Where the states of the devices of a home are held: in the fields of
+	  the device objects, or in one struct-of-arrays store per device type
+	  on the heap or off-heap (see DeviceStateStore), the devices then
+	  reading and writing their state through their store slot.
+	 */
+	public enum Storage { OBJECTS, HEAP, DIRECT }
+	
+	//Storage of the homes constructed from now on
+	private static volatile Storage defaultStorage = Storage.OBJECTS;
+	
 	//List of iot devices available in the home
 	private List<List<IOTDevice>> devices = new ArrayList<List<IOTDevice>>();
 	
@@ -31,59 +45,380 @@ public class Home {
           Sequence number field, used for tracking actions generated to be applied
 	  on the home devices.
 	 */
-	private byte sequenceNumber = 0;
+	private final AtomicInteger sequenceNumber = new AtomicInteger();
+	
+	/*
+	  Whether the action messages created by createActionMessage use wide
+	  (varint) sequence numbers, as negotiated by the client session.
+	 */
+	private volatile boolean wideAddressing = false;
 	
-	//constructs a new home with no devices.
+	/*
+	  Lock stripes, one per device type list. Lookups of devices (actions,
+	  updates and action message generation) share the lock of their device
+	  type, adding a device takes it exclusively. The state of every device is
+	  further guarded by its own state lock.
+	 */
+	private final ReentrantReadWriteLock[] typeLocks;
+	
+	/*
+	  Latest published snapshot of the home, from which INIT messages are
+	  built. Replaced (copy-on-write) on every applied action, built on first
+	  use and dropped whenever a device is added.
+	 */
+	private final AtomicReference<HomeImage> image =
+			new AtomicReference<HomeImage>();
+	
+	/*
+	  Set once the home is owned by a single writer thread, which applies all
+	  its actions through doActions without taking any lock.
+	 */
+	private volatile boolean singleWriter = false;
+	
+	//State stores by device type, null when the states are held by objects
+	private final DeviceStateStore[] stores;
+	
+	//constructs a new home with no devices, in the default storage.
 	public Home() {
+		this(defaultStorage);
+	}
+	
+	//constructs a new home with no devices, in the given storage.
+	public Home(Storage storage) {
 		devices = new ArrayList<List<IOTDevice>>();
 		devices.add(new ArrayList<IOTDevice>());
 		devices.add(new ArrayList<IOTDevice>());
 		devices.add(new ArrayList<IOTDevice>());
 		devices.add(new ArrayList<IOTDevice>());
 		devices.add(new ArrayList<IOTDevice>());
+		typeLocks = new ReentrantReadWriteLock[devices.size()];
+		for (int i = 0; i < typeLocks.length; i++)
+			typeLocks[i] = new ReentrantReadWriteLock();
+		if (storage == Storage.OBJECTS) {
+			stores = null;
+		} else {
+			stores = new DeviceStateStore[devices.size()];
+			for (int i = 0; i < stores.length; i++)
+				stores[i] = new DeviceStateStore(
+						DeviceType.typeFromCodeSafe((byte) i),
+						storage == Storage.DIRECT);
+		}
+	}
+	
+	//Sets the storage of the homes constructed from now on
+	public static void setDefaultStorage(Storage storage) {
+		defaultStorage = storage;
+	}
+	
+	//@return the storage of the homes constructed from now on
+	public static Storage defaultStorage() {
+		return defaultStorage;
 	}
 	
 	/*
           Adds the given device to the list of devices of the same type, with the
-	  index of the last element as the device number.
+	  index of the last element as the device number. Takes the lock of the
+	  device type exclusively, so devices may be added (e.g. from the chunks
+	  of an INIT) while actions run on the home.
 	  @param device the device to add.
 	  @return the added device.
 	 */
 	public IOTDevice addDevice(IOTDevice device) {
+		Lock lock = typeLocks[device.deviceType()].writeLock();
+		lock.lock();
+		try {
+			return appendDevice(device);
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/*
+	  Appends the given device to the list of its type. Called with the lock
+	  of the device type held exclusively; the home monitor is taken after
+	  the type locks, never before.
+	 */
+	protected synchronized IOTDevice appendDevice(IOTDevice device) {
 		List<IOTDevice> l = devices.get(device.deviceType());
-		device.setDeviceNumber((byte)l.size());
+		device.setDeviceNumber(l.size());
+		if (stores != null)
+			device.attach(stores[device.deviceType()]);
 		l.add(device);
+		dropSnapshot();
 		return device;
 	}
 	
+	//Drops the published snapshot when a device is added, rebuilt on next use
+	protected void dropSnapshot() {
+		image.set(null);
+	}
+	
 	/*
           Applies the given action on the respective device.
+	  Only the shared lock of the device type and the state lock of the device
+	  are taken, so actions on different devices do not contend, and readers of
+	  the device or of the home snapshot are never blocked.
 	  @param action
+	  @return true if the action changed the state of the device, false if it
+	  was a no-op.
 	 */
-	public synchronized void doAction(DeviceAction action) throws Exception {
-		devices.get(action.deviceType()).get(action.deviceNumber())
-				.doAction(action);
+	public boolean doAction(DeviceAction action) throws Exception {
+		// make sure a snapshot exists, so the change below is published in it
+		snapshot();
+		Lock lock = typeLocks[action.deviceType()].readLock();
+		lock.lock();
+		try {
+			IOTDevice device = device(action.deviceType(),
+					action.deviceNumber());
+			long stamp = device.stateLock.writeLock();
+			try {
+				boolean changed = device.doAction(action);
+				if (changed) {
+					device.incrementVersion();
+					action.setVersion(device.version());
+					publish(device);
+				}
+				return changed;
+			} finally {
+				device.stateLock.unlockWrite(stamp);
+			}
+		} finally {
+			lock.unlock();
+		}
 	}
 	
-	//@return the init message for this home
-	public byte[] getInit() {
-		// initialize byte stream and init opcode
-		List<Byte> bytes = new ArrayList<Byte>();
-		bytes.add((byte) Message.KEY_INITIAL);
-		// iterate over devices and accumulate their encoding
-		for (List<IOTDevice> deviceList : devices) {			
-			bytes.add((byte) deviceList.size());
-			for (IOTDevice device : deviceList) {
-				bytes.addAll(Util.toByteList(device.getBytes()));
+	/*
+	  Applies the given actions in order, as one group: the shared locks of
+	  all device types are taken once for the whole group, and a single new
+	  snapshot containing all the changes is published at the end, with a
+	  plain volatile write rather than a compare-and-set loop. This is only
+	  safe while the calling thread is the only writer of the home (the core
+	  loop owning it, see server.ActionExecutor, or the single thread of a
+	  relay, follower or journal replay): a concurrent doAction or doActions
+	  on the same home would have its change overwritten in the snapshot.
+	  @param actions the actions to apply.
+	  @param failures filled with the exception of every action that failed,
+	  the other actions are still applied.
+	  @return for every action, true if it changed the state of its device.
+	 */
+	public boolean[] doActions(DeviceAction[] actions, Exception[] failures) {
+		if (singleWriter)
+			return doActionsOwned(actions, failures);
+		snapshot();
+		boolean[] changed = new boolean[actions.length];
+		List<IOTDevice> changedDevices = new ArrayList<IOTDevice>();
+		int changes = 0;
+		for (ReentrantReadWriteLock typeLock : typeLocks)
+			typeLock.readLock().lock();
+		try {
+			for (int i = 0; i < actions.length; i++) {
+				DeviceAction action = actions[i];
+				try {
+					IOTDevice device = device(action.deviceType(),
+							action.deviceNumber());
+					long stamp = device.stateLock.writeLock();
+					try {
+						changed[i] = device.doAction(action);
+						if (changed[i]) {
+							device.incrementVersion();
+							action.setVersion(device.version());
+						}
+					} finally {
+						device.stateLock.unlockWrite(stamp);
+					}
+					if (changed[i]) {
+						changes++;
+						if (!changedDevices.contains(device))
+							changedDevices.add(device);
+					}
+				} catch (Exception e) {
+					failures[i] = e;
+				}
+			}
+			// a device added since the snapshot() above dropped the snapshot:
+			// the next one is built from the devices, with these changes
+			HomeImage current = image.get();
+			if (current != null && !changedDevices.isEmpty())
+				image.set(current.with(changedDevices, changes));
+		} finally {
+			for (ReentrantReadWriteLock typeLock : typeLocks)
+				typeLock.readLock().unlock();
+		}
+		return changed;
+	}
+	
+	/*
+	  Switches the home to single-writer mode. From then on the home must only
+	  be changed through doActions, always by the same thread, and devices
+	  must only be read through snapshots. No device may be added afterwards.
+	 */
+	public void setSingleWriter() {
+		snapshot();
+		singleWriter = true;
+	}
+	
+	/*
+	  doActions in single-writer mode: the writer thread is the only one
+	  touching the devices, and no device may be added, so neither type
+	  locks nor device locks are needed.
+	 */
+	private boolean[] doActionsOwned(DeviceAction[] actions,
+			Exception[] failures) {
+		boolean[] changed = new boolean[actions.length];
+		List<IOTDevice> changedDevices = new ArrayList<IOTDevice>();
+		int changes = 0;
+		for (int i = 0; i < actions.length; i++) {
+			DeviceAction action = actions[i];
+			try {
+				IOTDevice device = device(action.deviceType(),
+						action.deviceNumber());
+				changed[i] = device.doAction(action);
+				if (changed[i]) {
+					device.incrementVersion();
+					action.setVersion(device.version());
+					changes++;
+					if (!changedDevices.contains(device))
+						changedDevices.add(device);
+				}
+			} catch (Exception e) {
+				failures[i] = e;
 			}
 		}
-		bytes.addAll(Util.toByteList("\n".getBytes()));
-		// convert to array before return
-		byte bytesArr[] = new byte[bytes.size()];
-		for (int i = 0; i < bytesArr.length; i++) {
-			bytesArr[i] = bytes.get(i);
+		if (changes > 0)
+			image.set(image.get().withOwned(changedDevices, changes));
+		return changed;
+	}
+	
+	/*
+	  Rolls back the changes of a group applied by doActions: every changed
+	  device gets its state and version back from the given snapshot, the
+	  one published before the group, which is then published again. Used
+	  when the changes could not be journaled (see server.ActionExecutor).
+	  The caller must be the writer that applied the group, with no other
+	  change of the home since.
+	  @param before the snapshot published before the group was applied.
+	  @param actions the actions of the group.
+	  @param changed for every action, true if it changed its device.
+	 */
+	public void rollBack(HomeImage before, DeviceAction[] actions,
+			boolean[] changed) {
+		for (ReentrantReadWriteLock typeLock : typeLocks)
+			typeLock.readLock().lock();
+		try {
+			for (int i = 0; i < actions.length; i++) {
+				if (!changed[i])
+					continue;
+				byte type = actions[i].deviceType();
+				int number = actions[i].deviceNumber();
+				IOTDevice device = device(type, number);
+				byte[] state = new byte[device.stateLength()];
+				before.copyState(type, number, state, 0);
+				long stamp = device.stateLock.writeLock();
+				try {
+					device.decodeState(state, 0);
+					device.resetVersion(before.deviceVersion(type, number));
+				} finally {
+					device.stateLock.unlockWrite(stamp);
+				}
+			}
+			if (image.get() != null)
+				image.set(before);
+		} finally {
+			for (ReentrantReadWriteLock typeLock : typeLocks)
+				typeLock.readLock().unlock();
 		}
-		return bytesArr;
+	}
+	
+	/*
+	  Publishes a new snapshot with the current state of the given device.
+	  Called with the device state lock held, so changes of a single device are
+	  published in order; concurrent changes of other devices only retry the
+	  copy of the segment of the device. Only doAction, whose callers (the
+	  client, tests and benchmarks) may change a home from several threads,
+	  publishes this way: the server writers go through doActions.
+	 */
+	private void publish(IOTDevice device) {
+		HomeImage current, next;
+		do {
+			current = image.get();
+			if (current == null)
+				return;
+			next = current.with(device);
+		} while (!image.compareAndSet(current, next));
+	}
+	
+	/*
+	  @return the latest published snapshot of the home. Does not block
+	  concurrent actions, except when the snapshot is built for the first time
+	  (or after a device was added), which takes all type locks exclusively so
+	  that no change is missed by the new snapshot. Must not be called while
+	  holding a type lock.
+	 */
+	public HomeImage snapshot() {
+		HomeImage current = image.get();
+		if (current != null)
+			return current;
+		for (ReentrantReadWriteLock typeLock : typeLocks)
+			typeLock.writeLock().lock();
+		try {
+			if (image.get() == null)
+				image.set(newImage());
+			return image.get();
+		} finally {
+			for (ReentrantReadWriteLock typeLock : typeLocks)
+				typeLock.writeLock().unlock();
+		}
+	}
+	
+	/*
+	  @return a new snapshot encoding the current state of all devices. Called
+	  with all type locks held exclusively.
+	 */
+	protected HomeImage newImage() {
+		return new HomeImage(devices);
+	}
+	
+	//@return true if a snapshot of the home is published
+	protected boolean hasSnapshot() {
+		return image.get() != null;
+	}
+	
+	/*
+	  @return the number of devices of the given type in the given state.
+	  In array storage this is a scan of one contiguous column; with object
+	  storage every device is read.
+	 */
+	public int countInState(byte deviceType, byte stateCode) {
+		Lock lock = typeLocks[deviceType].readLock();
+		lock.lock();
+		try {
+			if (stores != null)
+				return stores[deviceType].count(stateCode);
+			int n = 0;
+			byte[] b = new byte[1 + DeviceType.typeFromCodeSafe(deviceType)
+					.numParams()];
+			for (IOTDevice d : devices.get(deviceType)) {
+				d.readState(b, 0);
+				if (b[0] == stateCode)
+					n++;
+			}
+			return n;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	//@return the init message for this home
+	public byte[] getInit() {
+		return snapshot().toInit();
+	}
+	
+	/*
+	  @return the version stamp of the home snapshot, incremented on every
+	  state change applied since the snapshot was first built.
+	 */
+	public long initVersion() {
+		return snapshot().version();
 	}
 	
 	// used for custom printing the state of the home
@@ -99,31 +434,41 @@ public class Home {
 	  and their states.
 	 */
 	public void customPrint() {
+		System.out.print(toCustomString());
+	}
+	
+	/*
+	  @return the table printed by customPrint, one line per device, each line
+	  terminated with a newline.
+	 */
+	public String toCustomString() {
 		String ind = "       ";
 		String pre;
+		List<List<IOTDevice>> devices = devices();
 		int devTypes = devices.size();
 		List<IOTDevice> devs;
+		StringBuilder sb = new StringBuilder(512);
 		
 		// print header
-		System.out.println(THICK_SEP);
-		System.out.println("Home current state:");
-		System.out.println(String.format("%-7s%-4s %-16s %-10s %s",
-				"Type", "Num", "Name", "State", "Params"));
+		sb.append(THICK_SEP).append('\n');
+		sb.append("Home current state:\n");
+		sb.append(String.format("%-7s%-4s %-16s %-10s %s",
+				"Type", "Num", "Name", "State", "Params")).append('\n');
 		
 		// iterate over device types and print all devices
 		for (int devType = 0; devType < devTypes; devType++) {
-			System.out.println(THIN_SEP);
+			sb.append(THIN_SEP).append('\n');
 			pre = String.format("%-7s",
 					DeviceType.typeFromCodeSafe((byte) devType));
 			devs = devices.get(devType);
 			for (IOTDevice d: devs) {
-				System.out.println(
-						(pre == null ? ind : pre) +
-						d.toCustomString());
+				sb.append(pre == null ? ind : pre)
+						.append(d.toCustomString()).append('\n');
 				pre = null;
 			}
 		}	
-		System.out.println(THICK_SEP);
+		sb.append(THICK_SEP).append('\n');
+		return sb.toString();
 	}
 	
 	/*
@@ -133,56 +478,122 @@ public class Home {
 	 */
 	public static Home createHomeFromInit(Message m) {
 		// initialize an empty home
-		Home home = new Home();
+		return readInit(new Home(), m);
+	}
+	
+	//Adds the devices of the given INIT message to the given empty home
+	static <H extends Home> H readInit(H home, Message m) {
 		byte[] b = m.bytes();
 		int index = 1;
 		// iterate over device types and construct devices
-		for (byte deviceType = 0; deviceType < 5; deviceType++) {
-			int deviceCount = b[index++];
-			// construct device instances
-			for (byte deviceNum = 0; deviceNum < deviceCount; deviceNum++) {
-				int numParms = DeviceType.typeFromCodeSafe(deviceType)
-						.numParams();
-				byte[] d = new byte[17+numParms];
-				for (int k = 0; k < d.length; k++) {
-					d[k] = b[index++];
-				}
-				// create device and add to home
-				IOTDevice device = IOTDevice.createDeviceFromBytes(
-						DeviceType.typeFromCodeSafe(deviceType), deviceNum, d);
-				home.addDevice(device);
-			}
+		for (byte deviceType = 0; deviceType < DeviceType.NUM_TYPES;
+				deviceType++) {
+			int deviceCount = Util.readVarint(b, index);
+			index += Util.varintSize(deviceCount);
+			index = home.addDevices(b, index, deviceType, 0, deviceCount);
 		}
 		return home;
 	}
+	
+	/*
+	  Adds the devices of the given INIT chunk message to the home, used by
+	  the client to build the image of the home incrementally, one chunk at a
+	  time, from a chunked INIT. The home is live while the chunks arrive
+	  (the user input of the client reads it), so the chunk is added under
+	  the exclusive lock of its device type, then under the home monitor, the
+	  guard of the device lists of a lazy home (see LazyHome).
+	  @return true if the chunk is the last one of the INIT.
+	  @throws IllegalArgumentException if the chunk does not continue the
+	  devices of its type.
+	 */
+	public boolean addInitChunk(Message m) {
+		byte[] b = m.bytes();
+		int index = 1;
+		boolean last = (b[index++] & Message.CHUNK_LAST) != 0;
+		byte deviceType = b[index++];
+		int first = Util.readVarint(b, index);
+		index += Util.varintSize(first);
+		int count = Util.readVarint(b, index);
+		index += Util.varintSize(count);
+		if (deviceType < 0 || deviceType >= typeLocks.length)
+			throw new IllegalArgumentException("Unexpected INIT chunk: type "
+					+ deviceType + ", first device " + first);
+		Lock lock = typeLocks[deviceType].writeLock();
+		lock.lock();
+		try {
+			synchronized (this) {
+				if (first != devices().get(deviceType).size())
+					throw new IllegalArgumentException(
+							"Unexpected INIT chunk: type " + deviceType
+							+ ", first device " + first);
+				addDevices(b, index, deviceType, first, count);
+			}
+		} finally {
+			lock.unlock();
+		}
+		return last;
+	}
+	
+	/*
+	  Constructs the given number of devices of one type from their encoding
+	  at the given index of the given INIT bytes, and adds them to the home.
+	  @return the index following the encoding of the devices.
+	 */
+	protected int addDevices(byte[] b, int index, byte deviceType, int first,
+			int count) {
+		int numParms = DeviceType.typeFromCodeSafe(deviceType).numParams();
+		// construct device instances
+		for (int deviceNum = first; deviceNum < first + count; deviceNum++) {
+			byte[] d = new byte[17+numParms];
+			for (int k = 0; k < d.length; k++) {
+				d[k] = b[index++];
+			}
+			// create device and add to home
+			IOTDevice device = IOTDevice.createDeviceFromBytes(
+					DeviceType.typeFromCodeSafe(deviceType), deviceNum, d);
+			addDevice(device);
+		}
+		return index;
+	}
 
 	/*
           @return the action message generated from the given device type, number,
 	  sequence number, opcode and parameters.
 	 */
-	public Message createActionMessage(byte deviceType, byte deviceNumber,
+	public Message createActionMessage(byte deviceType, int deviceNumber,
 			byte opcode, byte[] params) {
+		Lock lock = null;
 		try {
-			return devices.get(deviceType).get(deviceNumber)
-					.getActionMessage(sequenceNumber++, opcode, params);
+			lock = typeLocks[deviceType].readLock();
+			lock.lock();
+			return device(deviceType, deviceNumber).getActionMessage(
+					sequenceNumber.getAndIncrement() & Integer.MAX_VALUE,
+					opcode, params, wideAddressing);
 		} catch (Exception e) {
 			e.printStackTrace();
 			return Message.ERROR_GENERAL;
+		} finally {
+			if (lock != null)
+				lock.unlock();
 		}
 	}
 
-	//Apply the update from the given update message on the home
+	/*
+	  Apply the update from the given update message on the home, under the
+	  same locks as doAction.
+	 */
 	public void doUpdate(Message updateMessage) throws Exception {
-		// disguise the update as an action
-		byte[] b = updateMessage.bytes();
-		byte[] actionBytes = new byte[b.length + 1];
-		actionBytes[0] = Message.KEY_ACTION;
-		actionBytes[1] = 0x00;	// dummy sequence number
-		for (int i = 1; i < b.length; i++)
-			actionBytes[i + 1] = b[i];
-		DeviceAction a = new DeviceAction(actionBytes);
-		// apply the action
-		doAction(a);
+		doAction(DeviceAction.fromUpdate(updateMessage.bytes()));
+	}
+	
+	//@return the given device
+	protected IOTDevice device(byte deviceType, int deviceNumber) {
+		return devices.get(deviceType).get(deviceNumber);
+	}
+	
+	//Sets whether createActionMessage uses wide sequence numbers
+	public void setWideAddressing(boolean wide) {
+		this.wideAddressing = wide;
 	}
 	
 	// getter method
@@ -0,0 +1,325 @@
+/*
+  CS544 - Computer Networks
+  Drexel University
+  Protocol Implementation: IoT Home Control Protocol
+  Abhilasha Jayaswal
+
+  File name: HomeImage.java
+
+  Purpose:
+  Immutable pre-serialized snapshot of the state of a home, from which INIT
+  messages are built. The devices of every type are encoded into one segment
+  with a fixed slot per device. A state change produces a new image that
+  copies only the segment of the changed device type and shares the others
+  (copy-on-write), so readers can use a published image without any lock.
+  Every image carries the version of every device it contains, which lets a
+  joining session drop updates already included in its INIT.
+  Segments are buffers, so the first image of a home loaded from a mapped
+  snapshot file reads the file in place (see LazyHome); segments are only
+  copied to the heap when a device of their type changes.
+ */
+
+package devices;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import protocol.Message;
+import protocol.Projection;
+import protocol.ProtocolFeatures;
+import protocol.Util;
+
+public class HomeImage {
+
+	//Encoded devices, by device type, never written once published
+	private final ByteBuffer[] segments;
+	//Version of every device in the image, by device type and number
+	private final int[][] versions;
+	//Number of state changes applied since the first image of the home
+	private final long version;
+
+	/*
+	  Encodes the given devices, grouped by device type, into a new image.
+	 */
+	HomeImage(List<List<IOTDevice>> devices) {
+		segments = new ByteBuffer[devices.size()];
+		versions = new int[devices.size()][];
+		for (int type = 0; type < devices.size(); type++) {
+			List<IOTDevice> deviceList = devices.get(type);
+			int recordLength = recordLength(type);
+			byte[] segment = new byte[deviceList.size() * recordLength];
+			int[] deviceVersions = new int[deviceList.size()];
+			for (int num = 0; num < deviceList.size(); num++) {
+				IOTDevice device = deviceList.get(num);
+				System.arraycopy(device.nameSlot, 0, segment,
+						num * recordLength, IOTDevice.NAME_LENGTH);
+				deviceVersions[num] = device.readState(segment,
+						num * recordLength + IOTDevice.NAME_LENGTH);
+			}
+			segments[type] = ByteBuffer.wrap(segment);
+			versions[type] = deviceVersions;
+		}
+		version = 0;
+	}
+
+	//Constructs an image from the given parts
+	private HomeImage(ByteBuffer[] segments, int[][] versions, long version) {
+		this.segments = segments;
+		this.versions = versions;
+		this.version = version;
+	}
+
+	/*
+	  @return an image over the given encoded device records, by device type,
+	  which are not copied and must not be written afterwards, with the given
+	  device versions.
+	 */
+	static HomeImage over(ByteBuffer[] segments, int[][] versions) {
+		return new HomeImage(segments.clone(), versions, 0);
+	}
+
+	/*
+	  @return a new image with the slot of the given device re-encoded from its
+	  current state. Only the segment of the device type is copied. The caller
+	  must hold the device state lock.
+	 */
+	HomeImage with(IOTDevice device) {
+		int type = device.deviceType();
+		int num = device.deviceNumber();
+		ByteBuffer[] newSegments = segments.clone();
+		int[][] newVersions = versions.clone();
+		byte[] segment = copy(segments[type]);
+		newSegments[type] = ByteBuffer.wrap(segment);
+		newVersions[type] = versions[type].clone();
+		device.encodeState(segment,
+				num * recordLength(type) + IOTDevice.NAME_LENGTH);
+		newVersions[type][num] = device.version();
+		return new HomeImage(newSegments, newVersions, version + 1);
+	}
+
+	/*
+	  @return a new image with the slots of all the given devices re-encoded
+	  from their current state, copying every touched segment once. The states
+	  are read with the device read protocol, so the caller must not hold the
+	  state lock of any of the devices.
+	  @param changes the number of state changes the devices went through.
+	 */
+	HomeImage with(List<IOTDevice> devices, int changes) {
+		return with(devices, changes, false);
+	}
+	
+	/*
+	  @return a new image with the slots of all the given devices re-encoded,
+	  for a home in single-writer mode: the caller is the only thread touching
+	  the devices, so their states are encoded directly.
+	 */
+	HomeImage withOwned(List<IOTDevice> devices, int changes) {
+		return with(devices, changes, true);
+	}
+	
+	private HomeImage with(List<IOTDevice> devices, int changes,
+			boolean owned) {
+		ByteBuffer[] newSegments = segments.clone();
+		byte[][] copies = new byte[segments.length][];
+		int[][] newVersions = versions.clone();
+		for (IOTDevice device : devices) {
+			int type = device.deviceType();
+			int num = device.deviceNumber();
+			if (copies[type] == null) {
+				copies[type] = copy(segments[type]);
+				newSegments[type] = ByteBuffer.wrap(copies[type]);
+				newVersions[type] = versions[type].clone();
+			}
+			int offset = num * recordLength(type) + IOTDevice.NAME_LENGTH;
+			if (owned) {
+				device.encodeState(copies[type], offset);
+				newVersions[type][num] = device.version();
+			}
+			else
+				newVersions[type][num] = device.readState(copies[type],
+						offset);
+		}
+		return new HomeImage(newSegments, newVersions,
+				version + changes);
+	}
+	
+	/*
+	  @return a new encoded INIT message of this image. Device counts are
+	  varints, a single byte for types with fewer than 128 devices.
+	 */
+	public byte[] toInit() {
+		int size = 2;	// keycode and newline
+		for (int type = 0; type < segments.length; type++)
+			size += Util.varintSize(versions[type].length)
+					+ segments[type].capacity();
+		byte[] init = new byte[size];
+		int index = 0;
+		init[index++] = Message.KEY_INITIAL;
+		for (int type = 0; type < segments.length; type++) {
+			index = Util.writeVarint(init, index, versions[type].length);
+			index = get(segments[type], 0, init, index,
+					segments[type].capacity());
+		}
+		init[index] = (byte) '\n';
+		return init;
+	}
+
+	/*
+	  @return a new encoded INIT message of the devices of the given
+	  projection of this image, numbered as in the projection: the home a
+	  subscribed client controls.
+	 */
+	public byte[] toInit(Projection projection) {
+		int size = 2;
+		for (int type = 0; type < segments.length; type++)
+			size += Util.varintSize(projection.numDevices(type))
+					+ projection.numDevices(type) * recordLength(type);
+		byte[] init = new byte[size];
+		int index = 0;
+		init[index++] = Message.KEY_INITIAL;
+		for (int type = 0; type < segments.length; type++) {
+			int recordLength = recordLength(type);
+			index = Util.writeVarint(init, index, projection.numDevices(type));
+			for (int i = 0; i < projection.numDevices(type); i++)
+				index = get(segments[type],
+						projection.homeNumber(type, i) * recordLength, init,
+						index, recordLength);
+		}
+		init[index] = (byte) '\n';
+		return init;
+	}
+
+	/*
+	  @return the image of the devices of the given projection of this image,
+	  numbered as in the projection, from which the INIT chunks of a
+	  subscribed client are built.
+	 */
+	public HomeImage project(Projection projection) {
+		ByteBuffer[] projected = new ByteBuffer[segments.length];
+		int[][] projectedVersions = new int[segments.length][];
+		for (int type = 0; type < segments.length; type++) {
+			int recordLength = recordLength(type);
+			int n = projection.numDevices(type);
+			byte[] segment = new byte[n * recordLength];
+			projectedVersions[type] = new int[n];
+			for (int i = 0; i < n; i++) {
+				int num = projection.homeNumber(type, i);
+				get(segments[type], num * recordLength, segment,
+						i * recordLength, recordLength);
+				projectedVersions[type][i] = versions[type][num];
+			}
+			projected[type] = ByteBuffer.wrap(segment);
+		}
+		return new HomeImage(projected, projectedVersions, version);
+	}
+
+	/*
+	  @return a new encoded INIT chunk message with the given devices of one
+	  type of this image: [keycode, flags, device type, first device number,
+	  device count, devices*], numbers and counts as varints.
+	 */
+	public byte[] toInitChunk(int deviceType, int first, int count,
+			boolean last) {
+		int recordLength = recordLength(deviceType);
+		byte[] chunk = new byte[3 + Util.varintSize(first)
+				+ Util.varintSize(count) + count * recordLength];
+		int index = 0;
+		chunk[index++] = Message.KEY_INIT_CHUNK;
+		chunk[index++] = (last ? Message.CHUNK_LAST : 0);
+		chunk[index++] = (byte) deviceType;
+		index = Util.writeVarint(chunk, index, first);
+		index = Util.writeVarint(chunk, index, count);
+		get(segments[deviceType], first * recordLength, chunk, index,
+				count * recordLength);
+		return chunk;
+	}
+
+	//@return the number of device types of the image
+	public int numTypes() {
+		return segments.length;
+	}
+
+	//@return the number of devices of the given type in the image
+	public int numDevices(int deviceType) {
+		return versions[deviceType].length;
+	}
+
+	/*
+	  @return true if every device of the image can be addressed by a narrow
+	  (single byte) session.
+	 */
+	public boolean narrowAddressable() {
+		for (int[] deviceVersions : versions) {
+			if (deviceVersions.length > ProtocolFeatures.MAX_NARROW_DEVICES)
+				return false;
+		}
+		return true;
+	}
+
+	//@return the number of state changes this image reflects
+	public long version() {
+		return version;
+	}
+
+	/*
+	  @return the version of the given device in this image, or -1 if the
+	  image does not contain the device.
+	 */
+	public int deviceVersion(int deviceType, int deviceNumber) {
+		if (deviceType < 0 || deviceType >= versions.length
+				|| deviceNumber < 0
+				|| deviceNumber >= versions[deviceType].length)
+			return -1;
+		return versions[deviceType][deviceNumber];
+	}
+
+	//@return the name of the given device in this image
+	public String deviceName(int deviceType, int deviceNumber) {
+		byte[] name = new byte[IOTDevice.NAME_LENGTH];
+		get(segments[deviceType], deviceNumber * recordLength(deviceType),
+				name, 0, name.length);
+		return new String(name).trim();
+	}
+
+	/*
+	  Copies the encoded state and parameters of the given device in this
+	  image to the given buffer.
+	  @return the index following the copied bytes.
+	 */
+	public int copyState(int deviceType, int deviceNumber, byte[] dst,
+			int index) {
+		return get(segments[deviceType], deviceNumber * recordLength(deviceType)
+				+ IOTDevice.NAME_LENGTH, dst, index,
+				recordLength(deviceType) - IOTDevice.NAME_LENGTH);
+	}
+
+	/*
+	  Copies the given range of the given segment to the given array.
+	  @return the index following the copied bytes in the array.
+	 */
+	private static int get(ByteBuffer segment, int from, byte[] dst,
+			int index, int length) {
+		if (segment.hasArray()) {
+			System.arraycopy(segment.array(), segment.arrayOffset() + from,
+					dst, index, length);
+		} else {
+			ByteBuffer b = segment.duplicate();
+			b.position(from);
+			b.get(dst, index, length);
+		}
+		return index + length;
+	}
+
+	//@return a heap copy of the given segment
+	private static byte[] copy(ByteBuffer segment) {
+		byte[] b = new byte[segment.capacity()];
+		get(segment, 0, b, 0, b.length);
+		return b;
+	}
+
+	//@return the length of the encoding of a device of the given type
+	private static int recordLength(int deviceType) {
+		return IOTDevice.NAME_LENGTH + 1
+				+ DeviceType.typeFromCodeSafe((byte) deviceType).numParams();
+	}
+}
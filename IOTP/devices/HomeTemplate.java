@@ -0,0 +1,140 @@
+/*
+  CS544 - Computer Networks
+  Drexel University
+  Protocol Implementation: IoT Home Control Protocol
+  Abhilasha Jayaswal
+
+  File name: HomeTemplate.java
+
+  Purpose:
+  Immutable layout of a home: the number of devices of every type and their
+  pre-encoded 16-byte name slots. Templates are interned, so all homes with
+  the same layout share a single template, and a home held in compact form
+  (see CompactHome) only needs its device states on top of it. Templates are
+  interned weakly: a layout is forgotten once no home uses it anymore.
+ */
+
+package devices;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.WeakHashMap;
+
+import protocol.Util;
+
+public final class HomeTemplate {
+
+	/*
+	  Interned templates, every layout in use is held once, and dropped once
+	  unreachable. Guarded by itself.
+	 */
+	private static final WeakHashMap<HomeTemplate, WeakReference<HomeTemplate>>
+			TEMPLATES = new WeakHashMap<HomeTemplate, WeakReference<HomeTemplate>>();
+
+	//Encoded name slots of the devices, by device type
+	private final byte[][] nameSlots;
+	//Total number of state bytes of a home with this layout
+	private final int stateSize;
+	//Cached hash code
+	private final int hash;
+
+	private HomeTemplate(byte[][] nameSlots) {
+		this.nameSlots = nameSlots;
+		int size = 0;
+		int h = 1;
+		for (int type = 0; type < nameSlots.length; type++) {
+			size += numDevices(type) * stateLength(type);
+			h = 31 * h + Arrays.hashCode(nameSlots[type]);
+		}
+		this.stateSize = size;
+		this.hash = h;
+	}
+
+	/*
+	  @return the interned template of the home encoded by the given INIT
+	  message bytes.
+	 */
+	public static HomeTemplate fromInit(byte[] init) {
+		byte[][] slots = new byte[DeviceType.NUM_TYPES][];
+		int index = 1;
+		for (int type = 0; type < slots.length; type++) {
+			int count = Util.readVarint(init, index);
+			index += Util.varintSize(count);
+			slots[type] = new byte[count * IOTDevice.NAME_LENGTH];
+			for (int num = 0; num < count; num++) {
+				System.arraycopy(init, index, slots[type],
+						num * IOTDevice.NAME_LENGTH, IOTDevice.NAME_LENGTH);
+				index += IOTDevice.NAME_LENGTH + stateLength(type);
+			}
+		}
+		return intern(new HomeTemplate(slots));
+	}
+
+	//@return the shared instance of the given template
+	private static HomeTemplate intern(HomeTemplate template) {
+		synchronized (TEMPLATES) {
+			WeakReference<HomeTemplate> ref = TEMPLATES.get(template);
+			HomeTemplate shared = ref != null ? ref.get() : null;
+			if (shared != null)
+				return shared;
+			TEMPLATES.put(template, new WeakReference<HomeTemplate>(template));
+			return template;
+		}
+	}
+
+	//@return the number of distinct layouts interned and still in use
+	public static int internedCount() {
+		synchronized (TEMPLATES) {
+			return TEMPLATES.size();
+		}
+	}
+
+	// getters
+
+	//@return the number of device types of the layout
+	public int numTypes() {
+		return nameSlots.length;
+	}
+
+	//@return the number of devices of the given type
+	public int numDevices(int deviceType) {
+		return nameSlots[deviceType].length / IOTDevice.NAME_LENGTH;
+	}
+
+	//@return the name of the given device
+	public String name(int deviceType, int deviceNumber) {
+		return new String(nameSlots[deviceType],
+				deviceNumber * IOTDevice.NAME_LENGTH,
+				IOTDevice.NAME_LENGTH).trim();
+	}
+
+	//@return the number of state bytes of a home with this layout
+	public int stateSize() {
+		return stateSize;
+	}
+
+	//@return the number of state bytes (state and parameters) of a device type
+	public static int stateLength(int deviceType) {
+		return 1 + DeviceType.typeFromCodeSafe((byte) deviceType).numParams();
+	}
+
+	//@return the encoded name slots of all devices of the given type
+	byte[] nameSlots(int deviceType) {
+		return nameSlots[deviceType];
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o)
+			return true;
+		if (!(o instanceof HomeTemplate))
+			return false;
+		HomeTemplate t = (HomeTemplate) o;
+		return hash == t.hash && Arrays.deepEquals(nameSlots, t.nameSlots);
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+}
@@ -13,30 +13,60 @@
 
 package devices;
 
+import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.locks.StampedLock;
 
 import protocol.Message;
+import protocol.Util;
 
 public abstract class IOTDevice {
 
 	// device information
 	// common to all device types
 	
+	//Length of the fixed device name field in the INIT encoding
+	public static final int NAME_LENGTH = 16;
+	
 	//The device name
 	protected final String name;
+	//The device name, padded once to the fixed length name field of the INIT
+	protected final byte[] nameSlot;
 	//The device id number
-	protected byte deviceNumber;
+	protected int deviceNumber;
+	//Number of state changes applied on the device by its home
+	private int version = 0;
+	/*
+	  Guards the device state. Writers take it exclusively, readers use
+	  optimistic (seqlock style) reads that never block the writers.
+	 */
+	final StampedLock stateLock = new StampedLock();
+	
+	//Failed optimistic reads after which a reader falls back to the read lock
+	private static final int OPTIMISTIC_READ_RETRIES = 64;
+	
+	/*
+	  States holding the device state, in an array store (see Home.Storage)
+	  or in the records of an encoded INIT (see LazyHome), or null when the
+	  state is held in the device fields. The device fields of the state
+	  are then left unused; the name, version and lock stay in the device.
+	 */
+	private DeviceStates store;
+	//Slot of the device in its store
+	private int slot;
 	
 	// constructors
 	
 	//Default constructor, should never be called
 	IOTDevice() {
 		this.name = "Not a real device.";
+		this.nameSlot = encodeName(name);
 	}
 	
 	//Constructs a new device with the given name and device number
-	public IOTDevice(String name, byte deviceNumber) {
+	public IOTDevice(String name, int deviceNumber) {
 		this.name = name.trim();
+		this.nameSlot = encodeName(this.name);
 		this.deviceNumber = deviceNumber;
 	}
 	
@@ -48,13 +78,29 @@ public abstract class IOTDevice {
 	/*
           Applies the given action on this device.
 	  @param action the action to perform.
+	  @return true if the action changed the device state, false if the device
+	  was already in the requested state (no-op).
 	  @throws Exception if this action is illegal or invalid for this device
 	  type or state.
 	 */
-	public abstract void doAction(DeviceAction action) throws Exception;
+	public abstract boolean doAction(DeviceAction action) throws Exception;
 	
-	//@return the byte stream representing the device
-	public abstract byte[] getBytes();
+	/*
+	  Writes the device state byte followed by its parameters to the given
+	  buffer, i.e. the stateLength() bytes following the name field of the
+	  device encoding.
+	  @param b the buffer to write to.
+	  @param offset the index of the state byte in the buffer.
+	 */
+	public abstract void encodeState(byte[] b, int offset);
+	
+	/*
+	  Sets the device state byte and its parameters from the given buffer,
+	  encoded as by encodeState.
+	  @param b the buffer to read from.
+	  @param offset the index of the state byte in the buffer.
+	 */
+	public abstract void decodeState(byte[] b, int offset);
 	
 	//@return a structured string representation of the device
 	public abstract String toCustomString();
@@ -68,30 +114,136 @@ public abstract class IOTDevice {
 	 */
 	public abstract Map<Byte,String[]> opKeysParamMap();
 	
+	//@return the byte stream representing the device
+	public byte[] getBytes() {
+		byte[] b = new byte[NAME_LENGTH + stateLength()];
+		System.arraycopy(nameSlot, 0, b, 0, NAME_LENGTH);
+		encodeState(b, NAME_LENGTH);
+		return b;
+	}
+	
+	/*
+	  Writes a consistent copy of the device state and parameters to the given
+	  buffer, as encodeState, without blocking concurrent writers. The read is
+	  retried while a writer is active, and only falls back to the read lock
+	  under sustained write contention on this device.
+	  @return the version of the device the copy reflects.
+	 */
+	public int readState(byte[] b, int offset) {
+		for (int i = 0; i < OPTIMISTIC_READ_RETRIES; i++) {
+			long stamp = stateLock.tryOptimisticRead();
+			if (stamp == 0)
+				continue;
+			encodeState(b, offset);
+			int v = version;
+			if (stateLock.validate(stamp))
+				return v;
+		}
+		long stamp = stateLock.readLock();
+		try {
+			encodeState(b, offset);
+			return version;
+		} finally {
+			stateLock.unlockRead(stamp);
+		}
+	}
+	
+	//@return the number of bytes of the state and parameters of the device
+	public int stateLength() {
+		return 1 + DeviceType.typeFromCodeSafe(deviceType()).numParams();
+	}
+	
 	//@return the device name.
 	public String name() {
 		return name;
 	}
 	
 	//@return the device unique id
-	public byte deviceNumber() {
+	public int deviceNumber() {
 		return deviceNumber;
 	}
 	
+	//@return the number of state changes applied on the device by its home
+	public int version() {
+		return version;
+	}
+	
+	//Increments the device version, called by the home on every state change
+	void incrementVersion() {
+		version++;
+	}
+	
+	//Sets the device version back, called by the home when rolling back
+	void resetVersion(int version) {
+		this.version = version;
+	}
+	
+	/*
+	  Moves the device state into the given store: the device becomes a view
+	  over its slot, and its own state fields are no longer used. Called by
+	  the home when the device is added, under the exclusive lock of the
+	  device type.
+	 */
+	void attach(DeviceStateStore store) {
+		byte[] b = new byte[stateLength()];
+		encodeState(b, 0);
+		int s = store.allocate();
+		for (int i = 0; i < b.length; i++)
+			store.set(s, i, b[i]);
+		this.slot = s;
+		this.store = store;
+	}
+	
+	/*
+	  Makes the device read and write its state through the given slot of
+	  the given states, which are already set (see LazyHome).
+	 */
+	void view(DeviceStates store, int slot) {
+		this.slot = slot;
+		this.store = store;
+	}
+	
+	//@return true if the device state is held in a state store
+	protected final boolean isView() {
+		return store != null;
+	}
+	
+	/*
+	  @return the given state byte of the device in its store: 0 for the state
+	  code, then one per parameter.
+	 */
+	protected final byte stateByte(int i) {
+		return store.get(slot, i);
+	}
+	
+	//Sets the given state byte of the device in its store
+	protected final void putStateByte(int i, byte value) {
+		store.set(slot, i, value);
+	}
+	
 	/*
         Sets the device number to the given one.
 	@param deviceNumber the device number to set.
 	*/
-	protected void setDeviceNumber(byte deviceNumber) {
+	protected void setDeviceNumber(int deviceNumber) {
 		this.deviceNumber = deviceNumber;
 	}
 	
+	/*
+	  @return the given name left padded with spaces to the fixed name field
+	  length (longer names are cut).
+	 */
+	private static byte[] encodeName(String name) {
+		return Arrays.copyOf(
+				Util.bufferLeft(' ', NAME_LENGTH, name).getBytes(), NAME_LENGTH);
+	}
+	
 	/*
           @return the device generated from the given byte code, without input
 	  check.
 	 */
 	public static IOTDevice createDeviceFromBytes(DeviceType deviceType,
-			byte deviceNum, byte[] d) {
+			int deviceNum, byte[] d) {
 		// initialize fields
 		String desc = new String(d, 0, 16);
 		byte state = d[16];
@@ -128,18 +280,11 @@ public abstract class IOTDevice {
 	
 	/**
 	 * @return the action message generated from the given sequence number,
-	 * opcode and parameters.
+	 * opcode and parameters, in wide or narrow encoding (see DeviceAction).
 	 */
-	public Message getActionMessage(byte sequenceNumber, byte opcode, byte[] parameters) {
-		byte[] b = new byte[5 + parameters.length];
-		int i = 0;
-		b[i++] = Message.KEY_ACTION;
-		b[i++] = sequenceNumber;
-		b[i++] = deviceType();
-		b[i++] = deviceNumber;
-		b[i++] = opcode;
-		for (byte param: parameters)
-			b[i++] = param;
-		return new Message(b);		
+	public Message getActionMessage(int sequenceNumber, byte opcode,
+			byte[] parameters, boolean wide) {
+		return new Message(DeviceAction.encode(sequenceNumber, deviceType(),
+				deviceNumber, opcode, parameters, wide));
 	}
 }
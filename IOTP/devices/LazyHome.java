@@ -0,0 +1,532 @@
+/*
+  CS544 - Computer Networks
+  Drexel University
+  Protocol Implementation: IoT Home Control Protocol
+  Abhilasha Jayaswal
+
+  File name: LazyHome.java
+
+  Purpose:
+  Home kept in its INIT encoding: the client image built from the INIT (or
+  INIT chunks) received from the server, or a server home loaded from a
+  memory-mapped snapshot file. The encoded buffers are kept as they are,
+  with an index of the segment of device records of every device type, and
+  a device object is only constructed when the device is accessed. Devices
+  are views over their record (see RecordStates), so actions and updates
+  patch the buffers in place. Building the home costs a few objects per
+  segment, whatever the number of devices.
+  A server home is given a second, read-only view of its snapshot, over
+  which its first published snapshot is laid without copying; later
+  snapshots only copy the segments of the device types that changed.
+  A device added on its own is encoded into a segment of its own.
+ */
+
+package devices;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import protocol.Message;
+import protocol.Util;
+
+public class LazyHome extends Home {
+
+	//Segments of encoded devices, by device type, in device number order
+	private final List<List<Segment>> segments = new ArrayList<List<Segment>>();
+	/*
+	  Devices constructed for actions, by device type and number, kept so
+	  that every action on a device goes through the same object and lock.
+	 */
+	private final List<Map<Integer, IOTDevice>> materialized =
+			new ArrayList<Map<Integer, IOTDevice>>();
+	//Device lists returned by devices(), constructing devices on access
+	private final List<List<IOTDevice>> lists = new ArrayList<List<IOTDevice>>();
+	/*
+	  Read-only view of the encoding the home was loaded from, over which the
+	  first snapshot is laid, or null if there is none. Dropped once a device
+	  changed before any snapshot was built.
+	 */
+	private ByteBuffer original = null;
+
+	//Constructs a new lazy home with no devices
+	public LazyHome() {
+		super(Storage.OBJECTS);
+		for (int type = 0; type < DeviceType.NUM_TYPES; type++) {
+			segments.add(new ArrayList<Segment>());
+			materialized.add(new HashMap<Integer, IOTDevice>());
+			lists.add(new DeviceList(type));
+		}
+	}
+
+	/*
+	  @return the lazy home over the given INIT message, whose bytes are
+	  kept and patched in place.
+	 */
+	public static LazyHome fromInit(Message m) {
+		return readInit(new LazyHome(), m);
+	}
+
+	/*
+	  @return the home encoded as in INIT by the given buffer (e.g. a private
+	  mapping of a snapshot file), patched in place by the actions. The first
+	  snapshot of the home is laid over the given read-only view of the same
+	  encoding, which must not change afterwards.
+	 */
+	public static LazyHome over(ByteBuffer states, ByteBuffer original) {
+		LazyHome home = new LazyHome();
+		int index = 1;
+		for (byte deviceType = 0; deviceType < DeviceType.NUM_TYPES;
+				deviceType++) {
+			byte[] varint = new byte[Math.min(5, states.capacity() - index)];
+			ByteBuffer b = states.duplicate();
+			b.position(index);
+			b.get(varint);
+			int count = Util.readVarint(varint, 0);
+			index += Util.varintSize(count);
+			index = home.addSegment(states, index, deviceType, 0, count);
+		}
+		home.original = original;
+		return home;
+	}
+
+	/*
+	  @return the home of the given snapshot file (an encoded INIT), mapped
+	  twice: privately, so that the changes of the home are never written to
+	  the file, and read-only for its first snapshot. Nothing is read until
+	  the devices are accessed.
+	 */
+	public static LazyHome map(File f) throws IOException {
+		// a private mapping needs a writable channel, the file is never written
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try {
+			FileChannel channel = raf.getChannel();
+			return over(channel.map(FileChannel.MapMode.PRIVATE, 0,
+					channel.size()), channel.map(FileChannel.MapMode.READ_ONLY,
+					0, channel.size()));
+		} finally {
+			// the mappings stay valid once the file is closed
+			raf.close();
+		}
+	}
+
+	//Indexes the given device records as a new segment, without decoding them
+	@Override
+	protected int addDevices(byte[] b, int index, byte deviceType, int first,
+			int count) {
+		return addSegment(ByteBuffer.wrap(b), index, deviceType, first, count);
+	}
+
+	/*
+	  Indexes the given number of device records at the given index of the
+	  given buffer as a new segment.
+	  @return the index following the records.
+	 */
+	private synchronized int addSegment(ByteBuffer b, int index,
+			byte deviceType, int first, int count) {
+		DeviceType type = DeviceType.typeFromCodeSafe(deviceType);
+		if (count > 0)
+			segments.get(deviceType).add(new Segment(first, count, b, index,
+					new RecordStates(type, b, index, count)));
+		return index + count * recordLength(deviceType);
+	}
+
+	/*
+	  Adds the given device after the devices of its type, encoded into a
+	  new segment of one record, and keeps it as the device of its actions.
+	 */
+	@Override
+	protected synchronized IOTDevice appendDevice(IOTDevice device) {
+		byte deviceType = device.deviceType();
+		int deviceNumber = size(deviceType);
+		device.setDeviceNumber(deviceNumber);
+		byte[] record = device.getBytes();
+		addSegment(ByteBuffer.wrap(record), 0, deviceType, deviceNumber, 1);
+		List<Segment> l = segments.get(deviceType);
+		device.view(l.get(l.size() - 1).store, 0);
+		materialized.get(deviceType).put(deviceNumber, device);
+		// the original encoding no longer describes the home
+		original = null;
+		dropSnapshot();
+		return device;
+	}
+
+	/*
+	  Applies the given action on the respective device, constructing it if
+	  it was never accessed. The device state is patched in the received
+	  bytes. Unless a snapshot is published (on the server), no snapshot is
+	  built for the change.
+	 */
+	@Override
+	public boolean doAction(DeviceAction action) throws Exception {
+		if (hasSnapshot())
+			return super.doAction(action);
+		IOTDevice device = device(action.deviceType(), action.deviceNumber());
+		long stamp = device.stateLock.writeLock();
+		try {
+			boolean changed = device.doAction(action);
+			if (changed) {
+				device.incrementVersion();
+				action.setVersion(device.version());
+				synchronized (this) {
+					original = null;
+				}
+			}
+			return changed;
+		} finally {
+			device.stateLock.unlockWrite(stamp);
+		}
+	}
+
+	/*
+	  @return a new snapshot of the home: laid over the original encoding if
+	  no device changed since the home was loaded, otherwise assembled from
+	  the segments.
+	 */
+	@Override
+	protected synchronized HomeImage newImage() {
+		ByteBuffer[] images = new ByteBuffer[DeviceType.NUM_TYPES];
+		int[][] versions = new int[DeviceType.NUM_TYPES][];
+		for (int type = 0; type < DeviceType.NUM_TYPES; type++) {
+			int length = size(type) * recordLength(type);
+			if (original != null && length > 0) {
+				ByteBuffer b = original.duplicate();
+				b.position(segments.get(type).get(0).base);
+				b.limit(b.position() + length);
+				images[type] = b.slice();
+			} else {
+				byte[] segment = new byte[length];
+				int index = 0;
+				for (Segment s : segments.get(type))
+					index = s.get(0, segment, index, s.count * recordLength(type));
+				images[type] = ByteBuffer.wrap(segment);
+			}
+			versions[type] = new int[size(type)];
+			for (Map.Entry<Integer, IOTDevice> e : materialized.get(type).entrySet())
+				versions[type][e.getKey()] = e.getValue().version();
+		}
+		return HomeImage.over(images, versions);
+	}
+
+	/*
+	  @return the INIT message bytes of the home: of its published snapshot if
+	  there is one, as the devices are then written by a single writer,
+	  otherwise assembled from the segments.
+	 */
+	@Override
+	public byte[] getInit() {
+		if (hasSnapshot())
+			return super.getInit();
+		return assembleInit();
+	}
+
+	//@return the INIT message bytes assembled from the segments
+	private synchronized byte[] assembleInit() {
+		int size = 2;
+		for (int type = 0; type < DeviceType.NUM_TYPES; type++)
+			size += Util.varintSize(size(type))
+					+ size(type) * recordLength(type);
+		byte[] init = new byte[size];
+		int index = 0;
+		init[index++] = Message.KEY_INITIAL;
+		for (int type = 0; type < DeviceType.NUM_TYPES; type++) {
+			index = Util.writeVarint(init, index, size(type));
+			for (Segment s : segments.get(type))
+				index = s.get(0, init, index, s.count * recordLength(type));
+		}
+		init[index] = (byte) '\n';
+		return init;
+	}
+
+	//@return the number of devices of the given type in the given state
+	@Override
+	public synchronized int countInState(byte deviceType, byte stateCode) {
+		int n = 0;
+		for (Segment s : segments.get(deviceType))
+			n += s.store.count(stateCode);
+		return n;
+	}
+
+	//@return the given device, constructed and kept on first access
+	@Override
+	protected synchronized IOTDevice device(byte deviceType,
+			int deviceNumber) {
+		Map<Integer, IOTDevice> devices = materialized.get(deviceType);
+		IOTDevice device = devices.get(deviceNumber);
+		if (device == null) {
+			device = decode(deviceType, deviceNumber);
+			devices.put(deviceNumber, device);
+		}
+		return device;
+	}
+
+	/*
+	  @return lists of the devices by type. Devices already used by actions
+	  are returned as they are, the others are constructed on every access
+	  and not kept, so listing or printing the home does not keep an object
+	  per device.
+	 */
+	@Override
+	public List<List<IOTDevice>> devices() {
+		return lists;
+	}
+
+	//@return the number of devices of the given type
+	private synchronized int size(int deviceType) {
+		List<Segment> l = segments.get(deviceType);
+		if (l.isEmpty())
+			return 0;
+		Segment last = l.get(l.size() - 1);
+		return last.first + last.count;
+	}
+
+	//@return the kept device, or a new view of it if there is none
+	private synchronized IOTDevice peek(int deviceType, int deviceNumber) {
+		IOTDevice device = materialized.get(deviceType).get(deviceNumber);
+		return device != null ? device : decode(deviceType, deviceNumber);
+	}
+
+	//@return a new device viewing the record of the given device
+	private IOTDevice decode(int deviceType, int deviceNumber) {
+		Segment s = segment(deviceType, deviceNumber);
+		int length = recordLength(deviceType);
+		byte[] record = new byte[length];
+		s.get((deviceNumber - s.first) * length, record, 0, length);
+		IOTDevice device = IOTDevice.createDeviceFromBytes(
+				DeviceType.typeFromCodeSafe((byte) deviceType), deviceNumber,
+				record);
+		device.view(s.store, deviceNumber - s.first);
+		return device;
+	}
+
+	//@return the segment holding the given device
+	private Segment segment(int deviceType, int deviceNumber) {
+		List<Segment> l = segments.get(deviceType);
+		int low = 0;
+		int high = l.size() - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			Segment s = l.get(mid);
+			if (deviceNumber < s.first)
+				high = mid - 1;
+			else if (deviceNumber >= s.first + s.count)
+				low = mid + 1;
+			else
+				return s;
+		}
+		throw new IndexOutOfBoundsException("Index " + deviceNumber
+				+ " out of bounds for length " + size(deviceType));
+	}
+
+	//@return the length of the encoding of a device of the given type
+	private static int recordLength(int deviceType) {
+		return IOTDevice.NAME_LENGTH + HomeTemplate.stateLength(deviceType);
+	}
+
+	//A run of consecutive device records of one type in an encoded buffer
+	private static class Segment {
+		final int first;
+		final int count;
+		final ByteBuffer records;
+		final int base;
+		final RecordStates store;
+
+		Segment(int first, int count, ByteBuffer records, int base,
+				RecordStates store) {
+			this.first = first;
+			this.count = count;
+			this.records = records;
+			this.base = base;
+			this.store = store;
+		}
+
+		/*
+		  Copies the given range of the records of the segment to the given
+		  array.
+		  @return the index following the copied bytes in the array.
+		 */
+		int get(int from, byte[] dst, int index, int length) {
+			ByteBuffer b = records.duplicate();
+			b.position(base + from);
+			b.get(dst, index, length);
+			return index + length;
+		}
+	}
+
+	//Read-only list of the devices of one type
+	private class DeviceList extends AbstractList<IOTDevice> {
+		private final int deviceType;
+
+		DeviceList(int deviceType) {
+			this.deviceType = deviceType;
+		}
+
+		@Override
+		public IOTDevice get(int deviceNumber) {
+			return peek(deviceType, deviceNumber);
+		}
+
+		@Override
+		public int size() {
+			return LazyHome.this.size(deviceType);
+		}
+	}
+
+	/*
+	  Main method for testing: applies the same random actions and updates
+	  on an eager image of a home and on lazy images built from its INIT and
+	  from INIT chunks, checking that they stay identical, also once a light
+	  is added to each of them half-way; does the same with
+	  groups of actions on single-writer server homes, eager and over a
+	  read-only original encoding; then compares the time and heap used to
+	  build an eager and a lazy image of a large home, and the time to load
+	  it from a mapped snapshot file and apply a first action.
+	  @param args [number of actions] [number of devices of the large home]
+	 */
+	public static void main(String[] args) throws Exception {
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int large = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+		HomeImage image = new RandomHomeGenerator(5, 3).createHome().snapshot();
+		LazyHome chunked = new LazyHome();
+		for (int type = 0; type < image.numTypes(); type++) {
+			for (int first = 0; first < image.numDevices(type); first += 2)
+				chunked.addInitChunk(new Message(image.toInitChunk(type, first,
+						Math.min(2, image.numDevices(type) - first), false)));
+		}
+		Home[] homes = { Home.createHomeFromInit(new Message(image.toInit())),
+				LazyHome.fromInit(new Message(image.toInit())), chunked };
+
+		Random rand = new Random(5);
+		for (int step = 0; step < n; step++) {
+			if (step == n / 2) {
+				for (Home h : homes)
+					h.addDevice(new Light("added light", 0, LightState.ON,
+							new byte[] { 50 }));
+			}
+			byte type = (byte) rand.nextInt(5);
+			int num = rand.nextInt(4);	// sometimes out of range
+			byte opcode = (byte) rand.nextInt(4);	// sometimes invalid
+			byte[] params = new byte[rand.nextInt(3)];
+			rand.nextBytes(params);
+			String[] results = new String[homes.length];
+			for (int h = 0; h < homes.length; h++) {
+				DeviceAction action = new DeviceAction(step, type, num,
+						opcode, params);
+				try {
+					// odd steps are applied as server updates
+					if (step % 2 == 0)
+						results[h] = String.valueOf(homes[h].doAction(action));
+					else {
+						homes[h].doUpdate(action.toUpdate());
+						results[h] = "updated";
+					}
+				} catch (Exception e) {
+					results[h] = e.getClass().getName() + ": " + e.getMessage();
+				}
+			}
+			for (int h = 1; h < homes.length; h++) {
+				if (!results[0].equals(results[h])
+						|| !Arrays.equals(homes[0].getInit(), homes[h].getInit())
+						|| homes[0].countInState(type, (byte) 1)
+								!= homes[h].countInState(type, (byte) 1)
+						|| (step % 1000 == 0 && !homes[0].toCustomString()
+								.equals(homes[h].toCustomString()))) {
+					System.out.println("step " + step + ", home " + h
+							+ " differs: " + results[0] + " / " + results[h]);
+					return;
+				}
+			}
+		}
+		System.out.println(n + " actions and updates identical on eager, "
+				+ "lazy and chunked lazy images");
+
+		byte[] serverInit = image.toInit();
+		Home[] servers = { Home.createHomeFromInit(new Message(serverInit)),
+				LazyHome.over(ByteBuffer.wrap(serverInit.clone()),
+						ByteBuffer.wrap(serverInit.clone()).asReadOnlyBuffer()) };
+		for (Home server : servers)
+			server.setSingleWriter();
+		for (int step = 0; step < n; step += 8) {
+			String[] results = new String[servers.length];
+			for (int h = 0; h < servers.length; h++) {
+				Random groupRand = new Random(step);
+				DeviceAction[] actions = new DeviceAction[8];
+				for (int i = 0; i < actions.length; i++) {
+					byte[] params = new byte[groupRand.nextInt(3)];
+					groupRand.nextBytes(params);
+					actions[i] = new DeviceAction(step + i,
+							(byte) groupRand.nextInt(5), groupRand.nextInt(4),
+							(byte) groupRand.nextInt(4), params);
+				}
+				Exception[] failures = new Exception[actions.length];
+				boolean[] changed = servers[h].doActions(actions, failures);
+				StringBuilder sb = new StringBuilder(Arrays.toString(changed));
+				for (Exception e : failures)
+					sb.append(e == null ? "" : e.getMessage());
+				results[h] = sb.append(servers[h].initVersion()).toString();
+			}
+			if (!results[0].equals(results[1]) || !Arrays.equals(
+					servers[0].getInit(), servers[1].getInit())) {
+				System.out.println("server step " + step + " differs: "
+						+ results[0] + " / " + results[1]);
+				return;
+			}
+		}
+		System.out.println(n + " grouped actions identical on eager and lazy"
+				+ " server homes");
+
+		Home server = new Home();
+		for (int i = 0; i < large; i++)
+			server.addDevice(new Light("light " + i, i, LightState.ON));
+		byte[] init = server.getInit();
+		server = null;
+		long before = usedMemory();
+		long start = System.nanoTime();
+		Home eager = Home.createHomeFromInit(new Message(init.clone()));
+		long eagerNs = System.nanoTime() - start;
+		long eagerBytes = usedMemory() - before;
+		System.out.println("eager image built: " + (eager != null));
+		eager = null;
+		before = usedMemory();
+		start = System.nanoTime();
+		Home lazy = LazyHome.fromInit(new Message(init.clone()));
+		long lazyNs = System.nanoTime() - start;
+		long lazyBytes = usedMemory() - before;
+		System.out.println(large + " devices, eager: " + eagerNs / 1000000
+				+ " ms, " + eagerBytes / 1024 + " KB; lazy: " + lazyNs / 1000000
+				+ " ms, " + lazyBytes / 1024 + " KB (INIT buffer "
+				+ init.length / 1024 + " KB)");
+		System.out.println("lazy image built: " + (lazy != null));
+
+		File f = File.createTempFile("iotp-home", ".init");
+		java.nio.file.Files.write(f.toPath(), init);
+		start = System.nanoTime();
+		Home mapped = LazyHome.map(f);
+		mapped.setSingleWriter();
+		boolean[] changed = mapped.doActions(new DeviceAction[] {
+				new DeviceAction(0, (byte) 0, large - 1, (byte) 1, new byte[0]) },
+				new Exception[1]);
+		System.out.println("mapped snapshot loaded and first action applied in "
+				+ (System.nanoTime() - start) / 1000 + " us, changed: "
+				+ changed[0] + ", file unchanged: " + Arrays.equals(init,
+						java.nio.file.Files.readAllBytes(f.toPath())));
+		f.delete();
+	}
+
+	//@return the heap in use after a garbage collection
+	private static long usedMemory() {
+		Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++)
+			System.gc();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+}
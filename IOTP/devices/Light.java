@@ -46,12 +46,12 @@ public class Light extends IOTDevice {
 	Light() {}
 	
 	//Constructs Light with the given name and device number
-	public Light(String name, byte deviceNumber) {
+	public Light(String name, int deviceNumber) {
 		super(name, deviceNumber);
 	}
 	
 	//Constructs Light with the given name, device number and initial state
-	public Light(String name, byte deviceNumber, LightState state) {
+	public Light(String name, int deviceNumber, LightState state) {
 		super(name, deviceNumber);
 		this.state = state;
 	}
@@ -60,7 +60,7 @@ public class Light extends IOTDevice {
 	  Constructs Light with the given name, device number, initial state and
 	  parameters (should contain only dim level).
 	 */
-	public Light(String name, byte deviceNumber, LightState state, byte[] params) {
+	public Light(String name, int deviceNumber, LightState state, byte[] params) {
 		super(name, deviceNumber);
 		this.state = state;
 		this.dimLevel = params[0];
@@ -74,25 +74,25 @@ public class Light extends IOTDevice {
 	}
 
 	@Override
-	public void doAction(DeviceAction action) throws Exception {
+	public boolean doAction(DeviceAction action) throws Exception {
 		byte opcode = action.opcode();
 		// turn on
 		if (opcode == TURN_ON) {
 			if (action.numParams() != 0) throw new Exception("Turn on Light " +
 					"expected 0 parameters, given: " + action.numParams());
-			turnOn();
+			return turnOn();
 		}
 		// turn off
 		else if (opcode == TURN_OFF) {
 			if (action.numParams() != 0) throw new Exception("Turn off Light " +
 					"expected 0 parameters, given: " + action.numParams());
-			turnOff();
+			return turnOff();
 		}
 		// dim
 		else if (opcode == DIM) {
 			if (action.numParams() != 1) throw new Exception("Dim Light " +
 					"expected 1 parameters, given: " + action.numParams());
-			dim(action.getParam(0));
+			return dim(action.getParam(0));
 		}
 		// error
 		else {
@@ -102,21 +102,25 @@ public class Light extends IOTDevice {
 	
 	@Override
 	public String toString() {
-		return Util.bufferLeft(' ', 16, name) + state.ordinal();
+		return Util.bufferLeft(' ', 16, name) + state().ordinal();
 	}
 	
 	@Override
-	public byte[] getBytes() {
-		return Util.cat(
-				Util.bufferLeft(' ', 16, name).getBytes(),	// name
-				(byte)state.ordinal(),				// state
-				new byte[]{dimLevel});				// params
+	public void encodeState(byte[] b, int offset) {
+		b[offset] = (byte)state().ordinal();		// state
+		b[offset + 1] = dimLevel();			// params
+	}
+	
+	@Override
+	public void decodeState(byte[] b, int offset) {
+		putState(LightState.typeFromCode(b[offset]));
+		putDimLevel(b[offset + 1]);
 	}
 	
 	@Override
 	public String toCustomString() {
 		return String.format("#%03d %-16s %-10s dim-level: %d",
-				deviceNumber, name, state, dimLevel);
+				deviceNumber, name, state(), dimLevel());
 	}
 	
 	@Override
@@ -135,69 +139,65 @@ public class Light extends IOTDevice {
 	  Turns on the light.
 	  @throws Exception if the light is already on.
 	 */
-	protected void turnOn() throws Exception {
-		if (state == LightState.ON)
+	protected boolean turnOn() throws Exception {
+		if (state() == LightState.ON)
 			throw new Exception("Cannot turn on Light " +
 					deviceNumber + " (" + name + ") when already on");
-		state = LightState.ON;
+		putState(LightState.ON);
+		return true;
 	}
 	
 	/*
 	  Turns off the light.
 	  @throws Exception if the light is already off.
 	 */
-	protected void turnOff() throws Exception {
-		if (state == LightState.OFF)
+	protected boolean turnOff() throws Exception {
+		if (state() == LightState.OFF)
 			throw new Exception("Cannot turn off Light " +
 					deviceNumber + " (" + name + ") when already off");
-		state = LightState.OFF;
+		putState(LightState.OFF);
+		return true;
 	}
 	
 	/*
 	  Sets the dim level of the light.
 	  @param dimLevel the dim level to set.
+	  @return false if the light is already at the given dim level.
 	  @throws Exception if the light is off.
 	 */
-	protected void dim(byte dimLevel) throws Exception {
-		if (state == LightState.OFF)
+	protected boolean dim(byte dimLevel) throws Exception {
+		if (state() == LightState.OFF)
 			throw new Exception("Cannot dim Light " +
 					deviceNumber + " (" + name + ") when off");
-		this.dimLevel = dimLevel;
+		if (dimLevel() == dimLevel)
+			return false;
+		putDimLevel(dimLevel);
+		return true;
 	}
 	
-	// getters
+	// state accessors
 	
-	public LightState state() {
-		return state;
+	private void putState(LightState state) {
+		if (isView())
+			putStateByte(0, (byte) state.ordinal());
+		else
+			this.state = state;
 	}
 	
-	public byte dimLevel() {
-		return dimLevel;
+	private void putDimLevel(byte dimLevel) {
+		if (isView())
+			putStateByte(1, dimLevel);
+		else
+			this.dimLevel = dimLevel;
 	}
-}
-
-//Enumeration of Light states
-enum LightState {
-	OFF((byte)0),
-	ON((byte)1);
 	
-	private LightState(byte type) {
-		this.type = type;
-	}
-	
-	private byte type;
+	// getters
 	
-	public byte type() {
-		return type;
+	public LightState state() {
+		return isView() ? LightState.typeFromCode(stateByte(0)) : state;
 	}
 	
-	public static LightState typeFromCode(byte code) {
-		switch (code) {
-			case 0: return OFF;
-			case 1: return ON;
-			default: {
-				throw new RuntimeException("Invalid LightState given: " + code);
-			}
-		}
-	}	
+	public byte dimLevel() {
+		return isView() ? stateByte(1) : dimLevel;
+	}
 }
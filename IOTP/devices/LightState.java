@@ -0,0 +1,39 @@
+/*  
+  CS544 - Computer Networks
+  Drexel University
+  Protocol Implementation: IoT Home Control Protocol
+  Abhilasha Jayaswal
+ 
+  File name: LightState.java
+  
+  Purpose:
+  Enumeration of the states of a light device (see Light).
+ */
+
+package devices;
+
+//Enumeration of Light states
+enum LightState {
+	OFF((byte)0),
+	ON((byte)1);
+	
+	private LightState(byte type) {
+		this.type = type;
+	}
+	
+	private byte type;
+	
+	public byte type() {
+		return type;
+	}
+	
+	public static LightState typeFromCode(byte code) {
+		switch (code) {
+			case 0: return OFF;
+			case 1: return ON;
+			default: {
+				throw new RuntimeException("Invalid LightState given: " + code);
+			}
+		}
+	}	
+}
@@ -0,0 +1,71 @@
+/*
+  CS544 - Computer Networks
+  Drexel University
+  Protocol Implementation: IoT Home Control Protocol
+  Abhilasha Jayaswal
+
+  File name: RecordStates.java
+
+  Purpose:
+  States of a run of device records of one type, encoded as in INIT (name,
+  state code, parameters) in a buffer on the heap or e.g. a mapped file (see
+  LazyHome). The buffer is not copied: the state bytes are read and patched
+  in place, and the number of devices is fixed.
+ */
+
+package devices;
+
+import java.nio.ByteBuffer;
+
+final class RecordStates implements DeviceStates {
+
+	//The buffer of the records
+	private final ByteBuffer records;
+	//Index of the first device record
+	private final int base;
+	//Number of devices
+	private final int count;
+	//Length of a device record
+	private final int recordLength;
+
+	/*
+	  Constructs the states of the given number of device records of the
+	  given type, starting at the given index of the given buffer.
+	 */
+	RecordStates(DeviceType type, ByteBuffer records, int base, int count) {
+		this.records = records;
+		this.base = base;
+		this.count = count;
+		this.recordLength = IOTDevice.NAME_LENGTH + 1 + type.numParams();
+	}
+
+	@Override
+	public byte get(int slot, int column) {
+		return records.get(index(slot, column));
+	}
+
+	@Override
+	public void set(int slot, int column, byte value) {
+		records.put(index(slot, column), value);
+	}
+
+	@Override
+	public int size() {
+		return count;
+	}
+
+	@Override
+	public int count(byte stateCode) {
+		int n = 0;
+		for (int slot = 0; slot < count; slot++) {
+			if (records.get(index(slot, 0)) == stateCode)
+				n++;
+		}
+		return n;
+	}
+
+	//@return the index of the given state byte of a device in the buffer
+	private int index(int slot, int column) {
+		return base + slot * recordLength + IOTDevice.NAME_LENGTH + column;
+	}
+}
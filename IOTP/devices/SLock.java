@@ -49,12 +49,12 @@ public class SLock extends IOTDevice {
 	SLock() {}
 	
 	//Constructs SLock with the given name and device number
-	public SLock(String name, byte deviceNumber) {
+	public SLock(String name, int deviceNumber) {
 		super(name, deviceNumber);
 	}
 	
 	//Constructs SLock with the given name, device number and initial state
-	public SLock(String name, byte deviceNumber, SLockState state) {
+	public SLock(String name, int deviceNumber, SLockState state) {
 		super(name, deviceNumber);
 		this.state = state;
 	}
@@ -63,7 +63,7 @@ public class SLock extends IOTDevice {
 	  Constructs AirCon with the given name, device number, initial state and
 	  parameters (should be empty).
 	 */
-	public SLock(String name, byte deviceNumber, SLockState state, byte[] params) {
+	public SLock(String name, int deviceNumber, SLockState state, byte[] params) {
 		this(name, deviceNumber, state);
 	}
 
@@ -75,25 +75,25 @@ public class SLock extends IOTDevice {
 	}
 
 	@Override
-	public void doAction(DeviceAction action) throws Exception {
+	public boolean doAction(DeviceAction action) throws Exception {
 		byte opcode = action.opcode();
 		// turn on
 		if (opcode == TURN_ON) {
 			if (action.numParams() != 0) throw new Exception("Turn on SLock " +
 					"expected 0 parameters, given: " + action.numParams());
-			turnOn();
+			return turnOn();
 		}
 		// turn off
 		else if (opcode == TURN_OFF) {
 			if (action.numParams() != 0) throw new Exception("Turn off SLock " +
 					"expected 0 parameters, given: " + action.numParams());
-			turnOff();
+			return turnOff();
 		}
 		// dim
 		else if (opcode == ARM) {
 			if (action.numParams() != 0) throw new Exception("Arm SLock " +
 					"expected 0 parameters, given: " + action.numParams());
-			arm();
+			return arm();
 		}
 		// error
 		else {
@@ -103,21 +103,23 @@ public class SLock extends IOTDevice {
 	
 	@Override
 	public String toString() {
-		return Util.bufferLeft(' ', 16, name) + state.ordinal();
+		return Util.bufferLeft(' ', 16, name) + state().ordinal();
 	}
 	
 	@Override
-	public byte[] getBytes() {
-		return Util.cat(
-				Util.bufferLeft(' ', 16, name).getBytes(),	// name
-				(byte)state.ordinal(),				// state
-				new byte[]{});					// params
+	public void encodeState(byte[] b, int offset) {
+		b[offset] = (byte)state().ordinal();		// state
+	}
+	
+	@Override
+	public void decodeState(byte[] b, int offset) {
+		putState(SLockState.typeFromCode(b[offset]));
 	}
 	
 	@Override
 	public String toCustomString() {
 		return String.format("#%03d %-16s %-10s",
-				deviceNumber, name, state);
+				deviceNumber, name, state());
 	}
 	
 	@Override
@@ -136,60 +138,50 @@ public class SLock extends IOTDevice {
 	  Turns on the SLock.
 	  @throws Exception if the SLock is already on.
 	 */
-	protected void turnOn() throws Exception {
-		if (state == SLockState.ON)
+	protected boolean turnOn() throws Exception {
+		if (state() == SLockState.ON)
 			throw new Exception("Cannot turn on SLock " +
 					deviceNumber + " (" + name + ") when already on");
-		state = SLockState.ON;
+		putState(SLockState.ON);
+		return true;
 	}
 	
 	/*
 	  Turns off the SLock.
 	  @throws Exception if the SLock is already off.
 	 */
-	protected void turnOff() throws Exception {
-		if (state == SLockState.OFF)
+	protected boolean turnOff() throws Exception {
+		if (state() == SLockState.OFF)
 			throw new Exception("Cannot turn off SLock " +
 					deviceNumber + " (" + name + ") when already off");
-		state = SLockState.OFF;
+		putState(SLockState.OFF);
+		return true;
 	}
 	
 	/*
 	  Arms the SLock.
 	  @throws Exception if the SLock is already armed.
 	 */
-	protected void arm() throws Exception {
-		if (state == SLockState.ARMED)
+	protected boolean arm() throws Exception {
+		if (state() == SLockState.ARMED)
 			throw new Exception("Cannot arm SLock " +
 					deviceNumber + " (" + name + ") when already armed");
-		state = SLockState.ARMED;
+		putState(SLockState.ARMED);
+		return true;
 	}
-}
-
-//Enumeration of SLock states
-enum SLockState {
-	OFF((byte)0),
-	ON((byte)1),
-	ARMED((byte)2);
 	
-	private SLockState(byte type) {
-		this.type = type;
+	// state accessors
+	
+	private void putState(SLockState state) {
+		if (isView())
+			putStateByte(0, (byte) state.ordinal());
+		else
+			this.state = state;
 	}
 	
-	private byte type;
+	// getters
 	
-	public byte type() {
-		return type;
+	public SLockState state() {
+		return isView() ? SLockState.typeFromCode(stateByte(0)) : state;
 	}
-	
-	public static SLockState typeFromCode(byte code) {
-		switch (code) {
-			case 0: return OFF;
-			case 1: return ON;
-			case 2: return ARMED;
-			default: {
-				throw new RuntimeException("Invalid SLockState given: " + code);
-			}
-		}
-	}		
 }
@@ -0,0 +1,41 @@
+/*  
+  CS544 - Computer Networks
+  Drexel University
+  Protocol Implementation: IoT Home Control Protocol
+  Abhilasha Jayaswal
+ 
+  File name: SLockState.java
+  
+  Purpose:
+  Enumeration of the states of a smart lock device (see SLock).
+ */
+
+package devices;
+
+//Enumeration of SLock states
+enum SLockState {
+	OFF((byte)0),
+	ON((byte)1),
+	ARMED((byte)2);
+	
+	private SLockState(byte type) {
+		this.type = type;
+	}
+	
+	private byte type;
+	
+	public byte type() {
+		return type;
+	}
+	
+	public static SLockState typeFromCode(byte code) {
+		switch (code) {
+			case 0: return OFF;
+			case 1: return ON;
+			case 2: return ARMED;
+			default: {
+				throw new RuntimeException("Invalid SLockState given: " + code);
+			}
+		}
+	}		
+}
@@ -52,12 +52,12 @@ public class TV extends IOTDevice {
 	TV() {}
 	
 	//Constructs TV with the given name and device number
-	public TV(String name, byte deviceNumber) {
+	public TV(String name, int deviceNumber) {
 		super(name, deviceNumber);
 	}
 	
 	//Constructs TV with the given name, device number and initial state
-	public TV(String name, byte deviceNumber, TVState state) {
+	public TV(String name, int deviceNumber, TVState state) {
 		super(name, deviceNumber);
 		this.state = state;
 	}
@@ -66,7 +66,7 @@ public class TV extends IOTDevice {
 	  Constructs TV with the given name, device number, initial state and
 	  parameters (should contain only dim level).
 	 */
-	public TV(String name, byte deviceNumber, TVState state, byte[] params) {
+	public TV(String name, int deviceNumber, TVState state, byte[] params) {
 		super(name, deviceNumber);
 		this.state = state;
 		this.channel = params[0];
@@ -81,31 +81,31 @@ public class TV extends IOTDevice {
 	}
 
 	@Override
-	public void doAction(DeviceAction action) throws Exception {
+	public boolean doAction(DeviceAction action) throws Exception {
 		byte opcode = action.opcode();
 		// turn on
 		if (opcode == TURN_ON) {
 			if (action.numParams() != 0) throw new Exception("Turn on TV " +
 					"expected 0 parameters, given: " + action.numParams());
-			turnOn();
+			return turnOn();
 		}
 		// turn off
 		else if (opcode == TURN_OFF) {
 			if (action.numParams() != 0) throw new Exception("Turn off TV " +
 					"expected 0 parameters, given: " + action.numParams());
-			turnOff();
+			return turnOff();
 		}
 		// set channel
 		else if (opcode == SET_CHANNEL) {
 			if (action.numParams() != 1) throw new Exception("Set TV channel " +
 					"expected 1 parameters, given: " + action.numParams());
-			setChannel(action.getParam(0));
+			return setChannel(action.getParam(0));
 		}
 		// set channel
 		else if (opcode == SET_VOLUME) {
 			if (action.numParams() != 1) throw new Exception("Set TV volume " +
 					"expected 1 parameters, given: " + action.numParams());
-			setVolume(action.getParam(0));
+			return setVolume(action.getParam(0));
 		}
 		// error
 		else {
@@ -115,21 +115,27 @@ public class TV extends IOTDevice {
 	
 	@Override
 	public String toString() {
-		return Util.bufferLeft(' ', 16, name) + state.ordinal();
+		return Util.bufferLeft(' ', 16, name) + state().ordinal();
 	}
 	
 	@Override
-	public byte[] getBytes() {
-		return Util.cat(
-				Util.bufferLeft(' ', 16, name).getBytes(),	// name
-				(byte)state.ordinal(),				// state
-				new byte[]{channel, volume});			// params
+	public void encodeState(byte[] b, int offset) {
+		b[offset] = (byte)state().ordinal();		// state
+		b[offset + 1] = channel();			// params
+		b[offset + 2] = volume();
+	}
+	
+	@Override
+	public void decodeState(byte[] b, int offset) {
+		putState(TVState.typeFromCode(b[offset]));
+		putChannel(b[offset + 1]);
+		putVolume(b[offset + 2]);
 	}
 	
 	@Override
 	public String toCustomString() {
 		return String.format("#%03d %-16s %-10s channel: %-4d volume: %d",
-				deviceNumber, name, state, channel, volume);
+				deviceNumber, name, state(), channel(), volume());
 	}
 	
 	@Override
@@ -148,81 +154,92 @@ public class TV extends IOTDevice {
 	  Turns on the TV.
 	  @throws Exception if the TV is already on.
 	 */
-	protected void turnOn() throws Exception {
-		if (state == TVState.ON)
+	protected boolean turnOn() throws Exception {
+		if (state() == TVState.ON)
 			throw new Exception("Cannot turn the TV on" +
 					deviceNumber + " (" + name + ") when it is already on");
-		state = TVState.ON;
+		putState(TVState.ON);
+		return true;
 	}
 	
 	/*
 	  Turns off the TV.
 	  @throws Exception if the TV is already off.
 	 */
-	protected void turnOff() throws Exception {
-		if (state == TVState.OFF)
+	protected boolean turnOff() throws Exception {
+		if (state() == TVState.OFF)
 			throw new Exception("Cannot turn the TV off " +
 					deviceNumber + " (" + name + ") when it is already off");
-		state = TVState.OFF;
+		putState(TVState.OFF);
+		return true;
 	}
 	
 	/*
 	  Sets the TV channel.
 	  @param channel the channel to set.
+	  @return false if the TV is already on the given channel.
 	  @throws Exception if the TV is off.
 	 */
-	protected void setChannel(byte channel) throws Exception {
-		if (state == TVState.OFF)
+	protected boolean setChannel(byte channel) throws Exception {
+		if (state() == TVState.OFF)
 			throw new Exception("Cannot set channel for the TV " +
 					deviceNumber + " (" + name + ") when it is off");
-		this.channel = channel;
+		if (channel() == channel)
+			return false;
+		putChannel(channel);
+		return true;
 	}
 	
 	/*
 	  Sets the TV volume.
 	  @param volume the volume to set.
+	  @return false if the TV is already at the given volume.
 	  @throws Exception if the TV is off.
 	 */
-	protected void setVolume(byte volume) throws Exception {
-		if (state == TVState.OFF)
+	protected boolean setVolume(byte volume) throws Exception {
+		if (state() == TVState.OFF)
 			throw new Exception("Cannot set volume for the TV " +
 					deviceNumber + " (" + name + ") when it is off");
-		this.volume = volume;
+		if (volume() == volume)
+			return false;
+		putVolume(volume);
+		return true;
 	}
 	
-	// getter methods
+	// state accessors
 	
-	public byte channel() {
-		return channel;
+	private void putState(TVState state) {
+		if (isView())
+			putStateByte(0, (byte) state.ordinal());
+		else
+			this.state = state;
 	}
 	
-	public byte volume() {
-		return volume;
-	}	
-}
-
-//Enumeration of TV states
-enum TVState {
-	OFF((byte)0),
-	ON((byte)1);
+	private void putChannel(byte channel) {
+		if (isView())
+			putStateByte(1, channel);
+		else
+			this.channel = channel;
+	}
 	
-	private TVState(byte type) {
-		this.type = type;
+	private void putVolume(byte volume) {
+		if (isView())
+			putStateByte(2, volume);
+		else
+			this.volume = volume;
 	}
 	
-	private byte type;
+	// getter methods
 	
-	public byte type() {
-		return type;
+	public TVState state() {
+		return isView() ? TVState.typeFromCode(stateByte(0)) : state;
 	}
 	
-	public static TVState typeFromCode(byte code) {
-		switch (code) {
-			case 0: return OFF;
-			case 1: return ON;
-			default: {
-				throw new RuntimeException("Invalid TVState given: " + code);
-			}
-		}
-	}		
+	public byte channel() {
+		return isView() ? stateByte(1) : channel;
+	}
+	
+	public byte volume() {
+		return isView() ? stateByte(2) : volume;
+	}
 }
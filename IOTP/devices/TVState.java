@@ -0,0 +1,39 @@
+/*  
+  CS544 - Computer Networks
+  Drexel University
+  Protocol Implementation: IoT Home Control Protocol
+  Abhilasha Jayaswal
+ 
+  File name: TVState.java
+  
+  Purpose:
+  Enumeration of the states of a TV device (see TV).
+ */
+
+package devices;
+
+//Enumeration of TV states
+enum TVState {
+	OFF((byte)0),
+	ON((byte)1);
+	
+	private TVState(byte type) {
+		this.type = type;
+	}
+	
+	private byte type;
+	
+	public byte type() {
+		return type;
+	}
+	
+	public static TVState typeFromCode(byte code) {
+		switch (code) {
+			case 0: return OFF;
+			case 1: return ON;
+			default: {
+				throw new RuntimeException("Invalid TVState given: " + code);
+			}
+		}
+	}		
+}
@@ -50,12 +50,12 @@ public class ThermoStat extends IOTDevice {
 	ThermoStat() {}
 	
 	//Constructs ThermoStat with the given name and device number
-	public ThermoStat(String name, byte deviceNumber) {
+	public ThermoStat(String name, int deviceNumber) {
 		super(name, deviceNumber);
 	}
 	
 	//Constructs ThermoStat with the given name, device number and initial state
-	public ThermoStat(String name, byte deviceNumber, ThermoStatState state) {
+	public ThermoStat(String name, int deviceNumber, ThermoStatState state) {
 		super(name, deviceNumber);
 		this.state = state;
 	}
@@ -64,7 +64,7 @@ public class ThermoStat extends IOTDevice {
           Constructs ThermoStat with the given name, device number, initial state and
 	  parameters (should contain only temperature).
 	 */
-	public ThermoStat(String name, byte deviceNumber, ThermoStatState state, byte[] params) {
+	public ThermoStat(String name, int deviceNumber, ThermoStatState state, byte[] params) {
 		super(name, deviceNumber);
 		this.state = state;
 		this.temp = params[0];
@@ -76,34 +76,40 @@ public class ThermoStat extends IOTDevice {
           Turns on the ThermoStat.
 	  @throws Exception if the ThermoStat is already on.
 	 */
-	protected void turnOn() throws Exception {
-		if (state == ThermoStatState.ON)
+	protected boolean turnOn() throws Exception {
+		if (state() == ThermoStatState.ON)
 			throw new Exception("Cannot turn on ThermoStat " +
 					deviceNumber + " (" + name + ") when already on");
-		state = ThermoStatState.ON;
+		putState(ThermoStatState.ON);
+		return true;
 	}
 	
 	/*
           Turns off the ThermoStat.
 	  @throws Exception if the ThermoStat is already off.
 	 */
-	protected void turnOff() throws Exception {
-		if (state == ThermoStatState.OFF)
+	protected boolean turnOff() throws Exception {
+		if (state() == ThermoStatState.OFF)
 			throw new Exception("Cannot turn off ThermoStat " +
 					deviceNumber + " (" + name + ") when already off");
-		state = ThermoStatState.OFF;
+		putState(ThermoStatState.OFF);
+		return true;
 	}
 	
 	/*
           Sets the temperature of the ThermoStat.
 	  @param temp temperature to set.
+	  @return false if the ThermoStat is already set to the given temperature.
 	  @throws Exception if the ThermoStat is off.
 	 */
-	protected void setTemp(byte temp) throws Exception {
-		if (state == ThermoStatState.OFF)
+	protected boolean setTemp(byte temp) throws Exception {
+		if (state() == ThermoStatState.OFF)
 			throw new Exception("Cannot set temp for ThermoStat " +
 					deviceNumber + " (" + name + ") when off");
-		this.temp = temp;
+		if (temp() == temp)
+			return false;
+		putTemp(temp);
+		return true;
 	}
 	
 	// overriding methods
@@ -114,25 +120,25 @@ public class ThermoStat extends IOTDevice {
 	}
 
 	@Override
-	public void doAction(DeviceAction action) throws Exception {
+	public boolean doAction(DeviceAction action) throws Exception {
 		byte opcode = action.opcode();
 		// turn on
 		if (opcode == TURN_ON) {
 			if (action.numParams() != 0) throw new Exception("Turn on ThermoStat " +
 					"expected 0 parameters, given: " + action.numParams());
-			turnOn();
+			return turnOn();
 		}
 		// turn off
 		else if (opcode == TURN_OFF) {
 			if (action.numParams() != 0) throw new Exception("Turn off ThermoStat " +
 					"expected 0 parameters, given: " + action.numParams());
-			turnOff();
+			return turnOff();
 		}
 		// set temp
 		else if (opcode == SET_TEMP) {
 			if (action.numParams() != 1) throw new Exception("Set ThermoStat temp " +
 					"expected 1 parameters, given: " + action.numParams());
-			setTemp(action.getParam(0));
+			return setTemp(action.getParam(0));
 		}
 		// error
 		else {
@@ -142,21 +148,25 @@ public class ThermoStat extends IOTDevice {
 	
 	@Override
 	public String toString() {
-		return Util.bufferLeft(' ', 16, name) + state.ordinal();
+		return Util.bufferLeft(' ', 16, name) + state().ordinal();
 	}
 	
 	@Override
-	public byte[] getBytes() {
-		return Util.cat(
-				Util.bufferLeft(' ', 16, name).getBytes(),	// name
-				(byte)state.ordinal(),				// state
-				new byte[]{temp});				// params
+	public void encodeState(byte[] b, int offset) {
+		b[offset] = (byte)state().ordinal();		// state
+		b[offset + 1] = temp();				// params
+	}
+	
+	@Override
+	public void decodeState(byte[] b, int offset) {
+		putState(ThermoStatState.typeFromCode(b[offset]));
+		putTemp(b[offset + 1]);
 	}
 	
 	@Override
 	public String toCustomString() {
 		return String.format("#%03d %-16s %-10s temp: %d",
-				deviceNumber, name, state, temp);
+				deviceNumber, name, state(), temp());
 	}
 	
 	@Override
@@ -169,35 +179,29 @@ public class ThermoStat extends IOTDevice {
 		return opcodeParamMap;
 	}
 	
-	// getters
+	// state accessors
 	
-	public byte temp() {
-		return temp;
-	}	
-}
-
-//Enumeration of ThermoStat states
-enum ThermoStatState {
-	OFF	((byte) 0),
-	ON	((byte) 1);
+	private void putState(ThermoStatState state) {
+		if (isView())
+			putStateByte(0, (byte) state.ordinal());
+		else
+			this.state = state;
+	}
 	
-	private ThermoStatState(byte type) {
-		this.type = type;
+	private void putTemp(byte temp) {
+		if (isView())
+			putStateByte(1, temp);
+		else
+			this.temp = temp;
 	}
 	
-	private byte type;
+	// getters
 	
-	public byte type() {
-		return type;
+	public ThermoStatState state() {
+		return isView() ? ThermoStatState.typeFromCode(stateByte(0)) : state;
 	}
 	
-	public static ThermoStatState typeFromCode(byte code) {
-		switch (code) {
-			case 0: return OFF;
-			case 1: return ON;
-			default: {
-				throw new RuntimeException("Invalid ThermoStatState given: " + code);
-			}
-		}
+	public byte temp() {
+		return isView() ? stateByte(1) : temp;
 	}	
 }
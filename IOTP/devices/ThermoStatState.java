@@ -0,0 +1,39 @@
+/*  
+  CS544 - Computer Networks
+  Drexel University
+  Protocol Implementation: IoT Home Control Protocol
+  Abhilasha Jayaswal
+ 
+  File name: ThermoStatState.java
+  
+  Purpose:
+  Enumeration of the states of a thermostat device (see ThermoStat).
+ */
+
+package devices;
+
+//Enumeration of ThermoStat states
+enum ThermoStatState {
+	OFF	((byte) 0),
+	ON	((byte) 1);
+	
+	private ThermoStatState(byte type) {
+		this.type = type;
+	}
+	
+	private byte type;
+	
+	public byte type() {
+		return type;
+	}
+	
+	public static ThermoStatState typeFromCode(byte code) {
+		switch (code) {
+			case 0: return OFF;
+			case 1: return ON;
+			default: {
+				throw new RuntimeException("Invalid ThermoStatState given: " + code);
+			}
+		}
+	}	
+}
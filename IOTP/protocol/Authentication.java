@@ -35,11 +35,20 @@ public class Authentication {
 	//DES storage path
 	
 	public static String DES_STORE_PATH = "./DES_STORE";
+	/*
+	  Mapping of users to the id of the home they control, read from the
+	  optional third column of the DES storage. Users without a home column
+	  control the default home.
+	 */
+	public static HashMap<String,String> HOME_STORE;
+	//Id of the home controlled by users without an explicit home
+	public static final String DEFAULT_HOME_ID = "default";
 	//DES storage initialization
 	
 	static {
 		// initialize DES storage
 		DES_STORE = new HashMap<>();
+		HOME_STORE = new HashMap<>();
 		try {
 			Scanner scan = new Scanner(new File(DES_STORE_PATH));
 			scan.nextLine(); // skip header
@@ -54,6 +63,8 @@ public class Authentication {
 			while (scan.hasNext()) {
 				line = scan.nextLine().split(",");
 				DES_STORE.put(line[0], line[1]);
+				if (line.length > 2 && !line[2].trim().isEmpty())
+					HOME_STORE.put(line[0], line[2].trim());
 			}
 			scan.close();
 		} catch (Exception e) {
@@ -150,6 +161,33 @@ public class Authentication {
 		return Arrays.equals(response, expectedResponse);
 	}
 	
+	/*
+	 Returns the username of a user response in the form
+	 <code>username;response</code>.
+	 */
+	public static String usernameOf(byte[] userResponse) {
+		return new String(userResponse).split(";")[0];
+	}
+	
+	//Returns the id of the home controlled by the given user.
+	public static String homeOf(String username) {
+		String homeId = HOME_STORE.get(username);
+		return homeId == null ? DEFAULT_HOME_ID : homeId;
+	}
+	
+	/*
+	  Returns a user controlling the home with the given id, or null if there
+	  is none. Relay servers share the storage of the server they relay, and
+	  open the upstream session of a home as one of its users.
+	 */
+	public static String userOf(String homeId) {
+		for (String username : DES_STORE.keySet()) {
+			if (homeOf(username).equals(homeId))
+				return username;
+		}
+		return null;
+	}
+	
 	// initial DES generation
 	
 	/*
@@ -7,9 +7,9 @@
   File name: DFA.java
   
   Purpose:
-  Defines the states of the protocol and abstract methods to be implemented by
-  the client and server for the operations to apply at any given state of th
-  protocol.
+  Defines the abstract methods to be implemented by the client and server for
+  the operations to apply at any given state of th protocol (see
+  ProtocolState).
   Extended by ProtocolServerDFA and ProtocolClientDFA - each applying the procedures, state
   transitions and message generation for the respective state the DFA is at.
  */
@@ -26,6 +26,8 @@ public abstract class DFA {
 	protected ProtocolState state = ProtocolState.IDLE;
 	//The home
 	protected Home home;
+	//The features of the negotiated protocol version
+	protected ProtocolFeatures features = ProtocolFeatures.NARROW;
 	
 	//Initializes the DFA with the given home.
 	public DFA(Home home) {
@@ -111,6 +113,20 @@ public abstract class DFA {
 	public Home home() {
 		return this.home;
 	}
+	
+	/*
+	  @return the next message to send to the other side without waiting for
+	  a message from it, or null if there is none. Called after every message
+	  returned by process, until it returns null.
+	 */
+	public Message nextMessage() {
+		return null;
+	}
+	
+	//@return the features of the negotiated protocol version
+	public ProtocolFeatures features() {
+		return this.features;
+	}
 		
 	// setters
 	
@@ -122,26 +138,3 @@ public abstract class DFA {
 		this.home = home;
 	}
 }
-
-//Enumerator for DFA states
-enum ProtocolState {
-	IDLE				("Idle"),
-	C_AWAITS_VERSION	("Client awaits version"),
-	S_AWAITS_VERSION	("Server awaits version selection"),
-	C_AWAITS_CHALLENGE	("Client awaits challenge"),
-	S_AWAITS_RESPONSE	("Server awaits response"),
-	C_AWAITS_INIT		("Client awaits init"),
-	S_AWAITS_ACTION		("Server awaits action"), 
-	C_AWAITS_CONFIRM	("Client awaits confirmation");
-	
-	private String desc;
-	
-	private ProtocolState(String desc) {
-		this.desc = desc;
-	}
-	
-	@Override
-	public String toString() {
-		return desc;
-	}
-}
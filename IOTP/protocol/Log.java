@@ -0,0 +1,204 @@
+/*
+  CS544 - Computer Networks
+  Drexel University
+  Protocol Implementation: IoT Home Control Protocol
+  Abhilasha Jayaswal
+
+  File name: Log.java
+
+  Purpose:
+  Level-gated asynchronous logging for the protocol hot path. Callers check
+  isEnabled(level) before building a log line, so a disabled level costs a
+  single volatile read and no allocation. Enabled lines are handed over through
+  a lock-free ring buffer to a background writer thread, which does the time
+  formatting and the console I/O, and parks while the buffer is empty until
+  a producer wakes it up.
+  The level is read from the "iotp.log" system property (trace, debug, info,
+  warn, error or off) and defaults to info; debug adds a line per message
+  and the home state after every action.
+ */
+
+package protocol;
+
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+public class Log {
+
+	// log levels
+	public static final int TRACE = 0;
+	public static final int DEBUG = 1;
+	public static final int INFO = 2;
+	public static final int WARN = 3;
+	public static final int ERROR = 4;
+	public static final int OFF = 5;
+
+	private static final String[] LEVEL_NAMES = new String[]{
+		"TRACE", "DEBUG", "INFO", "WARN", "ERROR"
+	};
+
+	//Number of lines the ring buffer can hold before dropping
+	private static final int BUFFER_CAPACITY = 8192;
+
+	//Current log level
+	private static volatile int level = parseLevel(
+			System.getProperty("iotp.log", "info"));
+	//Ring buffer shared by all producers
+	private static final LogRingBuffer buffer =
+			new LogRingBuffer(BUFFER_CAPACITY);
+	//Number of lines dropped because the ring buffer was full
+	private static final AtomicLong dropped = new AtomicLong();
+	//Output stream of the writer thread
+	private static volatile PrintStream out = System.out;
+	//Background writer thread
+	private static final Thread writer;
+	//Set while the writer thread is parked, so producers know to wake it
+	private static volatile boolean writerIdle = false;
+
+	static {
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drainLoop();
+			}
+		}, "iotp-log-writer");
+		writer.setDaemon(true);
+		writer.start();
+		// flush pending lines on exit
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drain(new SimpleDateFormat("HH:mm:ss.SSS"), new StringBuilder());
+			}
+		}));
+	}
+
+	// level control
+
+	//@return true if lines of the given level are currently logged
+	public static boolean isEnabled(int lvl) {
+		return lvl >= level;
+	}
+
+	//Sets the current log level
+	public static void setLevel(int lvl) {
+		level = lvl;
+	}
+
+	//@return the current log level
+	public static int level() {
+		return level;
+	}
+
+	//Sets the stream the writer thread prints to
+	public static void setOutput(PrintStream stream) {
+		out = stream;
+	}
+
+	//@return the number of lines dropped since startup due to a full buffer
+	public static long droppedCount() {
+		return dropped.get();
+	}
+
+	/*
+	  @return the log level with the given name, or INFO if the name is not
+	  recognized.
+	 */
+	public static int parseLevel(String name) {
+		switch (name.trim().toLowerCase()) {
+		case "trace":	return TRACE;
+		case "debug":	return DEBUG;
+		case "info":	return INFO;
+		case "warn":	return WARN;
+		case "error":	return ERROR;
+		case "off":		return OFF;
+		default:		return INFO;
+		}
+	}
+
+	// logging
+
+	public static void trace(String line) {
+		log(TRACE, line);
+	}
+
+	public static void debug(String line) {
+		log(DEBUG, line);
+	}
+
+	public static void info(String line) {
+		log(INFO, line);
+	}
+
+	public static void warn(String line) {
+		log(WARN, line);
+	}
+
+	public static void error(String line) {
+		log(ERROR, line);
+	}
+
+	/*
+	  Hands the given line to the writer thread if its level is enabled.
+	  Callers building the line dynamically should check isEnabled first, so
+	  the line is only built when it is actually logged.
+	 */
+	public static void log(int lvl, String line) {
+		if (lvl < level)
+			return;
+		if (!buffer.offer(lvl, System.currentTimeMillis(), line)) {
+			dropped.incrementAndGet();
+			return;
+		}
+		// the line is published with a volatile store, and the writer sets
+		// writerIdle before rechecking the buffer: one of them sees the other
+		if (writerIdle)
+			LockSupport.unpark(writer);
+	}
+
+	// writer
+
+	//Main loop of the writer thread
+	private static void drainLoop() {
+		SimpleDateFormat tf = new SimpleDateFormat("HH:mm:ss.SSS");
+		StringBuilder sb = new StringBuilder(4096);
+		while (true) {
+			if (drain(tf, sb) == 0) {
+				writerIdle = true;
+				// recheck after announcing idleness to avoid a lost wake-up
+				if (drain(tf, sb) == 0)
+					LockSupport.park();
+				writerIdle = false;
+			}
+		}
+	}
+
+	/*
+	  Writes all currently published lines to the output stream and flushes
+	  once at the end.
+	  @return the number of lines written.
+	 */
+	private static synchronized int drain(SimpleDateFormat tf,
+			StringBuilder sb) {
+		long[] time = new long[1];
+		int[] lvl = new int[1];
+		Date date = new Date();
+		int count = 0;
+		String line;
+		PrintStream stream = out;
+		while ((line = buffer.poll(time, lvl)) != null) {
+			date.setTime(time[0]);
+			sb.setLength(0);
+			sb.append(tf.format(date)).append(' ')
+					.append(LEVEL_NAMES[lvl[0]]).append(' ').append(line);
+			stream.println(sb);
+			count++;
+		}
+		if (count > 0)
+			stream.flush();
+		return count;
+	}
+}
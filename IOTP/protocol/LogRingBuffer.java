@@ -0,0 +1,105 @@
+/*
+  CS544 - Computer Networks
+  Drexel University
+  Protocol Implementation: IoT Home Control Protocol
+  Abhilasha Jayaswal
+
+  File name: LogRingBuffer.java
+
+  Purpose:
+  Bounded lock-free multi-producer single-consumer ring buffer used by Log to
+  hand log lines from the protocol threads to the background writer thread.
+  Every slot carries a sequence number which tells producers whether the slot
+  is free and tells the consumer whether the slot was published, so neither
+  side ever takes a lock.
+ */
+
+package protocol;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+class LogRingBuffer {
+
+	//Capacity mask, the capacity is always a power of two
+	private final int mask;
+	//Slot sequence numbers
+	private final AtomicLongArray sequences;
+	//Slot log lines
+	private final AtomicReferenceArray<String> lines;
+	//Slot log levels
+	private final int[] levels;
+	//Slot timestamps, in milliseconds
+	private final long[] times;
+	//Next position to claim by a producer
+	private final AtomicLong head = new AtomicLong();
+	//Next position to read by the consumer, only touched by the consumer
+	private long tail = 0;
+
+	/*
+	  Constructs a ring buffer with at least the given capacity (rounded up to
+	  a power of two).
+	 */
+	LogRingBuffer(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		this.mask = size - 1;
+		this.sequences = new AtomicLongArray(size);
+		this.lines = new AtomicReferenceArray<>(size);
+		this.levels = new int[size];
+		this.times = new long[size];
+		for (int i = 0; i < size; i++)
+			sequences.set(i, i);
+	}
+
+	/*
+	  Publishes the given line. Never blocks.
+	  @return false if the buffer is full and the line was dropped.
+	 */
+	boolean offer(int level, long time, String line) {
+		long pos = head.get();
+		while (true) {
+			int index = (int) pos & mask;
+			long diff = sequences.get(index) - pos;
+			if (diff == 0) {
+				// slot is free, try to claim it
+				if (head.compareAndSet(pos, pos + 1)) {
+					levels[index] = level;
+					times[index] = time;
+					lines.lazySet(index, line);
+					// a volatile store, ordered before the producer reads
+					// whether the writer is idle (see Log.log)
+					sequences.set(index, pos + 1);
+					return true;
+				}
+				pos = head.get();
+			}
+			else if (diff < 0) {
+				// consumer has not freed the slot yet, buffer is full
+				return false;
+			}
+			else {
+				// another producer claimed the slot first
+				pos = head.get();
+			}
+		}
+	}
+
+	/*
+	  Reads the next published line into the given writer's buffers. Must only
+	  be called by the single consumer thread.
+	  @return the next line, or null if nothing was published.
+	 */
+	String poll(long[] timeOut, int[] levelOut) {
+		int index = (int) tail & mask;
+		if (sequences.get(index) != tail + 1)
+			return null;
+		String line = lines.get(index);
+		timeOut[0] = times[index];
+		levelOut[0] = levels[index];
+		lines.lazySet(index, null);
+		sequences.lazySet(index, tail + mask + 1);
+		tail++;
+		return line;
+	}
+}
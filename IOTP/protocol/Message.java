@@ -9,16 +9,18 @@ package protocol;
 
 import java.io.BufferedWriter;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import server.Server;
-import client.Client;
 
 
 import devices.Home;
 
 public class Message {
 	
+	public static final byte KEY_NO_REPLY =	-3;
 	public static final byte KEY_INTERNAL_MSG =	-2;
 	public static final byte KEY_WAIT_USER_INPUT = -1;
 	public static final byte KEY_PING =	 0;
@@ -31,16 +33,37 @@ public class Message {
 	public static final byte KEY_CONFIRM =	 7;
 	public static final byte KEY_UPDATE =	 8;
 	public static final byte KEY_TERMINATE = 9;
+	public static final byte KEY_UPDATE_BATCH = 10;
+	public static final byte KEY_INIT_CHUNK = 11;
+	public static final byte KEY_REDIRECT = 12;
+	public static final byte KEY_SUBSCRIBE = 13;
+	public static final byte KEY_CREDIT = 14;
+	public static final byte KEY_READ = 15;
+	
+	// maximum number of updates carried by one update batch message
+	public static final int MAX_BATCH_UPDATES = 255;
+	// maximum number of devices carried by one INIT chunk message
+	public static final int MAX_CHUNK_DEVICES = 128;
+	// INIT chunk flag marking the last chunk of the INIT
+	public static final byte CHUNK_LAST = 1;
+	// update credits of a flow-controlled session before the client grants any
+	public static final int INITIAL_CREDITS = 64;
+	// PING content of a client asking the server to offer all its versions
+	public static final byte PING_OFFER_ALL = 1;
 	
 	public static final Message INTERNAL_MSG = new Message(KEY_INTERNAL_MSG);
 	public static final Message PING = new Message(KEY_PING);
+	public static final Message PING_OFFER = new Message(
+			new byte[] { PING_OFFER_ALL }, KEY_PING);
 	public static final Message VERSION_SERVER =
 			new Message((Server.VERSION).getBytes(), KEY_VERSION);
-	public static final Message VERSION_CLIENT =
-			new Message((Client.PROTOCOL_VERSION).getBytes(), KEY_VERSION);
+	public static final Message VERSION_LEGACY = new Message(
+			ProtocolFeatures.NARROW.version().getBytes(), KEY_VERSION);
 	public static final Message TERMINATE = new Message(KEY_TERMINATE);
 	public static final Message WAIT_USER_INPUT = new Message(
 			KEY_WAIT_USER_INPUT);	
+	// nothing to send, the client keeps reading the server
+	public static final Message NO_REPLY = new Message(KEY_NO_REPLY);
 		
 	public static final Message ERROR_GENERAL =
 			createError("General error");
@@ -50,6 +73,14 @@ public class Message {
 			createError("Unsupported version");
 	public static final Message ERROR_AUTH =
 			createError("Failed authentication");
+	public static final Message ERROR_ADDRESSING =
+			createError("Home requires wide addressing");
+	public static final Message ERROR_OBSERVER =
+			createError("Observers cannot send actions");
+	public static final Message ERROR_SUBSCRIPTION =
+			createError("Invalid subscription filter");
+	public static final Message ERROR_READ =
+			createError("Invalid read request");
 	
 	
 	private static final int WRAP_SIZE = 60;
@@ -77,15 +108,85 @@ public class Message {
 	}
 	
 	
-	public static Message createConfirm(byte seqNum, boolean accept) {
-		return new Message(new byte[] {KEY_CONFIRM, seqNum,
-				(accept? (byte) 1 : (byte) 0)});
+	/**
+	 * @return a confirm message [keycode, sequence number, accept], with a
+	 * single byte sequence number in narrow encoding and a varint in wide
+	 * encoding.
+	 */
+	public static Message createConfirm(int seqNum, boolean accept,
+			boolean wide) {
+		byte[] b = new byte[2 + (wide ? Util.varintSize(seqNum) : 1)];
+		b[0] = KEY_CONFIRM;
+		if (wide)
+			Util.writeVarint(b, 1, seqNum);
+		else
+			b[1] = (byte) seqNum;
+		b[b.length - 1] = (accept ? (byte) 1 : (byte) 0);
+		return new Message(b);
+	}
+	
+	/**
+	 * @return the sequence number of the given confirm message.
+	 */
+	public static int confirmSequenceNumber(Message confirm, boolean wide) {
+		return wide ? Util.readVarint(confirm.bytes, 1) : confirm.bytes[1];
+	}
+	
+	/**
+	 * @return true if the given confirm message accepts its action.
+	 */
+	public static boolean confirmAccepted(Message confirm) {
+		return confirm.bytes[confirm.bytes.length - 1] == 1;
 	}
 	
 	private static Message createError(String msg) {
 		return new Message(msg.getBytes(), KEY_ERROR);
 	}
 	
+	/**
+	 * @return a redirect message to the given "host:port" address of the
+	 * cluster node hosting the home of the client.
+	 */
+	public static Message createRedirect(String address) {
+		return new Message(address.getBytes(), KEY_REDIRECT);
+	}
+	
+	/**
+	 * @return an error message telling a client that cannot be redirected
+	 * where its home is hosted.
+	 */
+	public static Message createMovedError(String address) {
+		return createError("Home hosted on " + address);
+	}
+	
+	/**
+	 * @return a subscribe message carrying the given subscription filter,
+	 * empty to receive every device of the home again.
+	 */
+	public static Message createSubscribe(String filter) {
+		return new Message(filter.getBytes(), KEY_SUBSCRIBE);
+	}
+	
+	/**
+	 * @return a credit message granting the server the given number of update
+	 * messages [keycode, count varint].
+	 */
+	public static Message createCredit(int count) {
+		byte[] b = new byte[1 + Util.varintSize(count)];
+		b[0] = KEY_CREDIT;
+		Util.writeVarint(b, 1, count);
+		return new Message(b);
+	}
+	
+	/**
+	 * @return the number of update messages granted by the given credit
+	 * message.
+	 * @throws IllegalArgumentException if the message is truncated.
+	 */
+	public static int creditCount(Message credit) {
+		return Util.readVarint(credit.bytes, 1);
+	}
+	
 	public static Message createInit(Home home) {
 		return new Message(home.getInit());
 	}
@@ -94,13 +195,47 @@ public class Message {
 		return new Message(Util.toByteStream(hexStr));
 	}
 	
-	public static Message createUpdate(Message actionMsg) {
-		byte[] actionStream = actionMsg.bytes;
-		byte[] updateStream = new byte[actionStream.length - 1];
-		updateStream[0] = KEY_UPDATE;
-		for (int i = 2; i < actionStream.length; i++)
-			updateStream[i - 1] = actionStream[i];
-		return new Message(updateStream);
+	/**
+	 * @return a message carrying the given update messages, sent to a client
+	 * in one write: the single update itself if there is only one, otherwise
+	 * an update batch [keycode, count, (length, update without keycode)*].
+	 */
+	public static Message createUpdateBatch(List<Message> updates) {
+		if (updates.size() == 1)
+			return updates.get(0);
+		int size = 2;
+		for (Message update : updates)
+			size += update.bytes.length;
+		byte[] batch = new byte[size];
+		int index = 0;
+		batch[index++] = KEY_UPDATE_BATCH;
+		batch[index++] = (byte) updates.size();
+		for (Message update : updates) {
+			int len = update.bytes.length - 1;
+			batch[index++] = (byte) len;
+			System.arraycopy(update.bytes, 1, batch, index, len);
+			index += len;
+		}
+		return new Message(batch);
+	}
+	
+	/**
+	 * @return the update messages carried by the given update batch message.
+	 */
+	public static List<Message> splitUpdateBatch(Message batch) {
+		byte[] b = batch.bytes;
+		int count = b[1] & 0xff;
+		List<Message> updates = new ArrayList<Message>(count);
+		int index = 2;
+		for (int i = 0; i < count; i++) {
+			int len = b[index++] & 0xff;
+			byte[] update = new byte[len + 1];
+			update[0] = KEY_UPDATE;
+			System.arraycopy(b, index, update, 1, len);
+			index += len;
+			updates.add(new Message(update));
+		}
+		return updates;
 	}
 	
 	public int length() {
@@ -174,41 +309,42 @@ public class Message {
 	 * @param sender
 	 */
 	public void customPrint(String sender) {
-		System.out.println(Util.time() + " " + sender + " >");
-		String raw = toCustomString().replaceAll("\n", "\\n").replaceAll("\r", "\\r");
-		String bytecode = toHexString();
-		System.out.println(indentedWrapped(
-				"raw:  ", raw, WRAP_SIZE));
-		System.out.println(indentedWrapped(
-				"byte: ", bytecode, WRAP_SIZE));
+		System.out.println(Util.time() + " " + toLogString(sender));
 	}
 	
-	// utility methods
-	
 	/**
-	 * @return a string constructed of spaces in the length of the given string.
+	 * @return the pretty string representation printed by customPrint, without
+	 * the time prefix. Used by the server to hand messages to the log writer.
 	 */
-	private static String indent(String s) {
-		String res = "";
-		int size = s.length();
-		for (int i = 0; i < size; i++)
-			res += " ";
-		return res;
+	public String toLogString(String sender) {
+		String raw = toCustomString().replace("\n", "\\n").replace("\r", "\\r");
+		String bytecode = toHexString();
+		StringBuilder sb = new StringBuilder(
+				sender.length() + 32 + (raw.length() + bytecode.length()) * 2);
+		sb.append(sender).append(" >\n");
+		appendIndentedWrapped(sb, "raw:  ", raw, WRAP_SIZE);
+		sb.append('\n');
+		appendIndentedWrapped(sb, "byte: ", bytecode, WRAP_SIZE);
+		return sb.toString();
 	}
 	
+	// utility methods
+	
 	/**
-	 * @return an indented wrapped version of the input string, with the given
-	 * prefix at the beginning of the first line of the string.
+	 * Appends an indented wrapped version of the input string to the given
+	 * builder, with the given prefix at the beginning of the first line of the
+	 * string.
 	 */
-	private static String indentedWrapped(String prefix, String s, int wrap) {
-		String res = prefix;
-		String ind = indent(prefix);
+	private static void appendIndentedWrapped(StringBuilder sb, String prefix,
+			String s, int wrap) {
+		sb.append(prefix);
 		int lim = s.length() / wrap;
-		for (int i = 0; i < lim; i++) {
-			res += s.substring(0, wrap) + "\n" + ind;
-			s = s.substring(wrap, s.length());
+		int start = 0;
+		for (int i = 0; i < lim; i++, start += wrap) {
+			sb.append(s, start, start + wrap).append('\n');
+			for (int j = 0; j < prefix.length(); j++)
+				sb.append(' ');
 		}
-		res += s;
-		return res;
+		sb.append(s, start, s.length());
 	}
 }
@@ -0,0 +1,116 @@
+/*
+  CS544 - Computer Networks
+  Drexel University
+  Protocol Implementation: IoT Home Control Protocol
+  Abhilasha Jayaswal
+
+  File name: Projection.java
+
+  Purpose:
+  Immutable slice of a home selected by a subscription filter (see
+  Subscription), resolved once against the devices of the home. A subscribed
+  client controls the slice as a home of its own: its devices are numbered
+  from 0 by device type, in the order of their numbers in the home, and the
+  session translates the device numbers of actions and updates between the
+  two numberings. The devices selected by type or name terms are routed by
+  device type, so the server indexes a session watching them under the type
+  only, and checks the devices of every update of that type against the
+  projection.
+ */
+
+package protocol;
+
+import java.util.Arrays;
+
+public final class Projection {
+
+	//Numbers in the home of the devices of the projection, by device type, ascending
+	private final int[][] devices;
+	//Whether the devices of a type are watched by type rather than one by one
+	private final boolean[] byType;
+
+	Projection(int[][] devices, boolean[] byType) {
+		this.devices = devices;
+		this.byType = byType;
+	}
+
+	//@return the number of device types of the projection
+	public int numTypes() {
+		return devices.length;
+	}
+
+	//@return the number of devices of the given type in the projection
+	public int numDevices(int deviceType) {
+		return devices[deviceType].length;
+	}
+
+	/*
+	  @return true if the devices of the given type are watched by type: the
+	  projection selects some of them by a type or name term.
+	 */
+	public boolean byType(int deviceType) {
+		return byType[deviceType];
+	}
+
+	//@return the number of devices in the projection
+	public int size() {
+		int size = 0;
+		for (int[] d : devices)
+			size += d.length;
+		return size;
+	}
+
+	/*
+	  @return the number in the home of the given device of the projection,
+	  or -1 if the projection has no such device.
+	 */
+	public int homeNumber(int deviceType, int number) {
+		if (deviceType < 0 || deviceType >= devices.length || number < 0
+				|| number >= devices[deviceType].length)
+			return -1;
+		return devices[deviceType][number];
+	}
+
+	/*
+	  @return the number in the projection of the given device of the home,
+	  or -1 if the projection does not contain the device.
+	 */
+	public int projectedNumber(int deviceType, int homeNumber) {
+		if (deviceType < 0 || deviceType >= devices.length)
+			return -1;
+		int i = Arrays.binarySearch(devices[deviceType], homeNumber);
+		return i >= 0 ? i : -1;
+	}
+
+	/*
+	  @return the given update of a device of the home renumbered as in the
+	  projection, or null if the projection does not contain the device.
+	 */
+	public Message project(Message update) {
+		byte[] b = update.bytes();
+		int num = Util.readVarint(b, 2);
+		int projected = projectedNumber(b[1], num);
+		if (projected < 0)
+			return null;
+		if (projected == num)
+			return update;
+		int from = 2 + Util.varintSize(num);
+		byte[] p = new byte[2 + Util.varintSize(projected) + b.length - from];
+		p[0] = b[0];
+		p[1] = b[1];
+		int index = Util.writeVarint(p, 2, projected);
+		System.arraycopy(b, from, p, index, b.length - from);
+		return new Message(p);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (int type = 0; type < devices.length; type++) {
+			if (sb.length() > 0)
+				sb.append(' ');
+			sb.append(type).append(':').append(Arrays.toString(devices[type]));
+		}
+		return sb.toString();
+	}
+}
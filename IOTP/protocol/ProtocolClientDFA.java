@@ -13,8 +13,20 @@
 
 package protocol;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.List;
+
 import client.*;
 import devices.*;
+import server.ConnectListener;
+import server.FileHomeStore;
+import server.HomeRegistry;
 
 public class ProtocolClientDFA extends DFA {
 
@@ -27,6 +39,24 @@ public class ProtocolClientDFA extends DFA {
 	private String password = null;
 	//Response for the authentication phase
 	private Message response;
+	//Subscription filter sent once the INIT is received, null if none or sent
+	private String filter = null;
+	//Whether a subscription was sent and its INIT is not received yet
+	private boolean subscribing = false;
+	/*
+	  Update messages received since update credits were last granted to the
+	  server, for versions with flow control
+	 */
+	private int received = 0;
+	//Whether the original ping is sent, for servers refusing PING_OFFER
+	private boolean legacyPing = false;
+	//Whether the whole INIT of the home was received
+	private boolean initReceived = false;
+	/*
+	  Home rebuilt from the INIT chunks of a subscription or catch-up, which
+	  replaces the home once complete, null if none
+	 */
+	private Home replacement = null;
 	
 	/*
 	  Constructs a ClientDFA with the given client communication handler,
@@ -38,33 +68,69 @@ public class ProtocolClientDFA extends DFA {
 		this.userName = userName;
 		this.password = password;
 	}
+	
+	/*
+	  Constructs a ClientDFA subscribing to the given filter once the INIT is
+	  received, if the server supports subscriptions (see Subscription). A
+	  null filter receives every device.
+	 */
+	public ProtocolClientDFA(ClientCommunication clientComm, String userName,
+			String password, String filter) {
+		this(clientComm, userName, password);
+		this.filter = filter;
+	}
 
 	/*
 	 Transitions the protocol state to "client awaits version" and returns a
-	 poke message to initiate communication with the server.
+	 poke message to initiate communication with the server, asking for all
+	 its versions unless told to use the original ping.
 	 If given an invalid message for the current state, returns a general
 	 error message.
 	*/
 	protected Message processIdle(Message m) {
 		if (m.keycode() == Message.KEY_INTERNAL_MSG) {
 			state = ProtocolState.C_AWAITS_VERSION;
-			return Message.PING;
+			return legacyPing ? Message.PING : Message.PING_OFFER;
 		}
 		// error: go back to idle and return error message
 		this.state = ProtocolState.IDLE;
 		return Message.ERROR_GENERAL;
 	}
 
+	//Sends the original ping from now on, offered the original version only
+	public void useLegacyPing() {
+		legacyPing = true;
+	}
+	
+	/*
+	  @return true if the given message is an error answering the ping asking
+	  for all versions, as sent by the original servers, which only accept
+	  the original ping.
+	 */
+	public boolean pingRefused(Message m) {
+		return !legacyPing && state == ProtocolState.C_AWAITS_VERSION
+				&& m.keycode() == Message.KEY_ERROR;
+	}
+	
 	/*
 	  Transitions the protocol state to "server awaits version" and immediately
 	  calls the next process phase to prepare a version message to be sent to
-	  the server.
-	  If given an invalid message for the current state, returns a version
-	  error message.
+	  the server. The client version is selected if the server offers it,
+	  otherwise the first supported version the server offers.
+	  If given an invalid message for the current state, or no offered version
+	  is supported, returns a version error message.
 	 */
 	protected Message processClientAwaitsVersion(Message m) {
-		if (m.keycode() == Message.KEY_VERSION
-				&& Client.PROTOCOL_VERSION.equals(m.content())) {
+		ProtocolFeatures selected = (m.keycode() == Message.KEY_VERSION ?
+				ProtocolFeatures.select(m.content(), Client.PROTOCOL_VERSION)
+				: null);
+		if (selected != null) {
+			features = selected;
+			if (filter != null && !features.subscriptions()) {
+				System.out.println("::: Server does not support subscriptions,"
+						+ " receiving every device :::");
+				filter = null;
+			}
 			state = ProtocolState.S_AWAITS_VERSION;
 			return process(Message.INTERNAL_MSG);
 		}
@@ -82,7 +148,8 @@ public class ProtocolClientDFA extends DFA {
 	protected Message processServerAwaitsVersion(Message m) {
 		if (m.keycode() == Message.KEY_INTERNAL_MSG) {
 			this.state = ProtocolState.C_AWAITS_CHALLENGE;
-			return Message.VERSION_CLIENT;
+			return new Message(features.version().getBytes(),
+					Message.KEY_VERSION);
 		}
 		// error: go back to idle and return error message
 		this.state = ProtocolState.IDLE;
@@ -131,12 +198,29 @@ public class ProtocolClientDFA extends DFA {
 	/*
 	  Transitions the protocol state to "server awaits action" and immediately
 	  calls the next process phase to send the action to the server.
+	  The home image is kept lazily over the received bytes (see LazyHome).
+	  Given the first chunk of a chunked INIT, builds the home from it and lets
+	  the user act on the devices received so far; the following chunks are
+	  received in the next states.
+	  With a subscription filter, sends it once the whole INIT is received.
 	  If given an invalid message for the current state, returns a general
 	  error message.
 	 */
 	protected Message processClientAwaitsInit(Message m) {
+		if (m.keycode() == Message.KEY_INIT_CHUNK) {
+			this.home = new LazyHome();
+			this.home.setWideAddressing(features.wideAddressing());
+			this.state = ProtocolState.S_AWAITS_ACTION;
+			return processInitChunk(m, false);
+		}
 		if (m.keycode() == Message.KEY_INITIAL) {
-			this.home = Home.createHomeFromInit(m);
+			this.home = LazyHome.fromInit(m);
+			this.home.setWideAddressing(features.wideAddressing());
+			this.state = ProtocolState.S_AWAITS_ACTION;
+			initReceived = true;
+			// the home is replaced by the subscribed one
+			if (filter != null)
+				return subscribe();
 			System.out.println("::: Server home image at client side :::");
 			this.home.customPrint();
 			this.state = ProtocolState.S_AWAITS_ACTION;
@@ -166,10 +250,30 @@ public class ProtocolClientDFA extends DFA {
 			state = ProtocolState.C_AWAITS_CONFIRM;
 			return m;
 		}
+		// process userName read, answered instead of confirmed
+		else if (m.keycode() == Message.KEY_READ) {
+			if (!features.reads()) {
+				clientComm.getPostedActionAndReset();
+				System.out.println("::: Server does not support reads :::");
+				return Message.WAIT_USER_INPUT;
+			}
+			state = ProtocolState.C_AWAITS_CONFIRM;
+			return m;
+		}
 		// process server update
-		else if (m.keycode() == Message.KEY_UPDATE) {
+		else if (m.keycode() == Message.KEY_UPDATE
+				|| m.keycode() == Message.KEY_UPDATE_BATCH) {
 			return processUpdate(m);
 		}
+		// process the next chunk of a chunked INIT
+		else if (m.keycode() == Message.KEY_INIT_CHUNK) {
+			return processInitChunk(m, true);
+		}
+		// home replaced by a subscription or a catch-up
+		else if (m.keycode() == Message.KEY_INITIAL
+				&& (subscribing || features.credits())) {
+			return processReplacingInit(m);
+		}
 		// error: go back to idle and return error message
 		this.state = ProtocolState.IDLE;
 		return Message.ERROR_GENERAL;
@@ -185,9 +289,12 @@ public class ProtocolClientDFA extends DFA {
 	 */
 	protected Message processClientAwaitsConfirm(Message m) {
 		if (m.keycode() == Message.KEY_CONFIRM) {
-			byte[] b = m.bytes();
-			boolean confirmed = b[2] == 1;
-			DeviceAction action = new DeviceAction(clientComm.getPostedActionAndReset());
+			int seq = Message.confirmSequenceNumber(m,
+					features.wideAddressing());
+			boolean confirmed = Message.confirmAccepted(m);
+			DeviceAction action = new DeviceAction(
+					clientComm.getPostedActionAndReset().bytes(),
+					features.wideAddressing());
 			if (confirmed) {
 				// apply confirmed message internally
 				try {
@@ -197,41 +304,332 @@ public class ProtocolClientDFA extends DFA {
 					state = ProtocolState.IDLE;
 					return Message.ERROR_GENERAL;
 				}
-				System.out.println("::: Action " + b[1]
+				System.out.println("::: Action " + seq
 						+ " confirmed, new state of the home :::");
 				home.customPrint();
 			}
 			else {
-				System.out.println("::: Action " + b[1] + " denied :::");
+				System.out.println("::: Action " + seq + " denied :::");
 			}
 			state = ProtocolState.S_AWAITS_ACTION;
 			return Message.WAIT_USER_INPUT;
 		}
+		// answer of a read
+		else if (m.keycode() == Message.KEY_READ) {
+			return processReadAnswer(m);
+		}
 		// process server update
-		else if (m.keycode() == Message.KEY_UPDATE) {
+		else if (m.keycode() == Message.KEY_UPDATE
+				|| m.keycode() == Message.KEY_UPDATE_BATCH) {
 			return processUpdate(m);
 		}
+		// process the next chunk of a chunked INIT
+		else if (m.keycode() == Message.KEY_INIT_CHUNK) {
+			return processInitChunk(m, true);
+		}
+		// home replaced by a subscription or a catch-up
+		else if (m.keycode() == Message.KEY_INITIAL
+				&& (subscribing || features.credits())) {
+			return processReplacingInit(m);
+		}
 		// error: go back to idle and return error message
 		this.state = ProtocolState.IDLE;
 		return Message.ERROR_GENERAL;
 	}
 	
+	/*
+	  Prints the current state of the devices of the given read answer, as
+	  read by the server, then transitions the protocol state back to
+	  "server awaits action" and signals to await user input.
+	 */
+	private Message processReadAnswer(Message m) {
+		clientComm.getPostedActionAndReset();
+		IOTDevice[] devices;
+		try {
+			devices = ReadRequest.devices(m, home);
+		} catch (IllegalArgumentException e) {
+			System.out.println("Internal error reading devices: "
+					+ e.getMessage());
+			state = ProtocolState.IDLE;
+			return Message.ERROR_GENERAL;
+		}
+		System.out.println("::: Devices read from server :::");
+		for (IOTDevice d : devices) {
+			if (d != null)
+				System.out.println(d.toCustomString());
+		}
+		state = ProtocolState.S_AWAITS_ACTION;
+		return Message.WAIT_USER_INPUT;
+	}
+	
+	/*
+	  Adds the devices of an INIT chunk to the local home image. The user
+	  input is started on the first chunk, over the devices received so far,
+	  and only restarted once the last chunk completes the home: the devices
+	  of the chunks in between become selectable as they arrive.
+	  @param m INIT chunk message.
+	  @param inputStarted true if a user input thread is already running.
+	 */
+	private Message processInitChunk(Message m, boolean inputStarted) {
+		// a subscription or catch-up INIT once the home is complete
+		if (initReceived)
+			return processReplacingChunk(m);
+		boolean last;
+		try {
+			last = home.addInitChunk(m);
+		} catch (RuntimeException e) {
+			System.out.println("Internal error applying INIT chunk on home");
+			state = ProtocolState.IDLE;
+			return Message.ERROR_GENERAL;
+		}
+		initReceived = last;
+		// no input until the subscribed home is received
+		if (filter != null)
+			return last ? subscribe() : Message.NO_REPLY;
+		if (!last) {
+			if (inputStarted)
+				return Message.NO_REPLY;
+			int devices = 0;
+			for (List<IOTDevice> l : home.devices())
+				devices += l.size();
+			System.out.println("::: INIT chunk received, " + devices
+					+ " devices so far :::");
+			return Message.WAIT_USER_INPUT;
+		}
+		if (inputStarted)
+			clientComm.killInput();
+		System.out.println("::: Server home image at client side :::");
+		home.customPrint();
+		return Message.WAIT_USER_INPUT;
+	}
+	
+	/*
+	  @return the subscribe message of the filter of the client, sent once.
+	 */
+	private Message subscribe() {
+		Message m = Message.createSubscribe(filter);
+		System.out.println("::: Subscribing to \"" + filter + "\" :::");
+		filter = null;
+		subscribing = true;
+		return m;
+	}
+	
+	/*
+	  Replaces the local home image with the home the client subscribed to,
+	  whose devices are numbered as in the subscription, or with the fresh
+	  INIT a flow-controlled client catches up from once its held updates
+	  were dropped, and restarts the user input on it.
+	 */
+	private Message processReplacingInit(Message m) {
+		return replaceHome(LazyHome.fromInit(m));
+	}
+
+	/*
+	  Adds the devices of an INIT chunk of a subscription or catch-up to the
+	  home being rebuilt, which replaces the home once its last chunk is
+	  received.
+	 */
+	private Message processReplacingChunk(Message m) {
+		if (replacement == null)
+			replacement = new LazyHome();
+		boolean last;
+		try {
+			last = replacement.addInitChunk(m);
+		} catch (RuntimeException e) {
+			System.out.println("Internal error applying INIT chunk on home");
+			state = ProtocolState.IDLE;
+			return Message.ERROR_GENERAL;
+		}
+		if (!last)
+			return Message.NO_REPLY;
+		Home complete = replacement;
+		replacement = null;
+		return replaceHome(complete);
+	}
+
+	/*
+	  Replaces the home by the given one, received as the INIT of a
+	  subscription or of a catch-up, and restarts the user input.
+	 */
+	private Message replaceHome(Home replaced) {
+		this.home = replaced;
+		this.home.setWideAddressing(features.wideAddressing());
+		clientComm.killInput();
+		if (subscribing) {
+			subscribing = false;
+			System.out.println("::: Subscribed home image at client side :::");
+		}
+		else {
+			// a catch-up INIT spends a credit, a subscription reply does not
+			received++;
+			System.out.println("::: Home image caught up from server :::");
+		}
+		this.home.customPrint();
+		return grantCredits(Message.WAIT_USER_INPUT);
+	}
+	
+	/*
+	  @return a credit message giving the server back the credits of the
+	  update messages received, once they reach half the initial credits, and
+	  otherwise the given reply. Only a reply waiting for user input is
+	  replaced, the user input restarting once the credits are sent.
+	 */
+	private Message grantCredits(Message reply) {
+		if (!features.credits() || received < Message.INITIAL_CREDITS / 2
+				|| reply != Message.WAIT_USER_INPUT)
+			return reply;
+		Message credit = Message.createCredit(received);
+		received = 0;
+		return credit;
+	}
+	
 	/*
 	  Should be called to process a server update (response to actions
 	  performed by some other client).
-	  @param m update message.
+	  @param m update message, or update batch message.
 	 */
 	private Message processUpdate(Message m) {
+		received++;
 		try {
-			home.doUpdate(m);
+			if (m.keycode() == Message.KEY_UPDATE_BATCH) {
+				for (Message update : Message.splitUpdateBatch(m))
+					home.doUpdate(update);
+			}
+			else
+				home.doUpdate(m);
 		} catch (Exception e) {
 			System.out.println("Internal error applying update on home");
 			state = ProtocolState.IDLE;
 			return Message.ERROR_GENERAL;
 		}
+		// the home is about to be replaced by the subscribed one
+		if (subscribing)
+			return Message.NO_REPLY;
 		clientComm.killInput();
 		System.out.println("::: Update received from server :::");
 		home.customPrint();
-		return Message.WAIT_USER_INPUT;
+		return grantCredits(Message.WAIT_USER_INPUT);
+	}
+	
+	/*
+	  The version negotiation of the original clients: the original ping, and
+	  an offer that must name exactly the original version.
+	 */
+	private static class OriginalClientDFA extends ProtocolClientDFA {
+		OriginalClientDFA(ClientCommunication clientComm, String userName,
+				String password) {
+			super(clientComm, userName, password);
+			useLegacyPing();
+		}
+		
+		@Override
+		protected Message processClientAwaitsVersion(Message m) {
+			if (m.keycode() == Message.KEY_VERSION
+					&& ProtocolFeatures.NARROW.version().equals(m.content())) {
+				state = ProtocolState.S_AWAITS_VERSION;
+				return process(Message.INTERNAL_MSG);
+			}
+			this.state = ProtocolState.IDLE;
+			return Message.ERROR_VERSION;
+		}
+	}
+	
+	/*
+	  Runs the given client DFA against the server on the given port, up to
+	  the INIT, then has it send one action.
+	  @return the version negotiated and whether the action was confirmed,
+	  null if authentication failed, or the error received.
+	 */
+	private static String session(ProtocolClientDFA dfa, int port)
+			throws Exception {
+		Socket socket = new Socket("127.0.0.1", port);
+		try {
+			socket.setSoTimeout(5000);
+			BufferedReader br = new BufferedReader(new InputStreamReader(
+					socket.getInputStream()));
+			BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(
+					socket.getOutputStream()));
+			dfa.process(Message.INTERNAL_MSG).write(bw);
+			Message out = null;
+			boolean acted = false;
+			boolean confirmed = false;
+			while (true) {
+				Message in = Message.fromHexString(br.readLine());
+				if (in.keycode() == Message.KEY_ERROR)
+					return in.content().equals(Message.ERROR_AUTH.content())
+							? null : "error: " + in.content();
+				if (in.keycode() == Message.KEY_CONFIRM)
+					confirmed = Message.confirmAccepted(in);
+				out = dfa.process(in);
+				if (out.keycode() == Message.KEY_ERROR)
+					return "client error: " + out.content();
+				if (out == Message.WAIT_USER_INPUT) {
+					if (in.keycode() == Message.KEY_CONFIRM)
+						break;
+					if (acted)
+						continue;
+					// switch the first light
+					IOTDevice light = dfa.home().devices().get(0).get(0);
+					byte opcode = light.getBytes()[IOTDevice.NAME_LENGTH];
+					Message action = dfa.home().createActionMessage((byte) 0,
+							0, opcode, new byte[0]);
+					dfa.clientComm.postAction(action);
+					out = dfa.process(action);
+					acted = true;
+				}
+				if (out != Message.NO_REPLY)
+					out.write(bw);
+			}
+			return dfa.features().version() + ", action confirmed "
+					+ confirmed;
+		} finally {
+			socket.close();
+		}
+	}
+	
+	/*
+	  Main method for testing: runs a client with the original version
+	  negotiation, then a current client, against a server, each up to one
+	  confirmed action, and prints the versions they negotiated.
+	 */
+	public static void main(String[] args) throws Exception {
+		Log.setLevel(Log.ERROR);
+		int port = 9470;
+		File store = Files.createTempDirectory("iotp-versions").toFile();
+		ConnectListener listener = new ConnectListener(new HomeRegistry(
+				new FileHomeStore(store, 4, 3), 10, 10), null, port);
+		new Thread(listener).start();
+		Thread.sleep(200);
+		String user = "abhi";
+		String password = Authentication.DES_STORE.get(user);
+		ClientCommunication comm = new ClientCommunication() {
+			private Message posted;
+			public void run() {
+			}
+			public void postAction(Message actionMessage) {
+				posted = actionMessage;
+			}
+			public Message getPostedActionAndReset() {
+				Message m = posted;
+				posted = null;
+				return m;
+			}
+			public void killInput() {
+			}
+		};
+		String original, current;
+		// responses holding a ';' byte fail authentication, retry
+		do {
+			original = session(new OriginalClientDFA(comm, user, password),
+					port);
+		} while (original == null);
+		do {
+			current = session(new ProtocolClientDFA(comm, user, password),
+					port);
+		} while (current == null);
+		System.out.println("original client: " + original);
+		System.out.println("current client: " + current);
+		listener.terminate();
+		System.exit(0);
 	}
 }
@@ -0,0 +1,211 @@
+/*
+  CS544 - Computer Networks
+  Drexel University
+  Protocol Implementation: IoT Home Control Protocol
+  Abhilasha Jayaswal
+
+  File name: ProtocolFeatures.java
+
+  Purpose:
+  The protocol versions supported by this implementation and the features
+  negotiated with each. A client sending a PING asking for all the versions
+  (PING_OFFER) is offered them in the VERSION message as a comma separated
+  list, preferred first, and answers with the one it selected. A plain PING,
+  as sent by the original clients, is answered with the single original
+  version, which these clients require verbatim; a client may still answer
+  with any supported version. A client whose PING_OFFER is refused by an
+  original server connects again with a plain PING.
+  - IOTP 0001: the original encoding, with single byte sequence numbers.
+  - IOTP 0002: wide addressing, with varint sequence numbers in actions and
+    confirms.
+  - IOTP 0003: wide addressing, and the INIT streamed as a sequence of
+    bounded INIT chunk messages instead of a single INIT message.
+  - IOTP 0004: as IOTP 0003, and the client follows REDIRECT messages to the
+    cluster node hosting its home, sent instead of the INIT or at any time
+    once the home moves to another node. Clients of the older versions get
+    an error naming the node instead.
+  - IOTP 0005: as IOTP 0004, and the session also receives the updates of
+    its own actions, each sent ahead of the confirm of its action. Selected
+    by relay servers, which must see every change of the home in the order
+    it was applied; it is offered last so that plain clients never pick it.
+  - IOTP 0006: as IOTP 0004, and the client may send SUBSCRIBE messages to
+    receive only the devices selected by a filter (see Subscription).
+  - IOTP 0007: as IOTP 0006, and the server sends update messages only
+    against credits granted by the client in CREDIT messages. A client
+    without credits has its updates held back; once too many are held, they
+    are dropped and the client is sent a fresh INIT of its home when it
+    grants credits again.
+  - IOTP 0008: as IOTP 0007, and the client may send READ messages to get
+    the current state of some devices of its home (see ReadRequest).
+  Every version but IOTP 0001 may be sent several updates in one update
+  batch message; the original clients only know single update messages.
+  Device counts in INIT and device numbers in actions and updates are
+  varints in every version: a value below 128 is a single byte, identical to
+  the original encoding, so small homes are encoded the same way in all.
+  A home with 128 or more devices of one type can only be controlled through
+  a wide addressing session.
+ */
+
+package protocol;
+
+
+public final class ProtocolFeatures {
+
+	// features, as flag bits
+	private static final int WIDE_ADDRESSING = 1;
+	private static final int CHUNKED_INIT = 1 << 1;
+	private static final int REDIRECTS = 1 << 2;
+	private static final int ECHOES = 1 << 3;
+	private static final int SUBSCRIPTIONS = 1 << 4;
+	private static final int CREDITS = 1 << 5;
+	private static final int READS = 1 << 6;
+	private static final int UPDATE_BATCHES = 1 << 7;
+
+	//The original protocol version
+	public static final ProtocolFeatures NARROW =
+			new ProtocolFeatures("IOTP 0001", 0);
+	//The wide addressing protocol version
+	public static final ProtocolFeatures WIDE =
+			NARROW.with("IOTP 0002", WIDE_ADDRESSING | UPDATE_BATCHES);
+	//The wide addressing and chunked INIT protocol version
+	public static final ProtocolFeatures CHUNKED =
+			WIDE.with("IOTP 0003", CHUNKED_INIT);
+	//The chunked INIT protocol version with cluster redirects
+	public static final ProtocolFeatures CLUSTERED =
+			CHUNKED.with("IOTP 0004", REDIRECTS);
+	//The cluster protocol version for relay servers, echoing own updates
+	public static final ProtocolFeatures RELAYED =
+			CLUSTERED.with("IOTP 0005", ECHOES);
+	//The cluster protocol version with subscription filters
+	public static final ProtocolFeatures SUBSCRIBED =
+			CLUSTERED.with("IOTP 0006", SUBSCRIPTIONS);
+	//The subscription protocol version with update flow control
+	public static final ProtocolFeatures CREDITED =
+			SUBSCRIBED.with("IOTP 0007", CREDITS);
+	//The flow control protocol version with device reads
+	public static final ProtocolFeatures READABLE =
+			CREDITED.with("IOTP 0008", READS);
+	//Supported versions, preferred first, the relay version aside
+	private static final ProtocolFeatures[] SUPPORTED =
+			{ READABLE, CREDITED, SUBSCRIBED, CLUSTERED, CHUNKED, WIDE, NARROW, RELAYED };
+	//Separator of the versions offered by the server
+	private static final String SEPARATOR = ",";
+
+	//Largest device count or number of a home a narrow session can address
+	public static final int MAX_NARROW_DEVICES = 127;
+
+	//The protocol version string
+	private final String version;
+	//The features of the version, as flag bits
+	private final int flags;
+
+	private ProtocolFeatures(String version, int flags) {
+		this.version = version;
+		this.flags = flags;
+	}
+
+	/*
+	  @return the given version, with the features of this one and the
+	  given other features.
+	 */
+	private ProtocolFeatures with(String version, int features) {
+		return new ProtocolFeatures(version, flags | features);
+	}
+
+	//@return true if the version has the given feature
+	private boolean has(int feature) {
+		return (flags & feature) != 0;
+	}
+
+	//@return the versions offered by the server, preferred first
+	public static String offer() {
+		StringBuilder sb = new StringBuilder();
+		for (ProtocolFeatures f : SUPPORTED) {
+			if (sb.length() > 0)
+				sb.append(SEPARATOR);
+			sb.append(f.version);
+		}
+		return sb.toString();
+	}
+
+	/*
+	  @return the features of the given version, or null if it is not
+	  supported.
+	 */
+	public static ProtocolFeatures forVersion(String version) {
+		for (ProtocolFeatures f : SUPPORTED) {
+			if (f.version.equals(version.trim()))
+				return f;
+		}
+		return null;
+	}
+
+	/*
+	  @return the features of the first version of the given offer that is
+	  supported, or null if there is none. An offer may be a single version.
+	 */
+	public static ProtocolFeatures select(String offer) {
+		for (String version : offer.split(SEPARATOR)) {
+			ProtocolFeatures f = forVersion(version);
+			if (f != null)
+				return f;
+		}
+		return null;
+	}
+
+	/*
+	  @return the features of the given preferred version if the given offer
+	  includes it, otherwise as select(offer).
+	 */
+	public static ProtocolFeatures select(String offer, String preferred) {
+		for (String version : offer.split(SEPARATOR)) {
+			if (version.trim().equals(preferred))
+				return forVersion(preferred);
+		}
+		return select(offer);
+	}
+
+	// getters
+
+	public String version() {
+		return version;
+	}
+
+	public boolean wideAddressing() {
+		return has(WIDE_ADDRESSING);
+	}
+
+	public boolean chunkedInit() {
+		return has(CHUNKED_INIT);
+	}
+
+	public boolean redirects() {
+		return has(REDIRECTS);
+	}
+
+	public boolean echoes() {
+		return has(ECHOES);
+	}
+
+	public boolean subscriptions() {
+		return has(SUBSCRIPTIONS);
+	}
+
+	public boolean credits() {
+		return has(CREDITS);
+	}
+
+	public boolean reads() {
+		return has(READS);
+	}
+
+	//@return true if updates may be sent in update batch messages
+	public boolean updateBatches() {
+		return has(UPDATE_BATCHES);
+	}
+
+	@Override
+	public String toString() {
+		return version;
+	}
+}
@@ -13,6 +13,8 @@
 
 package protocol;
 
+import java.util.concurrent.ExecutionException;
+
 import server.*;
 import devices.*;
 
@@ -26,10 +28,20 @@ public class ProtocolServerDFA extends DFA {
 	private byte[] auth_challenge;
 	//Confirm message for client actions
 	private Message confirm_client_action;
+	//Whether the client asked to be offered all the supported versions
+	private boolean offerAll = false;
+	//Snapshot being sent in INIT chunks, null once the last chunk is sent
+	private HomeImage chunkSnapshot;
+	//Device type and number of the next INIT chunk
+	private int chunkType;
+	private int chunkFirst;
 	
-	//Constructs a ProtocolServerDFA with the given home and connection listener.
-	public ProtocolServerDFA(Home home, ConnectListener cl) {
-		super(home);
+	/*
+	  Constructs a ProtocolServerDFA with the given connection listener. The
+	  home is bound once the client is authenticated.
+	 */
+	public ProtocolServerDFA(ConnectListener cl) {
+		super(null);
 		this.connectionListener = cl;
 	}
 	
@@ -43,25 +55,6 @@ public class ProtocolServerDFA extends DFA {
 		this.serverComm = serverComm;
 	}
 
-	/*
-	  Broadcast an update to all open connections for an action performed by
-	  one of the connected clients.
-	  Called whenever an action is confirmed by the server and applied on the
-	  home, in order to update the home state at every one of the connected
-	  clients.
-	 */
-	private void broadcastStateChange(Message actionMsg) {
-		
-                /* 
-		  the broadcast handles concurrent clients by making sure all clients
-		  are updated on each of the other clients confirmed actions
-		 */
-		
-		Message updateMsg = Message.createUpdate(actionMsg);
-		this.connectionListener.broadcast(updateMsg, serverComm);		
-	}
-	
-	
 	/*
 	  Transitions the protocol state to "client awaits version" and immediately
 	  calls the next process phase to prepare a version message to be sent to
@@ -70,7 +63,10 @@ public class ProtocolServerDFA extends DFA {
 	  error message.
 	 */
 	protected Message processIdle(Message m) {
-		if (m.length() == 1 && m.keycode() == Message.KEY_PING) {
+		if (m.keycode() == Message.KEY_PING && (m.length() == 1
+				|| (m.length() == 2
+				&& m.bytes()[1] == Message.PING_OFFER_ALL))) {
+			offerAll = m.length() == 2;
 			this.state = ProtocolState.C_AWAITS_VERSION;
 			return process(Message.INTERNAL_MSG);
 		}
@@ -81,14 +77,15 @@ public class ProtocolServerDFA extends DFA {
 
 	/*
 	  Transitions the protocol state to "server awaits version" and returns
-	  the server supported protocol version.
+	  the server supported protocol versions if the client asked for all of
+	  them, otherwise the original version only.
 	  If given an invalid message for the current state, returns a general
 	  error message.
 	 */
 	protected Message processClientAwaitsVersion(Message m) {
 		if (m.keycode() == Message.KEY_INTERNAL_MSG) {
 			this.state = ProtocolState.S_AWAITS_VERSION;
-			return Message.VERSION_SERVER;
+			return offerAll ? Message.VERSION_SERVER : Message.VERSION_LEGACY;
 		}
 		// error: go back to idle and return error message
 		this.state = ProtocolState.IDLE;
@@ -98,13 +95,16 @@ public class ProtocolServerDFA extends DFA {
 	/*
 	  Transitions the protocol state to "client awaits auth_challenge" and immediately
 	  calls the next process phase to prepare a auth_challenge message to be sent to
-	  the client.
+	  the client. The version selected by the client sets the features of the
+	  session.
 	  If given an invalid message for the current state or an unsupported
 	  version, returns a version error message.
 	 */
 	protected Message processServerAwaitsVersion(Message m) {
-		if (m.keycode() == Message.KEY_VERSION
-				&& Server.VERSION.equals(m.content())) {
+		ProtocolFeatures selected = (m.keycode() == Message.KEY_VERSION ?
+				ProtocolFeatures.forVersion(m.content()) : null);
+		if (selected != null) {
+			features = selected;
 			this.state = ProtocolState.C_AWAITS_CHALLENGE;
 			return process(Message.INTERNAL_MSG);
 		}
@@ -131,14 +131,38 @@ public class ProtocolServerDFA extends DFA {
 	}
 
 	/*
-	  Transitions the protocol state to "client awaits init" and immediately
-	  calls the next process phase to prepare an init message to be sent to
-	  the client.
+	  Transitions the protocol state to "client awaits init", binds the
+	  session to the home of the authenticated user and immediately calls the
+	  next process phase to prepare an init message to be sent to the client.
+	  If the home is hosted by another cluster node, redirects the client there.
 	  If given an invalid message for the current state or the client failed
 	  the auth_challenge, returns an authentication error message.
 	 */
 	protected Message processServerAwaitsResponse(Message m) {
 		if (Authentication.checkUserResponse(auth_challenge, m.contentBytes())) {
+			String homeId = Authentication.homeOf(
+					Authentication.usernameOf(m.contentBytes()));
+			// in a cluster, the home may be hosted by another node
+			String owner = connectionListener.route(homeId);
+			if (owner != null) {
+				this.state = ProtocolState.IDLE;
+				return redirectTo(owner);
+			}
+			try {
+				home = serverComm.bindHome(homeId);
+			} catch (Exception e) {
+				// handed off meanwhile
+				owner = connectionListener.route(homeId);
+				if (owner != null) {
+					this.state = ProtocolState.IDLE;
+					return redirectTo(owner);
+				}
+				if (Log.isEnabled(Log.ERROR))
+					Log.error("Failed loading home " + homeId + ": "
+							+ e.getMessage());
+				this.state = ProtocolState.IDLE;
+				return Message.ERROR_GENERAL;
+			}
 			this.state = ProtocolState.C_AWAITS_INIT;
 			return process(Message.INTERNAL_MSG);
 		}
@@ -147,30 +171,102 @@ public class ProtocolServerDFA extends DFA {
 		return Message.ERROR_AUTH;
 	}
 
+	/*
+	  @return the message sending the client to the given cluster node: a
+	  redirect if the client follows them, otherwise an error naming the node.
+	 */
+	public Message redirectTo(String address) {
+		return features.redirects() ? Message.createRedirect(address)
+				: Message.createMovedError(address);
+	}
+
 	/*
 	  Transitions the protocol state to "server awaits action" and returns
 	  the init message to be sent to the client.
 	  If given an invalid message for the current state, returns a general
-	  error message.
+	  error message. If the home has too many devices for a narrow session,
+	  returns an addressing error message.
+	  With chunked INIT, returns the first INIT chunk; the following ones are
+	  returned by nextMessage.
 	 */
 	protected Message processClientAwaitsInit(Message m) {
 		if (m.keycode() == Message.KEY_INTERNAL_MSG) {
+			HomeImage snapshot = home.snapshot();
+			if (!features.wideAddressing() && !snapshot.narrowAddressable()) {
+				this.state = ProtocolState.IDLE;
+				return Message.ERROR_ADDRESSING;
+			}
 			this.state = ProtocolState.S_AWAITS_ACTION;
-			return Message.createInit(home);
+			/*
+			  the session is already registered for updates, so every update
+			  missing from the snapshot is queued for it; the snapshot is
+			  handed to the session as the version barrier below which queued
+			  updates are dropped
+			 */
+			serverComm.setInitSnapshot(snapshot);
+			if (features.chunkedInit())
+				return firstChunk(snapshot);
+			return new Message(snapshot.toInit());
 		}
 		// error: go back to idle and return error message
 		this.state = ProtocolState.IDLE;
 		return Message.ERROR_GENERAL;
 	}
 
+	/*
+	  Starts sending the given image as a chunked INIT.
+	  @return its first INIT chunk, the following ones returned by
+	  nextMessage.
+	 */
+	private Message firstChunk(HomeImage image) {
+		chunkSnapshot = image;
+		chunkType = 0;
+		chunkFirst = 0;
+		return nextMessage();
+	}
+
+	/*
+	  @return the next INIT chunk of a chunked INIT, or null once its last
+	  chunk was returned. Chunks hold up to MAX_CHUNK_DEVICES devices of one
+	  type, every type in order; an empty home is sent as one empty chunk.
+	 */
+	@Override
+	public Message nextMessage() {
+		HomeImage s = chunkSnapshot;
+		if (s == null)
+			return null;
+		int type = chunkType;
+		int first = chunkFirst;
+		while (type < s.numTypes() - 1 && first >= s.numDevices(type)) {
+			type++;
+			first = 0;
+		}
+		int count = Math.min(Message.MAX_CHUNK_DEVICES,
+				s.numDevices(type) - first);
+		// position of the next chunk, if any device is left
+		chunkType = type;
+		chunkFirst = first + count;
+		while (chunkType < s.numTypes() - 1
+				&& chunkFirst >= s.numDevices(chunkType)) {
+			chunkType++;
+			chunkFirst = 0;
+		}
+		boolean last = chunkFirst >= s.numDevices(chunkType);
+		if (last)
+			chunkSnapshot = null;
+		return new Message(s.toInitChunk(type, first, count, last));
+	}
+
 	/*
 	  If given a terminate message, returns it immediately to signal terminate.
 	  If given an action message from the client, applies the action on the
 	  home, transitions the protocol state to "client awaits confirm_client_action" and
 	  immediately calls the next process phase to prepare a confirm_client_action message
 	  to be sent to the client.
-	  If the action is confirmed and applied, also broadcasts the action to
-	  all other active clients.
+	  If the action is confirmed and changed the state of the device, also
+	  broadcasts the action to all other active clients.
+	  If given a subscribe message, returns the INIT of the projection of the
+	  home the client subscribed to (see processSubscribe).
 	  If given an invalid message for the current state, returns a general
 	  error message.
 	 */
@@ -181,31 +277,177 @@ public class ProtocolServerDFA extends DFA {
 		}
 		// process action
 		else if (m.length() > 0 && m.keycode() == Message.KEY_ACTION) {
-			DeviceAction action = new DeviceAction(m);
+			DeviceAction action;
+			try {
+				action = new DeviceAction(m.bytes(), features.wideAddressing());
+			} catch (IllegalArgumentException e) {
+				// malformed action header, no sequence number to confirm
+				this.state = ProtocolState.IDLE;
+				return Message.ERROR_GENERAL;
+			}
 			this.state = ProtocolState.C_AWAITS_CONFIRM;
+			// a subscribed client numbers the devices as in its projection
+			DeviceAction applied = action;
+			Projection projection = serverComm.projection();
+			if (projection != null) {
+				int num = projection.homeNumber(action.deviceType(),
+						action.deviceNumber());
+				if (num < 0) {
+					confirm_client_action = Message.createConfirm(
+							action.sequenceNumber(), false,
+							features.wideAddressing());
+					return process(Message.INTERNAL_MSG);
+				}
+				applied = action.withDeviceNumber(num);
+			}
+			// a follower serves reads only, until promoted
+			if (connectionListener.readOnly()) {
+				confirm_client_action = Message.createConfirm(
+						action.sequenceNumber(), false, features.wideAddressing());
+				return process(Message.INTERNAL_MSG);
+			}
 			try {
-				home.doAction(action);
+				/*
+				  the action is applied and broadcast to all other active
+				  clients by the core loop owning the home, together with the
+				  other actions queued on that core; no-op actions are
+				  confirmed without broadcasting, the other clients already hold
+				  the requested state. A relay forwards the action to the
+				  server it relays instead, and confirms it once confirmed
+				  there
+				 */
+				Relay relay = connectionListener.relay();
+				if (relay != null)
+					relay.forward(serverComm.hostedHome(), applied, serverComm)
+							.get();
+				else
+					connectionListener.executor().submit(
+							serverComm.hostedHome(), applied, serverComm).get();
 			} catch (Exception e) {
 				// action failed
-				System.err.println("Action failed: " + e.getMessage());
-				confirm_client_action = Message.createConfirm(action.sequenceNumber(),false);
+				Throwable cause = (e instanceof ExecutionException ?
+						e.getCause() : e);
+				if (Log.isEnabled(Log.WARN))
+					Log.warn("Action failed: " + cause.getMessage());
+				confirm_client_action = Message.createConfirm(
+						action.sequenceNumber(), false, features.wideAddressing());
 				return process(Message.INTERNAL_MSG);
 			}
 			// action succeeded
-			home.customPrint();
-			/*
-			 * CONCURRENT
-			 * broadcast confirmed action to all other active clients
-			 */
-			broadcastStateChange(m);
-			confirm_client_action = Message.createConfirm(action.sequenceNumber(), true);
+			confirm_client_action = Message.createConfirm(
+					action.sequenceNumber(), true, features.wideAddressing());
 			return process(Message.INTERNAL_MSG);
 		}
+		// subscription filter
+		else if (m.keycode() == Message.KEY_SUBSCRIBE
+				&& features.subscriptions()) {
+			return processSubscribe(m);
+		}
+		// update credits granted by a flow-controlled client
+		else if (m.keycode() == Message.KEY_CREDIT && features.credits()) {
+			return processCredit(m);
+		}
+		// state of devices read by the client
+		else if (m.keycode() == Message.KEY_READ && features.reads()) {
+			return processRead(m);
+		}
 		// error: go back to idle and return error message
 		this.state = ProtocolState.IDLE;
 		return Message.ERROR_GENERAL;
 	}
 
+	/*
+	  Subscribes the client to the devices selected by the filter of the given
+	  subscribe message, and returns the INIT of the projection of the home on
+	  them, every device numbered as in the projection. An empty filter
+	  returns the INIT of the whole home. The state stays "server awaits
+	  action"; the updates queued for the client are sent from then on as in
+	  the new INIT.
+	  If the filter is invalid, returns a subscription error message.
+	 */
+	private Message processSubscribe(Message m) {
+		Subscription subscription;
+		try {
+			subscription = Subscription.parse(m.content());
+		} catch (IllegalArgumentException e) {
+			if (Log.isEnabled(Log.WARN))
+				Log.warn("Invalid subscription filter: " + e.getMessage());
+			this.state = ProtocolState.IDLE;
+			return Message.ERROR_SUBSCRIPTION;
+		}
+		/*
+		  the devices of a home are fixed once loaded, so the projection
+		  resolved on one snapshot holds for the later ones; the session is
+		  indexed under its devices before taking the snapshot of the INIT,
+		  the version barrier of its queued updates
+		 */
+		Projection projection = subscription.project(home.snapshot());
+		serverComm.subscribe(projection);
+		if (Log.isEnabled(Log.INFO))
+			Log.info("Subscribed to \"" + subscription + "\": "
+					+ (projection == null ? "every device"
+							: projection.size() + " devices"));
+		return snapshotInit();
+	}
+
+	/*
+	  Grants the client the update credits of the given credit message. There
+	  is no response: the held updates are sent instead.
+	  If the credit message is malformed, returns a general error message.
+	 */
+	private Message processCredit(Message m) {
+		int count;
+		try {
+			count = Message.creditCount(m);
+		} catch (IllegalArgumentException e) {
+			count = -1;
+		}
+		if (count < 0) {
+			this.state = ProtocolState.IDLE;
+			return Message.ERROR_GENERAL;
+		}
+		serverComm.grantCredits(count);
+		return Message.NO_REPLY;
+	}
+
+	/*
+	  Answers the given read request with the current state of its devices,
+	  taken from the published image of the home: the read neither waits for
+	  nor delays the actions being applied. The state stays "server awaits
+	  action".
+	  If the request is malformed, returns a read error message.
+	 */
+	private Message processRead(Message m) {
+		ReadRequest read;
+		try {
+			read = ReadRequest.fromMessage(m);
+		} catch (IllegalArgumentException e) {
+			if (Log.isEnabled(Log.WARN))
+				Log.warn("Invalid read request: " + e.getMessage());
+			this.state = ProtocolState.IDLE;
+			return Message.ERROR_READ;
+		}
+		return read.answer(home.snapshot(), serverComm.projection());
+	}
+
+	/*
+	  Takes a snapshot of the home as the version barrier of the updates
+	  queued for the client from then on.
+	  @return the INIT of the snapshot, projected on the subscription of the
+	  client if any. With chunked INIT, returns the first INIT chunk; the
+	  following ones are returned by nextMessage.
+	 */
+	public Message snapshotInit() {
+		HomeImage snapshot = home.snapshot();
+		serverComm.setInitSnapshot(snapshot);
+		Projection projection = serverComm.projection();
+		if (features.chunkedInit())
+			return firstChunk(projection == null ? snapshot
+					: snapshot.project(projection));
+		return new Message(projection == null ? snapshot.toInit()
+				: snapshot.toInit(projection));
+	}
+
 	/*
 	  Transitions the protocol state to "server awaits action" and returns
 	  the confirm_client_action message to be sent to the client.
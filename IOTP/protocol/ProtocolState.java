@@ -0,0 +1,37 @@
+/*  
+  CS544 - Computer Networks
+  Drexel University
+  Protocol Implementation: IoT Home Control Protocol
+  Abhilasha Jayaswal
+ 
+  File name: ProtocolState.java
+  
+  Purpose:
+  Enumeration of the states of the protocol DFA (see DFA), shared by the
+  client and server DFAs.
+ */
+
+package protocol;
+
+//Enumerator for DFA states
+enum ProtocolState {
+	IDLE				("Idle"),
+	C_AWAITS_VERSION	("Client awaits version"),
+	S_AWAITS_VERSION	("Server awaits version selection"),
+	C_AWAITS_CHALLENGE	("Client awaits challenge"),
+	S_AWAITS_RESPONSE	("Server awaits response"),
+	C_AWAITS_INIT		("Client awaits init"),
+	S_AWAITS_ACTION		("Server awaits action"), 
+	C_AWAITS_CONFIRM	("Client awaits confirmation");
+	
+	private String desc;
+	
+	private ProtocolState(String desc) {
+		this.desc = desc;
+	}
+	
+	@Override
+	public String toString() {
+		return desc;
+	}
+}
@@ -0,0 +1,199 @@
+/*
+  CS544 - Computer Networks
+  Drexel University
+  Protocol Implementation: IoT Home Control Protocol
+  Abhilasha Jayaswal
+
+  File name: ReadRequest.java
+
+  Purpose:
+  READ message of a client asking the current state of some devices of its
+  home, by device type and number, instead of reconnecting for a whole INIT.
+  A request [keycode, count, (device type, device number)*] names up to
+  MAX_READ_DEVICES devices, counts and numbers as varints, and the server
+  answers with a READ message of the same devices in the same order
+  [keycode, count, (device type, device number, length, state)*], where the
+  state is encoded as in the INIT (state and parameters, no name) and has
+  length 0 if the home has no such device. The answer is read from the
+  published image of the home, without locking the devices. A subscribed
+  client reads its devices by their numbers in its projection.
+ */
+
+package protocol;
+
+import java.util.List;
+
+import devices.DeviceType;
+import devices.Home;
+import devices.HomeImage;
+import devices.IOTDevice;
+import devices.RandomHomeGenerator;
+
+public final class ReadRequest {
+
+	//Largest number of devices of one read
+	public static final int MAX_READ_DEVICES = 255;
+
+	//Device types of the devices read
+	private final byte[] types;
+	//Numbers of the devices read
+	private final int[] numbers;
+
+	/*
+	  Constructs a read of the given devices, by device type and number.
+	  @throws IllegalArgumentException if there are no devices or more than
+	  MAX_READ_DEVICES.
+	 */
+	public ReadRequest(byte[] types, int[] numbers) {
+		if (types.length != numbers.length || types.length == 0
+				|| types.length > MAX_READ_DEVICES)
+			throw new IllegalArgumentException("Illegal read of "
+					+ types.length + " devices");
+		this.types = types;
+		this.numbers = numbers;
+	}
+
+	/*
+	  @return the read of the given READ message.
+	  @throws IllegalArgumentException if the message is malformed.
+	 */
+	public static ReadRequest fromMessage(Message m) {
+		byte[] b = m.bytes();
+		int count = Util.readVarint(b, 1);
+		int index = 1 + Util.varintSize(count);
+		if (count < 1 || count > MAX_READ_DEVICES)
+			throw new IllegalArgumentException("Illegal read of " + count
+					+ " devices");
+		byte[] types = new byte[count];
+		int[] numbers = new int[count];
+		for (int i = 0; i < count; i++) {
+			if (index >= b.length)
+				throw new IllegalArgumentException("Truncated read");
+			types[i] = b[index++];
+			numbers[i] = Util.readVarint(b, index);
+			index += Util.varintSize(numbers[i]);
+		}
+		return new ReadRequest(types, numbers);
+	}
+
+	//@return the READ message of the request
+	public Message toMessage() {
+		int size = 1 + Util.varintSize(types.length) + types.length;
+		for (int number : numbers)
+			size += Util.varintSize(number);
+		byte[] b = new byte[size];
+		b[0] = Message.KEY_READ;
+		int index = Util.writeVarint(b, 1, types.length);
+		for (int i = 0; i < types.length; i++) {
+			b[index++] = types[i];
+			index = Util.writeVarint(b, index, numbers[i]);
+		}
+		return new Message(b);
+	}
+
+	/*
+	  @return the READ message answering the request from the given image of
+	  the home, the devices numbered as in the given projection if not null.
+	 */
+	public Message answer(HomeImage image, Projection projection) {
+		int[] homeNumbers = new int[types.length];
+		int size = 1 + Util.varintSize(types.length);
+		for (int i = 0; i < types.length; i++) {
+			homeNumbers[i] = homeNumber(image, projection, types[i],
+					numbers[i]);
+			size += 2 + Util.varintSize(numbers[i]);
+			if (homeNumbers[i] >= 0)
+				size += stateLength(types[i]);
+		}
+		byte[] b = new byte[size];
+		b[0] = Message.KEY_READ;
+		int index = Util.writeVarint(b, 1, types.length);
+		for (int i = 0; i < types.length; i++) {
+			b[index++] = types[i];
+			index = Util.writeVarint(b, index, numbers[i]);
+			if (homeNumbers[i] < 0) {
+				b[index++] = 0;
+				continue;
+			}
+			b[index++] = (byte) stateLength(types[i]);
+			index = image.copyState(types[i], homeNumbers[i], b, index);
+		}
+		return new Message(b);
+	}
+
+	/*
+	  @return the devices of the given READ answer, named as in the given
+	  home of the client, null for the devices the answer has no state of.
+	  @throws IllegalArgumentException if the answer is malformed, or names
+	  a device the home does not have.
+	 */
+	public static IOTDevice[] devices(Message answer, Home home) {
+		List<List<IOTDevice>> known = home.devices();
+		byte[] b = answer.bytes();
+		int count = Util.readVarint(b, 1);
+		int index = 1 + Util.varintSize(count);
+		IOTDevice[] devices = new IOTDevice[count];
+		for (int i = 0; i < count; i++) {
+			if (index + 2 > b.length)
+				throw new IllegalArgumentException("Truncated read answer");
+			byte type = b[index++];
+			int number = Util.readVarint(b, index);
+			index += Util.varintSize(number);
+			int length = b[index++] & 0xff;
+			if (length == 0)
+				continue;
+			if (type < 0 || type >= known.size()
+					|| number >= known.get(type).size()
+					|| length != stateLength(type) || index + length > b.length)
+				throw new IllegalArgumentException("Illegal state of device "
+						+ type + ":" + number);
+			byte[] d = new byte[IOTDevice.NAME_LENGTH + length];
+			System.arraycopy(known.get(type).get(number).getBytes(), 0, d, 0,
+					IOTDevice.NAME_LENGTH);
+			System.arraycopy(b, index, d, IOTDevice.NAME_LENGTH, length);
+			index += length;
+			devices[i] = IOTDevice.createDeviceFromBytes(
+					DeviceType.legalValues()[type], number, d);
+		}
+		return devices;
+	}
+
+	//@return the number of devices read
+	public int size() {
+		return types.length;
+	}
+
+	/*
+	  @return the number in the home of the given device, or -1 if the home,
+	  or the projection, has no such device.
+	 */
+	private static int homeNumber(HomeImage image, Projection projection,
+			byte type, int number) {
+		if (projection != null)
+			return projection.homeNumber(type, number);
+		return image.deviceVersion(type, number) >= 0 ? number : -1;
+	}
+
+	//@return the length of the encoded state of a device of the given type
+	private static int stateLength(byte type) {
+		return 1 + DeviceType.legalValues()[type].numParams();
+	}
+
+	/*
+	  Main method for testing: reads a few devices of a random home, some of
+	  them missing, and prints the answer and the devices decoded from it.
+	 */
+	public static void main(String[] args) {
+		Home home = new RandomHomeGenerator().createHome();
+		HomeImage image = home.snapshot();
+		ReadRequest read = new ReadRequest(new byte[] { 0, 2, 4, 3 },
+				new int[] { 0, 0, 1, 1000 });
+		Message request = read.toMessage();
+		Message answer = fromMessage(request).answer(image, null);
+		System.out.println("request: " + Util.toHexString(request.bytes()));
+		System.out.println("answer:  " + Util.toHexString(answer.bytes()));
+		for (IOTDevice d : devices(answer, home))
+			System.out.println(d == null ? "(no such device)"
+					: d.toCustomString());
+	}
+}
@@ -0,0 +1,197 @@
+/*
+  CS544 - Computer Networks
+  Drexel University
+  Protocol Implementation: IoT Home Control Protocol
+  Abhilasha Jayaswal
+
+  File name: Subscription.java
+
+  Purpose:
+  Subscription filter sent by a client in a SUBSCRIBE message, to receive
+  only a slice of its home instead of every device. A filter is a list of
+  terms separated by ';', each a key and comma separated values:
+  - type=slock,light: every device of the given device types.
+  - device=light:0-3,tv:1: the given devices, by device type and number or
+    range of numbers.
+  - name=kitchen,living: the devices whose name starts with one of the given
+    prefixes, ignoring case, e.g. the rooms of the generated device names.
+  A device is selected if any term selects it. An empty filter selects every
+  device: it removes the filter of the session. Once subscribed, the filter
+  is resolved into the projection of the home (see Projection).
+ */
+
+package protocol;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import devices.DeviceType;
+import devices.HomeImage;
+import devices.LazyHome;
+import devices.RandomHomeGenerator;
+
+public final class Subscription {
+
+	//Separator of the terms of a filter
+	private static final String TERM_SEPARATOR = ";";
+	//Separator of the values of a term
+	private static final String VALUE_SEPARATOR = ",";
+
+	//The filter, as sent by the client
+	private final String filter;
+	//Device types selected entirely
+	private final boolean[] types =
+			new boolean[DeviceType.legalValues().length];
+	//Ranges of device numbers selected, as [device type, first, last]
+	private final List<int[]> ranges = new ArrayList<int[]>();
+	//Name prefixes selected, lower case
+	private final List<String> prefixes = new ArrayList<String>();
+	//Whether the filter selects every device
+	private boolean all = true;
+
+	private Subscription(String filter) {
+		this.filter = filter;
+	}
+
+	/*
+	  @return the subscription of the given filter.
+	  @throws IllegalArgumentException if the filter is malformed, or names
+	  an unknown device type.
+	 */
+	public static Subscription parse(String filter) {
+		Subscription s = new Subscription(filter.trim());
+		for (String term : filter.split(TERM_SEPARATOR)) {
+			if (term.trim().isEmpty())
+				continue;
+			int eq = term.indexOf('=');
+			if (eq < 0)
+				throw new IllegalArgumentException("Missing '=' in term "
+						+ term.trim());
+			String key = term.substring(0, eq).trim().toLowerCase();
+			for (String value : term.substring(eq + 1).split(VALUE_SEPARATOR)) {
+				value = value.trim();
+				if (value.isEmpty())
+					continue;
+				if (key.equals("type"))
+					s.types[typeOf(value)] = true;
+				else if (key.equals("device"))
+					s.ranges.add(rangeOf(value));
+				else if (key.equals("name"))
+					s.prefixes.add(value.toLowerCase());
+				else
+					throw new IllegalArgumentException("Unknown filter key "
+							+ key);
+				s.all = false;
+			}
+		}
+		return s;
+	}
+
+	//@return true if the filter selects every device
+	public boolean all() {
+		return all;
+	}
+
+	//@return true if the filter selects the given device
+	public boolean selects(int deviceType, int deviceNumber, String name) {
+		if (all || (deviceType < types.length && types[deviceType]))
+			return true;
+		for (int[] range : ranges) {
+			if (range[0] == deviceType && deviceNumber >= range[1]
+					&& deviceNumber <= range[2])
+				return true;
+		}
+		if (!prefixes.isEmpty()) {
+			String lower = name.toLowerCase();
+			for (String prefix : prefixes) {
+				if (lower.startsWith(prefix))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	  @return the projection of the given home image on the devices the
+	  filter selects, or null if the filter selects every device. The types
+	  the devices of which are selected by type or name terms are watched by
+	  type, the others device by device.
+	 */
+	public Projection project(HomeImage image) {
+		if (all)
+			return null;
+		int[][] devices = new int[image.numTypes()][];
+		boolean[] byType = new boolean[image.numTypes()];
+		int[] selected = new int[0];
+		for (int type = 0; type < image.numTypes(); type++) {
+			int n = image.numDevices(type);
+			if (selected.length < n)
+				selected = new int[n];
+			int count = 0;
+			for (int num = 0; num < n; num++) {
+				// names are only decoded if a name term needs them
+				if (selects(type, num, prefixes.isEmpty() ? ""
+						: image.deviceName(type, num)))
+					selected[count++] = num;
+			}
+			devices[type] = Arrays.copyOf(selected, count);
+			byType[type] = count > 0 && ((type < types.length && types[type])
+					|| !prefixes.isEmpty());
+		}
+		return new Projection(devices, byType);
+	}
+
+	@Override
+	public String toString() {
+		return filter;
+	}
+
+	//@return the code of the device type with the given name
+	private static int typeOf(String name) {
+		for (DeviceType type : DeviceType.legalValues()) {
+			if (type.name().equalsIgnoreCase(name))
+				return type.type();
+		}
+		throw new IllegalArgumentException("Unknown device type " + name);
+	}
+
+	//@return the range of a device value: type:number or type:first-last
+	private static int[] rangeOf(String value) {
+		int sep = value.indexOf(':');
+		if (sep < 0)
+			throw new IllegalArgumentException("Missing device number in "
+					+ value);
+		int type = typeOf(value.substring(0, sep).trim());
+		String numbers = value.substring(sep + 1).trim();
+		int dash = numbers.indexOf('-');
+		int first = Integer.parseInt(
+				(dash < 0 ? numbers : numbers.substring(0, dash)).trim());
+		int last = (dash < 0 ? first
+				: Integer.parseInt(numbers.substring(dash + 1).trim()));
+		if (first < 0 || last < first)
+			throw new IllegalArgumentException("Illegal device range "
+					+ numbers);
+		return new int[] { type, first, last };
+	}
+
+	/*
+	  Main method for testing: prints the projected INIT of a few filters on
+	  a random home.
+	 */
+	public static void main(String[] args) {
+		HomeImage image = new RandomHomeGenerator().createHome().snapshot();
+		LazyHome.fromInit(new Message(image.toInit())).customPrint();
+		String[] filters = args.length > 0 ? args : new String[] {
+				"type=slock", "device=light:0-1,tv:2", "name=kitchen,living",
+				"type=thermo;name=bedroom", "" };
+		for (String filter : filters) {
+			Subscription s = parse(filter);
+			Projection p = s.project(image);
+			System.out.println("::: Filter \"" + s + "\": "
+					+ (p == null ? "every device" : p.toString()) + " :::");
+			LazyHome.fromInit(new Message(p == null ? image.toInit()
+					: image.toInit(p))).customPrint();
+		}
+	}
+}
@@ -36,14 +36,21 @@ public class Util {
 	  @return the hexadecimal representation of the stream of bytes.
 	 */
 	public static String toHexString(byte[] stream) {
-		String res = "";
+		if (stream.length == 0)
+			return "";
+		char[] res = new char[stream.length * 3 - 1];
+		int i = 0;
 		for (byte b: stream) {
-			res += String.format("%02x ", b);
+			if (i > 0)
+				res[i++] = ' ';
+			res[i++] = HEX_DIGITS[(b >> 4) & 0x0f];
+			res[i++] = HEX_DIGITS[b & 0x0f];
 		}
-		res = res.substring(0, res.length() - 1);
-		return res;
+		return new String(res);
 	}
 	
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	
 	/*
 	  @param hexStr hexadecimal space-delimited representation of a byte stream.
 	  @return the actual byte stream.
@@ -90,6 +97,58 @@ public class Util {
 		return b;
 	}
 	
+	// variable length integers
+	
+	/*
+	  @return the number of bytes of the varint encoding of the given value:
+	  7 bits per byte, least significant first, the high bit set on every
+	  byte but the last. Values below 128 take a single byte, identical to
+	  the plain byte encoding. Negative values are encoded as unsigned.
+	 */
+	public static int varintSize(int value) {
+		int size = 1;
+		while ((value & ~0x7f) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+	
+	/*
+	  Writes the varint encoding of the given value to the given buffer.
+	  @return the index following the encoding.
+	 */
+	public static int writeVarint(byte[] b, int offset, int value) {
+		while ((value & ~0x7f) != 0) {
+			b[offset++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		b[offset++] = (byte) value;
+		return offset;
+	}
+	
+	/*
+	  @return the value of the varint encoded at the given index of the given
+	  buffer (its length is varintSize of the value).
+	  @throws IllegalArgumentException if the encoding is truncated, longer
+	  than 5 bytes or not minimal.
+	 */
+	public static int readVarint(byte[] b, int offset) {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			if (offset >= b.length)
+				throw new IllegalArgumentException("Truncated varint");
+			byte next = b[offset++];
+			value |= (next & 0x7f) << shift;
+			if (next >= 0) {
+				if (next == 0 && shift > 0)
+					break;
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("Malformed varint");
+	}
+	
 	// date and time
 	
 	private static SimpleDateFormat tf = new SimpleDateFormat("HH:mm:ss");
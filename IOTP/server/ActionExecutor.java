@@ -0,0 +1,479 @@
+/*
+  CS544 - Computer Networks
+  Drexel University
+  Protocol Implementation: IoT Home Control Protocol
+  Abhilasha Jayaswal
+
+  File name: ActionExecutor.java
+
+  Purpose:
+  Execution layer for client actions, one loop thread per core. Every home is
+  owned by exactly one core, chosen from its id, and only that core's loop
+  ever writes the home: homes are switched to single-writer mode, so actions
+  are applied without any lock or compare-and-set, strictly in arrival order
+  per session, and updates are broadcast in the order they were applied.
+  A session is attached to the core of its home when it is bound at
+  authentication, and hands its actions to the core through its own
+  single-producer single-consumer queue. The core drains the queues of all
+  its sessions and, when several actions were queued, keeps collecting for a
+  short window as long as more keep arriving. It applies the group on the
+  home in one pass with a single snapshot publication, and broadcasts all
+  resulting updates as one batch.
+  When the server keeps an action journal, the changes of a group are
+  journaled after being applied and before anything is broadcast or
+  confirmed, with at most one sync per group for all its homes. The updates
+  of homes with followers are then shipped to them (see Replicator), from
+  the core loop, so every follower receives the changes of a home in the
+  order they were applied. If the journal fails, the groups it did not
+  journal (or force) are rolled back on their homes, neither broadcast nor
+  shipped, and their actions fail; later actions are rejected unapplied
+  until it recovers.
+  The result of every action is completed through a future handed back to
+  the submitting session.
+  An idle core parks until a session or task wakes it up. On shutdown every
+  core finishes the group it is applying, and the actions still collected or
+  queued, or submitted afterwards, fail.
+ */
+
+package server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import devices.DeviceAction;
+import devices.HomeImage;
+import protocol.Log;
+
+public class ActionExecutor {
+
+	//Failure of the actions queued when the executor is shut down
+	private static final IllegalStateException SHUT_DOWN =
+			new IllegalStateException("Server shutting down");
+
+	//Maximum number of actions applied in one group
+	private static final int MAX_BATCH = 256;
+	//Capacity of the action queue of a session, which has one action in flight
+	private static final int CHANNEL_CAPACITY = 4;
+
+	//The connection listener broadcasting the updates
+	private final ConnectListener connectionListener;
+	//Core loops
+	private final Core[] cores;
+	//Time a core keeps collecting actions after the first one of a group
+	private final long windowNanos;
+	//Journal of the changes, null if changes are not journaled
+	private volatile ActionJournal journal;
+
+	/*
+	  Constructs an executor with the given number of cores and batching
+	  window (0 to only group actions already queued), journaling the changes
+	  to the given journal (null for none).
+	 */
+	public ActionExecutor(ConnectListener cl, int numCores,
+			long windowMicros, ActionJournal journal) {
+		this.connectionListener = cl;
+		this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+		this.journal = journal;
+		cores = new Core[Math.max(1, numCores)];
+		for (int i = 0; i < cores.length; i++) {
+			cores[i] = new Core();
+			cores[i].thread = new Thread(cores[i], "iotp-core-" + i);
+			cores[i].thread.setDaemon(true);
+			cores[i].thread.start();
+		}
+	}
+
+	/*
+	  Attaches a session to the core owning the given home.
+	  @return the channel through which the session submits its actions.
+	 */
+	Channel attach(HostedHome hosted) {
+		Channel channel = new Channel(coreOf(hosted));
+		channel.core.channels.add(channel);
+		return channel;
+	}
+
+	//Detaches the given channel from its core
+	void detach(Channel channel) {
+		channel.core.channels.remove(channel);
+	}
+
+	/*
+	  Queues the given action on the core owning the home of the session.
+	  Must only be called by the session thread, with at most one action in
+	  flight.
+	  @param hosted the home to apply the action on.
+	  @param action the action.
+	  @param origin the session of the client that sent the action, which is
+	  not sent the resulting update.
+	  @return a future completed with whether the action changed the state of
+	  the device, or exceptionally if the action failed.
+	 */
+	public CompletableFuture<Boolean> submit(HostedHome hosted,
+			DeviceAction action, ServerCommunication origin) {
+		PendingAction pending = new PendingAction(hosted, action, origin);
+		Channel channel = origin.channel();
+		if (channel == null) {
+			pending.result.completeExceptionally(
+					new IllegalStateException("Session not bound to a home"));
+			return pending.result;
+		}
+		while (!channel.queue.offer(pending)) {
+			if (channel.core.stopped)
+				break;
+			Thread.yield();
+		}
+		channel.core.wake();
+		// the core may have drained its queues for the last time already
+		if (channel.core.stopped)
+			pending.result.completeExceptionally(SHUT_DOWN);
+		return pending.result;
+	}
+
+	/*
+	  Runs the given task on the core owning the given home, between two
+	  groups of actions: the task sees the home with every group applied so
+	  far fully published, shipped and confirmed, and no group in progress.
+	 */
+	void execute(HostedHome hosted, Runnable task) {
+		Core core = coreOf(hosted);
+		core.tasks.add(task);
+		core.wake();
+	}
+	
+	/*
+	  Sets the journal of the changes from now on, when a follower is
+	  promoted.
+	 */
+	void setJournal(ActionJournal journal) {
+		this.journal = journal;
+	}
+	
+	/*
+	  Stops all core loops, and waits for them to finish the group they are
+	  applying. The actions still queued fail.
+	 */
+	public void shutdown() {
+		for (Core core : cores) {
+			core.stop = true;
+			LockSupport.unpark(core.thread);
+		}
+		try {
+			for (Core core : cores)
+				core.thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	//@return the core owning the given home
+	private Core coreOf(HostedHome hosted) {
+		return cores[(hosted.id().hashCode() & 0x7fffffff) % cores.length];
+	}
+
+	/*
+	  Applies a group of actions: actions on the same home are applied in one
+	  pass and journaled, the journal is synced once if any change requires
+	  it, and then the updates of every home are broadcast as one batch and
+	  every action is completed.
+	 */
+	private void applyGroup(List<PendingAction> group) {
+		ActionJournal journal = this.journal;
+		// split by home, keeping arrival order within each home
+		Map<HostedHome, List<PendingAction>> byHome =
+				new IdentityHashMap<HostedHome, List<PendingAction>>();
+		for (PendingAction p : group) {
+			List<PendingAction> l = byHome.get(p.hosted);
+			if (l == null) {
+				l = new ArrayList<PendingAction>();
+				byHome.put(p.hosted, l);
+			}
+			l.add(p);
+		}
+		List<AppliedGroup> applied = new ArrayList<AppliedGroup>(byHome.size());
+		long syncTo = -1;
+		for (Map.Entry<HostedHome, List<PendingAction>> e : byHome.entrySet()) {
+			AppliedGroup a = applyHomeGroup(e.getKey(), e.getValue(), journal);
+			applied.add(a);
+			syncTo = Math.max(syncTo, a.syncTo);
+		}
+		if (syncTo >= 0) {
+			try {
+				journal.sync(syncTo);
+			} catch (IOException e) {
+				journalFailed(e);
+				for (AppliedGroup a : applied) {
+					if (a.syncTo >= 0)
+						a.journalFailure = e;
+				}
+			}
+		}
+		for (AppliedGroup a : applied)
+			publish(a);
+	}
+
+	/*
+	  Applies the actions of one home and journals the changed devices.
+	  @return the applied group, with the journal position to sync to before
+	  it is published, or -1 if it needs no sync.
+	 */
+	private AppliedGroup applyHomeGroup(HostedHome hosted,
+			List<PendingAction> group, ActionJournal journal) {
+		int n = group.size();
+		AppliedGroup a = new AppliedGroup(hosted, group);
+		for (int i = 0; i < n; i++)
+			a.actions[i] = group.get(i).action;
+		// handed off to another cluster node, which now applies its actions
+		if (hosted.movedTo() != null) {
+			a.changed = new boolean[n];
+			for (int i = 0; i < n; i++)
+				a.failures[i] = new IllegalStateException("Home moved to "
+						+ hosted.movedTo());
+			return a;
+		}
+		// a failed journal could not keep the changes
+		if (journal != null && journal.failed()) {
+			a.changed = new boolean[n];
+			for (int i = 0; i < n; i++)
+				a.failures[i] = new IOException("Journal unavailable");
+			return a;
+		}
+		// kept to roll the group back if the journal fails to keep it
+		if (journal != null)
+			a.before = hosted.home().snapshot();
+		a.changed = hosted.home().doActions(a.actions, a.failures);
+		if (journal != null) {
+			try {
+				long end = journal.append(hosted.id(), hosted.home().snapshot(),
+						a.actions, a.changed);
+				if (end >= 0 && journal.requiresSync(a.actions, a.changed))
+					a.syncTo = end;
+			} catch (IOException e) {
+				journalFailed(e);
+				a.journalFailure = e;
+			}
+		}
+		return a;
+	}
+
+	/*
+	  Broadcasts the changes of an applied group and completes its actions.
+	  A group the journal failed to keep is rolled back on its home, so that
+	  neither its state nor its INIT shows the changes, is not broadcast, and
+	  its actions fail.
+	 */
+	private void publish(AppliedGroup a) {
+		HostedHome hosted = a.hosted;
+		int n = a.actions.length;
+		if (a.journalFailure != null) {
+			hosted.home().rollBack(a.before, a.actions, a.changed);
+			for (int i = 0; i < n; i++)
+				a.group.get(i).result.completeExceptionally(a.journalFailure);
+			return;
+		}
+		// broadcast the changes, no-op and failed actions are not broadcast
+		UpdateBatch batch = new UpdateBatch(n);
+		for (int i = 0; i < n; i++) {
+			if (a.changed[i])
+				batch.add(a.actions[i].toUpdate(),
+						a.actions[i].version(), a.group.get(i).origin);
+		}
+		if (batch.size() > 0) {
+			if (Log.isEnabled(Log.DEBUG))
+				Log.debug("Home " + hosted.id() + " state after "
+						+ batch.size() + " action(s):\n"
+						+ hosted.home().toCustomString());
+			connectionListener.broadcast(hosted, batch);
+			if (!hosted.followers().isEmpty()) {
+				byte[] entry = Replicator.entry(hosted.id(), batch);
+				for (Replicator.Link follower : hosted.followers())
+					follower.ship(entry);
+			}
+		}
+
+		// complete the actions
+		for (int i = 0; i < n; i++) {
+			if (a.failures[i] != null)
+				a.group.get(i).result.completeExceptionally(a.failures[i]);
+			else
+				a.group.get(i).result.complete(a.changed[i]);
+		}
+	}
+
+	/*
+	  Logs a journal failure. The changes of the groups the journal did not
+	  keep are rolled back when the groups are published.
+	 */
+	private void journalFailed(IOException e) {
+		if (Log.isEnabled(Log.ERROR))
+			Log.error("Failed journaling actions: " + e.getMessage());
+	}
+
+	//The action queue of a session, attached to the core owning its home
+	static class Channel {
+		final Core core;
+		final SpscQueue<PendingAction> queue =
+				new SpscQueue<PendingAction>(CHANNEL_CAPACITY);
+
+		Channel(Core core) {
+			this.core = core;
+		}
+	}
+
+	//An action waiting to be applied by a core
+	private static class PendingAction {
+		final HostedHome hosted;
+		final DeviceAction action;
+		final ServerCommunication origin;
+		final CompletableFuture<Boolean> result =
+				new CompletableFuture<Boolean>();
+
+		PendingAction(HostedHome hosted, DeviceAction action,
+				ServerCommunication origin) {
+			this.hosted = hosted;
+			this.action = action;
+			this.origin = origin;
+		}
+	}
+
+	//The actions of one home applied by a core, waiting to be published
+	private static class AppliedGroup {
+		final HostedHome hosted;
+		final List<PendingAction> group;
+		final DeviceAction[] actions;
+		final Exception[] failures;
+		boolean[] changed;
+		long syncTo = -1;
+		//Snapshot of the home before the group, null if not journaled
+		HomeImage before;
+		//Failure of the journal to keep the changes, null if kept
+		IOException journalFailure;
+
+		AppliedGroup(HostedHome hosted, List<PendingAction> group) {
+			this.hosted = hosted;
+			this.group = group;
+			this.actions = new DeviceAction[group.size()];
+			this.failures = new Exception[group.size()];
+		}
+	}
+
+	//A core loop, the only writer of the homes it owns
+	private class Core implements Runnable {
+		//Channels of the sessions of the homes owned by the core
+		final CopyOnWriteArrayList<Channel> channels =
+				new CopyOnWriteArrayList<Channel>();
+		//Tasks to run between groups
+		final ConcurrentLinkedQueue<Runnable> tasks =
+				new ConcurrentLinkedQueue<Runnable>();
+		Thread thread;
+		volatile boolean stop = false;
+		//Set once the loop has stopped applying actions
+		volatile boolean stopped = false;
+		//Set while the loop is parked with no pending action
+		volatile boolean idle = false;
+
+		/*
+		  Wakes the loop up if it is parked, called by producers after queuing
+		  an action or a task.
+		 */
+		void wake() {
+			// actions and tasks are published with volatile stores, and the
+			// loop sets idle before rechecking them: one of them sees the other
+			if (idle)
+				LockSupport.unpark(thread);
+		}
+
+		@Override
+		public void run() {
+			List<PendingAction> group = new ArrayList<PendingAction>();
+			long deadline = 0;
+			while (!stop) {
+				runTasks();
+				int drained = drain(group);
+				if (group.isEmpty()) {
+					idle = true;
+					// recheck after announcing idleness to avoid a lost wake-up
+					if (!hasPending() && !stop)
+						LockSupport.park(this);
+					idle = false;
+					continue;
+				}
+				// collect the actions queued within the window, which is only
+				// opened by concurrent actions and closed once none arrives:
+				// a lone action is applied at once
+				long now = System.nanoTime();
+				if (deadline == 0)
+					deadline = now + windowNanos;
+				if (group.size() > 1 && drained > 0 && group.size() < MAX_BATCH
+						&& deadline - now > 0) {
+					LockSupport.parkNanos(deadline - now);
+					continue;
+				}
+				try {
+					applyGroup(group);
+				} catch (RuntimeException e) {
+					for (PendingAction p : group)
+						p.result.completeExceptionally(e);
+				}
+				group.clear();
+				deadline = 0;
+			}
+			// fail the actions collected or queued, and any submitted later
+			stopped = true;
+			for (Channel channel : channels) {
+				PendingAction p;
+				while ((p = channel.queue.poll()) != null)
+					group.add(p);
+			}
+			for (PendingAction p : group)
+				p.result.completeExceptionally(SHUT_DOWN);
+		}
+
+		/*
+		  Moves the queued actions of all channels to the given group.
+		  @return the number of actions moved.
+		 */
+		private int drain(List<PendingAction> group) {
+			int size = group.size();
+			for (Channel channel : channels) {
+				PendingAction p;
+				while (group.size() < MAX_BATCH
+						&& (p = channel.queue.poll()) != null)
+					group.add(p);
+			}
+			return group.size() - size;
+		}
+
+		//Runs the queued tasks
+		private void runTasks() {
+			Runnable task;
+			while ((task = tasks.poll()) != null) {
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					if (Log.isEnabled(Log.ERROR))
+						Log.error("Core task failed: " + e.getMessage());
+				}
+			}
+		}
+		
+		//@return true if any channel has a queued action or a task is queued
+		private boolean hasPending() {
+			if (!tasks.isEmpty())
+				return true;
+			for (Channel channel : channels) {
+				if (!channel.queue.isEmpty())
+					return true;
+			}
+			return false;
+		}
+	}
+}
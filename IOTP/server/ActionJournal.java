@@ -0,0 +1,689 @@
+/*
+  CS544 - Computer Networks
+  Drexel University
+  Protocol Implementation: IoT Home Control Protocol
+  Abhilasha Jayaswal
+
+  File name: ActionJournal.java
+
+  Purpose:
+  Write-ahead journal of the changes applied on the hosted homes. The core
+  loops append the devices changed by every group of actions to the journal
+  before the actions are confirmed, so a confirmed change survives a crash
+  even if its home was never saved back to the home store.
+  Every entry holds the resulting encoded state of the changed devices, not
+  the actions themselves: replaying an entry on a snapshot that already
+  contains it changes nothing, so recovery simply patches every journaled
+  state onto the last snapshot of its home, in journal order.
+  Durability is chosen per device type. Changes of SYNC types are forced to
+  disk before their confirm is sent; concurrent cores share one force (group
+  commit), as a force covers everything written before it. Changes of BATCH
+  types are only written, and forced by a background thread every flush
+  interval. Periodically, and whenever the journal grows past a limit, the
+  homes are saved to the store and the journal prefix they cover is dropped
+  (checkpoint), which bounds the journal replayed at startup. Snapshots are
+  taken from the published home images, so actions are never blocked.
+  A failed write or force fails the journal: appends and syncs fail from
+  then on, so no action is confirmed, until a checkpoint retried every
+  recovery interval saves every home and starts a fresh journal file.
+  Entry layout: [payload length (4), CRC32 of the payload (4), payload], the
+  payload being [home id length, home id (UTF-8), device count,
+  (device type, device number, state and parameters)*], lengths, counts and
+  device numbers as varints. A torn entry at the end of the file ends the
+  journal.
+ */
+
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import devices.DeviceAction;
+import devices.DeviceType;
+import devices.Home;
+import devices.HomeImage;
+import devices.HomeTemplate;
+import devices.IOTDevice;
+import devices.Light;
+import protocol.Authentication;
+import protocol.Log;
+import protocol.Util;
+
+public class ActionJournal {
+
+	//Durability of the changes of a device type
+	public enum Durability {
+		//forced to disk before the action is confirmed
+		SYNC,
+		//written before the action is confirmed, forced within a flush interval
+		BATCH
+	}
+
+	//Length of the entry header: payload length and checksum
+	private static final int HEADER_LENGTH = 8;
+	//Interval of the checkpoints retried to recover a failed journal
+	private static final long RECOVERY_INTERVAL_MS = 1000;
+
+	//The journal file
+	private final File file;
+	//Durability of the changes, by device type
+	private final Durability[] policies;
+	//Interval of the background force of BATCH changes
+	private final long flushIntervalMs;
+	//Journal size past which a checkpoint is taken, 0 to never take one
+	private final long checkpointBytes;
+	//Interval of the periodic checkpoints, 0 for none
+	private final long checkpointIntervalMs;
+
+	/*
+	  Positions are logical: they keep growing across checkpoints, the file
+	  holding the journal from base to written. Both are guarded by the
+	  journal lock; the channel is only replaced holding the sync lock too.
+	 */
+	private FileChannel channel;
+	private long base = 0;
+	private long written;
+	//Position up to which the journal is forced to disk
+	private volatile long synced;
+	//Serializes forces, so that concurrent syncs share one
+	private final Object syncLock = new Object();
+
+	//Background flusher
+	private Thread flusher;
+	private volatile boolean closed = false;
+	//Write or force failure of the journal, null while it works
+	private volatile IOException failure = null;
+
+	//Statistics
+	private final AtomicLong entries = new AtomicLong();
+	private final AtomicLong syncs = new AtomicLong();
+
+	/*
+	  Opens (or creates) the given journal file. Entries already in the file
+	  are kept until recover is called.
+	 */
+	public ActionJournal(File file, Durability[] policies,
+			long flushIntervalMs, long checkpointBytes,
+			long checkpointIntervalMs) throws IOException {
+		this.file = file;
+		this.policies = policies.clone();
+		this.flushIntervalMs = Math.max(1, flushIntervalMs);
+		this.checkpointBytes = checkpointBytes;
+		this.checkpointIntervalMs = checkpointIntervalMs;
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (dir != null)
+			dir.mkdirs();
+		channel = open(file);
+		written = channel.size();
+		synced = written;
+	}
+
+	//@return the default policies: smart locks are forced, the rest batched
+	public static Durability[] defaultPolicies() {
+		Durability[] policies = new Durability[DeviceType.legalValues().length];
+		Arrays.fill(policies, Durability.BATCH);
+		policies[DeviceType.SLOCK.type()] = Durability.SYNC;
+		return policies;
+	}
+
+	/*
+	  @return the default policies overridden by the given comma separated
+	  list of type=policy pairs, e.g. "slock=sync,tv=batch".
+	  @throws IllegalArgumentException on an unknown type or policy.
+	 */
+	public static Durability[] parsePolicies(String spec) {
+		Durability[] policies = defaultPolicies();
+		for (String pair : spec.split(",")) {
+			String[] kv = pair.trim().split("=");
+			if (kv.length != 2)
+				throw new IllegalArgumentException("Expected type=policy: "
+						+ pair);
+			policies[DeviceType.valueOf(kv[0].trim().toUpperCase()).type()] =
+					Durability.valueOf(kv[1].trim().toUpperCase());
+		}
+		return policies;
+	}
+
+	/*
+	  Replays the journal on top of the snapshots of the given store: the
+	  journaled states of every home are patched onto its snapshot, which is
+	  saved back, then the journal is emptied. Must be called before any
+	  entry is appended. A crash during recovery is harmless, the replay is
+	  simply done again.
+	  @return the number of entries replayed.
+	 */
+	public synchronized int recover(HomeStore store) throws Exception {
+		ByteBuffer b = ByteBuffer.allocate((int) (written - base));
+		while (b.hasRemaining() && channel.read(b, b.position()) >= 0) {}
+		b.flip();
+
+		// collect the entries by home, in journal order
+		Map<String, List<byte[]>> byHome = new LinkedHashMap<String, List<byte[]>>();
+		int count = 0;
+		while (b.remaining() >= HEADER_LENGTH) {
+			int length = b.getInt();
+			int crc = b.getInt();
+			if (length < 0 || length > b.remaining())
+				break;
+			byte[] payload = new byte[length];
+			b.get(payload);
+			if (checksum(payload, 0, length) != crc)
+				break;
+			String homeId = homeIdOf(payload);
+			List<byte[]> l = byHome.get(homeId);
+			if (l == null) {
+				l = new ArrayList<byte[]>();
+				byHome.put(homeId, l);
+			}
+			l.add(payload);
+			count++;
+		}
+		if (b.hasRemaining() && Log.isEnabled(Log.WARN))
+			Log.warn("Journal " + file + ": dropped " + b.remaining()
+					+ " bytes of torn or corrupt entries");
+
+		for (Map.Entry<String, List<byte[]>> e : byHome.entrySet()) {
+			byte[] init = store.load(e.getKey()).getInit();
+			for (byte[] payload : e.getValue())
+				replay(payload, init);
+			store.save(e.getKey(), init);
+		}
+		synchronized (syncLock) {
+			channel.truncate(0);
+			channel.force(true);
+			base = written;
+			synced = written;
+		}
+		return count;
+	}
+
+	/*
+	  Starts the background thread forcing BATCH changes every flush interval
+	  and taking checkpoints of the homes of the given registry.
+	 */
+	public synchronized void start(final HomeRegistry homes) {
+		flusher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				long lastCheckpoint = System.currentTimeMillis();
+				while (!closed) {
+					try {
+						Thread.sleep(flushIntervalMs);
+						long now = System.currentTimeMillis();
+						if (failure != null) {
+							// recovered by the first checkpoint taken
+							if (now - lastCheckpoint >= RECOVERY_INTERVAL_MS) {
+								lastCheckpoint = now;
+								checkpoint(homes);
+							}
+							continue;
+						}
+						sync(position());
+						if ((checkpointBytes > 0 && size() > checkpointBytes)
+								|| (checkpointIntervalMs > 0 && size() > 0
+								&& now - lastCheckpoint >= checkpointIntervalMs)) {
+							checkpoint(homes);
+							lastCheckpoint = now;
+						}
+					} catch (InterruptedException e) {
+						return;
+					} catch (IOException e) {
+						if (Log.isEnabled(Log.ERROR))
+							Log.error("Journal " + file + ": " + e.getMessage());
+					}
+				}
+			}
+		}, "iotp-journal");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/*
+	  Appends the devices changed by a group of actions applied on a home,
+	  with their state in the given image of the home, as one entry. A device
+	  changed several times is journaled once, with its final state.
+	  @return the position following the entry, to sync to, or -1 if no
+	  action changed anything.
+	  @throws IOException if the journal failed, now or before.
+	 */
+	public long append(String homeId, HomeImage image, DeviceAction[] actions,
+			boolean[] changed) throws IOException {
+		checkFailure();
+		byte[] id = homeId.getBytes(StandardCharsets.UTF_8);
+		int[] picked = new int[actions.length];
+		int count = 0;
+		int length = Util.varintSize(id.length) + id.length;
+		for (int i = 0; i < actions.length; i++) {
+			if (!changed[i] || changedLater(actions, changed, i))
+				continue;
+			picked[count++] = i;
+			length += 1 + Util.varintSize(actions[i].deviceNumber())
+					+ HomeTemplate.stateLength(actions[i].deviceType());
+		}
+		if (count == 0)
+			return -1;
+		length += Util.varintSize(count);
+
+		byte[] entry = new byte[HEADER_LENGTH + length];
+		int index = Util.writeVarint(entry, HEADER_LENGTH, id.length);
+		System.arraycopy(id, 0, entry, index, id.length);
+		index = Util.writeVarint(entry, index + id.length, count);
+		for (int k = 0; k < count; k++) {
+			DeviceAction action = actions[picked[k]];
+			entry[index++] = action.deviceType();
+			index = Util.writeVarint(entry, index, action.deviceNumber());
+			index = image.copyState(action.deviceType(), action.deviceNumber(),
+					entry, index);
+		}
+		ByteBuffer b = ByteBuffer.wrap(entry);
+		b.putInt(0, length);
+		b.putInt(4, checksum(entry, HEADER_LENGTH, length));
+
+		entries.incrementAndGet();
+		synchronized (this) {
+			checkFailure();
+			try {
+				while (b.hasRemaining())
+					channel.write(b);
+			} catch (IOException e) {
+				throw fail(e);
+			}
+			written += entry.length;
+			return written;
+		}
+	}
+
+	//@return true if the journal failed and did not recover yet
+	public boolean failed() {
+		return failure != null;
+	}
+
+	//@throws IOException if the journal failed and did not recover yet
+	private void checkFailure() throws IOException {
+		IOException e = failure;
+		if (e != null)
+			throw new IOException("Journal failed: " + e);
+	}
+
+	/*
+	  Marks the journal failed with the given error: a torn entry may follow
+	  the last one written, and nothing can be appended after it.
+	  @return the error.
+	 */
+	private IOException fail(IOException e) {
+		if (failure == null && Log.isEnabled(Log.ERROR))
+			Log.error("Journal " + file + " failed, actions are rejected "
+					+ "until it recovers: " + e);
+		failure = e;
+		return e;
+	}
+
+	/*
+	  @return true if any of the changes of the given actions must be forced
+	  to disk before the actions are confirmed.
+	 */
+	public boolean requiresSync(DeviceAction[] actions, boolean[] changed) {
+		for (int i = 0; i < actions.length; i++) {
+			if (changed[i]
+					&& policies[actions[i].deviceType()] == Durability.SYNC)
+				return true;
+		}
+		return false;
+	}
+
+	/*
+	  Forces the journal to disk up to at least the given position. A caller
+	  finding a force in progress waits for it and then only forces if its
+	  entry was written after that force started, so one force commits the
+	  entries of all the cores that appended in the meantime.
+	  @throws IOException if the journal failed, now or before.
+	 */
+	public void sync(long position) throws IOException {
+		checkFailure();
+		if (position <= synced)
+			return;
+		synchronized (syncLock) {
+			checkFailure();
+			if (position <= synced)
+				return;
+			long end = position();
+			try {
+				channel.force(false);
+			} catch (IOException e) {
+				throw fail(e);
+			}
+			syncs.incrementAndGet();
+			synced = end;
+		}
+	}
+
+	/*
+	  Saves the changed homes of the given registry to the store, then drops
+	  the journal entries written before the save started: every change they
+	  hold was applied on its home image before being journaled, so it is in
+	  the saved snapshot. Entries appended meanwhile are kept.
+	  @return true if the checkpoint was taken, false if a home could not be
+	  saved, in which case the journal is kept whole. A checkpoint taken
+	  recovers the journal from the failure seen when it started.
+	 */
+	public boolean checkpoint(HomeRegistry homes) throws IOException {
+		IOException failed = failure;
+		long start = position();
+		if (!homes.saveAll())
+			return false;
+		synchronized (syncLock) {
+			synchronized (this) {
+				// copy the entries to keep aside, and swap the files
+				File tmp = new File(file.getPath() + ".tmp");
+				FileChannel out = FileChannel.open(tmp.toPath(),
+						StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING);
+				try {
+					long from = start - base;
+					long end = written - base;
+					while (from < end)
+						from += channel.transferTo(from, end - from, out);
+					out.force(true);
+				} finally {
+					out.close();
+				}
+				channel.close();
+				Files.move(tmp.toPath(), file.toPath(),
+						StandardCopyOption.REPLACE_EXISTING);
+				channel = open(file);
+				base = start;
+				synced = written;
+			}
+		}
+		if (Log.isEnabled(Log.INFO))
+			Log.info("Journal checkpoint, " + size() + " bytes kept");
+		if (failed != null && failure == failed) {
+			failure = null;
+			if (Log.isEnabled(Log.INFO))
+				Log.info("Journal " + file + " recovered");
+		}
+		return true;
+	}
+
+	/*
+	  Takes a last checkpoint of the given registry and closes the journal.
+	  If a home cannot be saved the journal is kept for the next recovery.
+	 */
+	public void close(HomeRegistry homes) throws IOException {
+		closed = true;
+		if (flusher != null)
+			flusher.interrupt();
+		checkpoint(homes);
+		sync(position());
+		synchronized (this) {
+			channel.close();
+		}
+	}
+
+	//@return the position following the last entry written
+	public synchronized long position() {
+		return written;
+	}
+
+	//@return the size of the journal file
+	public synchronized long size() {
+		return written - base;
+	}
+
+	//@return the number of entries appended
+	public long entryCount() {
+		return entries.get();
+	}
+
+	//@return the number of forces done to sync entries
+	public long syncCount() {
+		return syncs.get();
+	}
+
+	//@return true if the action at the given index is followed by another change of its device
+	private static boolean changedLater(DeviceAction[] actions,
+			boolean[] changed, int i) {
+		for (int j = i + 1; j < actions.length; j++) {
+			if (changed[j] && actions[j].deviceType() == actions[i].deviceType()
+					&& actions[j].deviceNumber() == actions[i].deviceNumber())
+				return true;
+		}
+		return false;
+	}
+
+	//@return the home id of the given entry payload
+	private static String homeIdOf(byte[] payload) {
+		int length = Util.readVarint(payload, 0);
+		return new String(payload, Util.varintSize(length), length,
+				StandardCharsets.UTF_8);
+	}
+
+	//Patches the device states of the given entry payload onto the given INIT
+	private static void replay(byte[] payload, byte[] init) {
+		int idLength = Util.readVarint(payload, 0);
+		int index = Util.varintSize(idLength) + idLength;
+		int count = Util.readVarint(payload, index);
+		index += Util.varintSize(count);
+		for (int k = 0; k < count; k++) {
+			int type = payload[index++];
+			int num = Util.readVarint(payload, index);
+			index += Util.varintSize(num);
+			int length = HomeTemplate.stateLength(type);
+			int offset = stateOffset(init, type, num);
+			// a device missing from the snapshot is not of this home layout
+			if (offset >= 0)
+				System.arraycopy(payload, index, init, offset, length);
+			index += length;
+		}
+	}
+
+	/*
+	  @return the offset of the state of the given device in the given INIT
+	  bytes, or -1 if the home has no such device.
+	 */
+	private static int stateOffset(byte[] init, int deviceType,
+			int deviceNumber) {
+		int index = 1;
+		for (int type = 0; type <= deviceType; type++) {
+			int count = Util.readVarint(init, index);
+			index += Util.varintSize(count);
+			int recordLength = IOTDevice.NAME_LENGTH
+					+ HomeTemplate.stateLength(type);
+			if (type == deviceType)
+				return deviceNumber < count ? index + deviceNumber
+						* recordLength + IOTDevice.NAME_LENGTH : -1;
+			index += count * recordLength;
+		}
+		return -1;
+	}
+
+	//@return the CRC32 of the given bytes
+	private static int checksum(byte[] b, int offset, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(b, offset, length);
+		return (int) crc.getValue();
+	}
+
+	//@return a channel writing at the end of the given file
+	private static FileChannel open(File file) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		channel.position(channel.size());
+		return channel;
+	}
+
+	/*
+	  Main method for testing: applies random actions on a home, journaling
+	  them, simulates a crash (no save, a torn entry at the end) and checks
+	  that recovery restores the confirmed state on top of the old snapshot;
+	  then has several threads append and sync concurrently, comparing the
+	  forces done with the entries committed, and fails a write to check
+	  that the journal rejects entries until a checkpoint recovers it.
+	  Finally serves a home with a journal failing between two actions of a
+	  client, and checks that the failed action is rolled back: the state of
+	  the home and its INIT are those confirmed before the failure.
+	  @param args [number of actions] [number of threads]
+	 */
+	public static void main(String[] args) throws Exception {
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		File dir = Files.createTempDirectory("iotp-journal").toFile();
+		HomeStore store = new FileHomeStore(dir, 4, 3);
+		File journalFile = new File(dir, "journal.log");
+
+		ActionJournal journal = new ActionJournal(journalFile,
+				defaultPolicies(), 50, 0, 0);
+		// the home is served from its mapped snapshot
+		store.save("home", store.load("home").getInit());
+		Home home = store.load("home");
+		home.setSingleWriter();
+		Random rand = new Random(7);
+		for (int step = 0; step < n; step += 8) {
+			DeviceAction[] actions = new DeviceAction[8];
+			for (int i = 0; i < actions.length; i++) {
+				byte[] params = new byte[rand.nextInt(3)];
+				rand.nextBytes(params);
+				actions[i] = new DeviceAction(step + i, (byte) rand.nextInt(5),
+						rand.nextInt(3), (byte) rand.nextInt(4), params);
+			}
+			boolean[] changed = home.doActions(actions,
+					new Exception[actions.length]);
+			long end = journal.append("home", home.snapshot(), actions, changed);
+			if (end >= 0 && journal.requiresSync(actions, changed))
+				journal.sync(end);
+		}
+		// crash: the home is not saved, and the last entry is torn
+		synchronized (journal) {
+			journal.channel.write(ByteBuffer.wrap(new byte[] { 0, 0, 1, 0, 7 }));
+			journal.channel.close();
+		}
+		ActionJournal recovered = new ActionJournal(journalFile,
+				defaultPolicies(), 50, 0, 0);
+		int replayed = recovered.recover(store);
+		System.out.println("replayed " + replayed + " entries, recovered state"
+				+ " equal: " + Arrays.equals(home.getInit(),
+						store.load("home").getInit()) + ", journal size "
+				+ recovered.size());
+		// replaying twice changes nothing
+		System.out.println("second recovery: " + recovered.recover(store)
+				+ " entries, state equal: " + Arrays.equals(home.getInit(),
+						store.load("home").getInit()));
+
+		// group commit: every entry is forced before append returns
+		final ActionJournal shared = recovered;
+		final HomeImage image = home.snapshot();
+		final int perThread = 2000;
+		Thread[] workers = new Thread[threads];
+		long start = System.nanoTime();
+		for (int t = 0; t < threads; t++) {
+			final String homeId = "home-" + t;
+			workers[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					DeviceAction[] actions = { new DeviceAction(0,
+							DeviceType.SLOCK.type(), 0, (byte) 0, new byte[0]) };
+					boolean[] changed = { true };
+					try {
+						for (int i = 0; i < perThread; i++)
+							shared.sync(shared.append(homeId, image, actions,
+									changed));
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			});
+			workers[t].start();
+		}
+		for (Thread w : workers)
+			w.join();
+		long ms = (System.nanoTime() - start) / 1000000;
+		System.out.println(threads + " threads, " + threads * perThread
+				+ " synced entries in " + ms + " ms with "
+				+ recovered.syncCount() + " forces");
+
+		// a failed write fails the journal until a checkpoint recovers it
+		synchronized (recovered) {
+			recovered.channel.close();
+		}
+		DeviceAction[] lock = { new DeviceAction(0, DeviceType.SLOCK.type(),
+				0, (byte) 0, new byte[0]) };
+		boolean[] changed = { true };
+		String failure = "none";
+		try {
+			recovered.append("home-0", image, lock, changed);
+		} catch (IOException e) {
+			failure = e.getClass().getSimpleName();
+		}
+		boolean failed = recovered.failed();
+		boolean rejected = false;
+		try {
+			recovered.sync(recovered.position());
+		} catch (IOException e) {
+			rejected = true;
+		}
+		recovered.checkpoint(new HomeRegistry(store, 1, 0));
+		System.out.println("failed write: " + failure + ", journal failed "
+				+ failed + ", sync rejected " + rejected + ", recovered "
+				+ !recovered.failed() + ", append after recovery at "
+				+ recovered.append("home-0", image, lock, changed));
+		recovered.closed = true;
+		synchronized (recovered) {
+			recovered.channel.close();
+		}
+
+		// a change the journal fails to keep is rolled back on the home
+		String user = "abhi";
+		int port = 9670;
+		ActionJournal served = new ActionJournal(new File(dir, "served.log"),
+				defaultPolicies(), 50, 0, 0);
+		HomeRegistry homes = new HomeRegistry(store, 10, 0);
+		new Thread(new ConnectListener(homes, served, port)).start();
+		Thread.sleep(200);
+		Cluster.TestClient client = testClient(port, user);
+		boolean confirmed = client.act((byte) 40);
+		Home servedHome = homes.loaded(Authentication.homeOf(user)).home();
+		byte[] init = servedHome.getInit();
+		synchronized (served) {
+			served.channel.close();
+		}
+		boolean refused = !client.act((byte) 41);
+		System.out.println("action confirmed " + confirmed + ", action "
+				+ "rejected on journal failure " + refused + ", INIT unchanged "
+				+ Arrays.equals(init, servedHome.getInit()) + ", light level "
+				+ ((Light) servedHome.devices().get(0).get(0)).dimLevel()
+				+ " and in a new INIT " + testClient(port, user).state()
+				+ ", expected 40");
+		for (File f : dir.listFiles())
+			f.delete();
+		dir.delete();
+		System.exit(0);
+	}
+
+	//@return a test client of the given user, retrying failed authentications
+	private static Cluster.TestClient testClient(int port, String user)
+			throws Exception {
+		while (true) {
+			try {
+				return new Cluster.TestClient("127.0.0.1:" + port, user,
+						Authentication.DES_STORE.get(user));
+			} catch (IOException e) {
+				// responses holding a ';' byte fail authentication, retry
+			}
+		}
+	}
+}
@@ -0,0 +1,795 @@
+/*
+  CS544 - Computer Networks
+  Drexel University
+  Protocol Implementation: IoT Home Control Protocol
+  Abhilasha Jayaswal
+
+  File name: Cluster.java
+
+  Purpose:
+  Membership of a server in a cluster of nodes sharing one home store, the
+  homes being spread over the nodes by consistent hashing (see ClusterRing).
+  A node only loads the homes the ring assigns to it; the clients of the
+  other homes are redirected at authentication to the node hosting them.
+  Nodes exchange requests on their peer port, the client port plus
+  PEER_PORT_OFFSET, one request per connection:
+    MEMBERS [version, count, address*]: adopt a newer membership,
+    GET: answer the current membership the same way,
+    RELEASE [home id, new owner]: hand the home off now,
+    JOIN [address], LEAVE [address]: change the membership, coordinator only,
+  each answered by OK once done, JOIN by the new membership.
+  Membership changes are made one at a time by the coordinator, the first
+  member of the ring (see ClusterRing), so that concurrent joins never make
+  two different memberships of the same version. A joining node fetches the
+  membership from a seed and asks its coordinator to add it; a leaving node
+  asks the coordinator to remove it. The coordinator adopts the new
+  membership and sends it to the other nodes, the leaving one included,
+  which hands all its homes off as it adopts it. A node changes the
+  membership itself only when the coordinator is unreachable. On adopting
+  a membership a node hands off the loaded homes it no longer hosts: the
+  core owning the home marks it moved between two groups of actions, so
+  later actions are denied, the home is saved to the store and unloaded,
+  and its clients are redirected to the new node, which loads it from the
+  store. As nodes adopt a change at slightly different times, a node binding
+  a home it did not host in the previous membership first asks the previous
+  host to release it, so a home is never loaded by two nodes at once. The
+  release is asked in the background: a client is only held RELEASE_WAIT_MS
+  for it, then redirected to the previous host, which still hosts the home.
+ */
+
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import devices.DeviceAction;
+import devices.Home;
+import devices.LazyHome;
+import devices.Light;
+import protocol.Authentication;
+import protocol.Log;
+import protocol.Message;
+import protocol.ProtocolFeatures;
+import protocol.Util;
+
+public class Cluster implements HomeStore {
+
+	//Offset of the peer port of a node from its client port
+	public static final int PEER_PORT_OFFSET = 1000;
+	//Time to wait for a peer, which may be handing homes off
+	private static final int PEER_TIMEOUT_MS = 30000;
+	//Time a client waits for the release of its home by its previous host
+	private static final int RELEASE_WAIT_MS = 500;
+
+	// peer requests and answer
+	private static final byte MEMBERS = 1;
+	private static final byte GET = 2;
+	private static final byte RELEASE = 3;
+	private static final byte JOIN = 4;
+	private static final byte LEAVE = 5;
+	private static final byte OK = 0;
+
+	//Client address of this node, as given to redirected clients
+	private final String self;
+	//Store shared by the nodes
+	private final HomeStore local;
+	private ConnectListener listener;
+	private HomeRegistry homes;
+	//Journal of the node, checkpointed after homes are handed off
+	private ActionJournal journal;
+	private volatile ServerSocket peerSocket;
+
+	//Current membership, and the one before it
+	private volatile ClusterRing ring;
+	private volatile ClusterRing previous;
+	/*
+	  Homes released to a node that adopted a membership this node has not
+	  adopted yet, with that node
+	 */
+	private final Map<String, String> released =
+			new ConcurrentHashMap<String, String>();
+	//Homes their previous host released, for the current membership
+	private volatile Set<String> settled = newSet();
+	//Releases asked to the previous hosts of homes, by home id
+	private final Map<String, CompletableFuture<Void>> releasing =
+			new ConcurrentHashMap<String, CompletableFuture<Void>>();
+	//Lock of the membership changes made by this node
+	private final Object changes = new Object();
+
+	/*
+	  Constructs a cluster node with the given client address ("host:port"),
+	  loading the homes it hosts from the given shared store.
+	 */
+	public Cluster(String self, HomeStore local) {
+		this.self = self;
+		this.local = local;
+	}
+
+	/*
+	  Joins the cluster through the first reachable of the given seed nodes,
+	  or starts a new cluster if there is none, and starts answering peers.
+	  @param journal the journal of the node, null if none.
+	 */
+	public void start(ConnectListener listener, HomeRegistry homes,
+			ActionJournal journal, List<String> seeds) throws IOException {
+		this.listener = listener;
+		this.homes = homes;
+		this.journal = journal;
+		peerSocket = new ServerSocket(peerPort(self));
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+		}, "iotp-cluster");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		ClusterRing current = null;
+		for (String seed : seeds) {
+			if (seed.equals(self))
+				continue;
+			try {
+				current = call(seed, GET, null);
+				break;
+			} catch (IOException e) {
+				if (Log.isEnabled(Log.WARN))
+					Log.warn("Seed " + seed + " unreachable: " + e.getMessage());
+			}
+		}
+		if (current == null)
+			current = new ClusterRing(0, new ArrayList<String>());
+		// this node hosts nothing yet, the others hand off as they adopt
+		ring = current;
+		listener.join(this);
+		ClusterRing next = null;
+		String coordinator = current.coordinator();
+		if (coordinator != null) {
+			try {
+				next = call(coordinator, JOIN, self);
+			} catch (IOException e) {
+				if (Log.isEnabled(Log.WARN))
+					Log.warn("Cluster coordinator " + coordinator
+							+ " unreachable: " + e.getMessage());
+			}
+		}
+		if (next != null)
+			adopt(next);
+		else
+			next = change(self, true);
+		System.out.println(Util.dateTime() + " -- Cluster node " + self
+				+ " joined " + next);
+	}
+
+	/*
+	  Leaves the cluster: hands every home off to the remaining nodes,
+	  redirecting their clients, and tells them.
+	 */
+	public void leave() {
+		ClusterRing r = ring;
+		if (r == null || !r.contains(self))
+			return;
+		String coordinator = r.coordinator();
+		boolean left = false;
+		if (!coordinator.equals(self)) {
+			try {
+				call(coordinator, LEAVE, self);
+				left = !ring.contains(self);
+			} catch (IOException e) {
+				if (Log.isEnabled(Log.WARN))
+					Log.warn("Cluster coordinator " + coordinator
+							+ " unreachable: " + e.getMessage());
+			}
+		}
+		if (!left)
+			change(self, false);
+		try {
+			peerSocket.close();
+		} catch (IOException e) {
+			// closing anyway
+		}
+		System.out.println(Util.dateTime() + " -- Cluster node " + self
+				+ " left");
+	}
+
+	//@return the current membership
+	public ClusterRing ring() {
+		return ring;
+	}
+
+	/*
+	  @return the client address of the node hosting the home with the given
+	  id, or null if this node hosts it. A home this node did not host in the
+	  previous membership is first released by its previous host.
+	 */
+	public String route(String homeId) {
+		String moved = released.get(homeId);
+		if (moved != null)
+			return moved;
+		ClusterRing r = ring;
+		Set<String> s = settled;
+		String owner = r.owner(homeId);
+		if (!self.equals(owner))
+			return owner;
+		ClusterRing p = previous;
+		if (p != null && !s.contains(homeId)) {
+			String before = p.owner(homeId);
+			// the previous host keeps the home until it released it
+			if (before != null && !before.equals(self)
+					&& !awaitRelease(homeId, before))
+				return before;
+			s.add(homeId);
+		}
+		return null;
+	}
+
+	/*
+	  Asks the given previous host to release the home with the given id,
+	  unless already asked, and waits at most RELEASE_WAIT_MS for it.
+	  @return true once released, false if the release is still running.
+	 */
+	private boolean awaitRelease(final String homeId, final String before) {
+		CompletableFuture<Void> release = releasing.get(homeId);
+		if (release == null) {
+			final CompletableFuture<Void> asked = new CompletableFuture<Void>();
+			release = releasing.putIfAbsent(homeId, asked);
+			if (release == null) {
+				release = asked;
+				Thread t = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							call(before, RELEASE, homeId);
+						} catch (IOException e) {
+							// the previous host left, handing its homes off first
+							if (Log.isEnabled(Log.DEBUG))
+								Log.debug("Previous host " + before
+										+ " of home " + homeId
+										+ " unreachable: " + e.getMessage());
+						}
+						releasing.remove(homeId, asked);
+						asked.complete(null);
+					}
+				}, "iotp-cluster-release");
+				t.setDaemon(true);
+				t.start();
+			}
+		}
+		try {
+			release.get(RELEASE_WAIT_MS, TimeUnit.MILLISECONDS);
+			return true;
+		} catch (TimeoutException e) {
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (ExecutionException e) {
+			return true;
+		}
+	}
+
+	//Loads the given home from the shared store, if this node hosts it
+	@Override
+	public Home load(String homeId) throws Exception {
+		String moved = released.get(homeId);
+		String owner = moved != null ? moved : ring.owner(homeId);
+		if (!self.equals(owner))
+			throw new IOException("Home " + homeId + " is hosted on " + owner);
+		return local.load(homeId);
+	}
+
+	@Override
+	public void save(String homeId, byte[] init) throws Exception {
+		local.save(homeId, init);
+	}
+
+	@Override
+	public void release(String homeId) {
+		local.release(homeId);
+	}
+
+	/*
+	  Adopts the given membership if newer than the current one, handing off
+	  the homes this node no longer hosts.
+	  @return true if adopted.
+	 */
+	private synchronized boolean adopt(ClusterRing r) {
+		ClusterRing current = ring;
+		if (current != null && r.version() <= current.version()
+				&& current.contains(self))
+			return false;
+		previous = current;
+		ring = r;
+		settled = newSet();
+		released.clear();
+		if (Log.isEnabled(Log.INFO))
+			Log.info("Cluster membership " + r);
+		boolean handedOff = false;
+		for (String homeId : homes.ids()) {
+			String owner = r.owner(homeId);
+			// the last node leaving keeps its homes, saved on terminate
+			if (owner == null || owner.equals(self))
+				continue;
+			handOff(homeId, owner);
+			handedOff = true;
+		}
+		// the journaled changes of the homes handed off must not be replayed
+		if (handedOff && journal != null) {
+			try {
+				journal.checkpoint(homes);
+			} catch (IOException e) {
+				if (Log.isEnabled(Log.ERROR))
+					Log.error("Journal checkpoint failed: " + e.getMessage());
+			}
+		}
+		return true;
+	}
+
+	/*
+	  Hands the given home off to the given node: once the core owning it
+	  has marked it moved, saves and unloads it and redirects its clients.
+	 */
+	private void handOff(String homeId, String owner) {
+		final HostedHome hosted = homes.loaded(homeId);
+		if (hosted == null) {
+			// compact or not loaded, in sync with the store
+			homes.drop(homeId);
+			return;
+		}
+		final String to = owner;
+		final CountDownLatch marked = new CountDownLatch(1);
+		listener.executor().execute(hosted, new Runnable() {
+			@Override
+			public void run() {
+				hosted.moveTo(to);
+				marked.countDown();
+			}
+		});
+		try {
+			marked.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (!homes.drop(homeId) && Log.isEnabled(Log.ERROR))
+			Log.error("Home " + homeId + " handed off to " + owner
+					+ " without its unsaved changes");
+		for (ServerCommunication session : hosted.sessions())
+			session.redirect(owner);
+		listener.closeObservers(hosted, owner);
+		if (Log.isEnabled(Log.INFO))
+			Log.info("Home " + homeId + " handed off to " + owner + " ("
+					+ hosted.sessions().size() + " sessions redirected)");
+	}
+
+	/*
+	  Adds the given node to the membership, or removes it, adopts the new
+	  membership and sends it to the other nodes, the removed one included.
+	  Changes are made one at a time.
+	  @return the membership once changed.
+	 */
+	private ClusterRing change(String member, boolean join) {
+		synchronized (changes) {
+			ClusterRing r = ring;
+			if (r.contains(member) == join)
+				return r;
+			ClusterRing next = join ? r.with(member) : r.without(member);
+			adopt(next);
+			List<String> to = next.members();
+			if (!join)
+				to.add(member);
+			broadcast(next, to);
+			return next;
+		}
+	}
+
+	/*
+	  Adds the given node to the membership, or removes it, if this node is
+	  the coordinator, otherwise has the coordinator do it.
+	  @return the membership once changed.
+	 */
+	private ClusterRing coordinate(String member, boolean join)
+			throws IOException {
+		String coordinator = ring.coordinator();
+		if (coordinator == null || coordinator.equals(self))
+			return change(member, join);
+		ClusterRing next = call(coordinator, join ? JOIN : LEAVE, member);
+		return next != null ? next : ring;
+	}
+
+	//Sends the given membership to the given nodes, which adopt it
+	private void broadcast(ClusterRing r, List<String> to) {
+		for (String member : to) {
+			if (member.equals(self))
+				continue;
+			try {
+				call(member, MEMBERS, r);
+			} catch (IOException e) {
+				if (Log.isEnabled(Log.WARN))
+					Log.warn("Cluster node " + member + " unreachable: "
+							+ e.getMessage());
+			}
+		}
+	}
+
+	//Accepts peer requests until the peer socket is closed
+	private void accept() {
+		try {
+			while (true) {
+				final Socket s = peerSocket.accept();
+				Thread t = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						serve(s);
+					}
+				}, "iotp-cluster-peer");
+				t.setDaemon(true);
+				t.start();
+			}
+		} catch (SocketException e) {
+			// closed
+		} catch (IOException e) {
+			if (Log.isEnabled(Log.ERROR))
+				Log.error("Cluster peer port failed: " + e.getMessage());
+		}
+	}
+
+	//Answers one peer request
+	private void serve(Socket s) {
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					s.getInputStream()));
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(s.getOutputStream()));
+			byte kind = in.readByte();
+			if (kind == GET)
+				writeRing(out, ring);
+			else if (kind == JOIN)
+				writeRing(out, coordinate(in.readUTF(), true));
+			else if (kind == LEAVE) {
+				coordinate(in.readUTF(), false);
+				out.writeByte(OK);
+			}
+			else if (kind == MEMBERS) {
+				adopt(readRing(in));
+				out.writeByte(OK);
+			} else if (kind == RELEASE) {
+				String homeId = in.readUTF();
+				String owner = in.readUTF();
+				// the new host adopted a membership this node has not yet
+				if (self.equals(ring.owner(homeId)))
+					released.put(homeId, owner);
+				handOff(homeId, owner);
+				out.writeByte(OK);
+			} else
+				throw new IOException("Unexpected peer request " + kind);
+			out.flush();
+		} catch (IOException e) {
+			if (Log.isEnabled(Log.WARN))
+				Log.warn("Cluster peer request failed: " + e.getMessage());
+		} finally {
+			try {
+				s.close();
+			} catch (IOException e) {
+				// closing anyway
+			}
+		}
+	}
+
+	/*
+	  Sends a request to the given node and waits for its answer.
+	  @param arg the membership of a MEMBERS request, the home id of a
+	  RELEASE request, the address of a JOIN or LEAVE request.
+	  @return the membership answered to a GET or JOIN request, null
+	  otherwise.
+	 */
+	private ClusterRing call(String member, byte kind, Object arg)
+			throws IOException {
+		Socket s = new Socket();
+		try {
+			int sep = member.lastIndexOf(':');
+			s.connect(new InetSocketAddress(member.substring(0, sep),
+					peerPort(member)), PEER_TIMEOUT_MS);
+			s.setSoTimeout(PEER_TIMEOUT_MS);
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(s.getOutputStream()));
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					s.getInputStream()));
+			out.writeByte(kind);
+			if (kind == MEMBERS)
+				writeRing(out, (ClusterRing) arg);
+			else if (kind == RELEASE) {
+				out.writeUTF((String) arg);
+				out.writeUTF(self);
+			}
+			else if (kind == JOIN || kind == LEAVE)
+				out.writeUTF((String) arg);
+			out.flush();
+			if (kind == GET || kind == JOIN)
+				return readRing(in);
+			if (in.readByte() != OK)
+				throw new IOException("Request refused by " + member);
+			return null;
+		} finally {
+			s.close();
+		}
+	}
+
+	private static void writeRing(DataOutputStream out, ClusterRing r)
+			throws IOException {
+		List<String> members = r.members();
+		out.writeLong(r.version());
+		out.writeInt(members.size());
+		for (String member : members)
+			out.writeUTF(member);
+	}
+
+	private static ClusterRing readRing(DataInputStream in) throws IOException {
+		long version = in.readLong();
+		List<String> members = new ArrayList<String>();
+		for (int i = in.readInt(); i > 0; i--)
+			members.add(in.readUTF());
+		return new ClusterRing(version, members);
+	}
+
+	//@return the peer port of the node with the given client address
+	private static int peerPort(String address) {
+		return Integer.parseInt(address.substring(address.lastIndexOf(':') + 1))
+				+ PEER_PORT_OFFSET;
+	}
+
+	private static Set<String> newSet() {
+		return Collections.newSetFromMap(
+				new ConcurrentHashMap<String, Boolean>());
+	}
+
+	/*
+	  Main method for testing: starts cluster nodes on localhost ports over
+	  one shared store, redirects a client to the node hosting its home, and
+	  checks that the home and its state follow the membership as nodes join
+	  and leave, and that nodes joining at once end up with one membership.
+	  Also reports how evenly homes are spread and how many move when a node
+	  joins.
+	  Arguments: [homes] (default 10000), the number of homes of the spread
+	  check.
+	 */
+	public static void main(String[] args) throws Exception {
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		Log.setLevel(Log.ERROR);
+		final File store = Files.createTempDirectory("iotp-cluster").toFile();
+		int basePort = 9170;
+
+		// spread of the homes and moves on join
+		List<String> members = new ArrayList<String>();
+		for (int i = 0; i < 3; i++)
+			members.add("127.0.0.1:" + (basePort + i));
+		ClusterRing three = new ClusterRing(1, members);
+		ClusterRing four = three.with("127.0.0.1:" + (basePort + 3));
+		Map<String, Integer> spread = new HashMap<String, Integer>();
+		int moved = 0, movedElsewhere = 0;
+		for (int i = 0; i < n; i++) {
+			String id = "home" + i;
+			String before = three.owner(id);
+			String after = four.owner(id);
+			Integer c = spread.get(before);
+			spread.put(before, c == null ? 1 : c + 1);
+			if (!before.equals(after)) {
+				moved++;
+				if (!after.equals("127.0.0.1:" + (basePort + 3)))
+					movedElsewhere++;
+			}
+		}
+		System.out.println("spread of " + n + " homes over 3 nodes: " + spread);
+		System.out.printf("moved when a 4th node joins: %.1f%% (ideal 25%%),"
+				+ " %d not to the new node%n", moved * 100.0 / n, movedElsewhere);
+
+		// two nodes, then a client redirected to the host of its home
+		String user = "abhi";
+		String homeId = Authentication.homeOf(user);
+		Cluster a = startNode(store, basePort, new ArrayList<String>());
+		Cluster b = startNode(store, basePort + 1,
+				Arrays.asList("127.0.0.1:" + basePort));
+		System.out.println("membership on both nodes equal: "
+				+ a.ring().toString().equals(b.ring().toString()) + " "
+				+ a.ring());
+		String host = a.ring().owner(homeId);
+		String other = host.equals(a.self) ? b.self : a.self;
+		TestClient c = new TestClient(other, user, "abhi1234");
+		System.out.println("client of home " + homeId + " at " + other
+				+ " redirected to " + c.redirect + " (host " + host + ")");
+		c = new TestClient(c.redirect, user, "abhi1234");
+		byte[] init = c.init;
+		System.out.println("INIT received from " + c.address + ": "
+				+ (init != null && init[0] == Message.KEY_INITIAL));
+		byte state = (byte) (System.nanoTime() & 0x3f);
+		System.out.println("action on " + c.address + " confirmed: "
+				+ c.act(state));
+
+		// a third node taking the home over joins: the client follows it
+		int port = basePort + 2;
+		while (!a.ring().with("127.0.0.1:" + port).owner(homeId)
+				.equals("127.0.0.1:" + port))
+			port++;
+		Cluster d = startNode(store, port,
+				Arrays.asList("127.0.0.1:" + basePort));
+		String newHost = d.ring().owner(homeId);
+		String to = c.awaitRedirect();
+		System.out.println("node " + d.self + " joined, " + d.ring()
+				+ ", live client of home " + homeId + " redirected to " + to);
+		c = new TestClient(to, user, "abhi1234");
+
+		// the host of the home leaves: the client follows the home again
+		Cluster leaving = newHost.equals(a.self) ? a
+				: newHost.equals(b.self) ? b : d;
+		leaving.leave();
+		to = c.awaitRedirect();
+		Cluster survivor = leaving == a ? b : a;
+		System.out.println("host " + newHost + " left, client redirected to "
+				+ to + ", membership " + survivor.ring());
+		c = new TestClient(to, user, "abhi1234");
+		System.out.println("state kept across handoffs: "
+				+ (c.state() == state));
+
+		// two nodes joining at once get one membership with both
+		final List<Cluster> nodes = Collections.synchronizedList(
+				new ArrayList<Cluster>());
+		for (Cluster node : new Cluster[] { a, b, d }) {
+			if (node != leaving)
+				nodes.add(node);
+		}
+		final String seed = survivor.self;
+		Thread[] joins = new Thread[2];
+		for (int i = 0; i < joins.length; i++) {
+			final int joinPort = basePort + 10 + i;
+			joins[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						nodes.add(startNode(store, joinPort,
+								Arrays.asList(seed)));
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			});
+			joins[i].start();
+		}
+		for (Thread t : joins)
+			t.join();
+		boolean same = true;
+		for (Cluster node : nodes)
+			same &= node.ring().toString().equals(survivor.ring().toString());
+		System.out.println("concurrent joins, same membership on all "
+				+ nodes.size() + " nodes: " + same + " " + survivor.ring());
+		System.exit(0);
+	}
+
+	//Starts a node with a listener on the given port, joining the given seeds
+	private static Cluster startNode(File store, int port, List<String> seeds)
+			throws Exception {
+		String address = "127.0.0.1:" + port;
+		Cluster cluster = new Cluster(address, new FileHomeStore(store, 4, 3));
+		HomeRegistry homes = new HomeRegistry(cluster, 100, 100);
+		ConnectListener listener = new ConnectListener(homes, null, port);
+		new Thread(listener).start();
+		cluster.start(listener, homes, null, seeds);
+		Thread.sleep(200);
+		return cluster;
+	}
+
+	//A client of the testing mains, acting on the first light of its home
+	static class TestClient {
+		final String address;
+		final BufferedReader br;
+		final BufferedWriter bw;
+		//INIT received, or null if redirected
+		byte[] init;
+		//Address the client was redirected to, or null
+		String redirect;
+		int seq = 0;
+
+		TestClient(String address, String user, String password)
+				throws Exception {
+			this.address = address;
+			int sep = address.lastIndexOf(':');
+			Socket s = new Socket(address.substring(0, sep),
+					Integer.parseInt(address.substring(sep + 1)));
+			s.setSoTimeout(PEER_TIMEOUT_MS);
+			br = new BufferedReader(new InputStreamReader(s.getInputStream()));
+			bw = new BufferedWriter(new OutputStreamWriter(s.getOutputStream()));
+			Message.PING.write(bw);
+			br.readLine();
+			new Message(ProtocolFeatures.CLUSTERED.version().getBytes(),
+					Message.KEY_VERSION).write(bw);
+			Message challenge = Message.fromHexString(br.readLine());
+			new Message(Authentication.generateUserResponse(user, password,
+					challenge.contentBytes()), Message.KEY_RESPONSE).write(bw);
+			Message m = Message.fromHexString(br.readLine());
+			if (m.keycode() == Message.KEY_ERROR)
+				throw new IOException("Server error: " + m.content());
+			if (m.keycode() == Message.KEY_REDIRECT)
+				redirect = m.content();
+			else {
+				// a single INIT, assembled from its chunks
+				Home home = null;
+				while (m.keycode() == Message.KEY_INIT_CHUNK) {
+					if (home == null)
+						home = new LazyHome();
+					if (home.addInitChunk(m))
+						break;
+					m = Message.fromHexString(br.readLine());
+				}
+				init = home != null ? home.getInit() : m.bytes();
+			}
+		}
+
+		/*
+		  Turns the first light on, if off, and dims it to the given level.
+		  @return true if the dim action was confirmed.
+		 */
+		boolean act(byte level) throws IOException {
+			send(new DeviceAction(++seq, (byte) 0, 0, (byte) 0, new byte[0]));
+			return send(new DeviceAction(++seq, (byte) 0, 0, (byte) 2,
+					new byte[] { level }));
+		}
+
+		//@return true if the given action was confirmed
+		private boolean send(DeviceAction action) throws IOException {
+			action.toMessage().write(bw);
+			while (true) {
+				Message m = Message.fromHexString(br.readLine());
+				if (m.keycode() == Message.KEY_CONFIRM)
+					return Message.confirmAccepted(m);
+			}
+		}
+
+		//@return the dim level of the first light in the INIT
+		byte state() {
+			return ((Light) Home.createHomeFromInit(new Message(init))
+					.devices().get(0).get(0)).dimLevel();
+		}
+
+		//@return the address of the redirect received next
+		String awaitRedirect() throws IOException {
+			while (true) {
+				Message m = Message.fromHexString(br.readLine());
+				if (m.keycode() == Message.KEY_REDIRECT)
+					return m.content();
+			}
+		}
+
+		//@return the update or update batch received next
+		Message awaitUpdate() throws IOException {
+			while (true) {
+				Message m = Message.fromHexString(br.readLine());
+				if (m.keycode() == Message.KEY_UPDATE
+						|| m.keycode() == Message.KEY_UPDATE_BATCH)
+					return m;
+			}
+		}
+	}
+}
@@ -0,0 +1,138 @@
+/*
+  CS544 - Computer Networks
+  Drexel University
+  Protocol Implementation: IoT Home Control Protocol
+  Abhilasha Jayaswal
+
+  File name: ClusterRing.java
+
+  Purpose:
+  Immutable consistent hash ring of the nodes of a cluster, telling which
+  node hosts a home. Every node is placed at VIRTUAL_NODES points of a 64 bit
+  ring, hashed from its address, and a home is hosted by the node of the
+  first point following the hash of its id. Adding or removing a node only
+  moves the homes between the points of that node and their predecessors,
+  about 1/N of the homes, and every node computes the same owners from the
+  same members. Rings carry a version, incremented on every membership
+  change, so nodes only adopt newer memberships. The changes are made one at
+  a time by the coordinator of the ring, its first member, so two nodes never
+  make different rings of the same version.
+ */
+
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+public final class ClusterRing {
+
+	//Number of points of every node on the ring
+	static final int VIRTUAL_NODES = 64;
+
+	//Version of the membership
+	private final long version;
+	//Addresses of the members, sorted
+	private final String[] members;
+	//Points of the ring, sorted, and the member owning each
+	private final long[] points;
+	private final String[] owners;
+
+	/*
+	  Constructs the ring of the given member addresses ("host:port" of their
+	  client port) with the given membership version.
+	 */
+	public ClusterRing(long version, List<String> members) {
+		this.version = version;
+		this.members = new TreeSet<String>(members).toArray(new String[0]);
+		// sorted points, the rare colliding points kept once
+		TreeMap<Long, String> ring = new TreeMap<Long, String>();
+		for (String member : this.members) {
+			for (int i = 0; i < VIRTUAL_NODES; i++)
+				ring.put(hash(member + "#" + i), member);
+		}
+		points = new long[ring.size()];
+		owners = new String[ring.size()];
+		int n = 0;
+		for (Map.Entry<Long, String> e : ring.entrySet()) {
+			points[n] = e.getKey();
+			owners[n++] = e.getValue();
+		}
+	}
+
+	/*
+	  @return the address of the node hosting the home with the given id, or
+	  null if the ring has no members.
+	 */
+	public String owner(String homeId) {
+		if (points.length == 0)
+			return null;
+		int i = Arrays.binarySearch(points, hash(homeId));
+		if (i < 0)
+			i = -i - 1;
+		return owners[i == points.length ? 0 : i];
+	}
+
+	//@return a ring with the given member added, one version later
+	public ClusterRing with(String member) {
+		List<String> l = members();
+		if (!l.contains(member))
+			l.add(member);
+		return new ClusterRing(version + 1, l);
+	}
+
+	//@return a ring with the given member removed, one version later
+	public ClusterRing without(String member) {
+		List<String> l = members();
+		l.remove(member);
+		return new ClusterRing(version + 1, l);
+	}
+
+	/*
+	  @return the address of the member making the membership changes, the
+	  first one, or null if the ring has no members.
+	 */
+	public String coordinator() {
+		return members.length == 0 ? null : members[0];
+	}
+
+	//@return true if the given address is a member of the ring
+	public boolean contains(String member) {
+		return Arrays.binarySearch(members, member) >= 0;
+	}
+
+	//@return a new list of the member addresses, sorted
+	public List<String> members() {
+		return new ArrayList<String>(Arrays.asList(members));
+	}
+
+	public long version() {
+		return version;
+	}
+
+	@Override
+	public String toString() {
+		return "v" + version + " " + Arrays.toString(members);
+	}
+
+	//@return the position of the given key on the ring
+	private static long hash(String key) {
+		try {
+			byte[] d = MessageDigest.getInstance("MD5").digest(
+					key.getBytes(StandardCharsets.UTF_8));
+			long h = 0;
+			for (int i = 0; i < 8; i++)
+				h = (h << 8) | (d[i] & 0xff);
+			return h;
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform provides MD5
+			throw new IllegalStateException(e);
+		}
+	}
+}
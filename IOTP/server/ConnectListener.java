@@ -8,7 +8,19 @@
   
   Purpose:
   Handles multiple connections to clients, by maintaining a list of ServerCommunication
-  and listening to incoming connections from clients.
+  and listening to incoming connections from clients. Every connection is
+  bound to its home in the home registry once authenticated, and updates are
+  only broadcast to the connections of the same home.
+  A follower server is read-only: its sessions receive the INIT and updates
+  of the replicated homes, and their actions are rejected until promotion.
+  A cluster node only binds the homes the cluster assigns to it, and
+  redirects the other clients to the node hosting their home.
+  A relay server holds the homes of another server, and forwards the actions
+  of its sessions there.
+  Updates are also handed to the read-only observers of the homes, served
+  without a thread each (see ObserverListener).
+  Gateways may carry many sessions over one multiplexed transport connection
+  (see MuxListener); these sessions are listed with the others.
  */
 
 package server;
@@ -24,7 +36,6 @@ import protocol.Util;
 import protocol.*;
 
 
-import devices.Home;
 
 public class ConnectListener implements Runnable {
 	
@@ -35,19 +46,61 @@ public class ConnectListener implements Runnable {
 			new ConcurrentSkipListSet<ServerCommunication>();
 	//Flag to mark terminate
 	private volatile boolean terminate = false;
-	//Home maintained by the server
-	private Home home;
+	//Port the listener accepts clients on
+	private final int port;
+	//Homes hosted by the server
+	private final HomeRegistry homes;
+	//Journal of the changes applied on the homes, null if none
+	private volatile ActionJournal journal;
+	//Replicator of the changes to followers, null if none
+	private volatile Replicator replicator;
+	//Primary followed, null if none or once promoted
+	private volatile Follower follower;
+	//Whether actions are rejected, while following a primary
+	private volatile boolean readOnly = false;
+	//Cluster the server is a node of, null if none
+	private volatile Cluster cluster;
+	//Relay to the server holding the homes, null if none
+	private volatile Relay relay;
+	//Listener of the observers of the homes, null if none
+	private volatile ObserverListener observers;
+	//Listener of the multiplexed transports of gateways, null if none
+	private volatile MuxListener mux;
+	//Executor applying the actions of all connections, one core per home
+	private final ActionExecutor executor;
 	
-	//Constructs a new connection listener with the given attached home.
-	public ConnectListener(Home home) {
-		this.home = home;
+	//Constructs a new connection listener with the given home registry.
+	public ConnectListener(HomeRegistry homes) {
+		this(homes, null);
+	}
+	
+	/*
+	  Constructs a new connection listener with the given home registry,
+	  journaling the applied changes to the given journal (null for none).
+	 */
+	public ConnectListener(HomeRegistry homes, ActionJournal journal) {
+		this(homes, journal, Server.port);
+	}
+	
+	/*
+	  Constructs a new connection listener accepting clients on the given
+	  port, with the given home registry and journal (null for none).
+	 */
+	public ConnectListener(HomeRegistry homes, ActionJournal journal,
+			int port) {
+		this.port = port;
+		this.homes = homes;
+		this.journal = journal;
+		this.executor = new ActionExecutor(this,
+				Runtime.getRuntime().availableProcessors(),
+				Server.actionBatchWindowUs, journal);
 	}
 	
 	@Override
 	public void run() {
 		try {
 			// initialize listen socket
-			ServerSocket servSocket = new ServerSocket(Server.DEFAULT_PORT);
+			ServerSocket servSocket = new ServerSocket(port);
 			servSocket.setSoTimeout(Server.LISTEN_TIMEOUT_MS);
 			System.out.println(Util.dateTime() + " -- Server started\n");
 			
@@ -71,10 +124,28 @@ public class ConnectListener implements Runnable {
 						// process terminate
 						if (terminate) {
 							servSocket.close();
+							if (observers != null)
+								observers.close();
+							// hand the homes off, redirecting their clients
+							if (cluster != null)
+								cluster.leave();
 							// close all open connections
 							for (ServerCommunication sc: sList)
 								sc.markterminate();
 							while (!sList.isEmpty()) {}
+							if (mux != null)
+								mux.close();
+							if (relay != null)
+								relay.close();
+							if (follower != null)
+								follower.close();
+							if (replicator != null)
+								replicator.close();
+							executor.shutdown();
+							if (journal != null)
+								journal.close(homes);
+							else
+								homes.saveAll();
 							return;
 						}
 					}
@@ -82,17 +153,17 @@ public class ConnectListener implements Runnable {
 				// initialize server communication handler from accepted
 				// connection and launch it
 				ServerCommunication serverComm = new ServerCommunication(
-						ID_COUNTER++,
+						nextId(),
 						this,
 						commSocket,
-						new ProtocolServerDFA(home, this));
+						new ProtocolServerDFA(this));
 				sList.add(serverComm);
 				Thread thread = new Thread(serverComm);
 				thread.start();
 			}
 		}
 		catch (BindException e) {
-			System.out.println("Port " + Server.DEFAULT_PORT + " already bound");
+			System.out.println("Port " + port + " already bound");
 			System.out.println("Cannot start RSHC server");
 		}
 		catch (Exception e) {
@@ -100,6 +171,16 @@ public class ConnectListener implements Runnable {
 		}
 	}
 	
+	//@return a new unique identifier of a client session
+	static synchronized int nextId() {
+		return ID_COUNTER++;
+	}
+	
+	//Adds the given session, carried by a multiplexed transport
+	void add(ServerCommunication serverComm) {
+		sList.add(serverComm);
+	}
+	
 	/*
 	  Raises the terminate flag, such that on the next terminate check the
 	  connection will terminate.
@@ -108,25 +189,116 @@ public class ConnectListener implements Runnable {
 		terminate = true;
 	}
 
+	//@return the executor applying client actions on the homes
+	public ActionExecutor executor() {
+		return executor;
+	}
+	
+	//@return the registry of the homes hosted by the server
+	public HomeRegistry homes() {
+		return homes;
+	}
+	
+	//@return true if the actions of the sessions are rejected
+	public boolean readOnly() {
+		return readOnly;
+	}
+	
+	//Makes the server read-only, serving the homes replicated by the given follower
+	void follow(Follower follower) {
+		this.follower = follower;
+		this.readOnly = true;
+	}
+	
+	//@return the relay forwarding the actions of the sessions, null if none
+	public Relay relay() {
+		return relay;
+	}
+	
+	//Makes the server a relay, forwarding actions with the given relay
+	void relayThrough(Relay relay) {
+		this.relay = relay;
+	}
+	
+	//Hands the updates of the homes to the given observers too
+	void observeWith(ObserverListener observers) {
+		this.observers = observers;
+	}
+	
+	//Accepts the multiplexed sessions of gateways with the given listener
+	void multiplexWith(MuxListener mux) {
+		this.mux = mux;
+	}
+	
+	/*
+	  Disconnects the observers of the given home once it is no longer
+	  served, redirecting them to the given cluster node if not null.
+	 */
+	void closeObservers(HostedHome hosted, String redirect) {
+		ObserverListener o = observers;
+		if (o != null && hosted.observers() > 0)
+			o.close(hosted, redirect);
+	}
+	
+	//Makes the server a node of the given cluster
+	void join(Cluster cluster) {
+		this.cluster = cluster;
+	}
+	
 	/*
-	  Removes the given server communication from the list of communications.
+	  @return the address of the cluster node hosting the home with the given
+	  id, or null if this server hosts it.
+	 */
+	public String route(String homeId) {
+		Cluster c = cluster;
+		return c == null ? null : c.route(homeId);
+	}
+	
+	//Ships the changes applied on the homes with the given replicator
+	void replicate(Replicator replicator) {
+		this.replicator = replicator;
+	}
+	
+	/*
+	  Accepts actions again once the followed primary is lost, journaling
+	  them to the given journal (null for none).
+	 */
+	void promote(ActionJournal journal) {
+		this.journal = journal;
+		executor.setJournal(journal);
+		readOnly = false;
+	}
+	
+	/*
+	  Removes the given server communication from the list of communications
+	  and unbinds it from its home.
 	  @param serverComm
 	 */
 	public void remove(ServerCommunication serverComm) {
-		this.sList.remove(serverComm);		
+		this.sList.remove(serverComm);
+		HostedHome hosted = serverComm.unbindHome();
+		if (hosted != null)
+			homes.release(hosted, serverComm);
 	}
 	
 	/*
-	  Appends the given update message to the pending messages to send on each
-	  server communication except the given one (which is connected to the
-	  client that generated the action and caused the update; that client will
-	  receive a confirm message).
+	  Appends the given batch of updates of the given home to the pending
+	  messages to send on each server communication bound to the home. Every
+	  session skips the updates of its own
+	  client's actions (that client receives a confirm message instead), and
+	  sessions that have not received their INIT yet drop the updates already
+	  included in it. Sessions with a subscription filter are only handed the
+	  batches changing a device they watch. Observers are handed the batch in
+	  one operation.
 	 */
-	public void broadcast(Message updateMsg, ServerCommunication serverComm) {
-		for (ServerCommunication s : sList) {
-			if (s == serverComm) continue;
-			s.appendToSendQueue(updateMsg);
-		}
+	void broadcast(HostedHome hosted, UpdateBatch batch) {
+		for (ServerCommunication s : hosted.unfiltered())
+			s.appendToSendQueue(batch);
+		for (ServerCommunication s : hosted.subscribers(batch))
+			s.appendToSendQueue(batch);
+		ObserverListener o = observers;
+		if (o != null && hosted.observers() > 0)
+			o.publish(hosted, batch);
 	}
 	
 	/*
@@ -151,12 +323,22 @@ public class ConnectListener implements Runnable {
 				// read until received terminate command
 				while (!terminate) {
 					System.out.println(" Press T at anytime to terminate server");
+					if (follower != null && !follower.promoted())
+						System.out.println(" Press P to promote to primary");
 					try {
 						line = br.readLine();
+						// stdin closed: keep serving until killed
+						if (line == null)
+							return;
 						// received terminate
 						if (line.trim().equalsIgnoreCase("t")) {
 							terminate = true;
 						}
+						// promote the follower
+						else if (line.trim().equalsIgnoreCase("p")
+								&& follower != null) {
+							follower.promote();
+						}
 						// retry
 						else {
 							System.out.println(" Unrecognized command: " +
@@ -0,0 +1,101 @@
+/*  
+  CS544 - Computer Networks
+  Drexel University
+  Protocol Implementation: IoT Home Control Protocol
+  Abhilasha Jayaswal
+ 
+  File name: FileHomeStore.java
+  
+  Purpose:
+  Implements HomeStore with one snapshot file per home in a directory. A
+  snapshot is the INIT encoding of the home, from which the home is rebuilt
+  the same way clients build their local image. Snapshots are memory-mapped
+  by default and the home kept over the mapping (see LazyHome), so loading a
+  home reads no device until it is accessed, whatever the home size. Homes
+  without a snapshot are generated randomly, seeded from their id, so every
+  home id always maps to the same initial home.
+ */
+
+package server;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import devices.Home;
+import devices.LazyHome;
+import devices.RandomHomeGenerator;
+import protocol.Authentication;
+import protocol.Message;
+
+public class FileHomeStore implements HomeStore {
+	
+	//Snapshot file extension
+	private static final String EXTENSION = ".init";
+	
+	//Directory holding the snapshot files
+	private final File dir;
+	//Seed of the random generation of new homes
+	private final long seed;
+	//Maximum number of devices per type of generated homes
+	private final int maxDevicesPerType;
+	//Whether snapshots are mapped rather than read and decoded
+	private final boolean mapped;
+	
+	/*
+	  Constructs a store over the given directory (created if missing), which
+	  generates missing homes with the given seed and number of devices limit.
+	 */
+	public FileHomeStore(File dir, long seed, int maxDevicesPerType) {
+		this(dir, seed, maxDevicesPerType, true);
+	}
+	
+	/*
+	  Constructs a store as above, mapping the snapshots or reading and
+	  decoding them into device objects.
+	 */
+	public FileHomeStore(File dir, long seed, int maxDevicesPerType,
+			boolean mapped) {
+		this.dir = dir;
+		this.seed = seed;
+		this.maxDevicesPerType = maxDevicesPerType;
+		this.mapped = mapped;
+		dir.mkdirs();
+	}
+	
+	@Override
+	public Home load(String homeId) throws Exception {
+		File f = fileOf(homeId);
+		if (f.exists())
+			return mapped ? LazyHome.map(f) : Home.createHomeFromInit(
+					new Message(Files.readAllBytes(f.toPath())));
+		// the default home keeps the seed of the single-home server
+		long homeSeed = homeId.equals(Authentication.DEFAULT_HOME_ID)
+				? seed : seed * 31 + homeId.hashCode();
+		return new RandomHomeGenerator(homeSeed, maxDevicesPerType)
+				.createHome();
+	}
+	
+	@Override
+	public void save(String homeId, byte[] init) throws Exception {
+		// write aside and rename, so a crash never leaves a partial snapshot
+		File f = fileOf(homeId);
+		File tmp = new File(dir, f.getName() + ".tmp");
+		Files.write(tmp.toPath(), init);
+		Files.move(tmp.toPath(), f.toPath(),
+				StandardCopyOption.REPLACE_EXISTING);
+	}
+	
+	//@return the snapshot file of the given home, with a file-safe name
+	private File fileOf(String homeId) {
+		StringBuilder sb = new StringBuilder(homeId.length() + EXTENSION.length());
+		for (int i = 0; i < homeId.length(); i++) {
+			char c = homeId.charAt(i);
+			if (Character.isLetterOrDigit(c) || c == '-' || c == '_')
+				sb.append(c);
+			else
+				sb.append('%').append(Integer.toHexString(c));
+		}
+		return new File(dir, sb.append(EXTENSION).toString());
+	}
+}
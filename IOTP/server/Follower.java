@@ -0,0 +1,398 @@
+/*
+  CS544 - Computer Networks
+  Drexel University
+  Protocol Implementation: IoT Home Control Protocol
+  Abhilasha Jayaswal
+
+  File name: Follower.java
+
+  Purpose:
+  Follower side of the log-shipping replication (see Replicator). The
+  follower is the home store of a read-only server: loading a home
+  subscribes to it on the primary and returns the home sent back, and
+  unloading it unsubscribes. The entries shipped by the primary are applied
+  in order by the replication thread, the single writer of the replicated
+  homes, and broadcast to the sessions of the follower like local changes,
+  so clients of a follower see the same INIT and updates as on the primary.
+  Clients cannot change a home on a follower.
+  When the primary is lost the follower keeps serving the last replicated
+  state until it is promoted, on operator command or automatically: it then
+  stops following, loads and saves homes in its local store, and its
+  sessions can apply actions. The homes loaded at promotion are kept as they
+  are, up to date with every entry received.
+  A follower the primary resyncs, having fallen too far behind, unloads its
+  replicated homes and terminates their clients, which load fresh snapshots
+  of the homes when they reconnect.
+ */
+
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import devices.DeviceAction;
+import devices.Home;
+import devices.LazyHome;
+import protocol.Log;
+import protocol.Message;
+import protocol.Util;
+
+public class Follower implements HomeStore {
+
+	//Time to wait for the primary to send a subscribed home
+	private static final long SUBSCRIBE_TIMEOUT_MS = 10000;
+	//Number of entries applied between two acknowledgements
+	private static final int ACK_INTERVAL = 64;
+
+	//Address of the primary replication port
+	private final String host;
+	private final int port;
+	//Store of the homes once promoted
+	private final HomeStore local;
+	//Whether the follower promotes itself when the primary is lost
+	private final boolean autoPromote;
+
+	private final Socket socket;
+	private final DataOutputStream out;
+	private ConnectListener listener;
+	//Run once promoted, to start the services of a primary
+	private Runnable promotion;
+	private Thread receiver;
+
+	//Homes subscribed to, as received and kept up to date
+	private final Map<String, Home> replicas = new ConcurrentHashMap<String, Home>();
+	/*
+	  Replicated homes as hosted by the registry, by id, so entries are
+	  broadcast without calling into the registry from the replication thread
+	 */
+	private final Map<String, HostedHome> hosted =
+			new ConcurrentHashMap<String, HostedHome>();
+	//Subscriptions waiting for their home
+	private final Map<String, CompletableFuture<Home>> pending =
+			new ConcurrentHashMap<String, CompletableFuture<Home>>();
+	private volatile boolean promoted = false;
+
+	//Number of entries received and applied, and of entries shipped, as
+	//told by the entries themselves and by the heartbeats of the primary
+	private volatile long applied = 0;
+	private volatile long shipped = 0;
+	//Time the last applied entry was shipped by the primary
+	private volatile long appliedTime = 0;
+
+	/*
+	  Connects to the primary at the given address, loading and saving homes
+	  in the given local store once promoted.
+	 */
+	public Follower(String host, int port, HomeStore local,
+			boolean autoPromote) throws IOException {
+		this.host = host;
+		this.port = port;
+		this.local = local;
+		this.autoPromote = autoPromote;
+		this.socket = new Socket(host, port);
+		socket.setTcpNoDelay(true);
+		this.out = new DataOutputStream(new BufferedOutputStream(
+				socket.getOutputStream()));
+	}
+
+	/*
+	  Starts applying the entries shipped by the primary to the replicated
+	  homes, broadcasting them to the sessions of the given listener, which
+	  is made read-only until promotion.
+	  @param promotion run once the follower is promoted.
+	 */
+	public void start(ConnectListener listener, Runnable promotion) {
+		this.listener = listener;
+		this.promotion = promotion;
+		listener.follow(this);
+		receiver = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				receive();
+			}
+		}, "iotp-follower");
+		receiver.setDaemon(true);
+		receiver.start();
+		System.out.println(Util.dateTime() + " -- Following primary " + host
+				+ ":" + port);
+	}
+
+	/*
+	  Subscribes to the given home on the primary and waits for it. Once
+	  promoted, loads the home from the local store.
+	 */
+	@Override
+	public Home load(String homeId) throws Exception {
+		if (!promoted) {
+			CompletableFuture<Home> f = new CompletableFuture<Home>();
+			CompletableFuture<Home> previous = pending.putIfAbsent(homeId, f);
+			if (previous != null)
+				f = previous;
+			else
+				send(Replicator.SUBSCRIBE, homeId);
+			try {
+				return f.get(SUBSCRIBE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				pending.remove(homeId);
+				send(Replicator.UNSUBSCRIBE, homeId);
+				throw new IOException("No answer from primary for home "
+						+ homeId);
+			} catch (ExecutionException e) {
+				// promoted meanwhile: the home is loaded locally below
+				if (!promoted)
+					throw e;
+			}
+		}
+		return local.load(homeId);
+	}
+
+	//Saves the given home in the local store once promoted, the primary does before
+	@Override
+	public void save(String homeId, byte[] init) throws Exception {
+		if (promoted)
+			local.save(homeId, init);
+	}
+
+	//Keeps the given replicated home hosted by the registry
+	@Override
+	public void hosted(HostedHome home) {
+		if (replicas.get(home.id()) == home.home())
+			hosted.put(home.id(), home);
+	}
+
+	//Unsubscribes from the given home unloaded by the registry
+	@Override
+	public void release(String homeId) {
+		hosted.remove(homeId);
+		if (promoted) {
+			local.release(homeId);
+			return;
+		}
+		replicas.remove(homeId);
+		try {
+			send(Replicator.UNSUBSCRIBE, homeId);
+		} catch (IOException e) {
+			// the primary is lost, and the subscription with it
+		}
+	}
+
+	//@return the number of entries shipped by the primary and not applied yet
+	public long lag() {
+		return Math.max(0, shipped - applied);
+	}
+
+	//@return true once the follower is promoted
+	public boolean promoted() {
+		return promoted;
+	}
+
+	/*
+	  Stops following the primary and starts acting as a primary. The homes
+	  loaded are kept, and the sessions can apply actions from now on.
+	 */
+	public void promote() {
+		synchronized (this) {
+			if (promoted)
+				return;
+			promoted = true;
+		}
+		close();
+		// the replication thread must be done writing the homes
+		if (receiver != null && receiver != Thread.currentThread()) {
+			try {
+				receiver.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		for (CompletableFuture<Home> f : pending.values())
+			f.completeExceptionally(new IOException("Promoted"));
+		pending.clear();
+		replicas.clear();
+		hosted.clear();
+		if (promotion != null)
+			promotion.run();
+		System.out.println(Util.dateTime() + " -- Promoted to primary");
+	}
+
+	//Closes the connection to the primary
+	void close() {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// closing anyway
+		}
+	}
+
+	//Applies the frames received from the primary until the connection is lost
+	private void receive() {
+		long acked = 0;
+		long lastLog = System.currentTimeMillis();
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					socket.getInputStream()));
+			while (true) {
+				byte kind = in.readByte();
+				if (kind == Replicator.HOME) {
+					String homeId = in.readUTF();
+					byte[] init = new byte[in.readInt()];
+					in.readFully(init);
+					subscribed(homeId, init);
+				} else if (kind == Replicator.ENTRY) {
+					long seq = in.readLong();
+					long time = in.readLong();
+					String homeId = in.readUTF();
+					byte[][] updates = new byte[in.readInt()][];
+					for (int i = 0; i < updates.length; i++) {
+						updates[i] = new byte[in.readInt()];
+						in.readFully(updates[i]);
+					}
+					// the entry itself tells how far the primary shipped
+					if (seq > shipped)
+						shipped = seq;
+					apply(homeId, updates);
+					appliedTime = time;
+					applied = seq;
+					if (seq - acked >= ACK_INTERVAL) {
+						ack(seq, time);
+						acked = seq;
+					}
+				} else if (kind == Replicator.RESYNC) {
+					resync();
+				} else if (kind == Replicator.HEARTBEAT) {
+					shipped = Math.max(shipped, in.readLong());
+					if (applied != acked) {
+						ack(applied, appliedTime);
+						acked = applied;
+					}
+					long now = System.currentTimeMillis();
+					if (now - lastLog >= 5000) {
+						lastLog = now;
+						if (Log.isEnabled(Log.INFO))
+							Log.info("Following " + host + ":" + port + ": "
+									+ replicas.size() + " homes, lag " + lag()
+									+ " entries");
+					}
+				} else
+					throw new IOException("Unexpected frame kind " + kind);
+			}
+		} catch (IOException e) {
+			if (promoted)
+				return;
+		}
+		for (CompletableFuture<Home> f : pending.values())
+			f.completeExceptionally(new IOException("Primary lost"));
+		if (autoPromote) {
+			System.out.println(Util.dateTime() + " -- Primary lost, promoting");
+			promote();
+		} else
+			System.out.println(Util.dateTime() + " -- Primary lost: serving "
+					+ "the last replicated state, press P to promote");
+	}
+
+	//Keeps the given subscribed home and hands it to the waiting load
+	private void subscribed(String homeId, byte[] init) {
+		CompletableFuture<Home> f = pending.remove(homeId);
+		// the load gave up waiting, and unsubscribed
+		if (f == null)
+			return;
+		Home home = LazyHome.fromInit(new Message(init));
+		// the replication thread is the single writer of the home
+		home.setSingleWriter();
+		replicas.put(homeId, home);
+		f.complete(home);
+	}
+
+	/*
+	  Drops the replicated homes after the primary discarded the entries
+	  queued for the follower: later entries of these homes are ignored, the
+	  homes are unloaded from the registry and their clients terminated by
+	  a resync thread, as unloading may wait for a load answered by this
+	  thread. Subscriptions waiting for their home are sent again.
+	 */
+	private void resync() throws IOException {
+		final Map<String, HostedHome> dropped =
+				new HashMap<String, HostedHome>(hosted);
+		hosted.clear();
+		replicas.clear();
+		for (String homeId : pending.keySet())
+			send(Replicator.SUBSCRIBE, homeId);
+		if (Log.isEnabled(Log.WARN))
+			Log.warn("Resynced by " + host + ":" + port + ", unloading "
+					+ dropped.size() + " homes");
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				HomeRegistry homes = listener.homes();
+				for (HostedHome h : dropped.values()) {
+					// a client may have loaded it again meanwhile
+					if (homes.loaded(h.id()) == h)
+						homes.drop(h.id());
+					for (ServerCommunication session : h.sessions())
+						session.markterminate();
+					listener.closeObservers(h, null);
+				}
+			}
+		}, "iotp-follower-resync");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/*
+	  Applies the given updates of a home, if subscribed, and broadcasts them
+	  to the sessions of the home. Entries of a home received before the home
+	  itself are already contained in it, and ignored.
+	 */
+	private void apply(String homeId, byte[][] updates) {
+		Home home = replicas.get(homeId);
+		if (home == null)
+			return;
+		DeviceAction[] actions = new DeviceAction[updates.length];
+		for (int i = 0; i < updates.length; i++)
+			actions[i] = DeviceAction.fromUpdate(updates[i]);
+		Exception[] failures = new Exception[actions.length];
+		boolean[] changed = home.doActions(actions, failures);
+		UpdateBatch batch = new UpdateBatch(actions.length);
+		for (int i = 0; i < actions.length; i++) {
+			if (changed[i])
+				batch.add(new Message(updates[i]), actions[i].version(), null);
+			else if (Log.isEnabled(Log.WARN))
+				Log.warn("Replicated update of home " + homeId + " not applied: "
+						+ (failures[i] != null ? failures[i].getMessage()
+								: "no change"));
+		}
+		HostedHome h = hosted.get(homeId);
+		if (batch.size() > 0 && h != null && h.home() == home)
+			listener.broadcast(h, batch);
+	}
+
+	//Acknowledges the entries applied up to the given sequence number
+	private void ack(long seq, long time) throws IOException {
+		synchronized (out) {
+			out.writeByte(Replicator.ACK);
+			out.writeLong(seq);
+			out.writeLong(time);
+			out.flush();
+		}
+	}
+
+	//Sends a subscription frame for the given home
+	private void send(byte kind, String homeId) throws IOException {
+		synchronized (out) {
+			out.writeByte(kind);
+			out.writeUTF(homeId);
+			out.flush();
+		}
+	}
+}
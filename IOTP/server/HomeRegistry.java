@@ -0,0 +1,415 @@
+/*  
+  CS544 - Computer Networks
+  Drexel University
+  Protocol Implementation: IoT Home Control Protocol
+  Abhilasha Jayaswal
+ 
+  File name: HomeRegistry.java
+  
+  Purpose:
+  Registry of the homes hosted by the server, keyed by home id. A session is
+  bound to its home at authentication; the home is loaded from the home store
+  on first use and kept in memory while it has sessions. Homes without
+  sessions stay cached in least-recently-used order, and once more than the
+  cache capacity are loaded the least recently used idle homes are saved back
+  to the store (if changed) and demoted to their compact form, a shared
+  template plus a few bytes of device states. Compact homes are in turn
+  dropped in least-recently-used order beyond their own capacity, so memory
+  tracks the active homes rather than all the homes of the store.
+  The registry lock only guards this bookkeeping: a home is loaded, saved
+  or dropped by the one thread owning its pending future, outside the lock,
+  and the other threads binding that home wait on the future.
+ */
+
+package server;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import devices.CompactHome;
+import protocol.Log;
+
+public class HomeRegistry {
+	
+	//Store the homes are loaded from and saved to
+	private final HomeStore store;
+	//Maximum number of homes kept loaded, unless more have sessions
+	private final int capacity;
+	//Maximum number of idle homes kept in compact form
+	private final int compactCapacity;
+	/*
+	  Loaded homes, in least-recently-used order. This map and the compact
+	  homes are only guarded by the registry lock for bookkeeping: homes are
+	  loaded and saved outside of it.
+	 */
+	private final LinkedHashMap<String, HostedHome> homes =
+			new LinkedHashMap<String, HostedHome>(16, 0.75f, true);
+	/*
+	  Compact forms of evicted homes, in least-recently-used order. Always in
+	  sync with the store, so they can be dropped without saving.
+	 */
+	private final LinkedHashMap<String, CompactHome> compactHomes =
+			new LinkedHashMap<String, CompactHome>(16, 0.75f, true);
+	/*
+	  Homes being loaded, saved on eviction or dropped, by id. The thread
+	  registering the future owns the home until it completes it; other
+	  threads binding the home wait on the future, outside the registry lock,
+	  so the store of one home never stalls the others.
+	 */
+	private final ConcurrentHashMap<String, CompletableFuture<HostedHome>> pending =
+			new ConcurrentHashMap<String, CompletableFuture<HostedHome>>();
+	
+	//What binds a user to a home, applied under the registry lock
+	private interface Binding {
+		public void bind(HostedHome hosted);
+	}
+	
+	/*
+	  Constructs a registry over the given store, with the given capacities of
+	  loaded and compact homes.
+	 */
+	public HomeRegistry(HomeStore store, int capacity, int compactCapacity) {
+		this.store = store;
+		this.capacity = Math.max(1, capacity);
+		this.compactCapacity = Math.max(0, compactCapacity);
+	}
+	
+	/*
+	  Binds the given session to the home with the given id, loading the home
+	  if needed. From then on the session receives the updates of the home.
+	  @return the home.
+	 */
+	public HostedHome acquire(String homeId, final ServerCommunication session)
+			throws Exception {
+		return bind(homeId, new Binding() {
+			public void bind(HostedHome hosted) {
+				hosted.addSession(session);
+			}
+		});
+	}
+	
+	/*
+	  Subscribes the given follower to the home with the given id, loading
+	  the home if needed. The home stays loaded while it has followers.
+	  @return the home.
+	 */
+	HostedHome acquire(String homeId, final Replicator.Link follower)
+			throws Exception {
+		return bind(homeId, new Binding() {
+			public void bind(HostedHome hosted) {
+				hosted.followers().add(follower);
+			}
+		});
+	}
+	
+	/*
+	  Binds an observer to the home with the given id, loading the home if
+	  needed. The home stays loaded while it has observers.
+	  @return the home.
+	 */
+	HostedHome observe(String homeId) throws Exception {
+		return bind(homeId, new Binding() {
+			public void bind(HostedHome hosted) {
+				hosted.addObservers(1);
+			}
+		});
+	}
+	
+	/*
+	  Applies the given binding to the home with the given id, loading the
+	  home from its compact form or the store if needed. The binding is
+	  applied under the registry lock together with the lookup (or insertion)
+	  of the home, so the home cannot be evicted in between. A home being
+	  loaded or saved by another thread is waited for outside the lock.
+	  @return the home.
+	 */
+	private HostedHome bind(String homeId, Binding binding) throws Exception {
+		while (true) {
+			HostedHome hosted;
+			List<HostedHome> evicted = null;
+			synchronized (this) {
+				hosted = homes.get(homeId);
+				if (hosted != null) {
+					binding.bind(hosted);
+					evicted = evictIdle();
+				}
+			}
+			if (hosted != null) {
+				retire(evicted);
+				return hosted;
+			}
+			CompletableFuture<HostedHome> mine = new CompletableFuture<HostedHome>();
+			CompletableFuture<HostedHome> other = pending.putIfAbsent(homeId, mine);
+			if (other != null) {
+				await(other);
+				continue;
+			}
+			try {
+				hosted = load(homeId, binding);
+				mine.complete(hosted);
+				return hosted;
+			} catch (Exception e) {
+				mine.completeExceptionally(e);
+				throw e;
+			} finally {
+				pending.remove(homeId, mine);
+			}
+		}
+	}
+	
+	/*
+	  Loads the home with the given id, owned by the calling thread through
+	  its pending future, and inserts it with the given binding.
+	  @return the home.
+	 */
+	private HostedHome load(String homeId, Binding binding) throws Exception {
+		HostedHome hosted;
+		CompactHome compact = null;
+		List<HostedHome> evicted = null;
+		synchronized (this) {
+			// loaded by a previous owner since the lookup
+			hosted = homes.get(homeId);
+			if (hosted != null) {
+				binding.bind(hosted);
+				evicted = evictIdle();
+			}
+			else
+				compact = compactHomes.remove(homeId);
+		}
+		if (hosted != null) {
+			retire(evicted);
+			return hosted;
+		}
+		// store and network waits happen outside the registry lock
+		hosted = new HostedHome(homeId, compact != null ? compact.toHome()
+				: store.load(homeId));
+		store.hosted(hosted);
+		int loaded;
+		synchronized (this) {
+			homes.put(homeId, hosted);
+			binding.bind(hosted);
+			loaded = homes.size();
+			evicted = evictIdle();
+		}
+		if (Log.isEnabled(Log.INFO))
+			Log.info("Home " + homeId + " loaded (" + loaded + " loaded)");
+		if (Log.isEnabled(Log.DEBUG))
+			Log.debug("Home " + homeId + ":\n"
+					+ hosted.home().toCustomString());
+		retire(evicted);
+		return hosted;
+	}
+	
+	/*
+	  Waits for the given pending future of another thread.
+	  @throws Exception the failure of the other thread loading the home.
+	 */
+	private static void await(CompletableFuture<HostedHome> other)
+			throws Exception {
+		try {
+			other.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			throw cause instanceof Exception ? (Exception) cause : e;
+		}
+	}
+	
+	/*
+	  Unbinds the given session from its home, which becomes eligible for
+	  eviction once it has no sessions left.
+	 */
+	public void release(HostedHome hosted, ServerCommunication session) {
+		List<HostedHome> evicted;
+		synchronized (this) {
+			hosted.removeSession(session, session.projection());
+			evicted = evictIdle();
+		}
+		retire(evicted);
+	}
+	
+	//Unsubscribes the given follower from its home
+	void release(HostedHome hosted, Replicator.Link follower) {
+		List<HostedHome> evicted;
+		synchronized (this) {
+			hosted.followers().remove(follower);
+			evicted = evictIdle();
+		}
+		retire(evicted);
+	}
+	
+	//Unbinds an observer from the given home
+	void unobserve(HostedHome hosted) {
+		List<HostedHome> evicted;
+		synchronized (this) {
+			hosted.addObservers(-1);
+			evicted = evictIdle();
+		}
+		retire(evicted);
+	}
+	
+	//@return the loaded home with the given id, or null if it is not loaded
+	synchronized HostedHome loaded(String homeId) {
+		return homes.get(homeId);
+	}
+	
+	//@return the ids of the homes currently loaded or held in compact form
+	synchronized List<String> ids() {
+		List<String> ids = new ArrayList<String>(homes.keySet());
+		ids.addAll(compactHomes.keySet());
+		return ids;
+	}
+	
+	/*
+	  Unloads the home with the given id, saving it if changed, whether or
+	  not it has sessions, when it is handed off to another cluster node. Its
+	  sessions are redirected by the caller; a session binding it again loads
+	  it from the store. A load or save of the home in progress is waited
+	  for first.
+	  @return false if the home changed and could not be saved.
+	 */
+	boolean drop(String homeId) {
+		CompletableFuture<HostedHome> mine = new CompletableFuture<HostedHome>();
+		while (true) {
+			CompletableFuture<HostedHome> other = pending.putIfAbsent(homeId, mine);
+			if (other == null)
+				break;
+			try {
+				await(other);
+			} catch (Exception e) {
+				// the home failed loading, nothing to drop
+			}
+		}
+		HostedHome hosted;
+		int loaded;
+		synchronized (this) {
+			compactHomes.remove(homeId);
+			hosted = homes.remove(homeId);
+			loaded = homes.size();
+		}
+		try {
+			if (hosted == null)
+				return true;
+			boolean saved = !hosted.dirty() || save(hosted);
+			store.release(homeId);
+			if (Log.isEnabled(Log.INFO))
+				Log.info("Home " + homeId + " dropped (" + loaded + " loaded)");
+			return saved;
+		} finally {
+			pending.remove(homeId, mine);
+			mine.complete(null);
+		}
+	}
+	
+	//@return the number of homes currently loaded
+	public synchronized int size() {
+		return homes.size();
+	}
+	
+	//@return the number of idle homes currently held in compact form
+	public synchronized int compactSize() {
+		return compactHomes.size();
+	}
+	
+	/*
+	  Saves all changed homes to the store, called by journal checkpoints and
+	  when the server terminates. The homes are saved outside the registry
+	  lock.
+	  @return true if every changed home was saved.
+	 */
+	public boolean saveAll() {
+		List<HostedHome> loaded;
+		synchronized (this) {
+			loaded = new ArrayList<HostedHome>(homes.values());
+		}
+		boolean saved = true;
+		for (HostedHome hosted : loaded) {
+			if (hosted.dirty() && !save(hosted))
+				saved = false;
+		}
+		return saved;
+	}
+	
+	/*
+	  Takes out of the loaded homes the least recently used homes without
+	  sessions while more than the capacity are loaded, and registers a
+	  pending future for each, so they are not loaded again before being
+	  retired. Homes with sessions are never evicted: their sessions may
+	  still apply actions on them; neither are homes with followers, which
+	  must keep receiving the changes of the same home object, nor homes
+	  another thread is loading or dropping. Called under the registry lock.
+	  @return the homes taken out, to retire outside the lock, or null.
+	 */
+	private List<HostedHome> evictIdle() {
+		List<HostedHome> evicted = null;
+		Iterator<Map.Entry<String, HostedHome>> it =
+				homes.entrySet().iterator();
+		while (homes.size() > capacity && it.hasNext()) {
+			HostedHome hosted = it.next().getValue();
+			if (hosted.inUse() || pending.putIfAbsent(hosted.id(),
+					new CompletableFuture<HostedHome>()) != null)
+				continue;
+			it.remove();
+			if (evicted == null)
+				evicted = new ArrayList<HostedHome>();
+			evicted.add(hosted);
+		}
+		return evicted;
+	}
+	
+	/*
+	  Saves (if changed) and demotes to compact form the given homes taken
+	  out by evictIdle, then completes their pending futures. Called outside
+	  the registry lock. A home that could not be saved is put back, not
+	  lost.
+	 */
+	private void retire(List<HostedHome> evicted) {
+		if (evicted == null)
+			return;
+		for (HostedHome hosted : evicted) {
+			boolean saved = !hosted.dirty() || save(hosted);
+			CompactHome compact = saved && compactCapacity > 0
+					? CompactHome.of(hosted.home()) : null;
+			if (saved)
+				store.release(hosted.id());
+			synchronized (this) {
+				if (!saved)
+					homes.put(hosted.id(), hosted);
+				else if (compact != null) {
+					compactHomes.put(hosted.id(), compact);
+					// compact homes are in sync with the store, drop the oldest
+					Iterator<String> cit = compactHomes.keySet().iterator();
+					while (compactHomes.size() > compactCapacity
+							&& cit.hasNext()) {
+						cit.next();
+						cit.remove();
+					}
+				}
+			}
+			pending.remove(hosted.id()).complete(hosted);
+			if (saved && Log.isEnabled(Log.INFO))
+				Log.info("Home " + hosted.id() + " evicted");
+		}
+	}
+	
+	/*
+	  Saves the given home, logging failures.
+	  @return true if the home was saved.
+	 */
+	private boolean save(HostedHome hosted) {
+		try {
+			store.save(hosted.id(), hosted.home().getInit());
+			return true;
+		} catch (Exception e) {
+			if (Log.isEnabled(Log.ERROR))
+				Log.error("Failed saving home " + hosted.id() + ": "
+						+ e.getMessage());
+			return false;
+		}
+	}
+}
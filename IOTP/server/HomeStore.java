@@ -0,0 +1,34 @@
+/*  
+  CS544 - Computer Networks
+  Drexel University
+  Protocol Implementation: IoT Home Control Protocol
+  Abhilasha Jayaswal
+ 
+  File name: HomeStore.java
+  
+  Purpose:
+  Interface for the persistent store of the homes hosted by the server, from
+  which the home registry loads homes on demand and to which it saves the
+  homes it evicts.
+ */
+
+package server;
+
+import devices.Home;
+
+public interface HomeStore {
+	
+	//Returns the home with the given id, created if the store has none yet
+	public Home load(String homeId) throws Exception;
+	
+	//Saves the given INIT encoding of a home under the given id
+	public void save(String homeId, byte[] init) throws Exception;
+	
+	//Notifies the store that a home it loaded is now hosted as the given one
+	public default void hosted(HostedHome hosted) {
+	}
+	
+	//Notifies the store that the given home was unloaded
+	public default void release(String homeId) {
+	}
+}
@@ -0,0 +1,260 @@
+/*  
+  CS544 - Computer Networks
+  Drexel University
+  Protocol Implementation: IoT Home Control Protocol
+  Abhilasha Jayaswal
+ 
+  File name: HostedHome.java
+  
+  Purpose:
+  A home loaded in the home registry, together with the sessions of the
+  clients currently controlling it. Updates of the home are only broadcast to
+  these sessions and to its observers, and its actions are only applied by the core loop owning
+  it (see ActionExecutor).
+  Sessions with a subscription filter are kept in an index by the devices
+  they watch, so a batch of updates is only handed to the filtered sessions
+  watching one of its devices. The devices watched by type or name terms are
+  indexed by device type, a single entry whatever their number, and only the
+  devices of device terms are indexed one by one (see Projection).
+ */
+
+package server;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import devices.Home;
+import protocol.Projection;
+import protocol.Util;
+
+public class HostedHome {
+	
+	//Id of the home
+	private final String id;
+	//The home
+	private final Home home;
+	//Version of the home snapshot when the home was loaded
+	private final long loadedVersion;
+	//Sessions of the clients controlling the home
+	private final Set<ServerCommunication> sessions =
+			new ConcurrentSkipListSet<ServerCommunication>();
+	//Sessions without a subscription filter, sent every update
+	private final Set<ServerCommunication> unfiltered =
+			new ConcurrentSkipListSet<ServerCommunication>();
+	//Sessions with a subscription filter, by device watched (see key)
+	private final Map<Long, Set<ServerCommunication>> subscribers =
+			new ConcurrentHashMap<Long, Set<ServerCommunication>>();
+	//Sessions with a subscription filter, by device type watched
+	private final Map<Integer, Set<ServerCommunication>> typeSubscribers =
+			new ConcurrentHashMap<Integer, Set<ServerCommunication>>();
+	//Number of sessions with a subscription filter
+	private final AtomicInteger filtered = new AtomicInteger();
+	//Followers the changes of the home are shipped to
+	private final Set<Replicator.Link> followers =
+			new CopyOnWriteArraySet<Replicator.Link>();
+	//Number of observers of the home, changed by the registry
+	private volatile int observers = 0;
+	//Address of the cluster node the home was handed off to, null if none
+	private volatile String movedTo = null;
+	
+	/*
+	  Constructs a hosted home. The home is switched to single-writer mode:
+	  from then on it is only written by the core loop owning it.
+	 */
+	HostedHome(String id, Home home) {
+		this.id = id;
+		this.home = home;
+		home.setSingleWriter();
+		this.loadedVersion = home.initVersion();
+	}
+	
+	// getters
+	
+	public String id() {
+		return id;
+	}
+	
+	public Home home() {
+		return home;
+	}
+	
+	Set<ServerCommunication> sessions() {
+		return sessions;
+	}
+	
+	//Adds the given session, without a subscription filter
+	void addSession(ServerCommunication session) {
+		sessions.add(session);
+		unfiltered.add(session);
+	}
+	
+	//Removes the given session, with the projection it subscribed to, if any
+	void removeSession(ServerCommunication session, Projection projection) {
+		sessions.remove(session);
+		unfiltered.remove(session);
+		if (projection != null) {
+			unindex(session, projection, null);
+			filtered.decrementAndGet();
+		}
+	}
+	
+	/*
+	  Moves the given session from the given projection to the given new one,
+	  null for every device. The session is indexed under the devices of the
+	  new projection before leaving the old ones, so the batches applied
+	  meanwhile reach it at least once. Called by the session thread.
+	 */
+	void subscribe(ServerCommunication session, Projection from,
+			Projection to) {
+		if (to != null) {
+			for (int type = 0; type < to.numTypes(); type++) {
+				if (to.byType(type)) {
+					setOf(typeSubscribers, type).add(session);
+					continue;
+				}
+				for (int i = 0; i < to.numDevices(type); i++)
+					setOf(subscribers, key(type, to.homeNumber(type, i)))
+							.add(session);
+			}
+			if (from == null)
+				filtered.incrementAndGet();
+			unfiltered.remove(session);
+		}
+		else {
+			unfiltered.add(session);
+			if (from != null)
+				filtered.decrementAndGet();
+		}
+		if (from != null)
+			unindex(session, from, to);
+	}
+	
+	//@return the sessions sent every update of the home
+	Set<ServerCommunication> unfiltered() {
+		return unfiltered;
+	}
+	
+	/*
+	  @return the sessions with a subscription filter watching a device
+	  changed by the given batch, each once.
+	 */
+	Collection<ServerCommunication> subscribers(UpdateBatch batch) {
+		if (filtered.get() == 0)
+			return Collections.<ServerCommunication>emptySet();
+		Set<ServerCommunication> matched = null;
+		for (int i = 0; i < batch.size(); i++) {
+			byte[] b = batch.update(i).bytes();
+			Set<ServerCommunication> byType = typeSubscribers.get(
+					Integer.valueOf(b[1]));
+			Set<ServerCommunication> byDevice = subscribers.get(
+					key(b[1], Util.readVarint(b, 2)));
+			boolean typeMatched = byType != null && !byType.isEmpty();
+			boolean deviceMatched = byDevice != null && !byDevice.isEmpty();
+			// a single update watched one way is routed to that set as is
+			if (batch.size() == 1 && typeMatched != deviceMatched)
+				return typeMatched ? byType : byDevice;
+			if ((typeMatched || deviceMatched) && matched == null)
+				matched = new HashSet<ServerCommunication>();
+			if (typeMatched)
+				matched.addAll(byType);
+			if (deviceMatched)
+				matched.addAll(byDevice);
+		}
+		return matched != null ? matched
+				: Collections.<ServerCommunication>emptySet();
+	}
+	
+	/*
+	  Removes the given session from the index of the devices and types of
+	  the given projection that the given other projection, if any, does not
+	  watch the same way.
+	 */
+	private void unindex(ServerCommunication session, Projection projection,
+			Projection kept) {
+		for (int type = 0; type < projection.numTypes(); type++) {
+			if (projection.byType(type)) {
+				if (kept == null || !kept.byType(type)) {
+					Set<ServerCommunication> set = typeSubscribers.get(type);
+					if (set != null)
+						set.remove(session);
+				}
+				continue;
+			}
+			for (int i = 0; i < projection.numDevices(type); i++) {
+				int num = projection.homeNumber(type, i);
+				if (kept != null && !kept.byType(type)
+						&& kept.projectedNumber(type, num) >= 0)
+					continue;
+				Set<ServerCommunication> set = subscribers.get(key(type, num));
+				if (set != null)
+					set.remove(session);
+			}
+		}
+	}
+
+	/*
+	  @return the set of sessions of the given key of the given index,
+	  created if needed.
+	 */
+	private static <K> Set<ServerCommunication> setOf(
+			Map<K, Set<ServerCommunication>> index, K key) {
+		Set<ServerCommunication> set = index.get(key);
+		if (set == null) {
+			Set<ServerCommunication> created =
+					new ConcurrentSkipListSet<ServerCommunication>();
+			set = index.putIfAbsent(key, created);
+			if (set == null)
+				set = created;
+		}
+		return set;
+	}
+	
+	//@return the key of the given device in the subscription index
+	private static Long key(int deviceType, int deviceNumber) {
+		return ((long) deviceType << 32) | deviceNumber;
+	}
+	
+	Set<Replicator.Link> followers() {
+		return followers;
+	}
+	
+	//@return the number of observers of the home
+	int observers() {
+		return observers;
+	}
+	
+	//Adds the given number of observers, negative when they leave
+	void addObservers(int n) {
+		observers += n;
+	}
+	
+	//@return true if the home has sessions, followers or observers, and must stay loaded
+	boolean inUse() {
+		return !sessions.isEmpty() || !followers.isEmpty() || observers > 0;
+	}
+	
+	//@return true if the home changed since it was loaded
+	boolean dirty() {
+		return home.initVersion() != loadedVersion;
+	}
+	
+	/*
+	  Marks the home as handed off to the given cluster node: its later
+	  actions are denied. Called by the core loop owning the home.
+	 */
+	void moveTo(String address) {
+		movedTo = address;
+	}
+	
+	//@return the cluster node the home was handed off to, or null if none
+	String movedTo() {
+		return movedTo;
+	}
+}
@@ -0,0 +1,796 @@
+/*
+  CS544 - Computer Networks
+  Drexel University
+  Protocol Implementation: IoT Home Control Protocol
+  Abhilasha Jayaswal
+
+  File name: MuxListener.java
+
+  Purpose:
+  Serves gateways carrying the sessions of many users over one multiplexed
+  transport connection, instead of a connection and a server thread per
+  user. A gateway connects to its own port and opens any number of logical
+  sessions on the connection, called streams. Every frame is a line holding,
+  in hexadecimal like the messages, the stream id as a varint followed by a
+  message of the protocol; each stream runs the whole protocol (PING,
+  VERSION, challenge, INIT, actions...) with its own DFA and session, exactly
+  as a client on its own connection. A stream is opened by the first frame
+  carrying its id, and closed once its session ends (TERMINATE, error or
+  redirect), after which the server sends a RESET for it and the id may be
+  reused.
+  Stream 0 carries the control frames [op, stream id, value], both varints:
+  - WINDOW, from the gateway, grants the given number of update credits to
+    the stream. Every update or update batch message sent on a stream spends
+    a credit, and a stream without credits keeps its updates queued at the
+    server, where they are sent together once credits are granted. A stream
+    starts with Message.INITIAL_CREDITS; the responses to its messages are
+    not counted. These are the credits of the session: a stream of a
+    version with flow control may grant them by CREDIT messages as well.
+  - RESET, from either side, closes the stream (value 0). The server resets
+    the streams sending MAX_INBOUND frames ahead of their processing, and
+    the streams whose backlog reaches MAX_BACKLOG batches of updates queued
+    plus updates held back.
+  Streams hold no thread: the frames of each stream are processed in order
+  by a shared pool of workers, and a transport has a single reader thread,
+  which also hands every stream an idle tick each LISTEN_TIMEOUT_MS to send
+  its pending updates, as session threads do on their read timeout. The
+  frames of a stream not yet bound to its home (handshake, authentication
+  and home loading) are processed by a separate pool of binders, so that
+  loading a home never holds up the streams of the loaded homes. Workers
+  never write to the connection: the frames sent are queued to the writer
+  thread of the transport, and a gateway reading too slowly to keep the
+  queue under MAX_OUTBOUND writes is dropped.
+ */
+
+package server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import devices.DeviceAction;
+import devices.Home;
+import devices.Light;
+import protocol.Authentication;
+import protocol.Log;
+import protocol.Message;
+import protocol.ProtocolFeatures;
+import protocol.ProtocolServerDFA;
+import protocol.Util;
+
+public class MuxListener {
+
+	//Stream carrying the control frames
+	static final int CONTROL_STREAM = 0;
+	//Control frame granting update credits to a stream
+	static final byte WINDOW = 1;
+	//Control frame closing a stream
+	static final byte RESET = 2;
+	//Frames of a stream waiting to be processed past which it is reset
+	static final int MAX_INBOUND = 64;
+	/*
+	  Batches of updates queued plus updates held back for a stream past
+	  which it is reset
+	 */
+	static final int MAX_BACKLOG = 4096;
+	//Largest number of open streams of a transport
+	static final int MAX_STREAMS = 65536;
+	//Writes queued to the writer thread of a transport past which it is lost
+	static final int MAX_OUTBOUND = 65536;
+	//Frames processed in a row for one stream before the worker moves on
+	private static final int FRAMES_PER_TURN = 16;
+
+	//Markers handed to a stream in its queue of frames
+	private static final Message TICK = new Message(Message.KEY_INTERNAL_MSG);
+	private static final Message CLOSED = new Message(Message.KEY_INTERNAL_MSG);
+
+	//Port gateways connect to
+	private final int port;
+	//Listener the sessions of the streams belong to
+	private final ConnectListener listener;
+	//Workers processing the frames of the streams
+	private final ExecutorService workers;
+	//Binders processing the frames of the streams until bound to their home
+	private final ExecutorService binders;
+	private ServerSocket server;
+	//Transports connected
+	private final Set<Transport> transports =
+			Collections.newSetFromMap(new ConcurrentHashMap<Transport, Boolean>());
+
+	/*
+	  Constructs a listener of the multiplexed transports of gateways,
+	  accepting them on the given port once started, their sessions bound to
+	  the homes of the given connection listener. The streams are processed
+	  by the given number of workers (0 for four per core), which block while
+	  the actions of their sessions are applied, and by one binder per core
+	  until bound to their home.
+	 */
+	public MuxListener(int port, ConnectListener listener, int numWorkers) {
+		this.port = port;
+		this.listener = listener;
+		int cores = Runtime.getRuntime().availableProcessors();
+		this.workers = Executors.newFixedThreadPool(numWorkers > 0 ? numWorkers
+				: 4 * cores, threads("iotp-mux-"));
+		this.binders = Executors.newFixedThreadPool(cores,
+				threads("iotp-mux-bind-"));
+	}
+
+	//@return a factory of daemon threads named with the given prefix
+	private static ThreadFactory threads(final String prefix) {
+		final AtomicInteger n = new AtomicInteger();
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, prefix + n.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	//Starts accepting gateways
+	public void start() throws IOException {
+		server = new ServerSocket(port);
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						Transport t = new Transport(server.accept());
+						transports.add(t);
+						Thread reader = new Thread(t, "iotp-mux-reader");
+						reader.setDaemon(true);
+						reader.start();
+						t.writer.start();
+					}
+				} catch (IOException e) {
+					// closed
+				}
+			}
+		}, "iotp-mux-accept");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		listener.multiplexWith(this);
+		System.out.println(Util.dateTime() + " -- Serving gateways on port "
+				+ port);
+	}
+
+	//@return the number of open streams of all the transports
+	public int size() {
+		int n = 0;
+		for (Transport t : transports)
+			n += t.streams.size();
+		return n;
+	}
+
+	/*
+	  Stops accepting gateways and closes their transports. Called once the
+	  sessions of the streams are terminated.
+	 */
+	void close() {
+		try {
+			server.close();
+		} catch (IOException e) {
+			// closing anyway
+		}
+		for (Transport t : transports)
+			t.close();
+		workers.shutdown();
+		binders.shutdown();
+	}
+
+	//@return the hexadecimal frame prefix of the given stream id
+	static String prefix(int streamId) {
+		byte[] id = new byte[Util.varintSize(streamId)];
+		Util.writeVarint(id, 0, streamId);
+		return Util.toHexString(id) + " ";
+	}
+
+	//@return the control message of the given operation
+	static Message control(byte op, int streamId, int value) {
+		byte[] b = new byte[1 + Util.varintSize(streamId)
+				+ Util.varintSize(value)];
+		b[0] = op;
+		Util.writeVarint(b, Util.writeVarint(b, 1, streamId), value);
+		return new Message(b);
+	}
+
+	//A multiplexed connection of a gateway
+	private class Transport implements Runnable {
+		final Socket socket;
+		final BufferedWriter out;
+		//Open streams, by id
+		final Map<Integer, Stream> streams =
+				new ConcurrentHashMap<Integer, Stream>();
+		//Frames waiting to be written, in the order they were sent
+		final LinkedBlockingQueue<String> outbound =
+				new LinkedBlockingQueue<String>(MAX_OUTBOUND);
+		//Thread writing the queued frames to the gateway
+		final Thread writer;
+
+		Transport(Socket socket) throws IOException {
+			this.socket = socket;
+			socket.setTcpNoDelay(true);
+			this.out = new BufferedWriter(new OutputStreamWriter(
+					socket.getOutputStream()), 1 << 16);
+			this.writer = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					write();
+				}
+			}, "iotp-mux-writer");
+			writer.setDaemon(true);
+		}
+
+		//Reads the frames of the gateway until the connection is lost
+		@Override
+		public void run() {
+			if (Log.isEnabled(Log.INFO))
+				Log.info("Gateway " + socket.getRemoteSocketAddress()
+						+ " connected");
+			long lastTick = System.currentTimeMillis();
+			try {
+				BufferedReader br = new BufferedReader(new InputStreamReader(
+						socket.getInputStream()), 1 << 16);
+				socket.setSoTimeout(Server.LISTEN_TIMEOUT_MS);
+				while (true) {
+					try {
+						String line = br.readLine();
+						if (line == null)
+							break;
+						frame(line);
+					} catch (SocketTimeoutException e) {
+						// idle gateway, ticks below
+					}
+					long now = System.currentTimeMillis();
+					if (now - lastTick >= Server.LISTEN_TIMEOUT_MS) {
+						lastTick = now;
+						for (Stream s : streams.values())
+							s.tick();
+					}
+				}
+			} catch (IOException | IllegalArgumentException e) {
+				if (Log.isEnabled(Log.WARN) && !(e instanceof SocketException))
+					Log.warn("Gateway " + socket.getRemoteSocketAddress()
+							+ " dropped: " + e.getMessage());
+			}
+			close();
+			for (Stream s : streams.values())
+				s.post(CLOSED);
+			transports.remove(this);
+			if (Log.isEnabled(Log.INFO))
+				Log.info("Gateway " + socket.getRemoteSocketAddress()
+						+ " disconnected");
+		}
+
+		/*
+		  Hands the message of the given frame to its stream, opening the
+		  stream if needed, or applies the control frame.
+		  @throws IllegalArgumentException if the frame is malformed.
+		 */
+		private void frame(String line) {
+			byte[] b = Util.toByteStream(line);
+			int id = Util.readVarint(b, 0);
+			int at = Util.varintSize(id);
+			if (at >= b.length)
+				throw new IllegalArgumentException("Empty frame");
+			Message m = new Message(Arrays.copyOfRange(b, at, b.length));
+			if (id == CONTROL_STREAM) {
+				int target = Util.readVarint(b, at + 1);
+				int value = Util.readVarint(b, at + 1 + Util.varintSize(target));
+				Stream s = streams.get(target);
+				if (s == null)
+					return;
+				if (m.keycode() == WINDOW && value > 0)
+					s.grant(value);
+				else if (m.keycode() == RESET)
+					s.post(CLOSED);
+				return;
+			}
+			Stream s = streams.get(id);
+			if (s == null) {
+				if (streams.size() >= MAX_STREAMS) {
+					send(CONTROL_STREAM, control(RESET, id, 0).toHexString());
+					return;
+				}
+				s = new Stream(this, id);
+				streams.put(id, s);
+			}
+			s.post(m);
+		}
+
+		/*
+		  Queues the given message lines as frames of the given stream, to be
+		  written in one write with no frame of another stream in between. The
+		  transport is closed if the gateway is too far behind.
+		 */
+		void send(int streamId, CharSequence lines) {
+			String prefix = prefix(streamId);
+			StringBuilder frames = new StringBuilder(lines.length()
+					+ 8 * prefix.length());
+			int from = 0;
+			for (int i = 0; i < lines.length(); i++) {
+				if (lines.charAt(i) == '\n') {
+					frames.append(prefix);
+					frames.append(lines, from, i + 1);
+					from = i + 1;
+				}
+			}
+			if (!outbound.offer(frames.toString())) {
+				if (Log.isEnabled(Log.WARN))
+					Log.warn("Gateway " + socket.getRemoteSocketAddress()
+							+ " dropped: over " + MAX_OUTBOUND
+							+ " writes queued");
+				// the reader notices the lost connection
+				close();
+			}
+		}
+
+		/*
+		  Writes the queued frames to the gateway until the transport is
+		  closed, flushing once the queue is empty.
+		 */
+		private void write() {
+			try {
+				while (true) {
+					out.write(outbound.take());
+					String frames;
+					while ((frames = outbound.poll()) != null)
+						out.write(frames);
+					out.flush();
+				}
+			} catch (IOException | InterruptedException e) {
+				// the reader notices the lost connection
+				close();
+			}
+		}
+
+		void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// closing anyway
+			}
+			writer.interrupt();
+			outbound.clear();
+		}
+	}
+
+	/*
+	  A logical session carried by a transport. Its frames are queued and
+	  processed in order by one worker at a time.
+	 */
+	class Stream implements Runnable, Closeable {
+		final Transport transport;
+		final int id;
+		final ServerCommunication session;
+		//Writer framing the messages of the session
+		final BufferedWriter bw;
+		//Frames and markers waiting to be processed
+		private final ConcurrentLinkedQueue<Message> inbound =
+				new ConcurrentLinkedQueue<Message>();
+		//Frames queued, markers aside
+		private final AtomicInteger frames = new AtomicInteger();
+		//Whether the stream is queued to a worker or being processed
+		private final AtomicBoolean scheduled = new AtomicBoolean();
+		//Whether a tick is queued
+		private final AtomicBoolean ticking = new AtomicBoolean();
+		private volatile boolean closed = false;
+
+		Stream(Transport transport, int id) {
+			this.transport = transport;
+			this.id = id;
+			this.bw = new BufferedWriter(new FrameWriter(), 1 << 12);
+			this.session = new ServerCommunication(ConnectListener.nextId(),
+					listener, this, new ProtocolServerDFA(listener));
+			listener.add(session);
+		}
+
+		/*
+		  Queues the given frame or marker. A stream sending too many frames
+		  ahead of their processing is reset.
+		 */
+		void post(Message m) {
+			if (closed)
+				return;
+			if (m != CLOSED && frames.incrementAndGet() > MAX_INBOUND) {
+				if (Log.isEnabled(Log.WARN))
+					Log.warn("Stream " + id + " reset: over " + MAX_INBOUND
+							+ " frames queued");
+				m = CLOSED;
+				close();
+			}
+			inbound.add(m);
+			schedule();
+		}
+
+		//Queues an idle tick, unless one is already queued
+		void tick() {
+			if (!closed && ticking.compareAndSet(false, true)) {
+				inbound.add(TICK);
+				schedule();
+			}
+		}
+
+		//Grants the given number of update credits, sending the held updates
+		void grant(int n) {
+			session.grantCredits(n);
+			tick();
+		}
+
+		/*
+		  Queues the stream to a worker, or to a binder until its session is
+		  bound to its home.
+		 */
+		private void schedule() {
+			if (scheduled.compareAndSet(false, true))
+				(session.hostedHome() == null ? binders : workers).execute(this);
+		}
+
+		//Processes the queued frames, a bounded number per turn
+		@Override
+		public void run() {
+			Message m;
+			int n = 0;
+			while (n++ < FRAMES_PER_TURN && (m = inbound.poll()) != null) {
+				if (m == CLOSED) {
+					// reset by either side, or transport lost
+					listener.remove(session);
+					if (!closed)
+						detach();
+					inbound.clear();
+					break;
+				}
+				if (closed)
+					continue;
+				try {
+					if (m == TICK) {
+						ticking.set(false);
+						if (session.backlog() >= MAX_BACKLOG) {
+							if (Log.isEnabled(Log.WARN))
+								Log.warn("Stream " + id + " reset: "
+										+ MAX_BACKLOG + " updates pending");
+							listener.remove(session);
+							close();
+						}
+						else
+							session.tick(bw);
+					}
+					else {
+						frames.decrementAndGet();
+						session.handle(m, bw);
+					}
+				} catch (Exception e) {
+					if (Log.isEnabled(Log.WARN))
+						Log.warn("Stream " + id + " reset: " + e);
+					listener.remove(session);
+					close();
+				}
+			}
+			scheduled.set(false);
+			if (!inbound.isEmpty())
+				schedule();
+		}
+
+		/*
+		  Closes the stream once its session ended, resetting it at the
+		  gateway.
+		 */
+		@Override
+		public void close() {
+			if (closed)
+				return;
+			detach();
+			transport.send(CONTROL_STREAM, control(RESET, id, 0).toHexString());
+		}
+
+		//Closes the stream without telling the gateway
+		private void detach() {
+			closed = true;
+			transport.streams.remove(id, this);
+		}
+
+		//Sends the lines written by the session as frames of the stream
+		private class FrameWriter extends Writer {
+			private final StringBuilder lines = new StringBuilder();
+
+			@Override
+			public void write(char[] cbuf, int off, int len) {
+				lines.append(cbuf, off, len);
+			}
+
+			@Override
+			public void flush() {
+				if (lines.length() == 0)
+					return;
+				transport.send(id, lines);
+				lines.setLength(0);
+			}
+
+			@Override
+			public void close() {
+				flush();
+			}
+		}
+	}
+
+	//A gateway end of a transport, for testing
+	static class Gateway {
+		final Socket socket;
+		final BufferedReader br;
+		final BufferedWriter bw;
+
+		Gateway(String host, int port) throws IOException {
+			socket = new Socket(host, port);
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout(10000);
+			br = new BufferedReader(new InputStreamReader(
+					socket.getInputStream()), 1 << 16);
+			bw = new BufferedWriter(new OutputStreamWriter(
+					socket.getOutputStream()), 1 << 16);
+		}
+
+		//Queues the given message on the given stream, flushed by flush
+		void send(int streamId, Message m) throws IOException {
+			bw.write(prefix(streamId));
+			bw.write(m.toHexString());
+		}
+
+		void flush() throws IOException {
+			bw.flush();
+		}
+
+		//@return the next frame, as its stream id and message
+		Object[] read() throws IOException {
+			String line = br.readLine();
+			if (line == null)
+				throw new IOException("Transport closed");
+			byte[] b = Util.toByteStream(line);
+			int id = Util.readVarint(b, 0);
+			return new Object[] { id, new Message(Arrays.copyOfRange(b,
+					Util.varintSize(id), b.length)) };
+		}
+	}
+
+	/*
+	  Main method for testing: opens many sessions of one home over a single
+	  gateway transport, checks that an action of a plain client reaches all
+	  of them, that a relay stream gets its own updates ahead of the confirms
+	  whatever its credits, that update credits hold the other updates back
+	  until granted, and that streams are closed by RESET and TERMINATE.
+	 */
+	public static void main(String[] args) throws Exception {
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		Log.setLevel(Log.ERROR);
+		File store = Files.createTempDirectory("iotp-mux").toFile();
+		int basePort = 9470;
+		String user = "abhi";
+		String password = Authentication.DES_STORE.get(user);
+
+		HomeRegistry homes = new HomeRegistry(new FileHomeStore(store, 4, 3),
+				100, 100);
+		ConnectListener listener = new ConnectListener(homes, null, basePort);
+		new Thread(listener).start();
+		MuxListener mux = new MuxListener(basePort + 1, listener, 0);
+		mux.start();
+		Thread.sleep(200);
+		int threadsBefore = Thread.activeCount();
+
+		long start = System.nanoTime();
+		Gateway g = new Gateway("127.0.0.1", basePort + 1);
+		Map<Integer, Home> sessions = handshake(g, 1, n, user, password,
+				ProtocolFeatures.WIDE.version());
+		System.out.println(n + " sessions over one transport in "
+				+ (System.nanoTime() - start) / 1000000 + " ms, "
+				+ mux.size() + " streams open, home sessions "
+				+ homes.loaded("default").sessions().size() + ", server threads +"
+				+ (Thread.activeCount() - threadsBefore));
+
+		// a plain client acts, every stream is sent the updates
+		Cluster.TestClient client = new Cluster.TestClient("127.0.0.1:"
+				+ basePort, user, password);
+		byte state = (byte) (System.nanoTime() & 0x3f);
+		client.act(state);
+		start = System.nanoTime();
+		Map<Integer, Home> waiting = new HashMap<Integer, Home>(sessions);
+		while (!waiting.isEmpty()) {
+			Object[] f = g.read();
+			Home home = waiting.get(f[0]);
+			if (home == null)
+				continue;
+			apply(home, (Message) f[1]);
+			if (((Light) home.devices().get(0).get(0)).dimLevel() == state)
+				waiting.remove(f[0]);
+		}
+		System.out.println("action reached " + sessions.size()
+				+ " streams in " + (System.nanoTime() - start) / 1000000
+				+ " ms");
+
+		// a relay-style stream is sent its own updates ahead of the confirms,
+		// even once its credits are spent
+		int echo = n + 1000;
+		Home echoHome = handshake(g, echo, 1, user, password,
+				ProtocolFeatures.RELAYED.version()).get(echo);
+		int actions = Message.INITIAL_CREDITS + 6;
+		int updates = 0;
+		int ordered = 0;
+		int seq = 0;
+		g.send(echo, new DeviceAction(++seq, (byte) 0, 0, (byte) 0,
+				new byte[0]).toMessage());
+		g.flush();
+		for (int i = 0; i <= actions; ) {
+			Object[] f = g.read();
+			if ((Integer) f[0] != echo)
+				continue;
+			Message m = (Message) f[1];
+			if (m.keycode() == Message.KEY_CONFIRM) {
+				if (i > 0 && ((Light) echoHome.devices().get(0).get(0))
+						.dimLevel() == i)
+					ordered++;
+				if (++i <= actions) {
+					g.send(echo, new DeviceAction(++seq, (byte) 0, 0, (byte) 2,
+							new byte[] { (byte) i }).toMessage());
+					g.flush();
+				}
+			}
+			else {
+				apply(echoHome, m);
+				updates++;
+			}
+		}
+		System.out.println("echo stream: " + (actions + 1) + " actions, "
+				+ updates + " update messages with " + Message.INITIAL_CREDITS
+				+ " credits, " + ordered + " updates ahead of their confirms");
+
+		// the updates of other clients are held back until credits are granted
+		for (int i = 0; i < 6; i++)
+			client.act((byte) (80 + i));
+		Thread.sleep(2 * Server.LISTEN_TIMEOUT_MS);
+		g.send(CONTROL_STREAM, control(WINDOW, echo, 16));
+		g.flush();
+		while (true) {
+			Object[] f = g.read();
+			if ((Integer) f[0] == echo) {
+				Message m = (Message) f[1];
+				System.out.println("after WINDOW: "
+						+ (m.keycode() == Message.KEY_UPDATE_BATCH
+								? Message.splitUpdateBatch(m).size() : 1)
+						+ " held back updates in one message");
+				break;
+			}
+		}
+
+		// a reset stream and a terminated stream are closed
+		int before = homes.loaded("default").sessions().size();
+		int first = sessions.keySet().iterator().next();
+		g.send(CONTROL_STREAM, control(RESET, first, 0));
+		int second = -1;
+		for (int id : sessions.keySet()) {
+			if (id != first) {
+				second = id;
+				break;
+			}
+		}
+		g.send(second, Message.TERMINATE);
+		g.flush();
+		boolean terminated = false, reset = false;
+		while (!terminated || !reset) {
+			Object[] f = g.read();
+			Message m = (Message) f[1];
+			if ((Integer) f[0] == second && m.keycode() == Message.KEY_TERMINATE)
+				terminated = true;
+			if ((Integer) f[0] == CONTROL_STREAM && m.keycode() == RESET
+					&& Util.readVarint(m.bytes(), 1) == second)
+				reset = true;
+		}
+		Thread.sleep(200);
+		System.out.println("after RESET and TERMINATE: home sessions "
+				+ before + " -> " + homes.loaded("default").sessions().size()
+				+ ", streams open " + mux.size());
+		System.exit(0);
+	}
+
+	/*
+	  Opens the given number of streams from the given id on, and runs their
+	  handshake for the given version, frames of all the streams pipelined.
+	  Streams failing authentication are retried with new ids.
+	  @return the home of every stream, by stream id.
+	 */
+	private static Map<Integer, Home> handshake(Gateway g, int firstId, int n,
+			String user, String password, String version) throws IOException {
+		Map<Integer, Home> homes = new HashMap<Integer, Home>();
+		int next = firstId;
+		List<Integer> pending = new java.util.ArrayList<Integer>();
+		while (homes.size() < n) {
+			pending.clear();
+			for (int i = homes.size(); i < n; i++) {
+				pending.add(next);
+				g.send(next++, Message.PING);
+			}
+			g.flush();
+			Map<Integer, Message> answers = readAll(g, pending);
+			for (int id : pending)
+				g.send(id, new Message(version.getBytes(), Message.KEY_VERSION));
+			g.flush();
+			answers = readAll(g, pending);
+			for (int id : pending)
+				g.send(id, new Message(Authentication.generateUserResponse(user,
+						password, answers.get(id).contentBytes()),
+						Message.KEY_RESPONSE));
+			g.flush();
+			answers = readAll(g, pending);
+			for (int id : pending) {
+				Message m = answers.get(id);
+				// responses holding a ';' byte fail authentication
+				if (m.keycode() == Message.KEY_ERROR)
+					continue;
+				Home home = null;
+				while (m.keycode() == Message.KEY_INIT_CHUNK) {
+					if (home == null)
+						home = new devices.LazyHome();
+					if (home.addInitChunk(m))
+						break;
+					m = next(g, id);
+				}
+				homes.put(id, home != null ? home : Home.createHomeFromInit(m));
+			}
+		}
+		return homes;
+	}
+
+	//@return the next message of every given stream
+	private static Map<Integer, Message> readAll(Gateway g, List<Integer> ids)
+			throws IOException {
+		Map<Integer, Message> answers = new HashMap<Integer, Message>();
+		while (answers.size() < ids.size()) {
+			Object[] f = g.read();
+			if (ids.contains(f[0]) && !answers.containsKey(f[0]))
+				answers.put((Integer) f[0], (Message) f[1]);
+		}
+		return answers;
+	}
+
+	//@return the next message of the given stream
+	private static Message next(Gateway g, int id) throws IOException {
+		while (true) {
+			Object[] f = g.read();
+			if ((Integer) f[0] == id)
+				return (Message) f[1];
+		}
+	}
+
+	//Applies the given update or update batch message on the given home
+	private static void apply(Home home, Message m) {
+		List<Message> updates = m.keycode() == Message.KEY_UPDATE_BATCH
+				? Message.splitUpdateBatch(m) : Collections.singletonList(m);
+		for (Message u : updates) {
+			if (u.keycode() == Message.KEY_UPDATE)
+				home.doActions(new DeviceAction[] {
+						DeviceAction.fromUpdate(u.bytes()) }, new Exception[1]);
+		}
+	}
+}
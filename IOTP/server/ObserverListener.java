@@ -0,0 +1,700 @@
+/*
+  CS544 - Computer Networks
+  Drexel University
+  Protocol Implementation: IoT Home Control Protocol
+  Abhilasha Jayaswal
+
+  File name: ObserverListener.java
+
+  Purpose:
+  Serves read-only observer sessions, for dashboards that only display a
+  home: they receive the INIT and the updates of the home and never send
+  actions. Observers connect to their own port and skip the PING and
+  VERSION exchange: the server sends the challenge as soon as the
+  connection is accepted, the observer answers with its response, and the
+  server sends the INIT (a single INIT message), then the updates of the
+  home as update or update batch messages, with the same encoding as
+  sessions. An observer may send TERMINATE to leave; any other message is
+  answered with an error and closes the connection. A cluster node
+  redirects the observers of the homes it does not host.
+  Observers hold no thread: their connections are non-blocking and served
+  by one selector loop per core, and an observer is a small object holding
+  its connection and the INIT version of its home, so a server can keep
+  hundreds of thousands of them. The updates of a home are handed to the
+  loops in one queue operation per loop, encoded once per loop and written
+  to every observer of the home from the same bytes; the home version after
+  every batch tells which batches an observer's INIT already holds. Homes
+  are routed and loaded by a separate binder thread, so neither waiting for
+  another cluster node to release a home nor loading it ever stalls a loop.
+  Observers that stop reading are disconnected once MAX_BACKLOG_BYTES of
+  updates are waiting for them.
+ */
+
+package server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import devices.DeviceAction;
+import devices.Home;
+import devices.HomeImage;
+import devices.Light;
+import protocol.Authentication;
+import protocol.Log;
+import protocol.Message;
+import protocol.Util;
+
+public class ObserverListener {
+
+	//Updates waiting for an observer past which it is disconnected
+	static final int MAX_BACKLOG_BYTES = 1 << 20;
+	//Longest message accepted from an observer, in characters
+	private static final int MAX_LINE = 1024;
+
+	//Port observers connect to
+	private final int port;
+	//Listener whose homes are observed
+	private final ConnectListener listener;
+	private final HomeRegistry homes;
+	//Selector loops, the first one also accepting connections
+	private final Loop[] loops;
+	//Tasks of the binder thread, loading and unloading observed homes
+	private final LinkedBlockingQueue<Runnable> binderTasks =
+			new LinkedBlockingQueue<Runnable>();
+	private ServerSocketChannel server;
+	private Thread binder;
+	//Loop the next accepted observer is served by
+	private int nextLoop = 0;
+	//Number of connected observers
+	private final AtomicInteger count = new AtomicInteger();
+
+	/*
+	  Constructs a listener of observers of the homes of the given connection
+	  listener, accepting them on the given port once started, with the
+	  given number of selector loops (0 for one per core).
+	 */
+	public ObserverListener(int port, ConnectListener listener, int numLoops) {
+		this.port = port;
+		this.listener = listener;
+		this.homes = listener.homes();
+		loops = new Loop[numLoops > 0 ? numLoops
+				: Runtime.getRuntime().availableProcessors()];
+	}
+
+	//Starts accepting observers
+	public void start() throws IOException {
+		server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(port), 1024);
+		server.configureBlocking(false);
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new Loop();
+			loops[i].thread = new Thread(loops[i], "iotp-observers-" + i);
+			loops[i].thread.setDaemon(true);
+		}
+		server.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+		for (Loop loop : loops)
+			loop.thread.start();
+		binder = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (true)
+						binderTasks.take().run();
+				} catch (InterruptedException e) {
+					// closed
+				}
+			}
+		}, "iotp-observer-binder");
+		binder.setDaemon(true);
+		binder.start();
+		listener.observeWith(this);
+		System.out.println(Util.dateTime() + " -- Serving observers on port "
+				+ port);
+	}
+
+	//@return the number of connected observers
+	public int size() {
+		return count.get();
+	}
+
+	/*
+	  Hands the given batch of updates of a home to the observers of the
+	  home. Called by the thread writing the home, right after applying the
+	  batch, so the home version is the one the batch produced.
+	 */
+	void publish(final HostedHome hosted, final UpdateBatch batch) {
+		final long version = hosted.home().initVersion();
+		for (final Loop loop : loops) {
+			loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					loop.deliver(hosted, batch, version);
+				}
+			});
+		}
+	}
+
+	/*
+	  Disconnects the observers of the given home, which is no longer
+	  served, redirecting them to the given cluster node if not null.
+	 */
+	void close(final HostedHome hosted, final String redirect) {
+		for (final Loop loop : loops) {
+			loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					Group group = loop.groups.get(hosted);
+					if (group == null)
+						return;
+					Message last = redirect != null
+							? Message.createRedirect(redirect)
+							: Message.TERMINATE;
+					for (int i = group.members.size() - 1; i >= 0; i--)
+						group.members.get(i).sendLast(last);
+				}
+			});
+		}
+	}
+
+	//Sends TERMINATE to all observers and stops accepting them
+	void close() {
+		try {
+			server.close();
+		} catch (IOException e) {
+			// closing anyway
+		}
+		for (final Loop loop : loops) {
+			loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					loop.shutdown();
+				}
+			});
+		}
+		binder.interrupt();
+	}
+
+	//@return the line sent for the given message
+	private static ByteBuffer line(Message m) {
+		return ByteBuffer.wrap(m.toHexString().getBytes(
+				StandardCharsets.US_ASCII));
+	}
+
+	//The observers of one home served by one loop
+	private static class Group {
+		final List<Observer> members = new ArrayList<Observer>();
+		//Last INIT sent, reused while the home does not change
+		HomeImage initImage;
+		ByteBuffer initLine;
+
+		void add(Observer o) {
+			o.index = members.size();
+			members.add(o);
+		}
+
+		//Removes the given observer, moving the last one to its place
+		void remove(Observer o) {
+			Observer last = members.remove(members.size() - 1);
+			if (last != o) {
+				members.set(o.index, last);
+				last.index = o.index;
+			}
+		}
+	}
+
+	//A selector loop, the only thread touching its observers
+	private class Loop implements Runnable {
+		final Selector selector;
+		Thread thread;
+		//Tasks to run on the loop
+		private final ConcurrentLinkedQueue<Runnable> tasks =
+				new ConcurrentLinkedQueue<Runnable>();
+		//Set once the loop is woken up, until it runs its tasks
+		private final AtomicBoolean woken = new AtomicBoolean();
+		//Observers of every home, by home
+		final Map<HostedHome, Group> groups =
+				new IdentityHashMap<HostedHome, Group>();
+		//Buffer of all reads of the loop
+		private final ByteBuffer readBuffer = ByteBuffer.allocate(4096);
+		private boolean stop = false;
+
+		Loop() throws IOException {
+			selector = Selector.open();
+		}
+
+		//Runs the given task on the loop
+		void execute(Runnable task) {
+			tasks.add(task);
+			if (woken.compareAndSet(false, true))
+				selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			while (!stop) {
+				try {
+					selector.select();
+					woken.set(false);
+					Runnable task;
+					while ((task = tasks.poll()) != null)
+						task.run();
+					for (SelectionKey key : selector.selectedKeys()) {
+						if (!key.isValid())
+							continue;
+						if (key.isAcceptable())
+							accept();
+						else {
+							Observer o = (Observer) key.attachment();
+							if (key.isWritable())
+								o.writable();
+							if (key.isValid() && key.isReadable())
+								o.readable();
+						}
+					}
+					selector.selectedKeys().clear();
+				} catch (IOException e) {
+					if (Log.isEnabled(Log.ERROR))
+						Log.error("Observer loop failed: " + e.getMessage());
+				} catch (RuntimeException e) {
+					if (Log.isEnabled(Log.ERROR))
+						Log.error("Observer loop failed: " + e);
+				}
+			}
+		}
+
+		//Accepts the pending connections, spreading them over the loops
+		private void accept() throws IOException {
+			SocketChannel channel;
+			while ((channel = server.accept()) != null) {
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				final SocketChannel c = channel;
+				final Loop loop = loops[nextLoop];
+				nextLoop = (nextLoop + 1) % loops.length;
+				loop.execute(new Runnable() {
+					@Override
+					public void run() {
+						loop.register(c);
+					}
+				});
+			}
+		}
+
+		//Starts the handshake of the given accepted connection
+		void register(SocketChannel channel) {
+			Observer o = new Observer(this, channel);
+			try {
+				o.key = channel.register(selector, SelectionKey.OP_READ, o);
+			} catch (ClosedChannelException e) {
+				return;
+			}
+			count.incrementAndGet();
+			o.challenge = Authentication.generateRandomChallenge();
+			o.send(line(new Message(o.challenge, Message.KEY_CHALLENGE)));
+		}
+
+		//Adds the given observer bound to the given home, and sends its INIT
+		void bound(Observer o, HostedHome hosted) {
+			if (o.closed) {
+				unobserve(hosted);
+				return;
+			}
+			o.hosted = hosted;
+			Group group = groups.get(hosted);
+			if (group == null) {
+				group = new Group();
+				groups.put(hosted, group);
+			}
+			o.group = group;
+			group.add(o);
+			// batches applied after this image are sent after the INIT
+			HomeImage snapshot = hosted.home().snapshot();
+			o.initVersion = snapshot.version();
+			if (group.initImage != snapshot) {
+				group.initImage = snapshot;
+				group.initLine = line(new Message(snapshot.toInit()))
+						.asReadOnlyBuffer();
+			}
+			o.send(group.initLine.duplicate());
+		}
+
+		/*
+		  Writes the given batch of updates of a home, produced at the given
+		  home version, to the observers of the home whose INIT predates it.
+		 */
+		void deliver(HostedHome hosted, UpdateBatch batch, long version) {
+			Group group = groups.get(hosted);
+			if (group == null)
+				return;
+			List<Message> updates = new ArrayList<Message>(batch.size());
+			for (int i = 0; i < batch.size(); i++)
+				updates.add(batch.update(i));
+			StringBuilder sb = new StringBuilder();
+			for (int from = 0; from < updates.size();
+					from += Message.MAX_BATCH_UPDATES)
+				sb.append(Message.createUpdateBatch(updates.subList(from,
+						Math.min(updates.size(),
+								from + Message.MAX_BATCH_UPDATES)))
+						.toHexString());
+			ByteBuffer shared = ByteBuffer.wrap(sb.toString().getBytes(
+					StandardCharsets.US_ASCII)).asReadOnlyBuffer();
+			// observers closed meanwhile are swapped with visited ones
+			for (int i = group.members.size() - 1; i >= 0; i--) {
+				Observer o = group.members.get(i);
+				if (version > o.initVersion)
+					o.send(shared.duplicate());
+			}
+		}
+
+		//Terminates all observers of the loop and stops it
+		void shutdown() {
+			ByteBuffer terminate = line(Message.TERMINATE).asReadOnlyBuffer();
+			for (SelectionKey key : selector.keys()) {
+				if (key.attachment() instanceof Observer) {
+					Observer o = (Observer) key.attachment();
+					o.send(terminate.duplicate());
+					o.close();
+				}
+			}
+			stop = true;
+			try {
+				selector.close();
+			} catch (IOException e) {
+				// closing anyway
+			}
+		}
+
+		//Unbinds an observer from the given home, on the binder thread
+		void unobserve(final HostedHome hosted) {
+			binderTasks.add(new Runnable() {
+				@Override
+				public void run() {
+					homes.unobserve(hosted);
+				}
+			});
+		}
+	}
+
+	//An observer connection, only touched by its loop
+	private class Observer {
+		final Loop loop;
+		final SocketChannel channel;
+		SelectionKey key;
+		//Challenge sent, until the response is received
+		byte[] challenge;
+		//Message being received, null between messages
+		StringBuilder in;
+		//The home observed, and its observers on the loop, once bound
+		HostedHome hosted;
+		Group group;
+		int index;
+		//Version of the home image sent in the INIT
+		long initVersion;
+		//Bytes waiting to be written, null if none
+		ArrayDeque<ByteBuffer> pending;
+		int pendingBytes;
+		//Set once the last message is queued, closed once it is written
+		boolean closing = false;
+		boolean closed = false;
+
+		Observer(Loop loop, SocketChannel channel) {
+			this.loop = loop;
+			this.channel = channel;
+		}
+
+		//Writes the given bytes, or queues them until writable
+		void send(ByteBuffer b) {
+			if (closed || closing)
+				return;
+			try {
+				if (pending == null) {
+					channel.write(b);
+					if (!b.hasRemaining())
+						return;
+					pending = new ArrayDeque<ByteBuffer>(4);
+					key.interestOps(SelectionKey.OP_READ
+							| SelectionKey.OP_WRITE);
+				}
+				pending.add(b);
+				pendingBytes += b.remaining();
+				if (pendingBytes > MAX_BACKLOG_BYTES) {
+					if (Log.isEnabled(Log.WARN))
+						Log.warn("Observer " + channel.getRemoteAddress()
+								+ " too slow, disconnected");
+					close();
+				}
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		//Sends the given message and closes the connection once it is written
+		void sendLast(Message m) {
+			send(line(m));
+			if (pending == null)
+				close();
+			else
+				closing = true;
+		}
+
+		//Writes the queued bytes
+		void writable() {
+			try {
+				while (pending != null) {
+					ByteBuffer b = pending.peek();
+					int before = b.remaining();
+					channel.write(b);
+					pendingBytes -= before - b.remaining();
+					if (b.hasRemaining())
+						return;
+					pending.poll();
+					if (pending.isEmpty())
+						pending = null;
+				}
+				key.interestOps(SelectionKey.OP_READ);
+				if (closing)
+					close();
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		//Reads the messages received
+		void readable() {
+			ByteBuffer buf = loop.readBuffer;
+			buf.clear();
+			int n;
+			try {
+				n = channel.read(buf);
+			} catch (IOException e) {
+				n = -1;
+			}
+			if (n < 0) {
+				close();
+				return;
+			}
+			for (int i = 0; i < n && !closed && !closing; i++) {
+				char c = (char) buf.get(i);
+				if (c == '\n') {
+					String line = in != null ? in.toString().trim() : "";
+					in = null;
+					received(line);
+				} else {
+					if (in == null)
+						in = new StringBuilder();
+					if (in.length() >= MAX_LINE) {
+						close();
+						return;
+					}
+					in.append(c);
+				}
+			}
+		}
+
+		//Handles the given message line of the observer
+		private void received(String line) {
+			Message m;
+			try {
+				m = Message.fromHexString(line);
+			} catch (RuntimeException e) {
+				sendLast(Message.ERROR_GENERAL);
+				return;
+			}
+			if (challenge == null) {
+				// bound or binding: observers may only leave
+				if (m.length() == 1 && m.keycode() == Message.KEY_TERMINATE)
+					close();
+				else
+					sendLast(Message.ERROR_OBSERVER);
+				return;
+			}
+			if (m.keycode() != Message.KEY_RESPONSE
+					|| !Authentication.checkUserResponse(challenge,
+							m.contentBytes())) {
+				sendLast(Message.ERROR_AUTH);
+				return;
+			}
+			challenge = null;
+			final String homeId = Authentication.homeOf(
+					Authentication.usernameOf(m.contentBytes()));
+			final Observer o = this;
+			// routing may wait for the release of the home by another node
+			binderTasks.add(new Runnable() {
+				@Override
+				public void run() {
+					final String owner = listener.route(homeId);
+					if (owner != null) {
+						loop.execute(new Runnable() {
+							@Override
+							public void run() {
+								o.sendLast(Message.createRedirect(owner));
+							}
+						});
+						return;
+					}
+					try {
+						final HostedHome hosted = homes.observe(homeId);
+						loop.execute(new Runnable() {
+							@Override
+							public void run() {
+								loop.bound(o, hosted);
+							}
+						});
+					} catch (Exception e) {
+						if (Log.isEnabled(Log.ERROR))
+							Log.error("Failed loading home " + homeId
+									+ " for observer: " + e.getMessage());
+						loop.execute(new Runnable() {
+							@Override
+							public void run() {
+								o.sendLast(Message.ERROR_GENERAL);
+							}
+						});
+					}
+				}
+			});
+		}
+
+		//Closes the connection and unbinds the observer from its home
+		void close() {
+			if (closed)
+				return;
+			closed = true;
+			count.decrementAndGet();
+			key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// closing anyway
+			}
+			pending = null;
+			if (group != null) {
+				group.remove(this);
+				if (group.members.isEmpty())
+					loop.groups.remove(hosted);
+				group = null;
+			}
+			if (hosted != null)
+				loop.unobserve(hosted);
+		}
+	}
+
+	/*
+	  Main method for testing: starts a server with an observer port,
+	  connects observers to a home, and checks that their INIT matches the
+	  one of a session, that an action of a session reaches every observer,
+	  and that observers cannot send actions.
+	  Arguments: [observers] (default 2000).
+	 */
+	public static void main(String[] args) throws Exception {
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		Log.setLevel(Log.ERROR);
+		File store = Files.createTempDirectory("iotp-observers").toFile();
+		int basePort = 9370;
+		String user = "abhi";
+		String password = Authentication.DES_STORE.get(user);
+
+		HomeRegistry homes = new HomeRegistry(new FileHomeStore(store, 4, 3),
+				100, 100);
+		ConnectListener listener = new ConnectListener(homes, null, basePort);
+		new Thread(listener).start();
+		ObserverListener observers = new ObserverListener(basePort + 1,
+				listener, 0);
+		observers.start();
+		Thread.sleep(200);
+
+		long start = System.nanoTime();
+		BufferedReader[] readers = new BufferedReader[n];
+		BufferedWriter[] writers = new BufferedWriter[n];
+		byte[] init = null;
+		boolean same = true;
+		for (int i = 0; i < n; i++) {
+			Message m;
+			do {
+				Socket s = new Socket("127.0.0.1", basePort + 1);
+				readers[i] = new BufferedReader(new InputStreamReader(
+						s.getInputStream()), 512);
+				writers[i] = new BufferedWriter(new OutputStreamWriter(
+						s.getOutputStream()), 512);
+				Message challenge = Message.fromHexString(readers[i].readLine());
+				new Message(Authentication.generateUserResponse(user, password,
+						challenge.contentBytes()), Message.KEY_RESPONSE)
+						.write(writers[i]);
+				m = Message.fromHexString(readers[i].readLine());
+				// responses holding a ';' byte fail authentication, retry
+				if (m.keycode() == Message.KEY_ERROR)
+					s.close();
+			} while (m.keycode() == Message.KEY_ERROR);
+			if (init == null)
+				init = m.bytes();
+			same &= Arrays.equals(init, m.bytes());
+		}
+		Thread.sleep(100);
+		System.out.println(n + " observers bound in "
+				+ (System.nanoTime() - start) / 1000000 + " ms, "
+				+ observers.size() + " connected, same INIT: " + same);
+
+		Cluster.TestClient client = new Cluster.TestClient("127.0.0.1:"
+				+ basePort, user, password);
+		System.out.println("observer INIT matches the session INIT: "
+				+ Arrays.equals(init, client.init));
+		byte state = (byte) (System.nanoTime() & 0x3f);
+		client.act(state);
+		start = System.nanoTime();
+		int reached = 0;
+		for (int i = 0; i < n; i++) {
+			Home home = Home.createHomeFromInit(new Message(init));
+			// the updates of the two actions, in one or two messages
+			while (((Light) home.devices().get(0).get(0)).dimLevel() != state) {
+				Message m = Message.fromHexString(readers[i].readLine());
+				List<Message> updates = m.keycode() == Message.KEY_UPDATE_BATCH
+						? Message.splitUpdateBatch(m)
+						: Collections.singletonList(m);
+				for (Message u : updates)
+					home.doActions(new DeviceAction[] {
+							DeviceAction.fromUpdate(u.bytes()) },
+							new Exception[1]);
+			}
+			reached++;
+		}
+		System.out.println("action reached " + reached + " observers, read in "
+				+ (System.nanoTime() - start) / 1000000 + " ms");
+
+		new DeviceAction(1, (byte) 0, 0, (byte) 1, new byte[0])
+				.toMessage().write(writers[0]);
+		System.out.println("observer action answered with: "
+				+ Message.fromHexString(readers[0].readLine()).content());
+		Message.TERMINATE.write(writers[1]);
+		Thread.sleep(200);
+		System.out.println("observers after 2 left: " + observers.size()
+				+ ", home sessions " + homes.loaded(Authentication.homeOf(user))
+				.sessions().size() + ", home observers "
+				+ homes.loaded(Authentication.homeOf(user)).observers());
+		System.exit(0);
+	}
+}
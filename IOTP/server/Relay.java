@@ -0,0 +1,542 @@
+/*
+  CS544 - Computer Networks
+  Drexel University
+  Protocol Implementation: IoT Home Control Protocol
+  Abhilasha Jayaswal
+
+  File name: Relay.java
+
+  Purpose:
+  Home store of an edge relay server, which takes the broadcast fan-out of
+  a home off the server holding it. Loading a home opens one upstream
+  session to that server, as a user of the home, and returns the home of its
+  INIT; every client of the home connected to the relay then shares this
+  session, so the upstream server broadcasts each change once per relay
+  instead of once per client. Unloading the home closes the session.
+  The upstream session negotiates the relay protocol version (see
+  ProtocolFeatures): it receives the updates of its own actions too, ahead
+  of their confirms, so the relay applies every change of the home in the
+  order the upstream server applied it. Updates are applied by the thread
+  reading the upstream session, the single writer of the relayed home, and
+  broadcast to the sessions of the relay like local changes. Actions of the
+  sessions of the relay are forwarded on the upstream session and confirmed
+  once confirmed upstream; the update of a forwarded action is not sent back
+  to the session that sent it.
+  A relay is a plain server to its clients, so relays can be chained, each
+  level multiplying the fan-out. Relays share the authentication storage of
+  the server they relay. When an upstream session is lost, the home is
+  dropped and its clients disconnected; clients reconnecting open a new
+  upstream session.
+ */
+
+package server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import devices.DeviceAction;
+import devices.Home;
+import devices.LazyHome;
+import protocol.Authentication;
+import protocol.Log;
+import protocol.Message;
+import protocol.ProtocolFeatures;
+
+public class Relay implements HomeStore {
+
+	//Number of redirects followed when opening an upstream session
+	private static final int MAX_REDIRECTS = 5;
+	//Time to wait for each message of the upstream handshake
+	private static final int HANDSHAKE_TIMEOUT_MS = 10000;
+
+	//Address of the relayed server
+	private final String host;
+	private final int port;
+	private ConnectListener listener;
+	private HomeRegistry homes;
+	//Upstream sessions of the loaded homes, by home id
+	private final Map<String, Upstream> upstreams =
+			new ConcurrentHashMap<String, Upstream>();
+	private volatile boolean closed = false;
+
+	//Constructs a relay of the server at the given address
+	public Relay(String host, int port) {
+		this.host = host;
+		this.port = port;
+	}
+
+	/*
+	  Starts relaying the homes of the given registry, broadcasting their
+	  updates to the sessions of the given listener and forwarding their
+	  actions upstream.
+	 */
+	public void start(ConnectListener listener, HomeRegistry homes) {
+		this.listener = listener;
+		this.homes = homes;
+		listener.relayThrough(this);
+		if (Log.isEnabled(Log.INFO))
+			Log.info("Relaying " + host + ":" + port);
+	}
+
+	//Opens the upstream session of the given home and returns the home of its INIT
+	@Override
+	public Home load(String homeId) throws Exception {
+		if (closed)
+			throw new IOException("Relay closed");
+		Upstream upstream = new Upstream(homeId);
+		Home home = upstream.open();
+		upstreams.put(homeId, upstream);
+		upstream.start();
+		return home;
+	}
+
+	//Does nothing: the relayed server saves the homes
+	@Override
+	public void save(String homeId, byte[] init) {
+	}
+
+	//Closes the upstream session of the given home unloaded by the registry
+	@Override
+	public void release(String homeId) {
+		Upstream upstream = upstreams.remove(homeId);
+		if (upstream != null)
+			upstream.close();
+	}
+
+	/*
+	  Forwards the given action of a session on the upstream session of its
+	  home.
+	  @param hosted the home of the session.
+	  @param action the action, in the encoding of the session.
+	  @param origin the session, which is not sent the resulting update.
+	  @return a future completed once the action is confirmed upstream, with
+	  whether it changed the state of the device, or exceptionally if it was
+	  rejected or the upstream session was lost.
+	 */
+	public CompletableFuture<Boolean> forward(HostedHome hosted,
+			DeviceAction action, ServerCommunication origin) {
+		Upstream upstream = hosted != null ? upstreams.get(hosted.id()) : null;
+		if (upstream == null || upstream.home != hosted.home()) {
+			CompletableFuture<Boolean> f = new CompletableFuture<Boolean>();
+			f.completeExceptionally(new IOException("No upstream session"));
+			return f;
+		}
+		return upstream.forward(action, origin);
+	}
+
+	//@return the number of upstream sessions open
+	public int size() {
+		return upstreams.size();
+	}
+
+	//Closes all upstream sessions, when the server terminates
+	void close() {
+		closed = true;
+		for (Upstream upstream : upstreams.values())
+			upstream.close();
+		upstreams.clear();
+	}
+
+	//The upstream session of one relayed home
+	private class Upstream {
+		final String homeId;
+		Socket socket;
+		BufferedReader br;
+		BufferedWriter bw;
+		//The relayed home, written by the reader thread only
+		Home home;
+		//Registry entry of the home, once found
+		private HostedHome hosted;
+		//Actions forwarded and not confirmed yet, in the order sent
+		private final ConcurrentLinkedQueue<Forwarded> inFlight =
+				new ConcurrentLinkedQueue<Forwarded>();
+		//Sequence number of the last forwarded action, guarded by the writer
+		private int sequenceNumber = 0;
+		//Set once closed or lost, guarded by the writer
+		private boolean closed = false;
+
+		Upstream(String homeId) {
+			this.homeId = homeId;
+		}
+
+		/*
+		  Connects and authenticates as a user of the home, following
+		  redirects to the cluster node hosting it.
+		  @return the home of the INIT received.
+		 */
+		Home open() throws Exception {
+			String user = Authentication.userOf(homeId);
+			if (user == null)
+				throw new IOException("No user controls home " + homeId);
+			String address = host + ":" + port;
+			for (int redirects = 0; ; redirects++) {
+				int sep = address.lastIndexOf(':');
+				socket = new Socket(address.substring(0, sep),
+						Integer.parseInt(address.substring(sep + 1)));
+				try {
+					socket.setTcpNoDelay(true);
+					socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+					br = new BufferedReader(new InputStreamReader(
+							socket.getInputStream()));
+					bw = new BufferedWriter(new OutputStreamWriter(
+							socket.getOutputStream()));
+					Message.PING_OFFER.write(bw);
+					Message offer = read();
+					if (offer.keycode() != Message.KEY_VERSION
+							|| ProtocolFeatures.select(offer.content(),
+									ProtocolFeatures.RELAYED.version())
+									!= ProtocolFeatures.RELAYED)
+						throw new IOException("Upstream server " + address
+								+ " cannot be relayed");
+					new Message(ProtocolFeatures.RELAYED.version().getBytes(),
+							Message.KEY_VERSION).write(bw);
+					Message challenge = read();
+					if (challenge.keycode() != Message.KEY_CHALLENGE)
+						throw new IOException("Upstream error: "
+								+ challenge.content());
+					new Message(Authentication.generateUserResponse(user,
+							Authentication.DES_STORE.get(user),
+							challenge.contentBytes()), Message.KEY_RESPONSE)
+							.write(bw);
+					Message m = read();
+					if (m.keycode() == Message.KEY_REDIRECT
+							&& redirects < MAX_REDIRECTS) {
+						socket.close();
+						address = m.content();
+						continue;
+					}
+					Home h;
+					if (m.keycode() == Message.KEY_INIT_CHUNK) {
+						h = new LazyHome();
+						while (!h.addInitChunk(m))
+							m = read();
+					} else if (m.keycode() == Message.KEY_INITIAL)
+						h = LazyHome.fromInit(m);
+					else
+						throw new IOException("Upstream error: " + m.content());
+					socket.setSoTimeout(0);
+					home = h;
+					if (Log.isEnabled(Log.INFO))
+						Log.info("Relaying home " + homeId + " from " + address);
+					return h;
+				} catch (Exception e) {
+					socket.close();
+					throw e;
+				}
+			}
+		}
+
+		//@return the next message of the handshake
+		private Message read() throws IOException {
+			String line = br.readLine();
+			if (line == null)
+				throw new IOException("Upstream server closed the session");
+			return Message.fromHexString(line);
+		}
+
+		//Starts applying the updates received on the session
+		void start() {
+			Thread reader = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					receive();
+				}
+			}, "iotp-relay-" + homeId);
+			reader.setDaemon(true);
+			reader.start();
+		}
+
+		/*
+		  Sends the given action upstream under the next sequence number of
+		  the session.
+		 */
+		CompletableFuture<Boolean> forward(DeviceAction action,
+				ServerCommunication origin) {
+			Forwarded f = new Forwarded(action, origin);
+			byte[] params = new byte[action.numParams()];
+			for (int i = 0; i < params.length; i++)
+				params[i] = action.getParam(i);
+			try {
+				synchronized (this) {
+					if (closed)
+						throw new IOException("Upstream session of home "
+								+ homeId + " lost");
+					sequenceNumber = (sequenceNumber + 1) & 0x7fffffff;
+					f.sequenceNumber = sequenceNumber;
+					inFlight.add(f);
+					new DeviceAction(sequenceNumber, action.deviceType(),
+							action.deviceNumber(), action.opcode(), params)
+							.toMessage().write(bw);
+				}
+			} catch (IOException e) {
+				f.result.completeExceptionally(e);
+				close();
+			}
+			return f.result;
+		}
+
+		//Closes the session, ending it upstream
+		void close() {
+			synchronized (this) {
+				if (closed)
+					return;
+				closed = true;
+				try {
+					Message.TERMINATE.write(bw);
+				} catch (IOException e) {
+					// closing anyway
+				}
+			}
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// closing anyway
+			}
+		}
+
+		//Handles the messages of the upstream server until the session ends
+		private void receive() {
+			try {
+				String line;
+				while ((line = br.readLine()) != null) {
+					Message m = Message.fromHexString(line);
+					if (m.keycode() == Message.KEY_UPDATE)
+						apply(Collections.singletonList(m));
+					else if (m.keycode() == Message.KEY_UPDATE_BATCH)
+						apply(Message.splitUpdateBatch(m));
+					else if (m.keycode() == Message.KEY_CONFIRM)
+						confirmed(m);
+					else {
+						// terminated, redirected or failed upstream
+						if (Log.isEnabled(Log.INFO))
+							Log.info("Upstream session of home " + homeId
+									+ " ended: " + m.toCustomString());
+						break;
+					}
+				}
+			} catch (IOException e) {
+				// lost below
+			} catch (RuntimeException e) {
+				if (Log.isEnabled(Log.ERROR))
+					Log.error("Upstream session of home " + homeId
+							+ " failed: " + e.getMessage());
+			}
+			lost();
+		}
+
+		/*
+		  Applies the given updates on the home and broadcasts them to the
+		  sessions of the relay. The update of the next forwarded action, if
+		  it changed the home, is received after the confirm of the previous
+		  one and before its own, and is not sent to the session of the
+		  action.
+		 */
+		private void apply(List<Message> updates) {
+			Forwarded next = inFlight.peek();
+			DeviceAction[] actions = new DeviceAction[updates.size()];
+			ServerCommunication[] origins =
+					new ServerCommunication[updates.size()];
+			for (int i = 0; i < actions.length; i++) {
+				byte[] update = updates.get(i).bytes();
+				actions[i] = DeviceAction.fromUpdate(update);
+				if (next != null && !next.echoed
+						&& Arrays.equals(update, next.update)) {
+					next.echoed = true;
+					origins[i] = next.origin;
+				}
+			}
+			Exception[] failures = new Exception[actions.length];
+			boolean[] changed = home.doActions(actions, failures);
+			UpdateBatch batch = new UpdateBatch(actions.length);
+			for (int i = 0; i < actions.length; i++) {
+				if (changed[i])
+					batch.add(updates.get(i), actions[i].version(), origins[i]);
+				else if (Log.isEnabled(Log.WARN))
+					Log.warn("Relayed update of home " + homeId
+							+ " not applied: " + (failures[i] != null
+									? failures[i].getMessage() : "no change"));
+			}
+			HostedHome h = hosted();
+			if (batch.size() > 0 && h != null)
+				listener.broadcast(h, batch);
+		}
+
+		//Completes the forwarded action confirmed by the given message
+		private void confirmed(Message m) throws IOException {
+			Forwarded f = inFlight.poll();
+			if (f == null || Message.confirmSequenceNumber(m, true)
+					!= f.sequenceNumber)
+				throw new IOException("Unexpected confirm");
+			if (Message.confirmAccepted(m))
+				f.result.complete(f.echoed);
+			else
+				f.result.completeExceptionally(new IllegalStateException(
+						"Action rejected upstream"));
+		}
+
+		/*
+		  Fails the actions in flight and, unless the session was closed by
+		  the relay, drops the home and disconnects its clients.
+		 */
+		private void lost() {
+			boolean wasClosed;
+			synchronized (this) {
+				wasClosed = closed;
+				closed = true;
+			}
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// closing anyway
+			}
+			Forwarded f;
+			while ((f = inFlight.poll()) != null)
+				f.result.completeExceptionally(new IOException(
+						"Upstream session of home " + homeId + " lost"));
+			if (wasClosed)
+				return;
+			upstreams.remove(homeId, this);
+			if (Log.isEnabled(Log.WARN))
+				Log.warn("Upstream session of home " + homeId
+						+ " lost, disconnecting its clients");
+			HostedHome h = hosted();
+			if (h != null) {
+				homes.drop(homeId);
+				for (ServerCommunication s : h.sessions())
+					s.markterminate();
+				listener.closeObservers(h, null);
+			}
+		}
+
+		/*
+		  @return the registry entry of the home, or null if the registry
+		  holds another home under its id. The home is registered as soon as
+		  its load returns.
+		 */
+		private HostedHome hosted() {
+			if (hosted == null) {
+				HostedHome h = homes.loaded(homeId);
+				if (h == null || h.home() != home)
+					return null;
+				hosted = h;
+			}
+			return hosted;
+		}
+	}
+
+	//An action forwarded upstream, waiting for its confirm
+	private static class Forwarded {
+		final ServerCommunication origin;
+		//Update of the action, as echoed by the upstream server
+		final byte[] update;
+		final CompletableFuture<Boolean> result =
+				new CompletableFuture<Boolean>();
+		int sequenceNumber;
+		//Set once the update of the action is received
+		boolean echoed = false;
+
+		Forwarded(DeviceAction action, ServerCommunication origin) {
+			this.origin = origin;
+			this.update = action.toUpdate().bytes();
+		}
+	}
+
+	/*
+	  Main method for testing: starts a server and a chain of two relays on
+	  localhost ports, and checks that actions sent through the chain reach
+	  the server and its clients, that actions on the server reach the
+	  clients of the last relay, and that the server has a single session per
+	  relay whatever the number of clients of the relays. The servers run on
+	  daemon threads and the JVM exits with status 1 if a check fails, so a
+	  failed run never hangs.
+	  Arguments: [clients] (default 4), the number of clients of the last
+	  relay.
+	 */
+	public static void main(String[] args) throws Exception {
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		Log.setLevel(Log.ERROR);
+		File store = Files.createTempDirectory("iotp-relay").toFile();
+		int basePort = 9270;
+		String user = "abhi";
+		String password = Authentication.DES_STORE.get(user);
+		String homeId = Authentication.homeOf(user);
+
+		HomeRegistry primary = new HomeRegistry(new FileHomeStore(store, 4, 3),
+				100, 100);
+		startListener(new ConnectListener(primary, null, basePort));
+		Relay first = startRelay(basePort + 1, basePort);
+		Relay second = startRelay(basePort + 2, basePort + 1);
+		// the listeners bind their ports
+		Thread.sleep(200);
+
+		Cluster.TestClient[] clients = new Cluster.TestClient[n];
+		for (int i = 0; i < n; i++)
+			clients[i] = new Cluster.TestClient("127.0.0.1:" + (basePort + 2),
+					user, password);
+		Cluster.TestClient watcher = new Cluster.TestClient("127.0.0.1:"
+				+ basePort, user, password);
+		int sessions = primary.loaded(homeId).sessions().size();
+		System.out.println("sessions of home " + homeId + " on the server: "
+				+ sessions + " (1 relay, 1 client), upstream sessions "
+				+ first.size() + " + " + second.size()
+				+ ", clients of the last relay " + n);
+
+		// through the chain of relays to the server
+		byte state = (byte) (System.nanoTime() & 0x3f);
+		long start = System.nanoTime();
+		boolean confirmed = clients[0].act(state);
+		System.out.println("action through 2 relays confirmed: " + confirmed
+				+ " in " + (System.nanoTime() - start) / 1000 + " us");
+		watcher.awaitUpdate();
+		clients[n - 1].awaitUpdate();
+		System.out.println("update received by the server client and the "
+				+ "other relay clients");
+		boolean serverState = new Cluster.TestClient("127.0.0.1:" + basePort,
+				user, password).state() == state;
+		System.out.println("server state: " + serverState);
+
+		// from the server down the chain
+		byte next = (byte) ((state + 1) & 0x3f);
+		watcher.act(next);
+		clients[0].awaitUpdate();
+		boolean relayedState = new Cluster.TestClient("127.0.0.1:"
+				+ (basePort + 2), user, password).state() == next;
+		System.out.println("update of a server client received through 2 "
+				+ "relays, relayed state: " + relayedState);
+		System.exit(sessions == 2 && confirmed && serverState && relayedState
+				? 0 : 1);
+	}
+
+	//Starts a relay server on the given port, relaying the given local port
+	private static Relay startRelay(int port, int upstreamPort) {
+		Relay relay = new Relay("127.0.0.1", upstreamPort);
+		HomeRegistry homes = new HomeRegistry(relay, 100, 0);
+		ConnectListener listener = new ConnectListener(homes, null, port);
+		relay.start(listener, homes);
+		startListener(listener);
+		return relay;
+	}
+
+	/*
+	  Starts the given listener on a daemon thread: its sessions inherit the
+	  daemon status, so a failed check of the testing main ends the JVM.
+	 */
+	private static void startListener(ConnectListener listener) {
+		Thread thread = new Thread(listener);
+		thread.setDaemon(true);
+		thread.start();
+	}
+}
@@ -0,0 +1,410 @@
+/*
+  CS544 - Computer Networks
+  Drexel University
+  Protocol Implementation: IoT Home Control Protocol
+  Abhilasha Jayaswal
+
+  File name: Replicator.java
+
+  Purpose:
+  Primary side of the log-shipping replication. Followers (see Follower)
+  connect to the replication port and subscribe to the homes their clients
+  use. On subscription the primary sends the home as it stands between two
+  groups of actions, read by the core loop owning the home, then ships every
+  later batch of updates of the home, from the same core loop, so a follower
+  applying them in order holds the same home as the primary. Shipping never
+  blocks the core: every follower has its own bounded queue and sender
+  thread. A follower falling so far behind that its queue overflows is
+  dropped to a resync: its queued frames and subscriptions are discarded,
+  and it unloads its homes, which its next clients load again as fresh
+  snapshots.
+  Followers acknowledge the entries they applied; the difference with the
+  entries shipped to them is their replication lag, logged periodically.
+  Frames on the replication connection are [kind, fields], written with
+  data streams:
+  primary to follower: HOME [home id, INIT length, INIT],
+                       ENTRY [sequence, time shipped, home id, update count,
+                              (update length, update)*],
+                       HEARTBEAT [entries shipped], RESYNC [];
+  follower to primary: SUBSCRIBE [home id], UNSUBSCRIBE [home id],
+                       ACK [sequence, time shipped].
+ */
+
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import protocol.Log;
+import protocol.Util;
+
+public class Replicator implements Runnable {
+
+	// frame kinds
+	static final byte HOME = 1;
+	static final byte ENTRY = 2;
+	static final byte HEARTBEAT = 3;
+	static final byte SUBSCRIBE = 4;
+	static final byte UNSUBSCRIBE = 5;
+	static final byte ACK = 6;
+	static final byte RESYNC = 7;
+
+	//Interval of the heartbeats sent to idle followers
+	static final int HEARTBEAT_MS = 500;
+	//Interval of the replication lag log lines
+	private static final long LAG_LOG_MS = 5000;
+	//Largest number of frames queued for a follower before it is resynced
+	static final int MAX_QUEUED_FRAMES = 65536;
+
+	//Port followers connect to
+	private final int port;
+	//Homes replicated to the followers
+	private final HomeRegistry homes;
+	//Executor owning the homes
+	private final ActionExecutor executor;
+	//Connected followers
+	private final Set<Link> links = new CopyOnWriteArraySet<Link>();
+	private volatile ServerSocket serverSocket;
+
+	/*
+	  Constructs a replicator of the homes of the given registry, accepting
+	  followers on the given port once run.
+	 */
+	public Replicator(int port, HomeRegistry homes, ActionExecutor executor) {
+		this.port = port;
+		this.homes = homes;
+		this.executor = executor;
+	}
+
+	//Starts accepting followers in a new thread
+	public void start() {
+		Thread thread = new Thread(this, "iotp-replicator");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public void run() {
+		try {
+			serverSocket = new ServerSocket(port);
+			System.out.println(Util.dateTime()
+					+ " -- Replicating to followers on port " + port);
+			while (true) {
+				Socket s = serverSocket.accept();
+				Link link = new Link(s);
+				links.add(link);
+				link.start();
+			}
+		} catch (SocketException e) {
+			// closed
+		} catch (IOException e) {
+			if (Log.isEnabled(Log.ERROR))
+				Log.error("Replication stopped: " + e.getMessage());
+		}
+	}
+
+	//Stops accepting followers and closes the connected ones
+	public void close() {
+		try {
+			if (serverSocket != null)
+				serverSocket.close();
+		} catch (IOException e) {
+			// closing anyway
+		}
+		for (Link link : links)
+			link.close();
+	}
+
+	//@return the largest replication lag of the followers, in entries
+	public long maxLag() {
+		long lag = 0;
+		for (Link link : links)
+			lag = Math.max(lag, link.lag());
+		return lag;
+	}
+
+	/*
+	  @return the encoded entry of the given batch of updates of a home, the
+	  same bytes being shipped to every follower of the home.
+	 */
+	static byte[] entry(String homeId, UpdateBatch batch) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeUTF(homeId);
+			out.writeInt(batch.size());
+			for (int i = 0; i < batch.size(); i++) {
+				byte[] update = batch.update(i).bytes();
+				out.writeInt(update.length);
+				out.write(update);
+			}
+		} catch (IOException e) {
+			// not thrown by a byte array stream
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	//The connection to one follower
+	class Link {
+		private final Socket socket;
+		//Frames waiting to be sent: HOME and ENTRY frames, in order
+		private final LinkedBlockingQueue<Frame> queue =
+				new LinkedBlockingQueue<Frame>(MAX_QUEUED_FRAMES);
+		//Homes the follower subscribed to
+		private final Map<String, HostedHome> subscriptions =
+				new ConcurrentHashMap<String, HostedHome>();
+		//Number of entries shipped, and acknowledged with their time
+		private final AtomicLong shipped = new AtomicLong();
+		private volatile long acked = 0;
+		private volatile long ackedTime = 0;
+		private volatile boolean closed = false;
+		//Set when the queue overflowed, until the follower is resynced
+		private volatile boolean resync = false;
+
+		Link(Socket socket) {
+			this.socket = socket;
+			this.ackedTime = System.currentTimeMillis();
+		}
+
+		void start() {
+			Thread sender = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					send();
+				}
+			}, "iotp-replication-out");
+			Thread receiver = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					receive();
+				}
+			}, "iotp-replication-in");
+			sender.setDaemon(true);
+			receiver.setDaemon(true);
+			sender.start();
+			receiver.start();
+			if (Log.isEnabled(Log.INFO))
+				Log.info("Follower " + socket.getRemoteSocketAddress()
+						+ " connected");
+		}
+
+		/*
+		  Queues the given entry of a home the follower subscribed to. Called
+		  by the core loop owning the home, never blocks. Entries are dropped
+		  once the queue overflowed, until the follower is resynced.
+		 */
+		void ship(byte[] entry) {
+			if (closed || resync)
+				return;
+			if (queue.offer(new Frame(ENTRY, entry)))
+				shipped.incrementAndGet();
+			else
+				overflow();
+		}
+
+		/*
+		  Drops the queued frames of the follower and has the sender thread
+		  resync it.
+		 */
+		private void overflow() {
+			resync = true;
+			queue.clear();
+			if (Log.isEnabled(Log.WARN))
+				Log.warn("Follower " + socket.getRemoteSocketAddress()
+						+ " more than " + MAX_QUEUED_FRAMES
+						+ " frames behind, resyncing");
+		}
+
+		/*
+		  Resyncs the follower: drops its subscriptions, so no more entries
+		  are shipped to it, then the frames queued meanwhile, and tells it to
+		  unload its homes. The entries dropped no longer count as
+		  shipped. Called by the sender thread.
+		  @param sent the number of entries sent to the follower.
+		 */
+		private void resync(DataOutputStream out, long sent)
+				throws IOException {
+			for (String homeId : subscriptions.keySet())
+				unsubscribe(homeId);
+			queue.clear();
+			shipped.set(sent);
+			resync = false;
+			out.writeByte(RESYNC);
+			out.flush();
+		}
+
+		//@return the number of entries shipped and not acknowledged yet
+		long lag() {
+			return shipped.get() - acked;
+		}
+
+		/*
+		  @return the time elapsed since the last acknowledged entry was
+		  shipped if entries are pending, 0 otherwise.
+		 */
+		long lagMillis() {
+			return lag() == 0 ? 0 : System.currentTimeMillis() - ackedTime;
+		}
+
+		//Sends the queued frames, and heartbeats while the queue is empty
+		private void send() {
+			long seq = 0;
+			long lastLog = System.currentTimeMillis();
+			try {
+				DataOutputStream out = new DataOutputStream(
+						new BufferedOutputStream(socket.getOutputStream()));
+				while (!closed) {
+					Frame f = queue.poll(HEARTBEAT_MS, TimeUnit.MILLISECONDS);
+					if (resync) {
+						resync(out, seq);
+						continue;
+					}
+					if (f == null) {
+						out.writeByte(HEARTBEAT);
+						out.writeLong(shipped.get());
+					} else if (f.kind == ENTRY) {
+						out.writeByte(ENTRY);
+						out.writeLong(++seq);
+						out.writeLong(f.time);
+						out.write(f.body);
+					} else {
+						out.writeByte(f.kind);
+						out.write(f.body);
+					}
+					if (queue.isEmpty())
+						out.flush();
+					long now = System.currentTimeMillis();
+					if (now - lastLog >= LAG_LOG_MS) {
+						lastLog = now;
+						if (Log.isEnabled(Log.INFO))
+							Log.info("Follower " + socket.getRemoteSocketAddress()
+									+ ": " + subscriptions.size() + " homes, lag "
+									+ lag() + " entries, " + lagMillis() + " ms");
+					}
+				}
+			} catch (InterruptedException e) {
+				// closing
+			} catch (IOException e) {
+				if (!closed && Log.isEnabled(Log.WARN))
+					Log.warn("Follower " + socket.getRemoteSocketAddress()
+							+ " lost: " + e.getMessage());
+			}
+			close();
+		}
+
+		//Handles the subscriptions and acknowledgements of the follower
+		private void receive() {
+			try {
+				DataInputStream in = new DataInputStream(
+						new BufferedInputStream(socket.getInputStream()));
+				while (!closed) {
+					byte kind = in.readByte();
+					if (kind == SUBSCRIBE)
+						subscribe(in.readUTF());
+					else if (kind == UNSUBSCRIBE)
+						unsubscribe(in.readUTF());
+					else if (kind == ACK) {
+						long seq = in.readLong();
+						ackedTime = in.readLong();
+						acked = seq;
+					} else
+						throw new IOException("Unexpected frame kind " + kind);
+				}
+			} catch (IOException e) {
+				if (!closed && Log.isEnabled(Log.INFO))
+					Log.info("Follower " + socket.getRemoteSocketAddress()
+							+ " disconnected");
+			}
+			close();
+		}
+
+		/*
+		  Subscribes the follower to the given home, and queues the home from
+		  its core loop: entries shipped before are ignored by the follower,
+		  which has no image of the home yet, and the home image holds them.
+		 */
+		private void subscribe(final String homeId) {
+			final HostedHome hosted;
+			try {
+				hosted = homes.acquire(homeId, this);
+			} catch (Exception e) {
+				if (Log.isEnabled(Log.ERROR))
+					Log.error("Failed loading home " + homeId + " for follower: "
+							+ e.getMessage());
+				close();
+				return;
+			}
+			subscriptions.put(homeId, hosted);
+			executor.execute(hosted, new Runnable() {
+				@Override
+				public void run() {
+					byte[] init = hosted.home().snapshot().toInit();
+					ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+					DataOutputStream out = new DataOutputStream(bytes);
+					try {
+						out.writeUTF(homeId);
+						out.writeInt(init.length);
+						out.write(init);
+					} catch (IOException e) {
+						throw new IllegalStateException(e);
+					}
+					if (!closed && !queue.offer(new Frame(HOME,
+							bytes.toByteArray())))
+						overflow();
+				}
+			});
+		}
+
+		//Unsubscribes the follower from the given home
+		private void unsubscribe(String homeId) {
+			HostedHome hosted = subscriptions.remove(homeId);
+			if (hosted != null)
+				homes.release(hosted, this);
+		}
+
+		//Closes the connection and drops all subscriptions
+		void close() {
+			synchronized (this) {
+				if (closed)
+					return;
+				closed = true;
+			}
+			links.remove(this);
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// closing anyway
+			}
+			for (String homeId : subscriptions.keySet())
+				unsubscribe(homeId);
+		}
+	}
+
+	//A frame waiting to be sent to a follower
+	private static class Frame {
+		final byte kind;
+		final byte[] body;
+		//Time the frame was queued
+		final long time = System.currentTimeMillis();
+
+		Frame(byte kind, byte[] body) {
+			this.kind = kind;
+			this.body = body;
+		}
+	}
+}
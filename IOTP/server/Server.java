@@ -8,21 +8,40 @@
   
   Purpose:
   Main class for starting a server. The server is hardcoded to port 9070. This
-  implementation is for demonstration purposes only, therefore it initializes a
-  random home which it maintains throughout the entire run.
+  implementation is for demonstration purposes only: every user controls the
+  home bound to it in the authentication storage, loaded from a snapshot
+  directory or generated randomly the first time it is used. Confirmed
+  changes are journaled ahead of their confirm, and the journal is replayed
+  on top of the snapshots when the server starts.
+  A server can ship the confirmed changes to followers (-replicate), or run
+  as a read-only follower of a primary (-follow) serving the replicated
+  homes until it is promoted; the journal of a follower is only opened at
+  promotion.
+  Several servers sharing one store can form a cluster (-cluster), the homes
+  being spread over them by consistent hashing (see Cluster).
+  A relay server (-relay) serves the homes of another server or relay to
+  its own clients over one upstream session per home (see Relay).
+  Any server can also serve read-only observers on a separate port
+  (-observe, see ObserverListener), and gateways multiplexing many
+  sessions over one connection (-mux, see MuxListener).
   The server initializes a connection listener which handles incoming
   connections.
  */
 
 package server;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+
 import devices.Home;
-import devices.RandomHomeGenerator;
+import protocol.Log;
+import protocol.ProtocolFeatures;
 
 public class Server {
 	
-	//Server protocol version
-	public static final String VERSION = "IOTP 0001";
+	//Server protocol versions, offered to the client preferred first
+	public static final String VERSION = ProtocolFeatures.offer();
 	//Random home generation seed
 	private static final long HOUSE_GEN_SEED = 4;
 	//Maximum number of devices to generate a random home with
@@ -31,6 +50,27 @@ public class Server {
 	public static final int LISTEN_TIMEOUT_MS = 1000;
 	//Default server port
 	public static final int DEFAULT_PORT = 9070;
+	//Port the server listens to clients on
+	public static int port = DEFAULT_PORT;
+	/*
+	  Time a core loop keeps collecting actions to apply them as one group,
+	  in microseconds. Bounds the latency added to an action.
+	 */
+	public static long actionBatchWindowUs = 200;
+	//Default maximum number of homes kept loaded
+	private static final int DEFAULT_HOME_CACHE = 10000;
+	//Default maximum number of idle homes kept in compact form
+	private static final int DEFAULT_COMPACT_CACHE = 1000000;
+	//Default directory of the home snapshots
+	private static final String DEFAULT_HOME_STORE = "./HOME_STORE";
+	//Name of the action journal file in the home store directory
+	private static final String JOURNAL_FILE = "journal.log";
+	//Default interval of the forces of batched journal entries
+	private static final long DEFAULT_JOURNAL_FLUSH_MS = 50;
+	//Journal size past which the homes are saved and the journal truncated
+	private static final long JOURNAL_CHECKPOINT_BYTES = 64L << 20;
+	//Default interval of the periodic snapshots of the changed homes
+	private static final long DEFAULT_SNAPSHOT_INTERVAL_S = 60;
 	
 	/*
 	  Main method to initialize server.
@@ -38,15 +78,217 @@ public class Server {
 	  @throws Exception
 	 */
 	public static void main(String[] args) throws Exception {
-		// generate home
-		RandomHomeGenerator rhg =
-				new RandomHomeGenerator(HOUSE_GEN_SEED, MAX_DEVICES_PER_TYPE);
-		Home home = rhg.createHome();
-		home.customPrint();
+		int homeCache = DEFAULT_HOME_CACHE;
+		int compactCache = DEFAULT_COMPACT_CACHE;
+		String homeStore = DEFAULT_HOME_STORE;
+		String journalFile = null;
+		ActionJournal.Durability[] durability =
+				ActionJournal.defaultPolicies();
+		long journalFlushMs = DEFAULT_JOURNAL_FLUSH_MS;
+		long snapshotIntervalS = DEFAULT_SNAPSHOT_INTERVAL_S;
+		boolean mapSnapshots = true;
+		int replicationPort = -1;
+		String primary = null;
+		boolean autoPromote = false;
+		String seeds = null;
+		String node = null;
+		String upstream = null;
+		int observerPort = -1;
+		int muxPort = -1;
+		for (int i = 0; i < args.length - 1; i++) {
+			// log level, overrides the iotp.log system property
+			if (args[i].equalsIgnoreCase("-log"))
+				Log.setLevel(Log.parseLevel(args[i + 1]));
+			// action batching window, 0 to only group already queued actions
+			else if (args[i].equalsIgnoreCase("-batch"))
+				actionBatchWindowUs = Long.parseLong(args[i + 1]);
+			// maximum number of homes kept loaded
+			else if (args[i].equalsIgnoreCase("-homes"))
+				homeCache = Integer.parseInt(args[i + 1]);
+			// maximum number of idle homes kept in compact form
+			else if (args[i].equalsIgnoreCase("-compact"))
+				compactCache = Integer.parseInt(args[i + 1]);
+			// directory of the home snapshots
+			else if (args[i].equalsIgnoreCase("-store"))
+				homeStore = args[i + 1];
+			// device state storage: objects, heap or direct arrays
+			else if (args[i].equalsIgnoreCase("-storage"))
+				Home.setDefaultStorage(
+						Home.Storage.valueOf(args[i + 1].toUpperCase()));
+			// action journal file, off to disable journaling
+			else if (args[i].equalsIgnoreCase("-journal"))
+				journalFile = args[i + 1];
+			// journal durability by device type, e.g. slock=sync,tv=batch
+			else if (args[i].equalsIgnoreCase("-durability"))
+				durability = ActionJournal.parsePolicies(args[i + 1]);
+			// interval of the forces of batched journal entries
+			else if (args[i].equalsIgnoreCase("-flush"))
+				journalFlushMs = Long.parseLong(args[i + 1]);
+			// interval of the snapshots of the changed homes, 0 for none
+			else if (args[i].equalsIgnoreCase("-snapshot"))
+				snapshotIntervalS = Long.parseLong(args[i + 1]);
+			// whether snapshots are memory-mapped or decoded on load
+			else if (args[i].equalsIgnoreCase("-mmap"))
+				mapSnapshots = !args[i + 1].equalsIgnoreCase("off");
+			// port clients connect to
+			else if (args[i].equalsIgnoreCase("-port"))
+				port = Integer.parseInt(args[i + 1]);
+			// port followers connect to, to replicate the confirmed changes
+			else if (args[i].equalsIgnoreCase("-replicate"))
+				replicationPort = Integer.parseInt(args[i + 1]);
+			// replication address of the primary to follow, host:port
+			else if (args[i].equalsIgnoreCase("-follow"))
+				primary = args[i + 1];
+			// whether a follower promotes itself when its primary is lost
+			else if (args[i].equalsIgnoreCase("-promote"))
+				autoPromote = args[i + 1].equalsIgnoreCase("auto");
+			// cluster nodes to join through (host:port,...), or none to start one
+			else if (args[i].equalsIgnoreCase("-cluster"))
+				seeds = args[i + 1];
+			// address of this node given to redirected clients, host:port
+			else if (args[i].equalsIgnoreCase("-node"))
+				node = args[i + 1];
+			// address of the server or relay to relay, host:port
+			else if (args[i].equalsIgnoreCase("-relay"))
+				upstream = args[i + 1];
+			// port read-only observers connect to
+			else if (args[i].equalsIgnoreCase("-observe"))
+				observerPort = Integer.parseInt(args[i + 1]);
+			// port gateways multiplexing sessions connect to
+			else if (args[i].equalsIgnoreCase("-mux"))
+				muxPort = Integer.parseInt(args[i + 1]);
+		}
+		
+		if (upstream != null) {
+			/*
+			  a relay holds no store: its homes are kept in sync by their
+			  upstream session, closed when they are evicted
+			 */
+			int sep = upstream.lastIndexOf(':');
+			Relay relay = new Relay(upstream.substring(0, sep),
+					Integer.parseInt(upstream.substring(sep + 1)));
+			HomeRegistry homes = new HomeRegistry(relay, homeCache, 0);
+			ConnectListener listener = new ConnectListener(homes);
+			relay.start(listener, homes);
+			if (observerPort > 0)
+				new ObserverListener(observerPort, listener, 0).start();
+			if (muxPort > 0)
+				new MuxListener(muxPort, listener, 0).start();
+			System.out.println("Relaying homes of " + upstream);
+			System.out.println();
+			new Thread(listener).start();
+			return;
+		}
+		
+		/*
+		  homes are loaded from the store when their first user connects;
+		  homes missing from the store are generated randomly
+		 */
+		final HomeStore store = new FileHomeStore(new File(homeStore),
+				HOUSE_GEN_SEED, MAX_DEVICES_PER_TYPE, mapSnapshots);
+		// the nodes of a cluster share the store, each with its own journal
+		final File journalPath = "off".equalsIgnoreCase(journalFile) ? null
+				: journalFile != null ? new File(journalFile)
+				: seeds != null ? new File(homeStore, "journal-" + port + ".log")
+				: new File(homeStore, JOURNAL_FILE);
+		final ActionJournal.Durability[] policies = durability;
+		final long flushMs = journalFlushMs;
+		final long checkpointMs = snapshotIntervalS * 1000;
+		
+		if (primary != null) {
+			/*
+			  a follower loads homes from the primary, and drops the homes it
+			  evicts: they are not kept in sync once unsubscribed
+			 */
+			int sep = primary.lastIndexOf(':');
+			final Follower follower = new Follower(primary.substring(0, sep),
+					Integer.parseInt(primary.substring(sep + 1)), store,
+					autoPromote);
+			final HomeRegistry homes = new HomeRegistry(follower, homeCache, 0);
+			final ConnectListener listener = new ConnectListener(homes);
+			final int replicateTo = replicationPort;
+			follower.start(listener, new Runnable() {
+				@Override
+				public void run() {
+					try {
+						ActionJournal journal = openJournal(journalPath,
+								policies, flushMs, checkpointMs, store, homes);
+						listener.promote(journal);
+						if (replicateTo > 0)
+							startReplicator(replicateTo, listener);
+					} catch (Exception e) {
+						if (Log.isEnabled(Log.ERROR))
+							Log.error("Promotion failed: " + e.getMessage());
+					}
+				}
+			});
+			if (observerPort > 0)
+				new ObserverListener(observerPort, listener, 0).start();
+			if (muxPort > 0)
+				new MuxListener(muxPort, listener, 0).start();
+			System.out.println("Following " + primary + ", "
+					+ (autoPromote ? "promoted automatically"
+							: "promoted on command") + " if it is lost");
+			System.out.println();
+			new Thread(listener).start();
+			return;
+		}
+		
+		// replay the changes confirmed since the last snapshots
+		Cluster cluster = null;
+		if (seeds != null)
+			cluster = new Cluster(node != null ? node : "127.0.0.1:" + port,
+					store);
+		HomeRegistry homes = new HomeRegistry(cluster != null ? cluster : store,
+				homeCache, compactCache);
+		ActionJournal journal = openJournal(journalPath, policies, flushMs,
+				checkpointMs, store, homes);
+		System.out.println("Hosting homes from " + homeStore + " (up to "
+				+ homeCache + " homes kept loaded, "
+				+ Home.defaultStorage().name().toLowerCase()
+				+ " device storage)");
 		System.out.println();
 		
 		//initialize server
-		Thread connectionListener = new Thread(new ConnectListener(home));
+		ConnectListener listener = new ConnectListener(homes, journal);
+		if (replicationPort > 0)
+			startReplicator(replicationPort, listener);
+		if (observerPort > 0)
+			new ObserverListener(observerPort, listener, 0).start();
+		if (muxPort > 0)
+			new MuxListener(muxPort, listener, 0).start();
+		Thread connectionListener = new Thread(listener);
 		connectionListener.start();
+		if (cluster != null)
+			cluster.start(listener, homes, journal, seeds.equalsIgnoreCase("none")
+					? new ArrayList<String>() : Arrays.asList(seeds.split(",")));
+	}
+	
+	/*
+	  Opens the given journal, replays it on top of the snapshots of the given
+	  store and starts its periodic checkpoints of the given homes.
+	  @return the journal, or null if the given file is null.
+	 */
+	private static ActionJournal openJournal(File f,
+			ActionJournal.Durability[] durability, long flushMs,
+			long checkpointMs, HomeStore store, HomeRegistry homes)
+			throws Exception {
+		if (f == null)
+			return null;
+		ActionJournal journal = new ActionJournal(f, durability, flushMs,
+				JOURNAL_CHECKPOINT_BYTES, checkpointMs);
+		int replayed = journal.recover(store);
+		journal.start(homes);
+		System.out.println("Journaling actions to " + f + " ("
+				+ replayed + " entries recovered)");
+		return journal;
+	}
+	
+	//Starts shipping the changes of the given listener to followers on the given port
+	private static void startReplicator(int port, ConnectListener listener) {
+		Replicator replicator = new Replicator(port, listener.homes(),
+				listener.executor());
+		listener.replicate(replicator);
+		replicator.start();
 	}
 }
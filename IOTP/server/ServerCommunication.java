@@ -17,15 +17,36 @@ package server;
 
 import java.io.*;
 import java.net.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ConcurrentLinkedQueue;
-
-import protocol.Util;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import protocol.*;
 
+import devices.DeviceAction;
+import devices.Home;
+import devices.HomeImage;
+import devices.LazyHome;
+import devices.Light;
+import devices.RandomHomeGenerator;
+
 
 public class ServerCommunication implements Runnable, Comparable<ServerCommunication> {
 	
+	/*
+	  Backlog of a flow-controlled client, in updates held back plus batches
+	  queued, past which it is dropped, the client catching up from a fresh
+	  INIT instead
+	 */
+	static final int MAX_BACKLOG = 1024;
+	//Largest number of update credits a client may accumulate
+	static final int MAX_CREDITS = 1 << 20;
+	
 	/*
 	  The unique numeric identifier of the client handled by this server
 	  communication handler
@@ -35,16 +56,59 @@ public class ServerCommunication implements Runnable, Comparable<ServerCommunica
 	private ConnectListener connectionListener;
 	//Flag for terminate
 	private boolean terminate = false;
-	//The connection socket
+	//The connection socket, null for a multiplexed session
 	private Socket socket;
+	//Stream of the multiplexed transport carrying the session, or null
+	private final MuxListener.Stream stream;
 	//DFA to be used to track protocol states and process messages
-	private DFA dfa;
+	private ProtocolServerDFA dfa;
+	//Address of the cluster node the client is redirected to, null if none
+	private volatile String redirect = null;
 	
 	/*
 	  A queue to maintain update messages generated by other server communication
 	  handlers in response to their client's actions
 	 */
-	private ConcurrentLinkedQueue<Message> sendQueue = new ConcurrentLinkedQueue<>();
+	private ConcurrentLinkedQueue<UpdateBatch> sendQueue = new ConcurrentLinkedQueue<>();
+	//Number of batches in the send queue
+	private final AtomicInteger queued = new AtomicInteger();
+	/*
+	  Updates taken from the send queue but held back for lack of credits,
+	  sent first once credits are granted, null if none. Only used by the
+	  session thread.
+	 */
+	private List<Message> held = null;
+	/*
+	  Number of held updates, written by the session thread and read by the
+	  action executor
+	 */
+	private volatile int heldUpdates = 0;
+	/*
+	  Update messages a flow-controlled client may still be sent, spent by
+	  every update or update batch message, granted by the client
+	 */
+	private final AtomicInteger credits =
+			new AtomicInteger(Message.INITIAL_CREDITS);
+	/*
+	  Whether queued updates were dropped while the client had no credits, so
+	  that it must catch up from a fresh INIT
+	 */
+	private volatile boolean stale = false;
+	/*
+	  The home snapshot sent to the client in its INIT message, null until the
+	  INIT is sent. Queued updates are held back until then, and updates
+	  already included in the snapshot are dropped.
+	 */
+	private HomeImage initSnapshot = null;
+	/*
+	  The slice of the home the client subscribed to, null if it receives
+	  every device. Only changed by the session thread.
+	 */
+	private volatile Projection projection = null;
+	//The home the client controls, bound at authentication
+	private volatile HostedHome hostedHome = null;
+	//Channel to the core owning the home, through which actions are submitted
+	private ActionExecutor.Channel channel = null;
 	
 	
 	/*
@@ -55,11 +119,28 @@ public class ServerCommunication implements Runnable, Comparable<ServerCommunica
 		this.id = id;
 		this.connectionListener = cl;
 		this.socket = s;
+		this.stream = null;
 		this.dfa = dfa;
 		// attach this server communication handler to the DFA
 		dfa.setServerComm(this);
 	}
 	
+	/*
+	  Constructs a server communication handler for a session carried by the
+	  given stream of a multiplexed transport. The session has no thread of
+	  its own: the stream hands it the client messages and the idle ticks
+	  (see handle and tick).
+	 */
+	ServerCommunication(int id, ConnectListener cl, MuxListener.Stream stream,
+			ProtocolServerDFA dfa) {
+		this.id = id;
+		this.connectionListener = cl;
+		this.socket = null;
+		this.stream = stream;
+		this.dfa = dfa;
+		dfa.setServerComm(this);
+	}
+	
 	/*
 	 main thread to handle server communication to the client, parse and
 	 respond to the client messages etc.
@@ -75,8 +156,8 @@ public class ServerCommunication implements Runnable, Comparable<ServerCommunica
 					socket.getOutputStream()));
 			socket.setSoTimeout(Server.LISTEN_TIMEOUT_MS);
 			
-			System.out.println(Util.dateTime() + " -- Connection with C" + id +
-					" initiated");
+			if (Log.isEnabled(Log.INFO))
+				Log.info("Connection with C" + id + " initiated");
 			
 			// read messages
 			while (true) {
@@ -87,41 +168,20 @@ public class ServerCommunication implements Runnable, Comparable<ServerCommunica
 						inBuff = br.readLine();
 						if (inBuff == null) {
 							//client closed connection.
+							connectionListener.remove(this);
 							socket.close();
 							return;
 						}
 					} catch (SocketTimeoutException e) {
 						// on timeout, before attempting to read user input again,
 						// send any pending update messages to the client
-						while (!sendQueue.isEmpty()) {
-							Message outMsg = sendQueue.remove();
-							outMsg.customPrint("S ");
-							outMsg.write(bw);
-						}
-						// handle terminate
-						if (terminate) {
-							Message.TERMINATE.write(bw);
-							terminate();
+						if (!tick(bw))
 							return;
-						}
 					}
 				}
 				// process client message and generate response
-				Message inMsg = Message.fromHexString(inBuff);
-				inMsg.customPrint("C" + id);
-				Message outMsg = dfa.process(inMsg);
-				
-				// send response to client
-				outMsg.customPrint("S ");
-				outMsg.write(bw);
-				
-				// check for terminate / error
-				if (outMsg.keycode() == Message.KEY_TERMINATE ||
-						outMsg.keycode() == Message.KEY_ERROR) {
-					terminate = true;
-					terminate();
+				if (!handle(Message.fromHexString(inBuff), bw))
 					return;
-				}
 			}
 		} catch (Exception e) {
 			connectionListener.remove(this);
@@ -129,34 +189,600 @@ public class ServerCommunication implements Runnable, Comparable<ServerCommunica
 		}
 	}
 	
+	/*
+	  Sends the pending updates to the client, then redirects or terminates
+	  the session if marked so. Called when the client is idle, on every read
+	  timeout.
+	  @return false once the session is terminated.
+	 */
+	boolean tick(BufferedWriter bw) throws Exception {
+		sendPendingUpdates(bw, true, false);
+		// home handed off to another cluster node
+		if (redirect != null) {
+			dfa.redirectTo(redirect).write(bw);
+			terminate();
+			return false;
+		}
+		// handle terminate
+		if (terminate) {
+			Message.TERMINATE.write(bw);
+			terminate();
+			return false;
+		}
+		return true;
+	}
+	
+	/*
+	  Processes the given client message and writes the response, and the
+	  messages following it, to the client.
+	  @return false once the session is terminated.
+	 */
+	boolean handle(Message inMsg, BufferedWriter bw) throws Exception {
+		if (Log.isEnabled(Log.DEBUG))
+			Log.debug(inMsg.toLogString("C" + id));
+		Message outMsg = dfa.process(inMsg);
+		
+		/*
+		  a relay is sent the updates of its own actions, and every
+		  update queued before the confirm of an action ahead of it,
+		  in the same write as the confirm, whatever its credits
+		 */
+		if (outMsg.keycode() == Message.KEY_CONFIRM
+				&& dfa.features().echoes())
+			sendPendingUpdates(bw, false, true);
+		// credits granted, the held updates are sent right away
+		if (outMsg == Message.NO_REPLY) {
+			sendPendingUpdates(bw, true, false);
+			return true;
+		}
+		// send response to client
+		if (Log.isEnabled(Log.DEBUG))
+			Log.debug(outMsg.toLogString("S "));
+		outMsg.write(bw);
+		// send the messages following the response (INIT chunks)
+		Message nextMsg;
+		while ((nextMsg = dfa.nextMessage()) != null) {
+			if (Log.isEnabled(Log.DEBUG))
+				Log.debug(nextMsg.toLogString("S "));
+			nextMsg.write(bw);
+		}
+		
+		// check for terminate / error
+		if (outMsg.keycode() == Message.KEY_TERMINATE ||
+				outMsg.keycode() == Message.KEY_ERROR ||
+				outMsg.keycode() == Message.KEY_REDIRECT) {
+			terminate = true;
+			terminate();
+			return false;
+		}
+		return true;
+	}
+	
 	/*
 	  Terminates the current server communication handler and removes it from
 	  the list of handlers maintained by the parent connection listener.
 	 */
 	public void terminate() throws Exception {
 		connectionListener.remove(this);
-		socket.close();
-		System.out.println(Util.dateTime() + " Connection with C"
-				+ id + " terminated");
+		if (stream != null)
+			stream.close();
+		else
+			socket.close();
+		if (Log.isEnabled(Log.INFO))
+			Log.info("Connection with C" + id + " terminated");
 	}
 	
 	//Marks the server communication handler to terminate.
 	public void markterminate() {
 		terminate = true;
 	}
+	
+	/*
+	  Marks the client to be redirected to the given cluster node, once its
+	  pending updates are sent.
+	 */
+	void redirect(String address) {
+		redirect = address;
+	}
 
 	/*
-	  Adds the input update message to the queue of pending updates to be sent
-	  to the client. Called by other server communication handlers that
-	  confirmed an action, via broadcast to all other handlers.
-	  @param msg the update message to add.
+	  Sends the queued updates to the client, skipping the ones of its own
+	  actions, unless it is a relay, and the ones included in the INIT
+	  snapshot. A subscribed client only gets the updates of its projection,
+	  renumbered as in its projected INIT. All pending updates are sent
+	  together, in as few update batch messages as possible, or one update
+	  message each to the clients of the original version, flushed if the
+	  given flag is set. Does nothing before the INIT is sent.
+	  A flow-controlled client is sent no more update messages than its
+	  credits: the other updates are held back until it grants more, and a
+	  client whose updates were dropped is first sent a fresh INIT. The
+	  updates sent ahead of a confirm, as the given flag is set, are all
+	  sent: they spend the credits left but are never held back.
+	 */
+	private void sendPendingUpdates(BufferedWriter bw, boolean flush,
+			boolean beforeConfirm) throws IOException {
+		if (initSnapshot == null || (sendQueue.isEmpty() && held == null
+				&& !stale))
+			return;
+		boolean metered = metered();
+		if (metered && credits.get() <= 0 && !beforeConfirm)
+			return;
+		if (stale)
+			catchUp(bw);
+		boolean echoes = dfa.features().echoes();
+		int perMessage = dfa.features().updateBatches()
+				? Message.MAX_BATCH_UPDATES : 1;
+		Projection p = projection;
+		List<Message> updates = held != null ? held : new ArrayList<Message>();
+		held = null;
+		UpdateBatch batch;
+		while ((batch = sendQueue.poll()) != null) {
+			queued.decrementAndGet();
+			for (int i = 0; i < batch.size(); i++) {
+				if (batch.origin(i) == this && !echoes)
+					continue;
+				byte[] b = batch.update(i).bytes();
+				if (batch.version(i) <= initSnapshot.deviceVersion(b[1],
+						Util.readVarint(b, 2)))
+					continue;
+				Message update = batch.update(i);
+				if (p != null && (update = p.project(update)) == null)
+					continue;
+				updates.add(update);
+			}
+		}
+		int from = 0;
+		while (from < updates.size()) {
+			if (metered && credits.getAndDecrement() <= 0) {
+				// the credit taken by the failed attempt is given back
+				credits.incrementAndGet();
+				if (!beforeConfirm)
+					break;
+			}
+			int to = Math.min(updates.size(), from + perMessage);
+			Message msg = Message.createUpdateBatch(updates.subList(from, to));
+			if (Log.isEnabled(Log.DEBUG))
+				Log.debug(msg.toLogString("S "));
+			bw.write(msg.toHexString());
+			from = to;
+		}
+		int left = updates.size() - from;
+		if (left >= MAX_BACKLOG && dfa.features().credits()) {
+			// granting credits slower than the updates arrive
+			dropBacklog(left);
+		} else if (left > 0) {
+			held = new ArrayList<Message>(updates.subList(from, updates.size()));
+			heldUpdates = left;
+		} else {
+			heldUpdates = 0;
+		}
+		if (flush)
+			bw.flush();
+	}
+	
+	/*
+	  Drops the updates held back and queued for the client, which catches up
+	  from a fresh INIT once it grants credits. Called by the session thread.
+	  @param updates the number of held updates.
+	 */
+	private void dropBacklog(int updates) {
+		stale = true;
+		held = null;
+		heldUpdates = 0;
+		while (sendQueue.poll() != null)
+			queued.decrementAndGet();
+		if (Log.isEnabled(Log.INFO))
+			Log.info("C" + id + " short of credits, " + updates
+					+ " held updates dropped");
+	}
+	
+	/*
+	  Sends the client a fresh INIT of its home, or of its subscription, in
+	  place of the updates dropped while it had no credits, in INIT chunks
+	  if its version has chunked INIT. The INIT spends a credit as an update
+	  message would, whatever its number of chunks.
+	 */
+	private void catchUp(BufferedWriter bw) throws IOException {
+		// cleared first: the updates dropped until then are in the snapshot
+		stale = false;
+		Message init = dfa.snapshotInit();
+		credits.decrementAndGet();
+		if (Log.isEnabled(Log.INFO))
+			Log.info("C" + id + " caught up from a fresh INIT");
+		do {
+			if (Log.isEnabled(Log.DEBUG))
+				Log.debug(init.toLogString("S "));
+			bw.write(init.toHexString());
+		} while ((init = dfa.nextMessage()) != null);
+	}
+	
+	/*
+	  Adds the given batch of updates to the queue of pending updates to be
+	  sent to the client. Called by the action executor, via broadcast to all
+	  handlers. A flow-controlled client without credits whose backlog
+	  reaches MAX_BACKLOG has its queue dropped, to catch up from a fresh
+	  INIT; its held updates are dropped by the session thread on its next
+	  flush.
+	 */
+	void appendToSendQueue(UpdateBatch batch) {
+		if (stale)
+			return;
+		if (backlog() >= MAX_BACKLOG && credits.get() <= 0
+				&& dfa.features().credits()) {
+			stale = true;
+			sendQueue.clear();
+			queued.set(0);
+			if (Log.isEnabled(Log.INFO))
+				Log.info("C" + id + " out of credits, backlog of "
+						+ MAX_BACKLOG + " batches and updates dropped");
+			return;
+		}
+		sendQueue.add(batch);
+		queued.incrementAndGet();
+	}
+	
+	/*
+	  @return true if the client is only sent update messages against
+	  credits: the multiplexed sessions, and the sessions whose protocol
+	  version has flow control.
+	 */
+	boolean metered() {
+		return stream != null || dfa.features().credits();
+	}
+	
+	/*
+	  Grants the client the given number of update credits, up to
+	  MAX_CREDITS. The held updates are sent on the next flush.
 	 */
-	public void appendToSendQueue(Message msg) {
-		sendQueue.add(msg);
+	public void grantCredits(int n) {
+		if (credits.addAndGet(n) > MAX_CREDITS)
+			credits.set(MAX_CREDITS);
+	}
+	
+	/*
+	  @return the backlog of the client: the number of batches of updates
+	  queued for it, plus the number of updates held back.
+	 */
+	int backlog() {
+		return queued.get() + heldUpdates;
+	}
+	
+	/*
+	  Binds the client to the home with the given id, loading it if needed.
+	  Called by the DFA once the client is authenticated; from then on the
+	  client receives the updates of the home.
+	  @return the home.
+	 */
+	public Home bindHome(String homeId) throws Exception {
+		hostedHome = connectionListener.homes().acquire(homeId, this);
+		channel = connectionListener.executor().attach(hostedHome);
+		return hostedHome.home();
+	}
+	
+	//@return the home the client controls, null before authentication
+	public HostedHome hostedHome() {
+		return hostedHome;
+	}
+	
+	/*
+	  Unbinds the client from its home.
+	  @return the home the client was bound to, or null if none.
+	 */
+	synchronized HostedHome unbindHome() {
+		HostedHome hosted = hostedHome;
+		hostedHome = null;
+		if (channel != null) {
+			connectionListener.executor().detach(channel);
+			channel = null;
+		}
+		return hosted;
+	}
+	
+	//@return the channel to the core owning the home, null if unbound
+	ActionExecutor.Channel channel() {
+		return channel;
+	}
+	
+	/*
+	  Sets the home snapshot sent to the client in its INIT message. Must be
+	  called by the session thread, before the INIT is written.
+	 */
+	public void setInitSnapshot(HomeImage snapshot) {
+		this.initSnapshot = snapshot;
+		// the updates held back are all included in the snapshot
+		held = null;
+		heldUpdates = 0;
+	}
+	
+	/*
+	  Subscribes the client to the given projection of its home, null for
+	  every device. Must be called by the session thread, before taking the
+	  snapshot of the INIT sent back: the updates applied after the snapshot
+	  are then routed to the session.
+	 */
+	public void subscribe(Projection to) {
+		hostedHome.subscribe(this, projection, to);
+		projection = to;
+	}
+	
+	//@return the projection of the home the client subscribed to, or null
+	public Projection projection() {
+		return projection;
 	}
 	
 	@Override
 	public int compareTo(ServerCommunication o) {
 		return id - o.id;
 	}
+	
+	/*
+	  Main method for testing flow control: while another client floods
+	  actions, a client of the flow control version that stops granting
+	  credits is sent INITIAL_CREDITS update messages, then has its queued
+	  batches dropped once MAX_BACKLOG pile up. Granting credits again gets
+	  it a fresh INIT of the home, in INIT chunks, and the following updates.
+	  Then a client granting a credit at a time, slower than the flooded
+	  updates arrive, keeps a backlog bounded by MAX_BACKLOG (updates held
+	  back plus batches queued) and catches up from a fresh INIT.
+	  @param args [number of flooded actions]
+	 */
+	public static void main(String[] args) throws Exception {
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 6000;
+		Log.setLevel(Log.ERROR);
+		int port = 9570;
+		String user = "abhi";
+		final Home home = new RandomHomeGenerator(4, 3).createHome();
+		HomeRegistry homes = new HomeRegistry(new HomeStore() {
+			@Override
+			public Home load(String homeId) {
+				return home;
+			}
+			
+			@Override
+			public void save(String homeId, byte[] init) {
+			}
+		}, 10, 10);
+		new Thread(new ConnectListener(homes, null, port)).start();
+		Thread.sleep(200);
+		TestSession flooder = TestSession.open(port, user,
+				ProtocolFeatures.CLUSTERED);
+		final TestSession slow = TestSession.open(port, user,
+				ProtocolFeatures.CREDITED);
+		final LinkedBlockingQueue<Message> received =
+				new LinkedBlockingQueue<Message>();
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (true)
+						received.add(slow.read());
+				} catch (IOException e) {
+					// closed
+				}
+			}
+		});
+		reader.setDaemon(true);
+		reader.start();
+		// the slow client keeps its session busy, so updates go out at once
+		final AtomicBoolean flooding = new AtomicBoolean(true);
+		Thread poker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (flooding.get()) {
+						slow.send(Message.createCredit(0));
+						Thread.sleep(2);
+					}
+				} catch (IOException | InterruptedException e) {
+					// stopped
+				}
+			}
+		});
+		poker.start();
+		byte last = flooder.flood(n, 0);
+		flooding.set(false);
+		poker.join();
+		int messages = 0;
+		boolean init = false;
+		Message m;
+		while ((m = received.poll(500, TimeUnit.MILLISECONDS)) != null) {
+			if (m.keycode() == Message.KEY_UPDATE
+					|| m.keycode() == Message.KEY_UPDATE_BATCH)
+				messages++;
+			init |= m.keycode() == Message.KEY_INIT_CHUNK;
+		}
+		boolean dropped = false;
+		for (ServerCommunication session : homes.loaded(
+				Authentication.homeOf(user)).sessions())
+			dropped |= session.dfa.features().credits() && session.stale;
+		System.out.println(n + " actions flooded, slow client: " + messages
+				+ " update messages with " + Message.INITIAL_CREDITS
+				+ " credits, INIT " + init + ", held batches dropped "
+				+ dropped);
+
+		// credits granted: a fresh INIT in chunks, then updates again
+		slow.send(Message.createCredit(Message.INITIAL_CREDITS / 2));
+		Home caughtUp = new LazyHome();
+		int chunks = 0;
+		do {
+			m = received.poll(5, TimeUnit.SECONDS);
+			chunks++;
+		} while (m != null && m.keycode() == Message.KEY_INIT_CHUNK
+				&& !caughtUp.addInitChunk(m));
+		System.out.println("after CREDIT: catch-up INIT in " + chunks
+				+ " chunks, light level " + dimLevel(caughtUp) + " expected "
+				+ last);
+		last = flooder.flood(5, 90);
+		slow.send(Message.createCredit(0));
+		while (dimLevel(caughtUp) != last
+				&& (m = received.poll(5, TimeUnit.SECONDS)) != null) {
+			List<Message> updates = m.keycode() == Message.KEY_UPDATE_BATCH
+					? Message.splitUpdateBatch(m)
+					: Collections.singletonList(m);
+			for (Message update : updates)
+				caughtUp.doUpdate(update);
+		}
+		System.out.println("updates after the catch-up: light level "
+				+ dimLevel(caughtUp) + " expected " + last);
+
+		// a client granting credits slower than the updates arrive
+		final TestSession slower = TestSession.open(port, user,
+				ProtocolFeatures.CREDITED);
+		ServerCommunication session = null;
+		// sessions are ordered by id, the last one is the newest
+		for (ServerCommunication s : homes.loaded(
+				Authentication.homeOf(user)).sessions())
+			session = s;
+		final AtomicInteger chunksReceived = new AtomicInteger();
+		Thread slowerReader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						if (slower.read().keycode() == Message.KEY_INIT_CHUNK)
+							chunksReceived.incrementAndGet();
+					}
+				} catch (IOException e) {
+					// closed
+				}
+			}
+		});
+		slowerReader.setDaemon(true);
+		slowerReader.start();
+		flooding.set(true);
+		// one credit every 250 ms, the session kept busy in between
+		Thread granter = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for (int i = 0; flooding.get(); i++) {
+						slower.send(Message.createCredit(i % 125 == 0 ? 1 : 0));
+						Thread.sleep(2);
+					}
+				} catch (IOException | InterruptedException e) {
+					// stopped
+				}
+			}
+		});
+		granter.start();
+		final ServerCommunication watched = session;
+		final AtomicInteger largest = new AtomicInteger();
+		Thread sampler = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (flooding.get()) {
+					int backlog = watched.backlog();
+					if (backlog > largest.get())
+						largest.set(backlog);
+					Thread.yield();
+				}
+			}
+		});
+		sampler.start();
+		flooder.flood(n, 0);
+		Thread.sleep(500);
+		flooding.set(false);
+		granter.join();
+		sampler.join();
+		slower.send(Message.createCredit(Message.INITIAL_CREDITS));
+		Thread.sleep(500);
+		System.out.println("slow credits: largest backlog " + largest.get()
+				+ ", bounded " + (largest.get() <= 2 * MAX_BACKLOG)
+				+ ", catch-up INIT chunks " + chunksReceived.get());
+		System.exit(0);
+	}
+	
+	//@return the dim level of the first light of the given home
+	private static byte dimLevel(Home home) {
+		return ((Light) home.devices().get(0).get(0)).dimLevel();
+	}
+	
+	//A raw client session of the testing main
+	private static class TestSession {
+		final BufferedReader br;
+		final BufferedWriter bw;
+		
+		private TestSession(Socket socket) throws IOException {
+			socket.setSoTimeout(10000);
+			br = new BufferedReader(new InputStreamReader(
+					socket.getInputStream()));
+			bw = new BufferedWriter(new OutputStreamWriter(
+					socket.getOutputStream()));
+		}
+		
+		/*
+		  Opens a session of the home of the given user with the given
+		  version, up to its INIT, retrying failed authentications.
+		 */
+		static TestSession open(int port, String user,
+				ProtocolFeatures version) throws IOException {
+			while (true) {
+				TestSession s = new TestSession(new Socket("127.0.0.1", port));
+				s.send(Message.PING);
+				s.read();
+				s.send(new Message(version.version().getBytes(),
+						Message.KEY_VERSION));
+				Message challenge = s.read();
+				s.send(new Message(Authentication.generateUserResponse(user,
+						Authentication.DES_STORE.get(user),
+						challenge.contentBytes()), Message.KEY_RESPONSE));
+				Message m = s.read();
+				// responses holding a ';' byte fail authentication, retry
+				if (m.keycode() == Message.KEY_ERROR)
+					continue;
+				// the INIT chunks, up to the last one
+				Home home = new LazyHome();
+				while (m.keycode() == Message.KEY_INIT_CHUNK
+						&& !home.addInitChunk(m))
+					m = s.read();
+				return s;
+			}
+		}
+		
+		synchronized void send(Message m) throws IOException {
+			m.write(bw);
+		}
+		
+		Message read() throws IOException {
+			String line = br.readLine();
+			if (line == null)
+				throw new IOException("Connection closed");
+			return Message.fromHexString(line);
+		}
+		
+		/*
+		  Sends the given number of actions dimming the first light, turned
+		  on first, all at once, and waits for their confirms.
+		  @return the last dim level.
+		 */
+		byte flood(final int n, int base) throws Exception {
+			Thread confirms = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i <= n; ) {
+							if (read().keycode() == Message.KEY_CONFIRM)
+								i++;
+						}
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			});
+			confirms.start();
+			byte level = 0;
+			synchronized (this) {
+				bw.write(new DeviceAction(1, (byte) 0, 0, (byte) 0,
+						new byte[0]).toMessage().toHexString());
+				for (int i = 0; i < n; i++) {
+					level = (byte) (1 + (base + i) % 95);
+					bw.write(new DeviceAction(i + 2, (byte) 0, 0, (byte) 2,
+							new byte[] { level }).toMessage().toHexString());
+				}
+				bw.flush();
+			}
+			confirms.join();
+			return level;
+		}
+	}
 }
@@ -0,0 +1,77 @@
+/*
+  CS544 - Computer Networks
+  Drexel University
+  Protocol Implementation: IoT Home Control Protocol
+  Abhilasha Jayaswal
+
+  File name: SpscQueue.java
+
+  Purpose:
+  Bounded lock-free single-producer single-consumer queue, used to hand the
+  actions of a session thread to the core loop owning its home. The producer
+  only writes the tail and the consumer only writes the head, so neither side
+  ever takes a lock or retries a compare-and-set.
+ */
+
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+class SpscQueue<E> {
+
+	//Queue slots, the capacity is always a power of two
+	private final Object[] items;
+	//Capacity mask
+	private final int mask;
+	//Next position to read, only written by the consumer
+	private final AtomicLong head = new AtomicLong();
+	//Next position to write, only written by the producer
+	private final AtomicLong tail = new AtomicLong();
+
+	/*
+	  Constructs a queue with at least the given capacity (rounded up to a
+	  power of two).
+	 */
+	SpscQueue(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		this.items = new Object[size];
+		this.mask = size - 1;
+	}
+
+	/*
+	  Appends the given element. Must only be called by the producer thread.
+	  @return false if the queue is full.
+	 */
+	boolean offer(E e) {
+		long t = tail.get();
+		if (t - head.get() == items.length)
+			return false;
+		items[(int) t & mask] = e;
+		// publish the element to the consumer, with a volatile store ordered
+		// before the producer reads whether the consumer is idle
+		tail.set(t + 1);
+		return true;
+	}
+
+	/*
+	  Removes the next element. Must only be called by the consumer thread.
+	  @return the element, or null if the queue is empty.
+	 */
+	@SuppressWarnings("unchecked")
+	E poll() {
+		long h = head.get();
+		if (h == tail.get())
+			return null;
+		int index = (int) h & mask;
+		E e = (E) items[index];
+		items[index] = null;
+		// free the slot for the producer
+		head.lazySet(h + 1);
+		return e;
+	}
+
+	//@return true if the queue holds no published element
+	boolean isEmpty() {
+		return head.get() == tail.get();
+	}
+}
@@ -0,0 +1,62 @@
+/*
+  CS544 - Computer Networks
+  Drexel University
+  Protocol Implementation: IoT Home Control Protocol
+  Abhilasha Jayaswal
+
+  File name: UpdateBatch.java
+
+  Purpose:
+  The updates produced by one batch of actions applied on a home, shared by
+  all the sessions the batch is broadcast to. Every update keeps the device
+  version it produced and the session whose client sent the action, so each
+  session can skip its own actions and the updates already included in its
+  INIT when it encodes the batch for its client.
+ */
+
+package server;
+
+import protocol.Message;
+
+class UpdateBatch {
+
+	//Update messages, in the order their actions were applied
+	private final Message[] updates;
+	//Device versions produced by the updates
+	private final int[] versions;
+	//Sessions whose clients sent the actions of the updates
+	private final ServerCommunication[] origins;
+	//Number of updates in the batch
+	private int size = 0;
+
+	//Constructs an empty batch with room for the given number of updates
+	UpdateBatch(int capacity) {
+		updates = new Message[capacity];
+		versions = new int[capacity];
+		origins = new ServerCommunication[capacity];
+	}
+
+	//Appends an update to the batch, must not be called once broadcast
+	void add(Message update, int deviceVersion, ServerCommunication origin) {
+		updates[size] = update;
+		versions[size] = deviceVersion;
+		origins[size] = origin;
+		size++;
+	}
+
+	int size() {
+		return size;
+	}
+
+	Message update(int i) {
+		return updates[i];
+	}
+
+	int version(int i) {
+		return versions[i];
+	}
+
+	ServerCommunication origin(int i) {
+		return origins[i];
+	}
+}